@@ -18,13 +18,27 @@
  */
 package org.opensocial.explorer.specserver;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -33,14 +47,24 @@ import org.apache.shindig.common.util.ResourceLoader;
 import org.apache.wink.json4j.JSONArray;
 import org.apache.wink.json4j.JSONException;
 import org.apache.wink.json4j.JSONObject;
+import org.opensocial.explorer.specserver.api.FileContent;
 import org.opensocial.explorer.specserver.api.GadgetRegistry;
+import org.opensocial.explorer.specserver.api.GadgetResource;
 import org.opensocial.explorer.specserver.api.GadgetSpec;
 import org.opensocial.explorer.specserver.api.GadgetSpecFactory;
+import org.opensocial.explorer.specserver.api.OnDiskResource;
+import org.opensocial.explorer.specserver.api.SearchResults;
+import org.opensocial.explorer.specserver.api.SerializedContent;
+import org.opensocial.explorer.specserver.api.SpecTreePage;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
+import com.google.inject.Singleton;
 import com.google.inject.name.Named;
 
 /**
@@ -52,72 +76,535 @@ import com.google.inject.name.Named;
  * from the classpath and kept in memory. One could inject one's own {@link GadgetSpecFactory} to
  * load resources from elsewhere and one could override this class to store specs someplace other
  * than in memory.
+ * 
+ * The JSON of every spec and of the spec tree as well as the content of every resource is
+ * serialized and gzip compressed once at load time so it can be served without rebuilding or
+ * compressing it on every request. Specs whose resources are {@link LazyGadgetResource}s are the
+ * exception: they are serialized on demand and kept in the resources' {@link ResourceContentCache}
+ * so that their content does not stay in memory.
+ * 
+ * Specs are loaded and serialized in parallel by a bounded pool of threads. The results are merged
+ * in the order the specs are listed in the registry, so the spec tree and the default spec are the
+ * same as if the specs had been loaded one at a time.
+ * 
+ * When watching is enabled, the registry files and the spec directories that are on the local file
+ * system are watched for changes. Only the specs whose files changed are reloaded, after which a new
+ * immutable snapshot of the registry is published with a single volatile write. Readers never take
+ * a lock and never see a partially reloaded registry.
+ * 
+ * When a snapshot file is configured, the specs are written to it with {@link RegistrySnapshotFile}
+ * after they are loaded at startup. On the next start the specs whose files did not change are
+ * restored from the snapshot and only the others are created by the {@link GadgetSpecFactory}.
+ * 
+ * Every snapshot of the registry has a {@link GadgetSearchIndex} over its specs. The terms of each
+ * spec are extracted on the loading threads, which reads the content of lazily loaded resources
+ * once, and are kept with the spec so a reload only extracts the terms of the specs that changed.
+ * 
+ * Every snapshot also indexes the nodes of the spec tree by their parent, so a page of the children
+ * of a folder is served in constant time however many specs are registered, and the parent of every
+ * node, so the path to a node is found without walking the tree.
  */
+@Singleton
 public class DefaultGadgetRegistry implements GadgetRegistry {
   private static final String CLASS = DefaultGadgetRegistry.class.getName();
   private static final Logger LOG = Logger.getLogger(CLASS);
 
+  private static final int DEFAULT_LOAD_THREADS = 0;
+  private static final String ROOT_ID = "root";
+  private static final String FOLDER_ID_PREFIX = "folder:";
   private static final Splitter CRLF_SPLITTER = Splitter.onPattern("[\r\n]+").trimResults()
           .omitEmptyStrings();
 
   private final Iterable<String> specsRegistry;
+  private final int loadThreads;
+  private final File snapshotFile;
+  private final ResourceContentPool pool;
 
-  private Map<String, GadgetSpec> specs;
-  private GadgetSpec defaultSpec;
-  private JSONArray specTree;
+  private volatile Snapshot snapshot;
   private List<String> specSources;
   private GadgetSpecFactory specFactory;
+  private RegistryWatcher watcher;
+  private Set<Path> registryFiles = Collections.emptySet();
 
+  public DefaultGadgetRegistry(GadgetSpecFactory factory, String specsLocations) {
+    this(factory, specsLocations, (List<String>) null, DEFAULT_LOAD_THREADS, false);
+  }
+
+  /**
+   * @param factory
+   *          the factory used to create the specs
+   * @param specsLocations
+   *          comma separated locations of files listing the paths of the specs to load
+   * @param loadThreads
+   *          the maximum number of threads used to load the specs, 0 or less means one thread per
+   *          available processor
+   * @param watch
+   *          true to reload specs when their files change
+   * @param snapshotLocation
+   *          the file to keep a snapshot of the loaded specs in to speed up the next start, empty
+   *          to not use a snapshot
+   * @param pool
+   *          the pool to share the content of specs restored from the snapshot through, which
+   *          should be the pool the factory uses
+   */
   @Inject
   public DefaultGadgetRegistry(GadgetSpecFactory factory,
-          @Named("explorer.registry.specs") String specsLocations) {
-    this(factory, specsLocations, (List<String>) null);
+          @Named("explorer.registry.specs") String specsLocations,
+          @Named("explorer.registry.loadThreads") int loadThreads,
+          @Named("explorer.registry.watch") boolean watch,
+          @Named("explorer.registry.snapshot") String snapshotLocation, ResourceContentPool pool) {
+    this(factory, specsLocations, (List<String>) null, loadThreads, watch,
+            snapshotLocation == null || snapshotLocation.trim().length() == 0 ? null : new File(
+                    snapshotLocation.trim()), pool);
   }
 
   @VisibleForTesting
   protected DefaultGadgetRegistry(GadgetSpecFactory factory, String specsLocations, String[] specs) {
-    this(factory, specsLocations, (specs != null ? ImmutableList.copyOf(specs) : null));
+    this(factory, specsLocations, (specs != null ? ImmutableList.copyOf(specs) : null),
+            DEFAULT_LOAD_THREADS);
+  }
+
+  @VisibleForTesting
+  protected DefaultGadgetRegistry(GadgetSpecFactory factory, String specsLocations,
+          List<String> specs, int loadThreads) {
+    this(factory, specsLocations, specs, loadThreads, false);
+  }
+
+  @VisibleForTesting
+  protected DefaultGadgetRegistry(GadgetSpecFactory factory, String specsLocations,
+          List<String> specs, int loadThreads, boolean watch) {
+    this(factory, specsLocations, specs, loadThreads, watch, null, null);
   }
 
   @VisibleForTesting
   protected DefaultGadgetRegistry(GadgetSpecFactory factory, String specsLocations,
-          List<String> specs) {
-    LOG.entering(CLASS, "<constructor>", new Object[] { factory, specsLocations, specs });
-    this.specTree = new JSONArray();
-    this.specs = new HashMap<String, GadgetSpec>();
+          List<String> specs, int loadThreads, boolean watch, File snapshotFile,
+          ResourceContentPool pool) {
+    LOG.entering(CLASS, "<constructor>", new Object[] { factory, specsLocations, specs,
+            loadThreads, watch, snapshotFile });
+    this.loadThreads = loadThreads > 0 ? loadThreads : Runtime.getRuntime().availableProcessors();
+    this.snapshotFile = snapshotFile;
+    this.pool = pool;
     this.specSources = specs;
     this.specFactory = factory;
     this.specsRegistry = specsLocations == null ? null : Splitter.on(',').trimResults()
             .split(specsLocations);
     loadSpecs();
+    if (watch) {
+      startWatching();
+    }
   }
 
   private void loadSpecs() {
     final String method = "loadSpecs";
+    long start = System.currentTimeMillis();
+    List<String> specPaths = Lists.newArrayList(getSpecRegistryContents());
+    Map<String, RegistrySnapshotFile.Entry> restorable = readSnapshotFile();
+    int snapshotSize = restorable.size();
+    List<LoadedSpec> loadedSpecs = loadInParallel(specPaths, restorable);
+    snapshot = buildSnapshot(specPaths, loadedSpecs);
+
+    // Entries that were not claimed belong to specs that are no longer part of the registry
+    for (RegistrySnapshotFile.Entry unused : restorable.values()) {
+      ((DefaultGadgetSpec) unused.getSpec()).release();
+    }
+    int restored = snapshotSize - restorable.size();
+    LOG.logp(Level.INFO, CLASS, method, "Loaded {0} of {1} gadget specs, {2} of them from the "
+            + "snapshot, in {3} ms using up to {4} threads", new Object[] { loadedSpecs.size(),
+            specPaths.size(), restored, System.currentTimeMillis() - start, loadThreads });
+    if (restored < loadedSpecs.size() || !restorable.isEmpty()) {
+      writeSnapshotFile(loadedSpecs, start);
+    }
+  }
+
+  /**
+   * @return the specs in the snapshot file whose files have not changed, by the path of their
+   *         spec.json file
+   */
+  private Map<String, RegistrySnapshotFile.Entry> readSnapshotFile() {
+    final String method = "readSnapshotFile";
+    Map<String, RegistrySnapshotFile.Entry> restorable =
+            new ConcurrentHashMap<String, RegistrySnapshotFile.Entry>();
+    if (snapshotFile == null || !snapshotFile.isFile()) {
+      return restorable;
+    }
+    try {
+      restorable.putAll(RegistrySnapshotFile.read(snapshotFile, pool));
+    } catch (IOException e) {
+      LOG.logp(Level.WARNING, CLASS, method, "Unable to read the gadget registry snapshot, all "
+              + "gadget specs will be loaded from their files", e);
+    } catch (RuntimeException e) {
+      // The snapshot is only an optimization, never fail startup because of it
+      LOG.logp(Level.WARNING, CLASS, method, "Unable to read the gadget registry snapshot, all "
+              + "gadget specs will be loaded from their files", e);
+    }
+    return restorable;
+  }
+
+  private void writeSnapshotFile(List<LoadedSpec> loadedSpecs, long loadStart) {
+    final String method = "writeSnapshotFile";
+    if (snapshotFile == null) {
+      return;
+    }
+    List<RegistrySnapshotFile.Entry> entries = new ArrayList<RegistrySnapshotFile.Entry>(
+            loadedSpecs.size());
+    for (LoadedSpec loaded : loadedSpecs) {
+      entries.add(new RegistrySnapshotFile.Entry(loaded.path, loaded.spec, loaded.json,
+              loaded.resources));
+    }
+    try {
+      int written = RegistrySnapshotFile.write(snapshotFile, entries, loadStart);
+      LOG.logp(Level.INFO, CLASS, method, "Wrote {0} gadget specs to the snapshot {1}",
+              new Object[] { written, snapshotFile });
+    } catch (IOException e) {
+      LOG.logp(Level.WARNING, CLASS, method, "Unable to write the gadget registry snapshot", e);
+    }
+  }
+
+  /**
+   * Reloads the specs affected by the given changes and publishes a new snapshot of the registry.
+   * Specs that did not change are carried over from the current snapshot as they are.
+   * 
+   * @param changed
+   *          the files that changed, or the directories containing them
+   */
+  @VisibleForTesting
+  synchronized void reload(Set<Path> changed) {
+    final String method = "reload";
+    long start = System.currentTimeMillis();
+    Snapshot current = snapshot;
+    List<String> specPaths = current.specPaths;
+    if (!Sets.intersection(registryFiles, changed).isEmpty()) {
+      specPaths = Lists.newArrayList(getSpecRegistryContents());
+    }
+
+    Set<String> toLoad = new LinkedHashSet<String>();
+    for (String specPath : specPaths) {
+      if (!current.specPaths.contains(specPath)
+              || isAffected(getDirectories(specPath, current.loadedSpecs.get(specPath)), changed)) {
+        toLoad.add(specPath);
+      }
+    }
+    if (toLoad.isEmpty() && specPaths == current.specPaths) {
+      return;
+    }
+
+    Map<String, LoadedSpec> reloaded = new HashMap<String, LoadedSpec>();
+    for (LoadedSpec loaded : loadInParallel(Lists.newArrayList(toLoad),
+            Collections.<String, RegistrySnapshotFile.Entry> emptyMap())) {
+      reloaded.put(loaded.path, loaded);
+    }
+    List<LoadedSpec> loadedSpecs = new ArrayList<LoadedSpec>(specPaths.size());
+    for (String specPath : specPaths) {
+      LoadedSpec loaded = toLoad.contains(specPath) ? reloaded.get(specPath)
+              : current.loadedSpecs.get(specPath);
+      if (loaded != null) {
+        loadedSpecs.add(loaded);
+      }
+    }
+    Snapshot next = buildSnapshot(specPaths, loadedSpecs);
+    snapshot = next;
+    watchDirectories(next);
+
+    // Let go of the content of specs that are no longer part of the registry
+    Set<LoadedSpec> retained = Sets.newIdentityHashSet();
+    retained.addAll(loadedSpecs);
+    for (LoadedSpec loaded : current.loadedSpecs.values()) {
+      if (!retained.contains(loaded) && loaded.spec instanceof DefaultGadgetSpec) {
+        ((DefaultGadgetSpec) loaded.spec).release();
+      }
+    }
+    LOG.logp(Level.INFO, CLASS, method, "Reloaded {0} of {1} gadget specs in {2} ms",
+            new Object[] { toLoad.size(), specPaths.size(), System.currentTimeMillis() - start });
+  }
+
+  /**
+   * Merges the given specs into a new snapshot. The specs must be in registry order so the spec
+   * tree and the default spec do not depend on the order in which they were loaded.
+   */
+  private Snapshot buildSnapshot(List<String> specPaths, List<LoadedSpec> loadedSpecs) {
+    final String method = "buildSnapshot";
+    Map<String, LoadedSpec> loadedByPath = new HashMap<String, LoadedSpec>();
+    Map<String, GadgetSpec> specs = new HashMap<String, GadgetSpec>();
+    Map<String, SerializedContent> serializedSpecs = new HashMap<String, SerializedContent>();
+    Map<String, SerializedContent> serializedResources = new HashMap<String, SerializedContent>();
+    Map<String, LoadedSpec> lazySpecs = new HashMap<String, LoadedSpec>();
+    Map<String, LazyGadgetResource> lazyResources = new HashMap<String, LazyGadgetResource>();
+    Map<String, LoadedSpec> uniqueSpecs = new LinkedHashMap<String, LoadedSpec>();
+    GadgetSpec defaultSpec = null;
+    SpecTreeBuilder specTree = new SpecTreeBuilder();
+    // FIXME: If there's only one spec, we should force it to be the default. This might be easier
+    // to do client-side
+    // TODO: What if two specs want to be the default? Last one wins? This also might be easier to
+    // do client-side
+    for (LoadedSpec loaded : loadedSpecs) {
+      GadgetSpec gadgetSpec = loaded.spec;
+      String id = gadgetSpec.getId();
+      loadedByPath.put(loaded.path, loaded);
+      specs.put(id, gadgetSpec);
+      if (!uniqueSpecs.containsKey(id)) {
+        uniqueSpecs.put(id, loaded);
+      }
+      if (loaded.json != null) {
+        serializedSpecs.put(id, loaded.json);
+      }
+      for (Entry<String, SerializedContent> resource : loaded.resources.entrySet()) {
+        serializedResources.put(getResourceKey(id, resource.getKey()), resource.getValue());
+      }
+      if (loaded.cache != null) {
+        lazySpecs.put(id, loaded);
+      }
+      for (Entry<String, LazyGadgetResource> resource : loaded.lazyResources.entrySet()) {
+        lazyResources.put(getResourceKey(id, resource.getKey()), resource.getValue());
+      }
+      if (gadgetSpec.isDefault()) {
+        defaultSpec = gadgetSpec;
+      }
+      try {
+        specTree.add(gadgetSpec);
+      } catch (JSONException e) {
+        LOG.logp(Level.SEVERE, CLASS, method, e.getMessage(), e);
+      }
+    }
+    JSONArray tree = specTree.build();
+    Map<String, List<JSONObject>> treeChildren = specTree.buildChildren();
+    Map<String, String> treeParents = new HashMap<String, String>();
+    for (Entry<String, List<JSONObject>> folder : treeChildren.entrySet()) {
+      for (JSONObject node : folder.getValue()) {
+        treeParents.put(String.valueOf(node.opt("id")), folder.getKey());
+      }
+    }
+    List<GadgetSpec> indexedSpecs = new ArrayList<GadgetSpec>(uniqueSpecs.size());
+    List<GadgetSearchIndex.Terms> indexedTerms = new ArrayList<GadgetSearchIndex.Terms>(
+            uniqueSpecs.size());
+    for (LoadedSpec loaded : uniqueSpecs.values()) {
+      indexedSpecs.add(loaded.spec);
+      indexedTerms.add(loaded.terms);
+    }
+    return new Snapshot(specPaths, loadedByPath, specs, serializedSpecs, serializedResources,
+            lazySpecs, lazyResources, defaultSpec, tree, SerializedContent.fromJSON(tree,
+                    System.currentTimeMillis(), true), treeChildren, treeParents,
+            new GadgetSearchIndex(indexedSpecs, indexedTerms));
+  }
+
+  /**
+   * Starts watching the registry files and the spec directories for changes. Files that are not on
+   * the local file system, e.g. because they are packaged in a jar, cannot be watched.
+   */
+  @VisibleForTesting
+  synchronized void startWatching() {
+    final String method = "startWatching";
+    if (watcher != null) {
+      return;
+    }
     try {
-      // FIXME: If there's only one spec, we should force it to be the default. This might be easier
-      // to do client-side
-      // TODO: What if two specs want to be the default? Last one wins? This also might be easier to
-      // do client-side
-      for (String specPath : getSpecRegistryContents()) {
-        GadgetSpec gadgetSpec = specFactory.create(specPath);
-        if (gadgetSpec == null) {
-          LOG.logp(Level.WARNING, CLASS, method, "Unable to load gadget at path {0}", specPath);
+      watcher = new RegistryWatcher(new RegistryWatcher.Listener() {
+        public void filesChanged(Set<Path> changed) {
+          reload(changed);
+        }
+      });
+    } catch (IOException e) {
+      LOG.logp(Level.SEVERE, CLASS, method, "Unable to watch the gadget registry for changes", e);
+      return;
+    }
+    Set<Path> files = new HashSet<Path>();
+    if (specSources == null && specsRegistry != null) {
+      for (String location : specsRegistry) {
+        Path file = ResourceFiles.toPath(location);
+        if (file == null) {
+          LOG.logp(Level.WARNING, CLASS, method, "{0} is not on the file system and will not be "
+                  + "watched", location);
           continue;
         }
-        specs.put(gadgetSpec.getId(), gadgetSpec);
-        if (gadgetSpec.isDefault()) {
-          defaultSpec = gadgetSpec;
+        files.add(file);
+        watcher.watch(file.getParent());
+      }
+    }
+    registryFiles = files;
+    watchDirectories(snapshot);
+    watcher.start();
+  }
+
+  /**
+   * Stops watching the registry for changes.
+   */
+  public synchronized void stopWatching() {
+    if (watcher != null) {
+      watcher.close();
+      watcher = null;
+    }
+  }
+
+  private void watchDirectories(Snapshot snapshot) {
+    if (watcher == null) {
+      return;
+    }
+    for (String specPath : snapshot.specPaths) {
+      for (Path directory : getDirectories(specPath, snapshot.loadedSpecs.get(specPath))) {
+        watcher.watch(directory);
+      }
+    }
+  }
+
+  /**
+   * @return the directories on the local file system that contain the spec at the given path and
+   *         its resources
+   */
+  private Set<Path> getDirectories(String specPath, LoadedSpec loaded) {
+    if (loaded != null && loaded.directories != null) {
+      return loaded.directories;
+    }
+    Set<Path> directories = new HashSet<Path>();
+    addParent(directories, specPath);
+    if (loaded != null) {
+      GadgetSpec spec = loaded.spec;
+      addParent(directories, spec.getGadgetResource());
+      addParent(directories, spec.getEEResource());
+      addParents(directories, spec.getCssResources());
+      addParents(directories, spec.getJsResources());
+      addParents(directories, spec.getHtmlResources());
+      loaded.directories = directories;
+    }
+    return directories;
+  }
+
+  private void addParents(Set<Path> directories, Map<String, GadgetResource> resources) {
+    if (resources != null) {
+      for (GadgetResource resource : resources.values()) {
+        addParent(directories, resource);
+      }
+    }
+  }
+
+  private void addParent(Set<Path> directories, GadgetResource resource) {
+    if (resource instanceof OnDiskResource) {
+      addParent(directories, ((OnDiskResource) resource).getPath());
+    }
+  }
+
+  private void addParent(Set<Path> directories, String location) {
+    Path file = ResourceFiles.toPath(location);
+    if (file != null) {
+      directories.add(file.getParent());
+    }
+  }
+
+  private boolean isAffected(Set<Path> directories, Set<Path> changed) {
+    for (Path path : changed) {
+      // The watcher reports a directory instead of its files when events were lost
+      if (directories.contains(path) || directories.contains(path.getParent())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Loads and serializes the specs at the given paths on a bounded pool of threads.
+   * 
+   * @param restorable
+   *          specs restored from a snapshot by path, which are used instead of loading the spec.
+   *          Entries are removed once they are used.
+   * @return the specs that could be loaded, in the order of the given paths
+   */
+  private List<LoadedSpec> loadInParallel(List<String> specPaths,
+          final Map<String, RegistrySnapshotFile.Entry> restorable) {
+    final String method = "loadInParallel";
+    List<LoadedSpec> loadedSpecs = new ArrayList<LoadedSpec>(specPaths.size());
+    if (specPaths.isEmpty()) {
+      return loadedSpecs;
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(
+            Math.min(loadThreads, specPaths.size()),
+            new ThreadFactoryBuilder().setNameFormat("gadget-registry-loader-%d").setDaemon(true)
+                    .build());
+    try {
+      List<Future<LoadedSpec>> futures = new ArrayList<Future<LoadedSpec>>(specPaths.size());
+      for (final String specPath : specPaths) {
+        futures.add(executor.submit(new Callable<LoadedSpec>() {
+          public LoadedSpec call() {
+            RegistrySnapshotFile.Entry entry = restorable.isEmpty() ? null : restorable
+                    .remove(specPath);
+            return entry != null ? restore(entry) : load(specPath);
+          }
+        }));
+      }
+      for (int i = 0; i < futures.size(); i++) {
+        try {
+          LoadedSpec loaded = futures.get(i).get();
+          if (loaded != null) {
+            loadedSpecs.add(loaded);
+          }
+        } catch (ExecutionException e) {
+          LOG.logp(Level.SEVERE, CLASS, method, "Unable to load gadget at path " + specPaths.get(i),
+                  e.getCause());
         }
-        addToTree(gadgetSpec, specTree);
       }
-    } catch (Exception e) {
-      LOG.logp(Level.SEVERE, CLASS, method, e.getMessage(), e);
+    } catch (InterruptedException e) {
+      LOG.logp(Level.SEVERE, CLASS, method, "Interrupted while loading gadget specs", e);
+      Thread.currentThread().interrupt();
+    } finally {
+      executor.shutdownNow();
     }
+    return loadedSpecs;
+  }
+
+  private LoadedSpec load(String specPath) {
+    final String method = "load";
+    GadgetSpec gadgetSpec = specFactory.create(specPath);
+    if (gadgetSpec == null) {
+      LOG.logp(Level.WARNING, CLASS, method, "Unable to load gadget at path {0}", specPath);
+      return null;
+    }
+    LoadedSpec loaded = new LoadedSpec(specPath, gadgetSpec);
+    if (gadgetSpec.getGadgetResource() instanceof LazyGadgetResource) {
+      loaded.cache = ((LazyGadgetResource) gadgetSpec.getGadgetResource()).getCache();
+    } else {
+      try {
+        loaded.json = SerializedContent.fromJSON(gadgetSpec.toJSON(),
+                gadgetSpec.getLastModified(), true);
+      } catch (JSONException e) {
+        LOG.logp(Level.WARNING, CLASS, method, "Unable to serialize gadget at path {0}", specPath);
+      }
+    }
+    serialize(loaded, gadgetSpec.getGadgetResource());
+    serialize(loaded, gadgetSpec.getCssResources());
+    serialize(loaded, gadgetSpec.getJsResources());
+    serialize(loaded, gadgetSpec.getHtmlResources());
+    loaded.terms = GadgetSearchIndex.extractTerms(gadgetSpec);
+    return loaded;
+  }
+
+  private LoadedSpec restore(RegistrySnapshotFile.Entry entry) {
+    LoadedSpec loaded = new LoadedSpec(entry.getPath(), entry.getSpec());
+    loaded.json = entry.getJSON();
+    loaded.resources.putAll(entry.getResources());
+    loaded.terms = GadgetSearchIndex.extractTerms(entry.getSpec());
+    return loaded;
+  }
+
+  private void serialize(LoadedSpec loaded, Map<String, GadgetResource> resources) {
+    if (resources != null) {
+      for (GadgetResource resource : resources.values()) {
+        serialize(loaded, resource);
+      }
+    }
+  }
+
+  private void serialize(LoadedSpec loaded, GadgetResource resource) {
+    if (resource instanceof LazyGadgetResource) {
+      loaded.lazyResources.put(resource.getName(), (LazyGadgetResource) resource);
+    } else if (resource != null && resource.getContent() != null) {
+      loaded.resources.put(resource.getName(), SerializedContent.fromResource(resource, true));
+    }
+  }
+
+  private String getResourceKey(String id, String resourceName) {
+    return id + '/' + resourceName;
   }
 
   public JSONArray getSpecTree() {
-    return specTree;
+    return snapshot.specTree;
   }
   
   private Iterable<String> getSpecRegistryContents() {
@@ -143,61 +630,250 @@ public class DefaultGadgetRegistry implements GadgetRegistry {
     return this.specSources;
   }
 
-  private void addToTree(GadgetSpec gadgetSpec, JSONArray tree) throws JSONException {
-    String specPath = gadgetSpec.getPathToSpec();
-    specPath = specPath.replace("/spec.json", "");
-    String[] nodes = specPath.split("/");
-    List<String> nodesArray = new ArrayList<String>();
-    Collections.addAll(nodesArray, nodes);
-    setJsonTree(nodesArray, tree, gadgetSpec);
+  /**
+   * Returns the ID of the folder node at the given path in the spec tree. The ID is derived from the
+   * full path, so folders with the same name under different parents have different IDs.
+   * 
+   * @param path
+   *          the path of the folder, relative to the root of the tree
+   * @return the ID of the folder node
+   */
+  public String getFolderId(String path) {
+    return FOLDER_ID_PREFIX + path;
   }
   
-  private void setJsonTree(List<String> path, JSONArray parent, GadgetSpec gadgetSpec) throws JSONException {
-    String tempId = "root"; // Temp variable to keep track of parent ID.
-    for(int i=0; i<path.size(); i++) {
-      JSONObject newNode = new JSONObject();
-      if(!this.isNodeExisting(path.get(i), parent)) {
-        // If node is a GadgetSpec (last in path)
-        if(i == path.size()-1) {
-          newNode.put("name", StringUtils.capitalize(gadgetSpec.getTitle()));
-          newNode.put("hasChildren", false);
-          newNode.put("isDefault", gadgetSpec.isDefault());
-          newNode.put("id", gadgetSpec.getId());
-        } 
-        // Id node is a unique folder
-        else {
-          newNode.put("name", StringUtils.capitalize(path.get(i)));
-          newNode.put("hasChildren", true);
-          newNode.put("isDefault", false);
-          newNode.put("id", getFolderId(path.get(i)));
-        }
-        newNode.put("parent", tempId);
-        parent.put(newNode);
+  public GadgetSpec getDefaultGadget() {
+    return snapshot.defaultSpec;
+  }
+
+  public GadgetSpec getGadgetSpec(String id) {
+    return snapshot.specs.get(id);
+  }
+
+  public SerializedContent getSerializedSpecTree() {
+    return snapshot.serializedSpecTree;
+  }
+
+  public SpecTreePage getSpecTreeChildren(String parentId, int offset, int limit) {
+    List<JSONObject> children = snapshot.specTreeChildren.get(parentId);
+    if (children == null) {
+      return null;
+    }
+    int from = Math.min(Math.max(offset, 0), children.size());
+    int to = from + Math.min(Math.max(limit, 0), children.size() - from);
+    return new SpecTreePage(parentId, children.size(), from, children.subList(from, to));
+  }
+
+  public List<String> getSpecTreePath(String id) {
+    Map<String, String> parents = snapshot.specTreeParents;
+    if (!ROOT_ID.equals(id) && !parents.containsKey(id)) {
+      return null;
+    }
+    LinkedList<String> path = new LinkedList<String>();
+    for (String node = id; node != null; node = parents.get(node)) {
+      path.addFirst(node);
+    }
+    return path;
+  }
+
+  public SearchResults search(String query, int offset, int limit) {
+    return snapshot.searchIndex.search(query, offset, limit);
+  }
+
+  public SerializedContent getSerializedGadgetSpec(String id) {
+    Snapshot current = snapshot;
+    SerializedContent serialized = current.serializedSpecs.get(id);
+    if (serialized == null) {
+      LoadedSpec loaded = current.lazySpecs.get(id);
+      if (loaded != null) {
+        serialized = serializeLazily(loaded);
       }
-      tempId = getFolderId(path.get(i));
     }
+    return serialized;
   }
-  
-  private boolean isNodeExisting(String node, JSONArray array) throws JSONException {
-    for(int i=0; i<array.length(); i++) {
-      JSONObject temp = array.getJSONObject(i);
-      String tempName = temp.getString("name");
-      if (tempName.equalsIgnoreCase(node)) {
-        return true;
+
+  public SerializedContent getSerializedResource(String id, String resourceName) {
+    Snapshot current = snapshot;
+    String key = getResourceKey(id, resourceName);
+    SerializedContent serialized = current.serializedResources.get(key);
+    if (serialized == null) {
+      LazyGadgetResource resource = current.lazyResources.get(key);
+      if (resource != null) {
+        serialized = resource.getSerializedContent();
       }
     }
-    return false;
+    return serialized;
   }
 
-  public String getFolderId(String name) {
-    return String.valueOf(name.hashCode());
+  public FileContent getResourceFile(String id, String resourceName) {
+    LazyGadgetResource resource = snapshot.lazyResources.get(getResourceKey(id, resourceName));
+    return resource != null ? resource.getFileContent() : null;
   }
-  
-  public GadgetSpec getDefaultGadget() {
-    return defaultSpec;
+
+  private SerializedContent serializeLazily(LoadedSpec loaded) {
+    final String method = "serializeLazily";
+    GadgetSpec gadgetSpec = loaded.spec;
+    String key = "spec:" + gadgetSpec.getId();
+    SerializedContent serialized = loaded.cache.getSerialized(key);
+    if (serialized == null) {
+      try {
+        serialized = SerializedContent.fromJSON(gadgetSpec.toJSON(),
+                gadgetSpec.getLastModified(), true);
+      } catch (JSONException e) {
+        LOG.logp(Level.WARNING, CLASS, method, "Unable to serialize gadget at path {0}",
+                loaded.path);
+        return null;
+      }
+      loaded.cache.putSerialized(key, serialized);
+    }
+    return serialized;
   }
 
-  public GadgetSpec getGadgetSpec(String id) {
-    return specs.get(id);
+  /**
+   * A spec and its serialized forms as produced by one of the loading threads.
+   */
+  private static class LoadedSpec {
+    private final String path;
+    private final GadgetSpec spec;
+    private final Map<String, SerializedContent> resources =
+            new HashMap<String, SerializedContent>();
+    private final Map<String, LazyGadgetResource> lazyResources =
+            new HashMap<String, LazyGadgetResource>();
+    private SerializedContent json;
+    private GadgetSearchIndex.Terms terms;
+    // Only set for specs with lazily loaded resources, which are serialized on demand
+    private ResourceContentCache cache;
+    // Computed on demand while holding the registry's lock
+    private Set<Path> directories;
+
+    LoadedSpec(String path, GadgetSpec spec) {
+      this.path = path;
+      this.spec = spec;
+    }
+  }
+
+  /**
+   * Builds the spec tree in time linear in the total number of path segments. Folder nodes are
+   * indexed by their full path, so every folder is created exactly once and a folder is never
+   * confused with a folder or spec of the same name elsewhere in the tree. The nodes are also
+   * indexed by their parent, along with the number of their own children.
+   */
+  private class SpecTreeBuilder {
+    private final JSONArray tree = new JSONArray();
+    private final Set<String> folderPaths = new HashSet<String>();
+    private final Set<String> specIds = new HashSet<String>();
+    private final Map<String, List<JSONObject>> children = new HashMap<String, List<JSONObject>>();
+
+    SpecTreeBuilder() {
+      children.put(ROOT_ID, new ArrayList<JSONObject>());
+    }
+
+    void add(GadgetSpec gadgetSpec) throws JSONException {
+      String[] nodes = gadgetSpec.getPathToSpec().replace("/spec.json", "").split("/");
+      String parentId = ROOT_ID;
+      StringBuilder path = new StringBuilder();
+      for (int i = 0; i < nodes.length - 1; i++) {
+        if (i > 0) {
+          path.append('/');
+        }
+        path.append(nodes[i]);
+        String folderPath = path.toString();
+        String folderId = getFolderId(folderPath);
+        if (folderPaths.add(folderPath)) {
+          addNode(nodes[i], true, false, folderId, parentId);
+          children.put(folderId, new ArrayList<JSONObject>());
+        }
+        parentId = folderId;
+      }
+      // The same spec may be listed more than once
+      if (specIds.add(gadgetSpec.getId())) {
+        addNode(gadgetSpec.getTitle(), false, gadgetSpec.isDefault(), gadgetSpec.getId(),
+                parentId);
+      }
+    }
+
+    private void addNode(String name, boolean hasChildren, boolean isDefault, String id,
+            String parentId) throws JSONException {
+      tree.put(createNode(name, hasChildren, isDefault, id, parentId));
+      // The nodes of the tree are left as they are, the indexed copies also count their children
+      children.get(parentId).add(createNode(name, hasChildren, isDefault, id, parentId));
+    }
+
+    private JSONObject createNode(String name, boolean hasChildren, boolean isDefault, String id,
+            String parentId) throws JSONException {
+      JSONObject node = new JSONObject();
+      node.put("name", StringUtils.capitalize(name));
+      node.put("hasChildren", hasChildren);
+      node.put("isDefault", isDefault);
+      node.put("id", id);
+      node.put("parent", parentId);
+      return node;
+    }
+
+    JSONArray build() {
+      return tree;
+    }
+
+    /**
+     * @return the nodes of the tree by the ID of their parent folder, with an entry for every
+     *         folder including the root
+     */
+    Map<String, List<JSONObject>> buildChildren() {
+      final String method = "buildChildren";
+      Map<String, List<JSONObject>> built = new HashMap<String, List<JSONObject>>();
+      for (Entry<String, List<JSONObject>> folder : children.entrySet()) {
+        for (JSONObject node : folder.getValue()) {
+          List<JSONObject> nodeChildren = children.get(node.opt("id"));
+          try {
+            node.put("childCount", nodeChildren == null ? 0 : nodeChildren.size());
+          } catch (JSONException e) {
+            LOG.logp(Level.SEVERE, CLASS, method, e.getMessage(), e);
+          }
+        }
+        built.put(folder.getKey(), Collections.unmodifiableList(folder.getValue()));
+      }
+      return built;
+    }
+  }
+
+  /**
+   * An immutable view of the complete registry. A snapshot is never modified once it is published.
+   */
+  private static class Snapshot {
+    private final List<String> specPaths;
+    private final Map<String, LoadedSpec> loadedSpecs;
+    private final Map<String, GadgetSpec> specs;
+    private final Map<String, SerializedContent> serializedSpecs;
+    private final Map<String, SerializedContent> serializedResources;
+    private final Map<String, LoadedSpec> lazySpecs;
+    private final Map<String, LazyGadgetResource> lazyResources;
+    private final GadgetSpec defaultSpec;
+    private final JSONArray specTree;
+    private final SerializedContent serializedSpecTree;
+    private final Map<String, List<JSONObject>> specTreeChildren;
+    private final Map<String, String> specTreeParents;
+    private final GadgetSearchIndex searchIndex;
+
+    Snapshot(List<String> specPaths, Map<String, LoadedSpec> loadedSpecs,
+            Map<String, GadgetSpec> specs, Map<String, SerializedContent> serializedSpecs,
+            Map<String, SerializedContent> serializedResources, Map<String, LoadedSpec> lazySpecs,
+            Map<String, LazyGadgetResource> lazyResources, GadgetSpec defaultSpec,
+            JSONArray specTree, SerializedContent serializedSpecTree,
+            Map<String, List<JSONObject>> specTreeChildren, Map<String, String> specTreeParents,
+            GadgetSearchIndex searchIndex) {
+      this.specPaths = specPaths;
+      this.loadedSpecs = loadedSpecs;
+      this.specs = specs;
+      this.serializedSpecs = serializedSpecs;
+      this.serializedResources = serializedResources;
+      this.lazySpecs = lazySpecs;
+      this.lazyResources = lazyResources;
+      this.defaultSpec = defaultSpec;
+      this.specTree = specTree;
+      this.serializedSpecTree = serializedSpecTree;
+      this.specTreeChildren = specTreeChildren;
+      this.specTreeParents = specTreeParents;
+      this.searchIndex = searchIndex;
+    }
   }
 }
\ No newline at end of file
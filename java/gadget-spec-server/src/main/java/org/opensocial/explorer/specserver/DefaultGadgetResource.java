@@ -19,7 +19,6 @@
 package org.opensocial.explorer.specserver;
 
 import java.io.IOException;
-import java.util.Locale;
 
 import org.apache.shindig.common.util.ResourceLoader;
 import org.apache.wink.json4j.JSONException;
@@ -30,24 +29,90 @@ import org.opensocial.explorer.specserver.api.OnDiskResource;
 /**
  * Default implementation of {@link GadgetResource} that expects all resources to be on disk via
  * {@link OnDiskResource}.
+ * 
+ * If a {@link ResourceContentPool} is given the content is shared with every other resource in that
+ * pool that has identical content. Such resources must be {@link #release() released} once they are
+ * no longer used.
  */
 public class DefaultGadgetResource implements GadgetResource, OnDiskResource {
 
   protected String name;
   protected String path;
   protected String content;
+  protected String contentHash;
+  protected long lastModified;
   protected ContentType contentType;
+  private ResourceContentPool pool;
 
   public DefaultGadgetResource(String name, String path) throws IOException {
+    this(name, path, null);
+  }
+
+  public DefaultGadgetResource(String name, String path, ResourceContentPool pool)
+          throws IOException {
+    this(name);
+    this.path = path;
+    setContent(ResourceLoader.getContent(path), pool);
+  }
+
+  /**
+   * Creates a resource whose content was read from <code>path</code> before, e.g. by a previous run
+   * of the server, and is known to have the given digest.
+   */
+  DefaultGadgetResource(String name, String path, String content, String contentHash,
+          ResourceContentPool pool) {
     this(name);
     this.path = path;
-    this.content = ResourceLoader.getContent(path);
+    setContent(content, contentHash, pool);
   }
 
   protected DefaultGadgetResource(String name) {
     this.name = name;
-    String extension = this.name.substring(this.name.lastIndexOf('.') + 1);
-    this.contentType = ContentType.valueOf(extension.toUpperCase(Locale.ENGLISH));
+    this.contentType = ContentType.forName(name);
+  }
+
+  /**
+   * Sets the content of this resource, sharing it through the given pool if there is one.
+   */
+  protected void setContent(String content, ResourceContentPool pool) {
+    setContent(content, content != null ? ResourceContentPool.digest(content) : null, pool);
+  }
+
+  /**
+   * Sets the content of this resource when its digest is already known, sharing it through the
+   * given pool if there is one.
+   * 
+   * @param contentHash
+   *          the digest of the content as returned by {@link ResourceContentPool#digest(String)}
+   */
+  protected void setContent(String content, String contentHash, ResourceContentPool pool) {
+    this.lastModified = System.currentTimeMillis();
+    if (content == null) {
+      this.content = null;
+      return;
+    }
+    this.contentHash = contentHash;
+    this.pool = pool;
+    this.content = pool != null ? pool.acquire(contentHash, content) : content;
+  }
+
+  /**
+   * Releases this resource's reference to its pooled content. Calling this more than once, or on a
+   * resource that is not pooled, has no effect.
+   */
+  public void release() {
+    if (pool != null) {
+      pool.release(contentHash);
+      pool = null;
+    }
+  }
+
+  public String getContentHash() {
+    return contentHash;
+  }
+
+  public long getLastModified() {
+    return lastModified;
   }
 
   public String getName() {
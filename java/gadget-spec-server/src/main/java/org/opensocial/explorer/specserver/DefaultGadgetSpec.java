@@ -21,6 +21,7 @@ package org.opensocial.explorer.specserver;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeSet;
 
 import org.apache.shindig.common.util.ResourceLoader;
 import org.apache.wink.json4j.JSONArray;
@@ -29,13 +30,24 @@ import org.apache.wink.json4j.JSONObject;
 import org.opensocial.explorer.specserver.api.GadgetResource;
 import org.opensocial.explorer.specserver.api.GadgetSpec;
 
-import com.google.common.base.Objects;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 
 /**
  * Default implementation of {@link GadgetSpec} that uses {@link DefaultGadgetResource} objects to
  * manage the gadget's resources.
+ * 
+ * The ID of a spec is a SHA-256 digest of its path, its title and the names and content hashes of
+ * its resources, computed once when the spec is created. Specs with the same path and content have
+ * the same ID on every server and across restarts, so URLs containing it stay cacheable.
  */
 public class DefaultGadgetSpec implements GadgetSpec {
+  private static final HashFunction ID_HASH = Hashing.sha256();
+  // 128 bits are plenty to avoid collisions and keep URLs short
+  private static final int ID_LENGTH = 32;
 
   private String pathToSpec;
   private boolean isDefault;
@@ -43,22 +55,74 @@ public class DefaultGadgetSpec implements GadgetSpec {
   protected Map<String, GadgetResource> cssResources, htmlResources, jsResources;
   private JSONObject specJson;
   protected String title;
+  protected long lastModified = System.currentTimeMillis();
+  private final String id;
+  private final Map<String, GadgetResource> resourcesByName;
 
   public DefaultGadgetSpec(String pathToSpec) throws IOException, JSONException, GadgetSpecLoadingException {
+    this(pathToSpec, null);
+  }
+
+  public DefaultGadgetSpec(String pathToSpec, ResourceContentPool pool) throws IOException,
+          JSONException, GadgetSpecLoadingException {
+    this(pathToSpec, pool, null);
+  }
+
+  /**
+   * @param pathToSpec
+   *          the path to the spec.json file of the spec
+   * @param pool
+   *          the pool sharing the content of the spec's resources, may be null
+   * @param cache
+   *          if not null, the spec's resources are {@link LazyGadgetResource}s whose content is kept
+   *          in this cache instead of the pool
+   */
+  public DefaultGadgetSpec(String pathToSpec, ResourceContentPool pool, ResourceContentCache cache)
+          throws IOException, JSONException, GadgetSpecLoadingException {
     this.pathToSpec = pathToSpec;
-    loadSpec(pathToSpec);
+    loadSpec(pathToSpec, pool, cache);
+    this.id = computeId();
+    this.resourcesByName = indexResources();
   }
 
   // Used to create temporary gadget specs in memory
   protected DefaultGadgetSpec(GadgetResource gadgetXml, Map<String, GadgetResource> cssResources,
       Map<String, GadgetResource> jsResources, Map<String, GadgetResource> htmlResources) {
+    this(null, gadgetXml, cssResources, jsResources, htmlResources, null);
+  }
+
+  // Used to create temporary gadget specs in memory
+  protected DefaultGadgetSpec(String title, GadgetResource gadgetXml,
+          Map<String, GadgetResource> cssResources, Map<String, GadgetResource> jsResources,
+          Map<String, GadgetResource> htmlResources, GadgetResource eeResource) {
+    this.title = title;
     this.gadgetResource = gadgetXml;
     this.cssResources = cssResources;
     this.jsResources = jsResources;
     this.htmlResources = htmlResources;
-}
+    this.eeResource = eeResource;
+    this.id = computeId();
+    this.resourcesByName = indexResources();
+  }
+
+  // Used to restore specs from a registry snapshot
+  DefaultGadgetSpec(String pathToSpec, String title, boolean isDefault, GadgetResource gadgetXml,
+          Map<String, GadgetResource> cssResources, Map<String, GadgetResource> jsResources,
+          Map<String, GadgetResource> htmlResources, GadgetResource eeResource) {
+    this.pathToSpec = pathToSpec;
+    this.title = title;
+    this.isDefault = isDefault;
+    this.gadgetResource = gadgetXml;
+    this.cssResources = cssResources;
+    this.jsResources = jsResources;
+    this.htmlResources = htmlResources;
+    this.eeResource = eeResource;
+    this.id = computeId();
+    this.resourcesByName = indexResources();
+  }
 
-  private void loadSpec(String pathToSpec) throws IOException, JSONException, GadgetSpecLoadingException {
+  private void loadSpec(String pathToSpec, ResourceContentPool pool, ResourceContentCache cache)
+          throws IOException, JSONException, GadgetSpecLoadingException {
     String content = ResourceLoader.getContent(pathToSpec);
     if (!pathToSpec.endsWith("/spec.json")) {
       throw new IllegalArgumentException("Path does not end with \"spec.json\"");
@@ -71,8 +135,7 @@ public class DefaultGadgetSpec implements GadgetSpec {
     if (!specJson.containsKey("gadget")) {
       throw new GadgetSpecLoadingException("Spec does not contain a gadget XML resource.");
     }
-    gadgetResource = new DefaultGadgetResource(specJson.getString("gadget"), path
-            + specJson.getString("gadget"));
+    gadgetResource = createResource(specJson.getString("gadget"), path, pool, cache);
 
     if (!specJson.containsKey("title")) {
       throw new GadgetSpecLoadingException("Spec does not contain a title.");
@@ -80,15 +143,15 @@ public class DefaultGadgetSpec implements GadgetSpec {
     title = specJson.getString("title");
 
     if (specJson.containsKey("cssFiles")) {
-      cssResources = createResources(specJson.getJSONArray("cssFiles"), path);
+      cssResources = createResources(specJson.getJSONArray("cssFiles"), path, pool, cache);
     }
 
     if (specJson.containsKey("jsFiles")) {
-      jsResources = createResources(specJson.getJSONArray("jsFiles"), path);
+      jsResources = createResources(specJson.getJSONArray("jsFiles"), path, pool, cache);
     }
 
     if (specJson.containsKey("htmlFiles")) {
-      htmlResources = createResources(specJson.getJSONArray("htmlFiles"), path);
+      htmlResources = createResources(specJson.getJSONArray("htmlFiles"), path, pool, cache);
     }
 
     if (specJson.containsKey("isDefault")) {
@@ -96,8 +159,7 @@ public class DefaultGadgetSpec implements GadgetSpec {
     }
 
     if (specJson.containsKey("eeDataModel")) {
-      eeResource = new DefaultGadgetResource(specJson.getString("eeDataModel"), path
-              + specJson.getString("eeDataModel"));
+      eeResource = createResource(specJson.getString("eeDataModel"), path, pool, cache);
     }
 
   }
@@ -114,21 +176,30 @@ public class DefaultGadgetSpec implements GadgetSpec {
     return isDefault;
   }
 
-  private Map<String, GadgetResource> createResources(JSONArray jsonArray, String path)
-          throws IOException {
+  private Map<String, GadgetResource> createResources(JSONArray jsonArray, String path,
+          ResourceContentPool pool, ResourceContentCache cache) throws IOException {
     Object[] objs = jsonArray.toArray();
     Map<String, GadgetResource> resources = new HashMap<String, GadgetResource>(objs.length);
     String s;
     for (int i = 0; i < objs.length; i++) {
       s = (String) objs[i];
-      resources.put(s, new DefaultGadgetResource(s, path + s));
+      resources.put(s, createResource(s, path, pool, cache));
     }
     return resources;
   }
 
+  private GadgetResource createResource(String name, String path, ResourceContentPool pool,
+          ResourceContentCache cache) throws IOException {
+    if (cache != null) {
+      return new LazyGadgetResource(name, path + name, cache);
+    }
+    return new DefaultGadgetResource(name, path + name, pool);
+  }
+
   @Override
   public String toString() {
-    return specJson.toString(true);
+    // Specs restored from a registry snapshot have no JSON
+    return specJson != null ? specJson.toString(true) : pathToSpec;
   }
 
   public GadgetResource getGadgetResource() {
@@ -155,6 +226,33 @@ public class DefaultGadgetSpec implements GadgetSpec {
     this.isDefault = isDefault;
   }
 
+  /**
+   * Releases the pooled content of all of this spec's resources.
+   * 
+   * @see {@link DefaultGadgetResource#release()}
+   */
+  public void release() {
+    release(gadgetResource);
+    release(eeResource);
+    release(cssResources);
+    release(jsResources);
+    release(htmlResources);
+  }
+
+  private void release(Map<String, GadgetResource> resources) {
+    if (resources != null) {
+      for (GadgetResource resource : resources.values()) {
+        release(resource);
+      }
+    }
+  }
+
+  private void release(GadgetResource resource) {
+    if (resource instanceof DefaultGadgetResource) {
+      ((DefaultGadgetResource) resource).release();
+    }
+  }
+
   public JSONObject toJSON() throws JSONException {
     JSONObject json = new JSONObject();
     json.put(SPEC_TITLE, getTitle());
@@ -183,8 +281,90 @@ public class DefaultGadgetSpec implements GadgetSpec {
     return array;
   }
 
+  public long getLastModified() {
+    return lastModified;
+  }
+
   public String getId() {
-    return String.valueOf(Objects.hashCode(this.gadgetResource, this.cssResources,
-            this.htmlResources, this.jsResources));
+    return id;
+  }
+
+  public GadgetResource getResource(String name) {
+    return resourcesByName.get(name);
+  }
+
+  /**
+   * Indexes all of this spec's resources by name. Should names clash, the gadget XML and the EE data
+   * model take precedence over other resources.
+   */
+  private Map<String, GadgetResource> indexResources() {
+    Map<String, GadgetResource> index = new HashMap<String, GadgetResource>();
+    index(index, cssResources);
+    index(index, jsResources);
+    index(index, htmlResources);
+    index(index, eeResource);
+    index(index, gadgetResource);
+    return ImmutableMap.copyOf(index);
+  }
+
+  private static void index(Map<String, GadgetResource> index,
+          Map<String, GadgetResource> resources) {
+    if (resources != null) {
+      for (GadgetResource resource : resources.values()) {
+        index(index, resource);
+      }
+    }
+  }
+
+  private static void index(Map<String, GadgetResource> index, GadgetResource resource) {
+    if (resource != null) {
+      index.put(resource.getName(), resource);
+    }
+  }
+
+  /**
+   * Digests a canonical form of this spec. Every value is length prefixed and resources are
+   * digested in name order, so no two different specs produce the same input. Resources contribute
+   * their content hashes, so their content does not have to be read again.
+   */
+  private String computeId() {
+    Hasher hasher = ID_HASH.newHasher();
+    putString(hasher, pathToSpec);
+    putString(hasher, title);
+    putResource(hasher, gadgetResource);
+    putResource(hasher, eeResource);
+    putResources(hasher, cssResources);
+    putResources(hasher, jsResources);
+    putResources(hasher, htmlResources);
+    return hasher.hash().toString().substring(0, ID_LENGTH);
+  }
+
+  private static void putResources(Hasher hasher, Map<String, GadgetResource> resources) {
+    if (resources == null) {
+      hasher.putInt(-1);
+      return;
+    }
+    hasher.putInt(resources.size());
+    for (String name : new TreeSet<String>(resources.keySet())) {
+      putResource(hasher, resources.get(name));
+    }
+  }
+
+  private static void putResource(Hasher hasher, GadgetResource resource) {
+    if (resource == null) {
+      hasher.putInt(-1);
+      return;
+    }
+    putString(hasher, resource.getName());
+    putString(hasher, resource.getContentHash());
+  }
+
+  private static void putString(Hasher hasher, String value) {
+    if (value == null) {
+      hasher.putInt(-1);
+      return;
+    }
+    hasher.putInt(value.length());
+    hasher.putString(value, Charsets.UTF_8);
   }
 }
@@ -24,20 +24,53 @@ import java.util.logging.Logger;
 import org.opensocial.explorer.specserver.api.GadgetSpec;
 import org.opensocial.explorer.specserver.api.GadgetSpecFactory;
 
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
 /**
  * Default implementation of {@link GadgetSpecFactory} that creates {@link DefaultGadgetSpec}
  * objects at runtime.
+ * 
+ * By default the content of every resource is kept in memory, shared through a
+ * {@link ResourceContentPool}. In lazy mode resources are {@link LazyGadgetResource}s whose content
+ * is read on demand and kept in a memory-bounded {@link ResourceContentCache}.
  */
 public class DefaultGadgetSpecFactory implements GadgetSpecFactory {
   
   private static final String CLASS = DefaultGadgetSpecFactory.class.getName();
   private static final Logger LOG = Logger.getLogger(CLASS);
   private static final String METHOD = "create";
+
+  private final ResourceContentPool pool;
+  private final ResourceContentCache cache;
+
+  public DefaultGadgetSpecFactory() {
+    this(new ResourceContentPool());
+  }
+
+  public DefaultGadgetSpecFactory(ResourceContentPool pool) {
+    this(pool, null, false);
+  }
+
+  /**
+   * @param pool
+   *          the pool sharing the content of resources that are kept in memory
+   * @param cache
+   *          the cache holding the content of lazily loaded resources
+   * @param lazy
+   *          true to load the content of resources on demand
+   */
+  @Inject
+  public DefaultGadgetSpecFactory(ResourceContentPool pool, ResourceContentCache cache,
+          @Named("explorer.registry.lazyResources") boolean lazy) {
+    this.pool = pool;
+    this.cache = lazy ? cache : null;
+  }
   
   public GadgetSpec create(String specPath) {
     GadgetSpec created = null;
     try {
-      created = new DefaultGadgetSpec(specPath);
+      created = new DefaultGadgetSpec(specPath, pool, cache);
     } catch (Exception e) {
       LOG.logp(Level.SEVERE, CLASS, METHOD, e.getMessage(), e);
     }
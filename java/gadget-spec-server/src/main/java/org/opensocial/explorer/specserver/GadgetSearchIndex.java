@@ -0,0 +1,307 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.opensocial.explorer.specserver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.opensocial.explorer.specserver.api.GadgetResource;
+import org.opensocial.explorer.specserver.api.GadgetSpec;
+import org.opensocial.explorer.specserver.api.SearchResults;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+/**
+ * An immutable in-memory inverted index over the {@link GadgetSpec}s of a registry.
+ *
+ * A spec is indexed by the words of its title, of its path, of the features its gadget XML requires
+ * or optionally uses, of the names of its resources and of the content of its resources. Words are
+ * runs of letters and digits, lower cased. The weight of a word in a spec is the sum, over the
+ * fields it occurs in, of the field's weight times 1 + ln(occurrences), so a word in the title
+ * counts far more than the same word in a script.
+ *
+ * A query matches the specs containing all of its words. The last word also matches as a prefix so
+ * results can be shown while the user types. Matches are ranked by the sum of the weights of the
+ * query's words in the spec times their inverse document frequency, ties in registry order.
+ *
+ * The words of a spec are extracted by {@link #extractTerms(GadgetSpec)}, which the registry calls
+ * on the threads loading the specs and keeps with every spec, so building the index only merges
+ * them and a reload only extracts the words of the specs that changed.
+ */
+public final class GadgetSearchIndex {
+  private static final float TITLE_WEIGHT = 8;
+  private static final float PATH_WEIGHT = 4;
+  private static final float FEATURE_WEIGHT = 4;
+  private static final float NAME_WEIGHT = 2;
+  private static final float CONTENT_WEIGHT = 1;
+  private static final int MIN_WORD_LENGTH = 2;
+  private static final int MAX_WORD_LENGTH = 64;
+  private static final Pattern WORD = Pattern.compile("[\\p{L}\\p{N}]+");
+  private static final Pattern FEATURE = Pattern.compile(
+          "<\\s*(?:Require|Optional)\\b[^>]*?\\bfeature\\s*=\\s*([\"'])(.*?)\\1");
+  // Most words occur in many specs, share one copy between the specs and the index
+  private static final Interner<String> WORDS = Interners.newWeakInterner();
+
+  private final GadgetSpec[] specs;
+  // Sorted, so words sharing a prefix are adjacent
+  private final String[] terms;
+  // The ascending indexes of the specs containing each term, and the term's weight in each of them
+  private final int[][] postings;
+  private final float[][] weights;
+
+  /**
+   * @param specs
+   *          the specs to index, in registry order, each spec at most once
+   * @param specTerms
+   *          the terms of every spec, as returned by {@link #extractTerms(GadgetSpec)}
+   */
+  GadgetSearchIndex(List<GadgetSpec> specs, List<Terms> specTerms) {
+    this.specs = specs.toArray(new GadgetSpec[specs.size()]);
+    Map<String, PostingsBuilder> builders = new HashMap<String, PostingsBuilder>();
+    for (int i = 0; i < this.specs.length; i++) {
+      Terms terms = specTerms.get(i);
+      for (int j = 0; j < terms.terms.length; j++) {
+        PostingsBuilder builder = builders.get(terms.terms[j]);
+        if (builder == null) {
+          builder = new PostingsBuilder();
+          builders.put(terms.terms[j], builder);
+        }
+        builder.add(i, terms.weights[j]);
+      }
+    }
+    this.terms = builders.keySet().toArray(new String[builders.size()]);
+    Arrays.sort(this.terms);
+    this.postings = new int[this.terms.length][];
+    this.weights = new float[this.terms.length][];
+    for (int i = 0; i < this.terms.length; i++) {
+      PostingsBuilder builder = builders.get(this.terms[i]);
+      postings[i] = Arrays.copyOf(builder.specs, builder.size);
+      weights[i] = Arrays.copyOf(builder.weights, builder.size);
+    }
+  }
+
+  /**
+   * Extracts the weighted terms of a spec. Reads the content of all of the spec's resources, lazily
+   * loaded ones are read from disk without being cached.
+   *
+   * @param spec
+   *          the spec to extract the terms of
+   * @return the terms of the spec
+   */
+  static Terms extractTerms(GadgetSpec spec) {
+    Map<String, Float> weights = new HashMap<String, Float>();
+    addField(weights, spec.getTitle(), TITLE_WEIGHT);
+    addField(weights, spec.getPathToSpec(), PATH_WEIGHT);
+    GadgetResource gadget = spec.getGadgetResource();
+    String gadgetXml = getContent(gadget);
+    if (gadgetXml != null) {
+      StringBuilder features = new StringBuilder();
+      Matcher matcher = FEATURE.matcher(gadgetXml);
+      while (matcher.find()) {
+        features.append(matcher.group(2)).append(' ');
+      }
+      addField(weights, features.toString(), FEATURE_WEIGHT);
+    }
+    addResource(weights, gadget, gadgetXml);
+    addResource(weights, spec.getEEResource(), null);
+    addResources(weights, spec.getCssResources());
+    addResources(weights, spec.getJsResources());
+    addResources(weights, spec.getHtmlResources());
+
+    String[] terms = new String[weights.size()];
+    float[] termWeights = new float[weights.size()];
+    int i = 0;
+    for (Map.Entry<String, Float> weight : weights.entrySet()) {
+      terms[i] = WORDS.intern(weight.getKey());
+      termWeights[i++] = weight.getValue();
+    }
+    return new Terms(terms, termWeights);
+  }
+
+  private static void addResources(Map<String, Float> weights,
+          Map<String, GadgetResource> resources) {
+    if (resources != null) {
+      for (GadgetResource resource : resources.values()) {
+        addResource(weights, resource, null);
+      }
+    }
+  }
+
+  private static void addResource(Map<String, Float> weights, GadgetResource resource,
+          String content) {
+    if (resource != null) {
+      addField(weights, resource.getName(), NAME_WEIGHT);
+      addField(weights, content != null ? content : getContent(resource), CONTENT_WEIGHT);
+    }
+  }
+
+  private static String getContent(GadgetResource resource) {
+    if (resource instanceof LazyGadgetResource) {
+      // Indexing should not fill the cache with the content of every resource
+      return ((LazyGadgetResource) resource).getUncachedContent();
+    }
+    return resource != null ? resource.getContent() : null;
+  }
+
+  private static void addField(Map<String, Float> weights, String text, float fieldWeight) {
+    if (text == null) {
+      return;
+    }
+    Map<String, Integer> counts = new HashMap<String, Integer>();
+    for (String word : getWords(text)) {
+      Integer count = counts.get(word);
+      counts.put(word, count == null ? 1 : count + 1);
+    }
+    for (Map.Entry<String, Integer> count : counts.entrySet()) {
+      Float weight = weights.get(count.getKey());
+      float fieldScore = fieldWeight * (1 + (float) Math.log(count.getValue()));
+      weights.put(count.getKey(), weight == null ? fieldScore : weight + fieldScore);
+    }
+  }
+
+  private static List<String> getWords(String text) {
+    List<String> words = new ArrayList<String>();
+    Matcher matcher = WORD.matcher(text);
+    while (matcher.find()) {
+      int length = matcher.end() - matcher.start();
+      if (length >= MIN_WORD_LENGTH && length <= MAX_WORD_LENGTH) {
+        words.add(matcher.group().toLowerCase(Locale.ENGLISH));
+      }
+    }
+    return words;
+  }
+
+  /**
+   * Searches the index.
+   *
+   * @param query
+   *          the words to search for
+   * @param offset
+   *          the number of best matches to skip
+   * @param limit
+   *          the maximum number of matches to return
+   * @return the matches from <code>offset</code> on, best match first
+   */
+  public SearchResults search(String query, int offset, int limit) {
+    offset = Math.max(offset, 0);
+    List<String> words = new ArrayList<String>(new LinkedHashSet<String>(
+            query == null ? Collections.<String> emptyList() : getWords(query)));
+    if (words.isEmpty() || specs.length == 0) {
+      return new SearchResults(query, 0, offset, Collections.<SearchResults.Hit> emptyList());
+    }
+
+    final float[] scores = new float[specs.length];
+    int[] matches = new int[specs.length];
+    float[] best = new float[specs.length];
+    for (int w = 0; w < words.size(); w++) {
+      String word = words.get(w);
+      Arrays.fill(best, 0);
+      int from = Arrays.binarySearch(terms, word);
+      int to;
+      if (from >= 0) {
+        to = from + 1;
+      } else {
+        from = -from - 1;
+        to = from;
+      }
+      if (w == words.size() - 1) {
+        while (to < terms.length && terms[to].startsWith(word)) {
+          to++;
+        }
+      }
+      for (int t = from; t < to; t++) {
+        float idf = (float) Math.log(1 + (double) specs.length / postings[t].length);
+        for (int k = 0; k < postings[t].length; k++) {
+          // A prefix counts as its best matching term, not as all of them
+          best[postings[t][k]] = Math.max(best[postings[t][k]], weights[t][k] * idf);
+        }
+      }
+      for (int s = 0; s < specs.length; s++) {
+        if (best[s] > 0) {
+          scores[s] += best[s];
+          matches[s]++;
+        }
+      }
+    }
+
+    List<Integer> matching = new ArrayList<Integer>();
+    for (int s = 0; s < specs.length; s++) {
+      if (matches[s] == words.size()) {
+        matching.add(s);
+      }
+    }
+    Collections.sort(matching, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        int byScore = Float.compare(scores[b], scores[a]);
+        return byScore != 0 ? byScore : a.compareTo(b);
+      }
+    });
+    List<SearchResults.Hit> hits = new ArrayList<SearchResults.Hit>();
+    for (int i = offset; i < matching.size() && hits.size() < limit; i++) {
+      int s = matching.get(i);
+      hits.add(new SearchResults.Hit(specs[s], scores[s]));
+    }
+    return new SearchResults(query, matching.size(), offset, hits);
+  }
+
+  /**
+   * @return the number of distinct terms in the index
+   */
+  public int size() {
+    return terms.length;
+  }
+
+  /**
+   * The weighted terms of one spec.
+   */
+  static final class Terms {
+    private final String[] terms;
+    private final float[] weights;
+
+    private Terms(String[] terms, float[] weights) {
+      this.terms = terms;
+      this.weights = weights;
+    }
+  }
+
+  private static class PostingsBuilder {
+    private int[] specs = new int[4];
+    private float[] weights = new float[4];
+    private int size;
+
+    void add(int spec, float weight) {
+      if (size == specs.length) {
+        specs = Arrays.copyOf(specs, size * 2);
+        weights = Arrays.copyOf(weights, size * 2);
+      }
+      specs[size] = spec;
+      weights[size++] = weight;
+    }
+  }
+}
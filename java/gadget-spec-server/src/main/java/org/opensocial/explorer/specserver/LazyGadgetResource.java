@@ -0,0 +1,173 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.opensocial.explorer.specserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.shindig.common.util.ResourceLoader;
+import org.opensocial.explorer.specserver.api.FileContent;
+import org.opensocial.explorer.specserver.api.SerializedContent;
+
+import com.google.common.base.Charsets;
+
+/**
+ * A {@link DefaultGadgetResource} that does not keep its content in memory.
+ *
+ * The content is read once when the resource is created to compute its digest and size, after
+ * which only this metadata stays resident. The content itself is read from disk again on demand
+ * and kept in a shared {@link ResourceContentCache}, which bounds the memory used by the content of
+ * all such resources together.
+ */
+public class LazyGadgetResource extends DefaultGadgetResource {
+  private static final String CLASS = LazyGadgetResource.class.getName();
+  private static final Logger LOG = Logger.getLogger(CLASS);
+
+  private final ResourceContentCache cache;
+  private final long size;
+  private final File file;
+  private final long fileLastModified;
+
+  public LazyGadgetResource(String name, String path, ResourceContentCache cache)
+          throws IOException {
+    super(name);
+    this.path = path;
+    this.cache = cache;
+    Path filePath = ResourceFiles.toPath(path);
+    this.file = filePath != null ? filePath.toFile() : null;
+    // Read before the content so a change while reading is seen by getFile()
+    this.fileLastModified = file != null ? file.lastModified() : 0;
+    String content = ResourceLoader.getContent(path);
+    this.lastModified = System.currentTimeMillis();
+    this.contentHash = ResourceContentPool.digest(content);
+    this.size = content.getBytes(Charsets.UTF_8).length;
+  }
+
+  /**
+   * Returns the content of this resource from the cache, reading it from disk if it is not cached.
+   *
+   * @return the content of this resource, or null if it can no longer be read
+   */
+  @Override
+  public String getContent() {
+    final String method = "getContent";
+    String content = cache.getContent(contentHash);
+    if (content != null) {
+      return content;
+    }
+    content = readContent();
+    if (content == null) {
+      return null;
+    }
+    if (contentHash.equals(ResourceContentPool.digest(content))) {
+      cache.putContent(contentHash, content);
+    } else {
+      // Don't cache content that no longer matches this resource's metadata
+      LOG.logp(Level.WARNING, CLASS, method, "{0} changed on disk after it was loaded", path);
+    }
+    return content;
+  }
+
+  /**
+   * Returns the content of this resource from the cache, or reads it from disk without caching it.
+   * Used by callers that only look at the content once, so it does not evict content that is
+   * actually being served.
+   *
+   * @return the content of this resource, or null if it can no longer be read
+   */
+  String getUncachedContent() {
+    String content = cache.getContent(contentHash);
+    return content != null ? content : readContent();
+  }
+
+  private String readContent() {
+    final String method = "readContent";
+    try {
+      return ResourceLoader.getContent(path);
+    } catch (IOException e) {
+      LOG.logp(Level.SEVERE, CLASS, method, e.getMessage(), e);
+      return null;
+    }
+  }
+
+  /**
+   * Returns the content of this resource serialized with a gzip compressed variant. The serialized
+   * content is cached along with the content, so it is only compressed again once it is evicted.
+   *
+   * @return the serialized content, or null if the content can no longer be read
+   */
+  public SerializedContent getSerializedContent() {
+    final String method = "getSerializedContent";
+    String key = getContentType() + ':' + contentHash;
+    SerializedContent serialized = cache.getSerialized(key);
+    if (serialized != null) {
+      return serialized;
+    }
+    String content = cache.getContent(contentHash);
+    boolean matches = content != null;
+    if (!matches) {
+      content = readContent();
+      if (content == null) {
+        return null;
+      }
+      matches = contentHash.equals(ResourceContentPool.digest(content));
+    }
+    serialized = new SerializedContent(content.getBytes(Charsets.UTF_8), getContentType(),
+            lastModified, true);
+    if (matches) {
+      cache.putContent(contentHash, content);
+      cache.putSerialized(key, serialized);
+    } else {
+      // The key is shared by every resource with this hash, so never cache other bytes under it
+      LOG.logp(Level.WARNING, CLASS, method, "{0} changed on disk after it was loaded", path);
+    }
+    return serialized;
+  }
+
+  /**
+   * @return the size of the content of this resource in bytes
+   */
+  public long getSize() {
+    return size;
+  }
+
+  /**
+   * Returns the content of this resource as the file holding it, so that it can be sent without
+   * reading it into memory.
+   *
+   * @return the content, or null if it is not a file on the local file system or the file changed
+   *         since this resource was created
+   */
+  public FileContent getFileContent() {
+    if (file == null || file.lastModified() != fileLastModified || file.length() != size) {
+      return null;
+    }
+    return new FileContent(file, getContentType(), contentHash, lastModified, size);
+  }
+
+  /**
+   * @return the cache holding the content of this resource
+   */
+  public ResourceContentCache getCache() {
+    return cache;
+  }
+}
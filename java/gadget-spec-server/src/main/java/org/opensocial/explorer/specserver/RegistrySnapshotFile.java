@@ -0,0 +1,576 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.opensocial.explorer.specserver;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import org.opensocial.explorer.specserver.api.GadgetResource;
+import org.opensocial.explorer.specserver.api.GadgetSpec;
+import org.opensocial.explorer.specserver.api.SerializedContent;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Reads and writes a binary snapshot of the specs in a {@link DefaultGadgetRegistry}, so that a
+ * restarted server can restore them with one sequential read of a memory-mapped file instead of
+ * reading and parsing every spec and resource and compressing their serialized forms again.
+ *
+ * The snapshot holds, for every spec, its path, title and default flag, the content and digest of
+ * each of its resources, the serialized JSON of the spec and the serialized and gzip compressed
+ * forms of its resources. It also holds the last modified time and length of every file the spec
+ * was read from. A spec is only restored if none of those files changed, every other spec is
+ * loaded from its files as usual. The snapshot ends with a CRC32 of its content, so a snapshot that
+ * was not written completely or was damaged is not read at all.
+ *
+ * Only {@link DefaultGadgetSpec}s whose resources are kept in memory as
+ * {@link DefaultGadgetResource}s and whose files are on the local file system are written to the
+ * snapshot. Specs with {@link LazyGadgetResource}s are always loaded from their files.
+ */
+public class RegistrySnapshotFile {
+  private static final int MAGIC = 0x4f535253; // "OSRS"
+  private static final int VERSION = 2;
+  private static final int END = 0x454e4421; // "END!"
+  // File systems store modification times with as little as one second of precision
+  private static final long MTIME_PRECISION_MILLIS = 1000;
+
+  private static final byte NONE = 0;
+  private static final byte RESOURCE = 1;
+  private static final byte SERIALIZED_RESOURCE = 2;
+
+  private RegistrySnapshotFile() {
+  }
+
+  /**
+   * A spec and its serialized forms as written to or read from a snapshot.
+   */
+  public static class Entry {
+    private final String path;
+    private final GadgetSpec spec;
+    private final SerializedContent json;
+    private final Map<String, SerializedContent> resources;
+
+    public Entry(String path, GadgetSpec spec, SerializedContent json,
+            Map<String, SerializedContent> resources) {
+      this.path = path;
+      this.spec = spec;
+      this.json = json;
+      this.resources = resources;
+    }
+
+    /**
+     * @return the path of the spec's spec.json file as listed in the registry
+     */
+    public String getPath() {
+      return path;
+    }
+
+    public GadgetSpec getSpec() {
+      return spec;
+    }
+
+    /**
+     * @return the serialized JSON of the spec
+     */
+    public SerializedContent getJSON() {
+      return json;
+    }
+
+    /**
+     * @return the serialized resources of the spec by name
+     */
+    public Map<String, SerializedContent> getResources() {
+      return resources;
+    }
+  }
+
+  /**
+   * Writes the given entries to the snapshot file, replacing it atomically. Entries that cannot be
+   * restored reliably are left out, including those with files modified after
+   * <code>loadStart</code>, which may have changed while they were being read.
+   *
+   * @param file
+   *          the snapshot file
+   * @param entries
+   *          the entries to write
+   * @param loadStart
+   *          the time the specs started loading in milliseconds since the epoch
+   * @return the number of entries written
+   * @throws IOException
+   *           if the snapshot could not be written
+   */
+  public static int write(File file, List<Entry> entries, long loadStart) throws IOException {
+    File directory = file.getAbsoluteFile().getParentFile();
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create directory " + directory);
+    }
+    File temp = File.createTempFile(file.getName() + '.', ".tmp", directory);
+    int written = 0;
+    try {
+      FileOutputStream fileOut = new FileOutputStream(temp);
+      try {
+        CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fileOut,
+                65536), new CRC32());
+        DataOutputStream out = new DataOutputStream(checked);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        ByteArrayOutputStream entryBytes = new ByteArrayOutputStream();
+        for (Entry entry : entries) {
+          entryBytes.reset();
+          if (writeEntry(entry, loadStart, new DataOutputStream(entryBytes))) {
+            // Prefixed with its length so entries that are stale can be skipped when reading
+            out.writeInt(entryBytes.size());
+            entryBytes.writeTo(out);
+            written++;
+          }
+        }
+        out.writeInt(END);
+        out.writeInt((int) checked.getChecksum().getValue());
+        out.flush();
+        fileOut.getFD().sync();
+      } finally {
+        fileOut.close();
+      }
+      try {
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      temp.delete();
+    }
+    return written;
+  }
+
+  /**
+   * Reads the entries in the snapshot file whose files have not changed since it was written.
+   *
+   * @param file
+   *          the snapshot file
+   * @param pool
+   *          the pool to share the content of the restored resources through, may be null. Specs
+   *          that are not used must be {@link DefaultGadgetSpec#release() released}.
+   * @return the entries that are still valid by the path of their spec.json file
+   * @throws IOException
+   *           if the file does not exist or is not a valid snapshot, no specs are restored then
+   */
+  public static Map<String, Entry> read(File file, ResourceContentPool pool) throws IOException {
+    ByteBuffer buffer;
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = randomAccessFile.getChannel();
+      if (channel.size() < 16 || channel.size() > Integer.MAX_VALUE) {
+        throw new IOException(file + " is not a gadget registry snapshot");
+      }
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      randomAccessFile.close();
+    }
+    int length = buffer.limit() - 4;
+    if (checksum(buffer, length) != buffer.getInt(length)) {
+      throw new IOException(file + " is truncated or corrupt, its checksum does not match");
+    }
+    buffer.limit(length);
+
+    Map<String, Entry> entries = new HashMap<String, Entry>();
+    try {
+      if (buffer.getInt() != MAGIC) {
+        throw new IOException(file + " is not a gadget registry snapshot");
+      }
+      int version = buffer.getInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported gadget registry snapshot version " + version);
+      }
+      List<EncodedEntry> valid = new ArrayList<EncodedEntry>();
+      int entryLength;
+      while ((entryLength = buffer.getInt()) != END) {
+        if (entryLength < 0 || entryLength > buffer.remaining()) {
+          throw new IOException(file + " is corrupt, an entry has the length " + entryLength);
+        }
+        int next = buffer.position() + entryLength;
+        EncodedEntry entry = readEntry(buffer);
+        if (buffer.position() > next) {
+          throw new IOException(file + " is corrupt, an entry is longer than its length");
+        }
+        if (entry != null) {
+          valid.add(entry);
+        }
+        buffer.position(next);
+      }
+      if (buffer.hasRemaining()) {
+        throw new IOException(file + " is corrupt, it has data after its end");
+      }
+      // Only touch the pool once the whole snapshot is known to be readable
+      for (EncodedEntry entry : valid) {
+        entries.put(entry.path, entry.build(pool));
+      }
+    } catch (BufferUnderflowException e) {
+      release(entries);
+      throw new IOException(file + " is truncated", e);
+    } catch (RuntimeException e) {
+      release(entries);
+      throw new IOException(file + " is corrupt", e);
+    }
+    return entries;
+  }
+
+  private static void release(Map<String, Entry> entries) {
+    for (Entry entry : entries.values()) {
+      ((DefaultGadgetSpec) entry.getSpec()).release();
+    }
+  }
+
+  private static int checksum(ByteBuffer buffer, int length) {
+    CRC32 crc = new CRC32();
+    ByteBuffer content = buffer.duplicate();
+    byte[] chunk = new byte[65536];
+    for (int position = 0; position < length; position += chunk.length) {
+      int chunkLength = Math.min(chunk.length, length - position);
+      content.get(chunk, 0, chunkLength);
+      crc.update(chunk, 0, chunkLength);
+    }
+    return (int) crc.getValue();
+  }
+
+  private static boolean writeEntry(Entry entry, long loadStart, DataOutputStream out)
+          throws IOException {
+    GadgetSpec spec = entry.getSpec();
+    if (spec.getClass() != DefaultGadgetSpec.class || entry.getJSON() == null) {
+      return false;
+    }
+    List<String> sources = new ArrayList<String>();
+    sources.add(entry.getPath());
+    if (!addSources(sources, spec.getGadgetResource()) || !addSources(sources, spec.getEEResource())
+            || !addSources(sources, spec.getCssResources())
+            || !addSources(sources, spec.getJsResources())
+            || !addSources(sources, spec.getHtmlResources())) {
+      return false;
+    }
+
+    writeString(entry.getPath(), out);
+    writeString(spec.getTitle(), out);
+    out.writeBoolean(spec.isDefault());
+    out.writeInt(sources.size());
+    for (String source : sources) {
+      Path sourcePath = ResourceFiles.toPath(source);
+      if (sourcePath == null) {
+        return false;
+      }
+      File sourceFile = sourcePath.toFile();
+      long lastModified = sourceFile.lastModified();
+      if (lastModified == 0 || lastModified + MTIME_PRECISION_MILLIS >= loadStart) {
+        return false;
+      }
+      writeString(source, out);
+      out.writeLong(lastModified);
+      out.writeLong(sourceFile.length());
+    }
+    writeSerialized(entry.getJSON(), out);
+    writeResource(spec.getGadgetResource(), entry.getResources(), out);
+    writeResource(spec.getEEResource(), entry.getResources(), out);
+    writeResources(spec.getCssResources(), entry.getResources(), out);
+    writeResources(spec.getJsResources(), entry.getResources(), out);
+    writeResources(spec.getHtmlResources(), entry.getResources(), out);
+    return true;
+  }
+
+  private static boolean addSources(List<String> sources, Map<String, GadgetResource> resources) {
+    if (resources != null) {
+      for (GadgetResource resource : resources.values()) {
+        if (!addSources(sources, resource)) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  private static boolean addSources(List<String> sources, GadgetResource resource) {
+    if (resource == null) {
+      return true;
+    }
+    if (resource.getClass() != DefaultGadgetResource.class || resource.getContent() == null) {
+      return false;
+    }
+    sources.add(((DefaultGadgetResource) resource).getPath());
+    return true;
+  }
+
+  private static void writeResources(Map<String, GadgetResource> resources,
+          Map<String, SerializedContent> serialized, DataOutputStream out) throws IOException {
+    if (resources == null) {
+      out.writeInt(-1);
+      return;
+    }
+    out.writeInt(resources.size());
+    for (GadgetResource resource : resources.values()) {
+      writeResource(resource, serialized, out);
+    }
+  }
+
+  private static void writeResource(GadgetResource resource,
+          Map<String, SerializedContent> serialized, DataOutputStream out) throws IOException {
+    if (resource == null) {
+      out.writeByte(NONE);
+      return;
+    }
+    SerializedContent content = serialized.get(resource.getName());
+    out.writeByte(content != null ? SERIALIZED_RESOURCE : RESOURCE);
+    writeString(resource.getName(), out);
+    writeString(((DefaultGadgetResource) resource).getPath(), out);
+    writeString(resource.getContentHash(), out);
+    if (content != null) {
+      writeSerialized(content, out);
+    } else {
+      writeBytes(resource.getContent().getBytes(Charsets.UTF_8), out);
+    }
+  }
+
+  private static void writeSerialized(SerializedContent content, DataOutputStream out)
+          throws IOException {
+    out.writeInt(content.getLength());
+    content.writeTo(out);
+    if (content.hasGzip()) {
+      out.writeInt(content.getGzipLength());
+      content.writeGzipTo(out);
+    } else {
+      out.writeInt(-1);
+    }
+  }
+
+  private static void writeString(String value, DataOutputStream out) throws IOException {
+    writeBytes(value != null ? value.getBytes(Charsets.UTF_8) : null, out);
+  }
+
+  private static void writeBytes(byte[] bytes, DataOutputStream out) throws IOException {
+    if (bytes == null) {
+      out.writeInt(-1);
+      return;
+    }
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Reads the entry at the buffer's position.
+   *
+   * @return the entry, or null if any of the files of the spec changed
+   * @throws IOException
+   *           if the entry is corrupt
+   */
+  private static EncodedEntry readEntry(ByteBuffer buffer) throws IOException {
+    EncodedEntry entry = new EncodedEntry();
+    entry.path = readRequiredString(buffer);
+    entry.title = readString(buffer);
+    entry.isDefault = buffer.get() != 0;
+    int sources = buffer.getInt();
+    for (int i = 0; i < sources; i++) {
+      Path sourcePath = ResourceFiles.toPath(readRequiredString(buffer));
+      long lastModified = buffer.getLong();
+      long length = buffer.getLong();
+      if (sourcePath == null) {
+        return null;
+      }
+      File sourceFile = sourcePath.toFile();
+      if (sourceFile.lastModified() != lastModified || sourceFile.length() != length) {
+        return null;
+      }
+    }
+    entry.json = readSerialized(buffer);
+    entry.gadget = readResource(buffer);
+    entry.ee = readResource(buffer);
+    entry.css = readResources(buffer);
+    entry.js = readResources(buffer);
+    entry.html = readResources(buffer);
+    return entry;
+  }
+
+  private static List<EncodedResource> readResources(ByteBuffer buffer) throws IOException {
+    int count = buffer.getInt();
+    if (count == -1) {
+      return null;
+    }
+    if (count < 0) {
+      throw new IOException("Invalid resource count " + count);
+    }
+    List<EncodedResource> resources = new ArrayList<EncodedResource>(Math.min(count, 64));
+    for (int i = 0; i < count; i++) {
+      EncodedResource resource = readResource(buffer);
+      if (resource == null) {
+        throw new IOException("Missing resource");
+      }
+      resources.add(resource);
+    }
+    return resources;
+  }
+
+  private static EncodedResource readResource(ByteBuffer buffer) throws IOException {
+    byte type = buffer.get();
+    if (type == NONE) {
+      return null;
+    }
+    if (type != RESOURCE && type != SERIALIZED_RESOURCE) {
+      throw new IOException("Invalid resource type " + type);
+    }
+    EncodedResource resource = new EncodedResource();
+    resource.name = readRequiredString(buffer);
+    resource.path = readRequiredString(buffer);
+    resource.contentHash = readString(buffer);
+    if (type == SERIALIZED_RESOURCE) {
+      resource.serialized = readSerialized(buffer);
+      resource.bytes = resource.serialized.bytes;
+    } else {
+      resource.bytes = readRequiredBytes(buffer);
+    }
+    return resource;
+  }
+
+  private static EncodedContent readSerialized(ByteBuffer buffer) throws IOException {
+    EncodedContent content = new EncodedContent();
+    content.bytes = readRequiredBytes(buffer);
+    content.gzipped = readBytes(buffer);
+    return content;
+  }
+
+  private static String readRequiredString(ByteBuffer buffer) throws IOException {
+    return new String(readRequiredBytes(buffer), Charsets.UTF_8);
+  }
+
+  private static String readString(ByteBuffer buffer) throws IOException {
+    byte[] bytes = readBytes(buffer);
+    return bytes != null ? new String(bytes, Charsets.UTF_8) : null;
+  }
+
+  private static byte[] readRequiredBytes(ByteBuffer buffer) throws IOException {
+    byte[] bytes = readBytes(buffer);
+    if (bytes == null) {
+      throw new IOException("Missing value");
+    }
+    return bytes;
+  }
+
+  private static byte[] readBytes(ByteBuffer buffer) throws IOException {
+    int length = buffer.getInt();
+    if (length == -1) {
+      return null;
+    }
+    if (length < 0 || length > buffer.remaining()) {
+      throw new IOException("Invalid length " + length);
+    }
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return bytes;
+  }
+
+  private static class EncodedContent {
+    private byte[] bytes;
+    private byte[] gzipped;
+
+    private SerializedContent build(String contentType, long lastModified) {
+      return new SerializedContent(bytes, gzipped, contentType, lastModified);
+    }
+  }
+
+  private static class EncodedResource {
+    private String name;
+    private String path;
+    private String contentHash;
+    private byte[] bytes;
+    private EncodedContent serialized;
+  }
+
+  private static class EncodedEntry {
+    private String path;
+    private String title;
+    private boolean isDefault;
+    private EncodedContent json;
+    private EncodedResource gadget, ee;
+    private List<EncodedResource> css, js, html;
+
+    /**
+     * Builds the entry, sharing its content through the pool. The resources already built are
+     * released if building the entry fails.
+     */
+    private Entry build(ResourceContentPool pool) {
+      List<DefaultGadgetResource> built = new ArrayList<DefaultGadgetResource>();
+      try {
+        Map<String, SerializedContent> resources = new HashMap<String, SerializedContent>();
+        GadgetResource gadgetResource = build(gadget, pool, resources, built);
+        GadgetResource eeResource = build(ee, pool, resources, built);
+        DefaultGadgetSpec spec = new DefaultGadgetSpec(path, title, isDefault, gadgetResource,
+                build(css, pool, resources, built), build(js, pool, resources, built),
+                build(html, pool, resources, built), eeResource);
+        SerializedContent serializedJSON = json.build(
+                GadgetResource.ContentType.JSON.toString(), spec.getLastModified());
+        return new Entry(path, spec, serializedJSON, resources);
+      } catch (RuntimeException e) {
+        for (DefaultGadgetResource resource : built) {
+          resource.release();
+        }
+        throw e;
+      }
+    }
+
+    private static Map<String, GadgetResource> build(List<EncodedResource> encoded,
+            ResourceContentPool pool, Map<String, SerializedContent> serialized,
+            List<DefaultGadgetResource> built) {
+      if (encoded == null) {
+        return null;
+      }
+      Map<String, GadgetResource> resources = new HashMap<String, GadgetResource>(encoded.size());
+      for (EncodedResource resource : encoded) {
+        resources.put(resource.name, build(resource, pool, serialized, built));
+      }
+      return resources;
+    }
+
+    private static GadgetResource build(EncodedResource encoded, ResourceContentPool pool,
+            Map<String, SerializedContent> serialized, List<DefaultGadgetResource> built) {
+      if (encoded == null) {
+        return null;
+      }
+      DefaultGadgetResource resource = new DefaultGadgetResource(encoded.name, encoded.path,
+              new String(encoded.bytes, Charsets.UTF_8), encoded.contentHash, pool);
+      built.add(resource);
+      if (encoded.serialized != null) {
+        serialized.put(encoded.name, encoded.serialized.build(resource.getContentType(),
+                resource.getLastModified()));
+      }
+      return resource;
+    }
+  }
+}
@@ -0,0 +1,170 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.opensocial.explorer.specserver;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches the directories containing the files of a gadget registry and reports changes to a
+ * {@link Listener} on a background thread.
+ *
+ * Editors often save a file in several steps, so events are collected until no new event has
+ * arrived for a short quiet period and are then reported together.
+ */
+public class RegistryWatcher {
+  private static final String CLASS = RegistryWatcher.class.getName();
+  private static final Logger LOG = Logger.getLogger(CLASS);
+  private static final long QUIET_PERIOD_MILLIS = 250;
+
+  /**
+   * Receives the changes seen by a {@link RegistryWatcher}.
+   */
+  public interface Listener {
+
+    /**
+     * Called on the watcher's thread after files have changed.
+     *
+     * @param changed
+     *          the files that were created, modified or deleted. If events were lost, the
+     *          directory containing the files is reported instead.
+     */
+    void filesChanged(Set<Path> changed);
+  }
+
+  private final WatchService watchService;
+  private final Listener listener;
+  private final Map<WatchKey, Path> directories = new HashMap<WatchKey, Path>();
+  private final Thread thread;
+
+  public RegistryWatcher(Listener listener) throws IOException {
+    this.watchService = FileSystems.getDefault().newWatchService();
+    this.listener = listener;
+    this.thread = new Thread(new Runnable() {
+      public void run() {
+        processEvents();
+      }
+    }, "gadget-registry-watcher");
+    this.thread.setDaemon(true);
+  }
+
+  /**
+   * Starts reporting changes.
+   */
+  public void start() {
+    thread.start();
+  }
+
+  /**
+   * Stops watching all directories. The watcher cannot be restarted.
+   */
+  public void close() {
+    final String method = "close";
+    thread.interrupt();
+    try {
+      watchService.close();
+    } catch (IOException e) {
+      LOG.logp(Level.WARNING, CLASS, method, e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Watches the given directory for changes if it is not watched already.
+   *
+   * @param directory
+   *          the directory to watch
+   */
+  public synchronized void watch(Path directory) {
+    final String method = "watch";
+    if (directories.containsValue(directory)) {
+      return;
+    }
+    try {
+      WatchKey key = directory.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+      directories.put(key, directory);
+    } catch (IOException e) {
+      LOG.logp(Level.WARNING, CLASS, method, "Unable to watch directory " + directory, e);
+    }
+  }
+
+  private void processEvents() {
+    final String method = "processEvents";
+    try {
+      while (true) {
+        Set<Path> changed = new HashSet<Path>();
+        WatchKey key = watchService.take();
+        while (key != null) {
+          collectEvents(key, changed);
+          key = watchService.poll(QUIET_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        if (!changed.isEmpty()) {
+          try {
+            listener.filesChanged(changed);
+          } catch (RuntimeException e) {
+            LOG.logp(Level.SEVERE, CLASS, method, e.getMessage(), e);
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      // The watcher was closed
+    } catch (ClosedWatchServiceException e) {
+      // The watcher was closed
+    }
+  }
+
+  private void collectEvents(WatchKey key, Set<Path> changed) {
+    Path directory;
+    synchronized (this) {
+      directory = directories.get(key);
+    }
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (directory == null) {
+        continue;
+      }
+      if (event.kind() == OVERFLOW) {
+        changed.add(directory);
+      } else {
+        changed.add(directory.resolve((Path) event.context()));
+      }
+    }
+    if (!key.reset()) {
+      // The directory is gone
+      synchronized (this) {
+        directories.remove(key);
+      }
+    }
+  }
+}
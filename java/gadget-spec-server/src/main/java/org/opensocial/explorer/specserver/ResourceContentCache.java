@@ -0,0 +1,132 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.opensocial.explorer.specserver;
+
+import org.opensocial.explorer.specserver.api.SerializedContent;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+/**
+ * A memory-bounded cache for the content of {@link LazyGadgetResource}s and for content serialized
+ * from them.
+ *
+ * Entries are weighed by their approximate size in bytes and the least recently used entries are
+ * evicted once the total exceeds the configured maximum. Evicted content is simply read again from
+ * disk the next time it is needed.
+ */
+@Singleton
+public class ResourceContentCache {
+  private static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+  private static final String CONTENT_PREFIX = "content:";
+  private static final String SERIALIZED_PREFIX = "serialized:";
+
+  private final Cache<String, Object> cache;
+
+  public ResourceContentCache() {
+    this(DEFAULT_MAX_BYTES);
+  }
+
+  /**
+   * @param maxBytes
+   *          the approximate maximum number of bytes held by the cache, 0 or less means unlimited
+   */
+  @Inject
+  public ResourceContentCache(@Named("explorer.registry.contentCacheBytes") long maxBytes) {
+    CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder().recordStats();
+    if (maxBytes > 0) {
+      builder.maximumWeight(maxBytes).weigher(new Weigher<String, Object>() {
+        public int weigh(String key, Object value) {
+          return ResourceContentCache.weigh(value);
+        }
+      });
+    }
+    this.cache = builder.build();
+  }
+
+  private static int weigh(Object value) {
+    if (value instanceof SerializedContent) {
+      SerializedContent serialized = (SerializedContent) value;
+      return serialized.getLength() + (serialized.hasGzip() ? serialized.getGzipLength() : 0);
+    }
+    // Strings are UTF-16 internally
+    return ((String) value).length() * 2;
+  }
+
+  /**
+   * @param digest
+   *          the digest of the content, see {@link ResourceContentPool#digest(String)}
+   * @return the cached content, or null if it is not cached
+   */
+  public String getContent(String digest) {
+    return (String) cache.getIfPresent(CONTENT_PREFIX + digest);
+  }
+
+  /**
+   * Caches the given content.
+   *
+   * @param digest
+   *          the digest of the content, see {@link ResourceContentPool#digest(String)}
+   * @param content
+   *          the content to cache
+   */
+  public void putContent(String digest, String content) {
+    cache.put(CONTENT_PREFIX + digest, content);
+  }
+
+  /**
+   * @param key
+   *          the key the content was cached under
+   * @return the cached serialized content, or null if it is not cached
+   */
+  public SerializedContent getSerialized(String key) {
+    return (SerializedContent) cache.getIfPresent(SERIALIZED_PREFIX + key);
+  }
+
+  /**
+   * Caches the given serialized content.
+   *
+   * @param key
+   *          the key to cache the content under
+   * @param content
+   *          the content to cache
+   */
+  public void putSerialized(String key, SerializedContent content) {
+    cache.put(SERIALIZED_PREFIX + key, content);
+  }
+
+  /**
+   * @return the number of entries in the cache
+   */
+  public long size() {
+    return cache.size();
+  }
+
+  /**
+   * @return the hit, miss and eviction statistics of the cache
+   */
+  public CacheStats getStats() {
+    return cache.stats();
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.opensocial.explorer.specserver;
+
+import java.util.Map;
+
+import org.opensocial.explorer.specserver.api.GadgetResource;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.inject.Singleton;
+
+/**
+ * A content-addressed pool of {@link GadgetResource} content.
+ * 
+ * Resources with identical content share a single String instance, keyed by the SHA-256 digest of
+ * the content. The pool keeps a reference count for every piece of content and drops it once the
+ * last resource referencing it has been released, so content is only held as long as some live
+ * {@link GadgetResource} points at it.
+ */
+@Singleton
+public class ResourceContentPool {
+  private static final HashFunction DIGEST = Hashing.sha256();
+
+  private final Map<String, PooledContent> pool = Maps.newHashMap();
+
+  /**
+   * Returns the SHA-256 digest of the given content as a hex string.
+   * 
+   * @param content
+   *          the content to digest
+   * @return the hex encoded digest
+   */
+  public static String digest(String content) {
+    return DIGEST.hashString(content, Charsets.UTF_8).toString();
+  }
+
+  /**
+   * Adds a reference to the given content and returns the canonical instance for it. Every call
+   * must be matched by a call to {@link #release(String)} with the same digest once the content is
+   * no longer used.
+   * 
+   * @param digest
+   *          the digest of the content as returned by {@link #digest(String)}
+   * @param content
+   *          the content
+   * @return the pooled String instance equal to <code>content</code>
+   */
+  public String acquire(String digest, String content) {
+    synchronized (pool) {
+      PooledContent pooled = pool.get(digest);
+      if (pooled == null) {
+        pooled = new PooledContent(content);
+        pool.put(digest, pooled);
+      }
+      pooled.references++;
+      return pooled.content;
+    }
+  }
+
+  /**
+   * Removes a reference to the content with the given digest. The content is dropped from the pool
+   * when no references remain.
+   * 
+   * @param digest
+   *          the digest of the content
+   */
+  public void release(String digest) {
+    synchronized (pool) {
+      PooledContent pooled = pool.get(digest);
+      if (pooled != null && --pooled.references <= 0) {
+        pool.remove(digest);
+      }
+    }
+  }
+
+  /**
+   * @return the number of distinct pieces of content in the pool
+   */
+  public int size() {
+    synchronized (pool) {
+      return pool.size();
+    }
+  }
+
+  /**
+   * @param digest
+   *          the digest of the content
+   * @return the number of references to the content with the given digest
+   */
+  public int getReferenceCount(String digest) {
+    synchronized (pool) {
+      PooledContent pooled = pool.get(digest);
+      return pooled == null ? 0 : pooled.references;
+    }
+  }
+
+  private static class PooledContent {
+    private final String content;
+    private int references;
+
+    private PooledContent(String content) {
+      this.content = content;
+    }
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.opensocial.explorer.specserver;
+
+import java.io.File;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Helpers for finding the files behind resource locations.
+ */
+public class ResourceFiles {
+  private static final String RESOURCE_PREFIX = "res://";
+  private static final String FILE_PREFIX = "file://";
+
+  private ResourceFiles() {
+  }
+
+  /**
+   * Resolves a location, as understood by Shindig's ResourceLoader, to a path on the local file
+   * system.
+   *
+   * @param location
+   *          a file system path, a file:// URL or a res:// or plain classpath resource name
+   * @return the absolute path of the file, or null if the location is not a file on the local file
+   *         system, e.g. because it is packaged in a jar
+   */
+  public static Path toPath(String location) {
+    if (location.startsWith(RESOURCE_PREFIX)) {
+      return toClasspathPath(location.substring(RESOURCE_PREFIX.length()));
+    }
+    File file = new File(location.startsWith(FILE_PREFIX) ? location.substring(FILE_PREFIX
+            .length()) : location);
+    if (file.exists()) {
+      return file.toPath().toAbsolutePath().normalize();
+    }
+    return toClasspathPath(location);
+  }
+
+  private static Path toClasspathPath(String resource) {
+    URL url = ResourceFiles.class.getClassLoader().getResource(
+            resource.startsWith("/") ? resource.substring(1) : resource);
+    if (url == null || !"file".equals(url.getProtocol())) {
+      return null;
+    }
+    try {
+      return Paths.get(url.toURI()).toAbsolutePath().normalize();
+    } catch (URISyntaxException e) {
+      return null;
+    }
+  }
+}
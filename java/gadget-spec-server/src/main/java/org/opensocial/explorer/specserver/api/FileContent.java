@@ -0,0 +1,122 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.opensocial.explorer.specserver.api;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A response body that lives in a file on the local file system. Unlike {@link SerializedContent}
+ * the bytes are not held in memory, they are transferred from the file to the response by the file
+ * channel when the content is written, so large resources cost no heap space.
+ * 
+ * The entity tag is computed from the content like the entity tag of a {@link SerializedContent},
+ * so clients can revalidate either representation of the same content with the same tag.
+ */
+public class FileContent {
+  private final File file;
+  private final String contentType;
+  private final String etag;
+  private final long lastModified;
+  private final long length;
+
+  /**
+   * @param file
+   *          the file holding the UTF-8 encoded content
+   * @param contentType
+   *          an IANA compliant string representation of the content type
+   * @param hash
+   *          the hex encoded SHA-256 digest of the content
+   * @param lastModified
+   *          the time the content was last modified in milliseconds since the epoch
+   * @param length
+   *          the length of the content in bytes
+   */
+  public FileContent(File file, String contentType, String hash, long lastModified, long length) {
+    this.file = file;
+    this.contentType = contentType;
+    this.etag = '"' + hash + '"';
+    this.lastModified = lastModified;
+    this.length = length;
+  }
+
+  /**
+   * @return a strong entity tag, including the surrounding quotes, that identifies this content
+   */
+  public String getETag() {
+    return etag;
+  }
+
+  /**
+   * @return the time the content was last modified in milliseconds since the epoch
+   */
+  public long getLastModified() {
+    return lastModified;
+  }
+
+  /**
+   * @return an IANA compliant string representation of the content type
+   */
+  public String getContentType() {
+    return contentType;
+  }
+
+  /**
+   * @return the length of the content in bytes
+   */
+  public long getLength() {
+    return length;
+  }
+
+  /**
+   * Writes part of this content to the given stream.
+   * 
+   * @param out
+   *          the stream to write to
+   * @param offset
+   *          the offset of the first byte to write
+   * @param count
+   *          the number of bytes to write
+   * @throws IOException
+   *           if the file could not be read or the content could not be written
+   */
+  public void writeTo(OutputStream out, long offset, long count) throws IOException {
+    FileInputStream in = new FileInputStream(file);
+    try {
+      FileChannel channel = in.getChannel();
+      WritableByteChannel target = Channels.newChannel(out);
+      long position = offset;
+      long end = offset + count;
+      while (position < end) {
+        long transferred = channel.transferTo(position, end - position, target);
+        if (transferred <= 0) {
+          throw new IOException(file + " was truncated while it was being sent");
+        }
+        position += transferred;
+      }
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -18,6 +18,8 @@
  */
 package org.opensocial.explorer.specserver.api;
 
+import java.util.List;
+
 import org.apache.wink.json4j.JSONArray;
 import org.apache.wink.json4j.JSONObject;
 import org.opensocial.explorer.specserver.DefaultGadgetRegistry;
@@ -25,8 +27,8 @@ import org.opensocial.explorer.specserver.DefaultGadgetRegistry;
 import com.google.inject.ImplementedBy;
 
 /**
- * A registry of {@link GadgetSpec} objects. This is a static registry that provides no mechanisms
- * for runtime changes to its contents.
+ * A registry of {@link GadgetSpec} objects. The registry provides no mechanisms for callers to
+ * change its contents, although an implementation may reload them at runtime.
  */
 @ImplementedBy(DefaultGadgetRegistry.class)
 public interface GadgetRegistry {
@@ -55,4 +57,87 @@ public interface GadgetRegistry {
    */
   public GadgetSpec getGadgetSpec(String id);
 
+  /**
+   * Returns the serialized form of {@link #getSpecTree()}.
+   * 
+   * @return the spec tree as {@link SerializedContent} of type application/json
+   */
+  public SerializedContent getSerializedSpecTree();
+
+  /**
+   * Returns one page of the children of a folder in the spec tree, so clients can expand the tree
+   * one folder at a time instead of fetching {@link #getSpecTree()} whole. The nodes have the same
+   * properties as those of {@link #getSpecTree()} plus the number of their own children.
+   * 
+   * @param parentId
+   *          the ID of the folder, "root" for the top level of the tree
+   * @param offset
+   *          the number of children to skip
+   * @param limit
+   *          the maximum number of children to return
+   * @return the children of the folder from <code>offset</code> on, or null if there is no folder
+   *         with the given ID
+   */
+  public SpecTreePage getSpecTreeChildren(String parentId, int offset, int limit);
+
+  /**
+   * Returns the IDs of the folders leading to a node of the spec tree, so clients that expand the
+   * tree one folder at a time can open it at that node.
+   * 
+   * @param id
+   *          the ID of a spec or folder
+   * @return the IDs from "root" down to and including the node, or null if there is no node with
+   *         the given ID
+   */
+  public List<String> getSpecTreePath(String id);
+
+  /**
+   * Searches the titles, paths, required features and resources of the specs in the registry.
+   * 
+   * @param query
+   *          the words to search for, the last of which may be incomplete
+   * @param offset
+   *          the number of best matches to skip
+   * @param limit
+   *          the maximum number of matches to return
+   * @return the matching specs from <code>offset</code> on, best match first
+   */
+  public SearchResults search(String query, int offset, int limit);
+
+  /**
+   * Returns the serialized JSON representation of a specific {@link GadgetSpec}, i.e. the result of
+   * {@link GadgetSpec#toJSON()} rendered when the spec was loaded.
+   * 
+   * @param id
+   *          the id of the {@link GadgetSpec}
+   * @return the serialized {@link GadgetSpec}, or null if there is no spec with the given id or it
+   *         could not be serialized
+   */
+  public SerializedContent getSerializedGadgetSpec(String id);
+
+  /**
+   * Returns the serialized content of a resource of a specific {@link GadgetSpec}, rendered when the
+   * spec was loaded.
+   * 
+   * @param id
+   *          the id of the {@link GadgetSpec}
+   * @param resourceName
+   *          the name of the resource
+   * @return the serialized {@link GadgetResource}, or null if there is no such resource
+   */
+  public SerializedContent getSerializedResource(String id, String resourceName);
+
+  /**
+   * Returns the content of a resource of a specific {@link GadgetSpec} as a file, for resources
+   * whose content is not kept in memory and can be sent straight from disk.
+   * 
+   * @param id
+   *          the id of the {@link GadgetSpec}
+   * @param resourceName
+   *          the name of the resource
+   * @return the content as a file, or null if there is no such resource or its content is not
+   *         available as an unchanged file on the local file system
+   */
+  public FileContent getResourceFile(String id, String resourceName);
+
 }
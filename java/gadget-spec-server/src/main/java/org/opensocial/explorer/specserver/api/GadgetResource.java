@@ -18,6 +18,8 @@
  */
 package org.opensocial.explorer.specserver.api;
 
+import java.util.Locale;
+
 import org.opensocial.explorer.specserver.DefaultGadgetResource;
 
 import com.google.inject.ImplementedBy;
@@ -33,6 +35,7 @@ public interface GadgetResource extends JSONSerializable {
 
   static final String RESOURCE_NAME = "name";
   static final String RESOURCE_CONTENT = "content";
+  static final String RESOURCE_CONTENT_HASH = "contentHash";
 
   /**
    * @return the name of this resource
@@ -57,20 +60,75 @@ public interface GadgetResource extends JSONSerializable {
   public String getContentType();
 
   /**
-   * An enumeration of all supported {@link GadgetResource} content types.
+   * Returns a hash of the content of this resource. Resources with equal content have equal hashes,
+   * so the hash is stable across server restarts and can be used as an entity tag.
+   * 
+   * @return the hex encoded SHA-256 digest of the content of this resource
+   */
+  public String getContentHash();
+
+  /**
+   * @return the time the content of this resource was loaded or created in milliseconds since the
+   *         epoch
+   */
+  public long getLastModified();
+
+  /**
+   * An enumeration of all supported {@link GadgetResource} content types. Resources with other
+   * extensions, or none, are served as {@link #OCTET_STREAM}.
    */
   public enum ContentType {
-    CSS("text/css"), 
-    JS("application/javascript"), 
-    HTML("text/html"), 
-    XML("text/xml"), 
-    TXT("text/plain"), 
-    JSON("application/json");
+    CSS("text/css", true), 
+    JS("application/javascript", true), 
+    HTML("text/html", true), 
+    XML("text/xml", true), 
+    TXT("text/plain", true), 
+    JSON("application/json", true),
+    OCTET_STREAM("application/octet-stream", false);
 
     private final String contentType;
+    private final boolean text;
 
-    private ContentType(String contentType) {
+    private ContentType(String contentType, boolean text) {
       this.contentType = contentType;
+      this.text = text;
+    }
+
+    /**
+     * Returns the content type of a resource from the extension of its name.
+     * 
+     * @param name
+     *          the name of the resource
+     * @return the content type of the extension, or {@link #OCTET_STREAM} if the extension is not
+     *         known
+     */
+    public static ContentType forName(String name) {
+      int dot = name.lastIndexOf('.');
+      if (dot >= 0) {
+        String extension = name.substring(dot + 1).toUpperCase(Locale.ENGLISH);
+        for (ContentType type : values()) {
+          if (type != OCTET_STREAM && type.name().equals(extension)) {
+            return type;
+          }
+        }
+      }
+      return OCTET_STREAM;
+    }
+
+    /**
+     * Returns whether the given content type is one of the textual content types, which are
+     * encoded in UTF-8.
+     * 
+     * @param contentType
+     *          an IANA compliant string representation of a content type
+     */
+    public static boolean isText(String contentType) {
+      for (ContentType type : values()) {
+        if (type.text && type.contentType.equals(contentType)) {
+          return true;
+        }
+      }
+      return false;
     }
 
     /**
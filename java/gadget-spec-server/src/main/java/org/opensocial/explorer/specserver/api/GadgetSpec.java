@@ -108,8 +108,28 @@ public interface GadgetSpec extends JSONSerializable {
   public void setDefault(boolean isDefault);
 
   /**
+   * Returns the resource of this spec with the given name, whatever its type. The lookup does not
+   * depend on the number of resources.
+   * 
+   * @param name
+   *          the name of the resource
+   * @return the gadget XML, EE data model, CSS, JS or HTML resource with the given name, or null if
+   *         this spec has no such resource
+   */
+  public GadgetResource getResource(String name);
+
+  /**
+   * Returns the ID of this gadget specification. The ID is derived from the spec's content, so it
+   * is the same on every server and across restarts for as long as the content does not change.
+   * 
    * @return the ID of this gadget specification
    */
   public String getId();
 
+  /**
+   * @return the time this gadget specification was loaded or created in milliseconds since the
+   *         epoch
+   */
+  public long getLastModified();
+
 }
@@ -0,0 +1,134 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.opensocial.explorer.specserver.api;
+
+import java.util.List;
+
+import org.apache.wink.json4j.JSONArray;
+import org.apache.wink.json4j.JSONException;
+import org.apache.wink.json4j.JSONObject;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * One page of the {@link GadgetSpec}s matching a search of the {@link GadgetRegistry}, best match
+ * first.
+ */
+public class SearchResults implements JSONSerializable {
+  private final String query;
+  private final int total;
+  private final int offset;
+  private final List<Hit> hits;
+
+  /**
+   * @param query
+   *          the query that was searched for
+   * @param total
+   *          the number of specs matching the query
+   * @param offset
+   *          the position of the first hit on this page among all matching specs
+   * @param hits
+   *          the matching specs on this page, best match first
+   */
+  public SearchResults(String query, int total, int offset, List<Hit> hits) {
+    this.query = query;
+    this.total = total;
+    this.offset = offset;
+    this.hits = ImmutableList.copyOf(hits);
+  }
+
+  /**
+   * @return the query that was searched for
+   */
+  public String getQuery() {
+    return query;
+  }
+
+  /**
+   * @return the number of specs matching the query, including those not on this page
+   */
+  public int getTotal() {
+    return total;
+  }
+
+  /**
+   * @return the position of the first hit on this page among all matching specs
+   */
+  public int getOffset() {
+    return offset;
+  }
+
+  /**
+   * @return the matching specs on this page, best match first
+   */
+  public List<Hit> getHits() {
+    return hits;
+  }
+
+  /**
+   * Returns a JSON representation of the results of the form
+   * 
+   * <pre>
+   * { "query": "...", "total": 42, "offset": 0,
+   *   "results": [ { "id": "...", "title": "...", "path": "...", "score": 1.5 } ] }
+   * </pre>
+   */
+  public JSONObject toJSON() throws JSONException {
+    JSONObject json = new JSONObject();
+    json.put("query", query);
+    json.put("total", total);
+    json.put("offset", offset);
+    JSONArray results = new JSONArray();
+    for (Hit hit : hits) {
+      JSONObject result = new JSONObject();
+      result.put(GadgetSpec.SPEC_ID, hit.getSpec().getId());
+      result.put(GadgetSpec.SPEC_TITLE, hit.getSpec().getTitle());
+      result.put("path", hit.getSpec().getPathToSpec());
+      result.put("score", (double) hit.getScore());
+      results.put(result);
+    }
+    json.put("results", results);
+    return json;
+  }
+
+  /**
+   * A spec matching the query and how well it matches.
+   */
+  public static class Hit {
+    private final GadgetSpec spec;
+    private final float score;
+
+    public Hit(GadgetSpec spec, float score) {
+      this.spec = spec;
+      this.score = score;
+    }
+
+    public GadgetSpec getSpec() {
+      return spec;
+    }
+
+    /**
+     * @return the relevance of the spec, higher is better. Scores are only comparable within the
+     *         results of the same query.
+     */
+    public float getScore() {
+      return score;
+    }
+  }
+}
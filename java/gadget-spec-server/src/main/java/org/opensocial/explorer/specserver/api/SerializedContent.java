@@ -0,0 +1,267 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.opensocial.explorer.specserver.api;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.wink.json4j.JSONArtifact;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+
+/**
+ * An immutable, pre-rendered response body. Content that never changes, such as the JSON of a
+ * {@link GadgetSpec} in the {@link GadgetRegistry}, can be serialized once and then written
+ * directly to a response's output stream on every request.
+ * 
+ * Every {@link SerializedContent} carries a strong entity tag derived from its bytes only, so that
+ * clients can revalidate it with conditional requests and content that is loaded again unchanged
+ * keeps its entity tag.
+ * 
+ * Content can optionally be gzip compressed once when it is created, so that clients which accept
+ * a gzip content coding can be served the smaller variant without compressing it on every request.
+ * The compressed variant has its own entity tag because it is a different representation.
+ */
+public class SerializedContent {
+  // Below this size the gzip header and trailer outweigh any savings
+  private static final int MIN_GZIP_LENGTH = 256;
+
+  private final byte[] bytes;
+  private final String contentType;
+  private final String etag;
+  private final long lastModified;
+  private final byte[] gzipped;
+  private final String gzipETag;
+
+  /**
+   * @param bytes
+   *          the UTF-8 encoded content
+   * @param contentType
+   *          an IANA compliant string representation of the content type
+   * @param lastModified
+   *          the time the content was last modified in milliseconds since the epoch
+   */
+  public SerializedContent(byte[] bytes, String contentType, long lastModified) {
+    this(bytes, contentType, lastModified, false);
+  }
+
+  /**
+   * @param bytes
+   *          the UTF-8 encoded content
+   * @param contentType
+   *          an IANA compliant string representation of the content type
+   * @param lastModified
+   *          the time the content was last modified in milliseconds since the epoch
+   * @param compress
+   *          true to also create a gzip compressed variant of the content. The variant is only
+   *          kept if the content is large enough for compression to pay off.
+   */
+  public SerializedContent(byte[] bytes, String contentType, long lastModified, boolean compress) {
+    this(bytes, compress ? gzip(bytes) : null, contentType, lastModified);
+  }
+
+  /**
+   * Creates content whose gzip compressed variant already exists, e.g. because it was written to
+   * disk by a previous run of the server.
+   * 
+   * @param bytes
+   *          the UTF-8 encoded content
+   * @param gzipped
+   *          the gzip compressed content, or null if there is no compressed variant
+   * @param contentType
+   *          an IANA compliant string representation of the content type
+   * @param lastModified
+   *          the time the content was last modified in milliseconds since the epoch
+   */
+  public SerializedContent(byte[] bytes, byte[] gzipped, String contentType, long lastModified) {
+    String hash = Hashing.sha256().hashBytes(bytes).toString();
+    this.bytes = bytes;
+    this.contentType = contentType;
+    this.etag = '"' + hash + '"';
+    this.lastModified = lastModified;
+    this.gzipped = gzipped;
+    this.gzipETag = gzipped != null ? '"' + hash + "-gzip\"" : null;
+  }
+
+  /**
+   * Serializes the given JSON into a new {@link SerializedContent} of type application/json.
+   * 
+   * @param json
+   *          the JSON to serialize
+   * @param lastModified
+   *          the time the JSON was last modified in milliseconds since the epoch
+   * @return the serialized content
+   */
+  public static SerializedContent fromJSON(JSONArtifact json, long lastModified) {
+    return fromJSON(json, lastModified, false);
+  }
+
+  /**
+   * Serializes the given JSON into a new {@link SerializedContent} of type application/json.
+   * 
+   * @param json
+   *          the JSON to serialize
+   * @param lastModified
+   *          the time the JSON was last modified in milliseconds since the epoch
+   * @param compress
+   *          true to also create a gzip compressed variant of the JSON
+   * @return the serialized content
+   */
+  public static SerializedContent fromJSON(JSONArtifact json, long lastModified, boolean compress) {
+    return new SerializedContent(json.toString().getBytes(Charsets.UTF_8),
+            GadgetResource.ContentType.JSON.toString(), lastModified, compress);
+  }
+
+  /**
+   * Serializes the content of the given resource into a new {@link SerializedContent} with the
+   * resource's content type.
+   * 
+   * @param resource
+   *          the resource to serialize
+   * @param compress
+   *          true to also create a gzip compressed variant of the content
+   * @return the serialized content
+   */
+  public static SerializedContent fromResource(GadgetResource resource, boolean compress) {
+    return new SerializedContent(resource.getContent().getBytes(Charsets.UTF_8),
+            resource.getContentType(), resource.getLastModified(), compress);
+  }
+
+  private static byte[] gzip(byte[] bytes) {
+    if (bytes.length < MIN_GZIP_LENGTH) {
+      return null;
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2);
+    try {
+      GZIPOutputStream gzip = new GZIPOutputStream(out);
+      gzip.write(bytes);
+      gzip.close();
+    } catch (IOException e) {
+      // Writing to memory does not fail
+      return null;
+    }
+    byte[] compressed = out.toByteArray();
+    return compressed.length < bytes.length ? compressed : null;
+  }
+
+  /**
+   * @return a strong entity tag, including the surrounding quotes, that identifies this content
+   */
+  public String getETag() {
+    return etag;
+  }
+
+  /**
+   * @return the time this content was last modified in milliseconds since the epoch
+   */
+  public long getLastModified() {
+    return lastModified;
+  }
+
+  /**
+   * @return the content type of this content
+   */
+  public String getContentType() {
+    return contentType;
+  }
+
+  /**
+   * @return the length of this content in bytes
+   */
+  public int getLength() {
+    return bytes.length;
+  }
+
+  /**
+   * Writes this content to the given stream.
+   * 
+   * @param out
+   *          the stream to write to
+   * @throws IOException
+   *           if the content could not be written
+   */
+  public void writeTo(OutputStream out) throws IOException {
+    out.write(bytes);
+  }
+
+  /**
+   * Writes part of this content to the given stream.
+   * 
+   * @param out
+   *          the stream to write to
+   * @param offset
+   *          the offset of the first byte to write
+   * @param length
+   *          the number of bytes to write
+   * @throws IOException
+   *           if the content could not be written
+   */
+  public void writeTo(OutputStream out, int offset, int length) throws IOException {
+    out.write(bytes, offset, length);
+  }
+
+  /**
+   * @return true iff this content has a gzip compressed variant
+   */
+  public boolean hasGzip() {
+    return gzipped != null;
+  }
+
+  /**
+   * @return a strong entity tag, including the surrounding quotes, that identifies the gzip
+   *         compressed variant of this content, or null if there is no such variant
+   */
+  public String getGzipETag() {
+    return gzipETag;
+  }
+
+  /**
+   * @return the length of the gzip compressed variant of this content in bytes
+   * @throws IllegalStateException
+   *           if there is no gzip compressed variant
+   */
+  public int getGzipLength() {
+    checkGzip();
+    return gzipped.length;
+  }
+
+  /**
+   * Writes the gzip compressed variant of this content to the given stream.
+   * 
+   * @param out
+   *          the stream to write to
+   * @throws IOException
+   *           if the content could not be written
+   * @throws IllegalStateException
+   *           if there is no gzip compressed variant
+   */
+  public void writeGzipTo(OutputStream out) throws IOException {
+    checkGzip();
+    out.write(gzipped);
+  }
+
+  private void checkGzip() {
+    if (gzipped == null) {
+      throw new IllegalStateException("There is no gzip variant of this content.");
+    }
+  }
+}
@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.opensocial.explorer.specserver.api;
+
+import java.util.List;
+
+import org.apache.wink.json4j.JSONArray;
+import org.apache.wink.json4j.JSONException;
+import org.apache.wink.json4j.JSONObject;
+
+/**
+ * One page of the children of a folder in the spec tree of a {@link GadgetRegistry}, in the same
+ * order as in {@link GadgetRegistry#getSpecTree()}.
+ */
+public class SpecTreePage implements JSONSerializable {
+  private final String parentId;
+  private final int total;
+  private final int offset;
+  private final List<JSONObject> nodes;
+
+  /**
+   * @param parentId
+   *          the ID of the folder
+   * @param total
+   *          the number of children of the folder
+   * @param offset
+   *          the position of the first node on this page among all children of the folder
+   * @param nodes
+   *          the children on this page. The list and the nodes are shared with the registry and
+   *          must not be modified.
+   */
+  public SpecTreePage(String parentId, int total, int offset, List<JSONObject> nodes) {
+    this.parentId = parentId;
+    this.total = total;
+    this.offset = offset;
+    this.nodes = nodes;
+  }
+
+  /**
+   * @return the ID of the folder
+   */
+  public String getParentId() {
+    return parentId;
+  }
+
+  /**
+   * @return the number of children of the folder, including those not on this page
+   */
+  public int getTotal() {
+    return total;
+  }
+
+  /**
+   * @return the position of the first node on this page among all children of the folder
+   */
+  public int getOffset() {
+    return offset;
+  }
+
+  /**
+   * @return the children on this page, which must not be modified
+   */
+  public List<JSONObject> getNodes() {
+    return nodes;
+  }
+
+  /**
+   * Returns a JSON representation of the page of the form
+   * 
+   * <pre>
+   * { "id": "...", "total": 42, "offset": 0,
+   *   "children": [ { "name": "...", "hasChildren": true, "isDefault": false, "id": "...",
+   *                   "parent": "...", "childCount": 3 } ] }
+   * </pre>
+   * 
+   * The nodes have the same properties as those of {@link GadgetRegistry#getSpecTree()} plus the
+   * number of their own children, which is 0 for specs.
+   */
+  public JSONObject toJSON() throws JSONException {
+    JSONObject json = new JSONObject();
+    json.put("id", parentId);
+    json.put("total", total);
+    json.put("offset", offset);
+    JSONArray children = new JSONArray();
+    for (JSONObject node : nodes) {
+      children.put(node);
+    }
+    json.put("children", children);
+    return json;
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.opensocial.explorer.specserver.api;
+
+import org.opensocial.explorer.specserver.temp.TempGadgetSpecStoreProvider;
+
+import com.google.inject.ProvidedBy;
+
+/**
+ * A store for temporary {@link GadgetSpec} objects, i.e. specs that are POSTed by clients when a
+ * user modifies a gadget in the editor and wants to render those changes.
+ * 
+ * Temporary specs are transient. Implementations are free to evict specs at any time, for example
+ * when the store grows too large or when a spec has not been requested for a while, so callers must
+ * always be prepared for {@link #get(String)} to return null.
+ * 
+ * Implementations may keep specs outside of the heap so that they survive restarts and can be
+ * shared by several servers, which is why specs are looked up by their ID only.
+ */
+@ProvidedBy(TempGadgetSpecStoreProvider.class)
+public interface TempGadgetSpecStore {
+
+  /**
+   * Adds a temporary {@link GadgetSpec} to the store, replacing any spec with the same ID.
+   * 
+   * @param spec
+   *          the {@link GadgetSpec} to store
+   * @return the ID the spec was stored under
+   */
+  public String put(GadgetSpec spec);
+
+  /**
+   * Returns the temporary {@link GadgetSpec} with the given <code>id</code>.
+   * 
+   * @param id
+   *          the id of the {@link GadgetSpec}
+   * @return the {@link GadgetSpec}, or null if no such spec exists or it has been evicted
+   */
+  public GadgetSpec get(String id);
+
+  /**
+   * Removes the temporary {@link GadgetSpec} with the given <code>id</code>, if present.
+   * 
+   * @param id
+   *          the id of the {@link GadgetSpec}
+   */
+  public void remove(String id);
+
+  /**
+   * @return the number of specs currently held in the store
+   */
+  public long size();
+
+  /**
+   * @return the number of calls to {@link #get(String)} that returned a spec
+   */
+  public long getHitCount();
+
+  /**
+   * @return the number of calls to {@link #get(String)} that returned null
+   */
+  public long getMissCount();
+
+  /**
+   * @return the number of specs removed from the store because of size limits or expiration
+   */
+  public long getEvictionCount();
+}
@@ -23,10 +23,14 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import org.apache.shindig.common.servlet.InjectedServlet;
 import org.apache.shindig.gadgets.http.HttpResponse;
@@ -35,6 +39,8 @@ import org.apache.wink.json4j.JSONObject;
 
 import com.google.common.base.Splitter;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.io.CharStreams;
 
 /**
  * An abstract class that provides some helpers for servlets in the OpenSocial Explorer
@@ -45,19 +51,214 @@ public abstract class ExplorerInjectedServlet extends InjectedServlet {
 
   private static final long serialVersionUID = 5905320989280705219L;
   private static final Splitter PATH_SPLITTER = Splitter.on('/').trimResults().omitEmptyStrings();
+  private static final Splitter LIST_SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
+  private static final Splitter PARAM_SPLITTER = Splitter.on(';').trimResults();
+  private static final String BYTES_UNIT = "bytes=";
 
   public ExplorerInjectedServlet() {
     super();
   }
 
   protected String getRequestBody(HttpServletRequest req) throws IOException {
-    StringBuffer buff = new StringBuffer();
-    String line = null;
-    BufferedReader reader = req.getReader();
-    while ((line = reader.readLine()) != null) {
-      buff.append(line);
+    return CharStreams.toString(req.getReader());
+  }
+
+  /**
+   * Sets the ETag, Last-Modified and Cache-Control headers on the response and evaluates the
+   * request's If-None-Match and If-Modified-Since headers against them. If-None-Match takes
+   * precedence when both are present. When the client's copy is still current the response status
+   * is set to 304 and the caller must not write a body.
+   * 
+   * @param etag
+   *          a strong entity tag for the content, including the surrounding quotes
+   * @param lastModified
+   *          the time the content was last modified in milliseconds since the epoch, or 0 if it is
+   *          unknown
+   * @param cacheControl
+   *          the value of the Cache-Control header
+   * @return true iff a 304 Not Modified status was set
+   */
+  protected boolean checkNotModified(HttpServletRequest req, HttpServletResponse resp,
+          String etag, long lastModified, String cacheControl) {
+    resp.setHeader("ETag", etag);
+    if (lastModified > 0) {
+      resp.setDateHeader("Last-Modified", lastModified);
+    }
+    resp.setHeader("Cache-Control", cacheControl);
+
+    boolean notModified;
+    String ifNoneMatch = req.getHeader("If-None-Match");
+    if (ifNoneMatch != null) {
+      notModified = matchesETag(ifNoneMatch, etag);
+    } else {
+      long ifModifiedSince = getDateHeader(req, "If-Modified-Since");
+      // HTTP dates only have second precision
+      notModified = ifModifiedSince > 0 && lastModified > 0
+              && lastModified / 1000 <= ifModifiedSince / 1000;
+    }
+    if (notModified) {
+      resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    }
+    return notModified;
+  }
+
+  private boolean matchesETag(String ifNoneMatch, String etag) {
+    for (String candidate : LIST_SPLITTER.split(ifNoneMatch)) {
+      // If-None-Match uses the weak comparison function
+      if (candidate.startsWith("W/")) {
+        candidate = candidate.substring(2);
+      }
+      if ("*".equals(candidate) || candidate.equals(etag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Evaluates the request's Accept-Encoding header.
+   * 
+   * @return true iff the client accepts the gzip content coding
+   */
+  protected boolean acceptsGzip(HttpServletRequest req) {
+    String acceptEncoding = req.getHeader("Accept-Encoding");
+    if (acceptEncoding == null) {
+      return false;
+    }
+    Boolean wildcard = null;
+    for (String coding : LIST_SPLITTER.split(acceptEncoding)) {
+      Iterator<String> params = PARAM_SPLITTER.split(coding).iterator();
+      String name = params.next();
+      boolean accepted = true;
+      while (params.hasNext()) {
+        String param = params.next();
+        if (param.startsWith("q=")) {
+          accepted = getQuality(param.substring(2)) > 0;
+        }
+      }
+      if ("gzip".equalsIgnoreCase(name) || "x-gzip".equalsIgnoreCase(name)) {
+        return accepted;
+      } else if ("*".equals(name)) {
+        wildcard = accepted;
+      }
+    }
+    return wildcard != null && wildcard;
+  }
+
+  /**
+   * Evaluates the request's Range and If-Range headers for content of the given length. Only a
+   * single range of bytes is supported. Requests for several ranges are answered with the complete
+   * content, which HTTP allows, as are malformed Range headers and ranges for a different version of
+   * the content.
+   * 
+   * @param length
+   *          the length of the content in bytes
+   * @param etag
+   *          the strong entity tag of the content, including the surrounding quotes
+   * @return the requested range, or null if the complete content should be returned
+   */
+  protected ByteRange getByteRange(HttpServletRequest req, long length, String etag) {
+    String range = req.getHeader("Range");
+    if (range == null || !range.startsWith(BYTES_UNIT) || range.indexOf(',') >= 0) {
+      return null;
+    }
+    String ifRange = req.getHeader("If-Range");
+    if (ifRange != null && !ifRange.equals(etag)) {
+      // Dates are not compared, they are too coarse to tell versions of the content apart
+      return null;
+    }
+    String spec = range.substring(BYTES_UNIT.length()).trim();
+    int dash = spec.indexOf('-');
+    if (dash < 0) {
+      return null;
+    }
+    try {
+      String first = spec.substring(0, dash).trim();
+      String last = spec.substring(dash + 1).trim();
+      if (first.isEmpty()) {
+        // The last n bytes
+        long suffix = Long.parseLong(last);
+        if (suffix < 0) {
+          return null;
+        }
+        return new ByteRange(Math.max(length - suffix, 0), length - 1, length);
+      }
+      long start = Long.parseLong(first);
+      long end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+      if (start < 0 || end < start) {
+        return null;
+      }
+      return new ByteRange(start, Math.min(end, length - 1), length);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Sets the status and headers for a partial response containing the given range, or a 416
+   * Requested Range Not Satisfiable status if the range cannot be satisfied, in which case the
+   * caller must not write a body.
+   * 
+   * @return true iff the range can be satisfied
+   */
+  protected boolean startPartialResponse(HttpServletResponse resp, ByteRange range) {
+    if (!range.isSatisfiable()) {
+      resp.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+      resp.setHeader("Content-Range", "bytes */" + range.getTotalLength());
+      resp.setContentLength(0);
+      return false;
     }
-    return buff.toString();
+    resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+    resp.setHeader("Content-Range", "bytes " + range.getFirst() + '-' + range.getLast() + '/'
+            + range.getTotalLength());
+    resp.setContentLength((int) range.getLength());
+    return true;
+  }
+
+  private float getQuality(String value) {
+    try {
+      return Float.parseFloat(value);
+    } catch (NumberFormatException e) {
+      // A malformed quality value is treated as not acceptable
+      return 0;
+    }
+  }
+
+  private long getDateHeader(HttpServletRequest req, String name) {
+    try {
+      return req.getDateHeader(name);
+    } catch (IllegalArgumentException e) {
+      // Malformed dates are ignored
+      return -1;
+    }
+  }
+
+  /**
+   * Splits a comma separated request parameter.
+   * 
+   * @return the non-empty values of the parameter, or an empty list if it is not present
+   */
+  protected List<String> getListParameter(HttpServletRequest req, String name) {
+    String value = req.getParameter(name);
+    if (value == null) {
+      return Collections.emptyList();
+    }
+    return Lists.newArrayList(LIST_SPLITTER.split(value));
+  }
+
+  /**
+   * Parses an integer request parameter.
+   * 
+   * @return the value of the parameter, or <code>defaultValue</code> if it is not present
+   * @throws NumberFormatException
+   *           if the parameter is present but not an integer
+   */
+  protected int getIntParameter(HttpServletRequest req, String name, int defaultValue) {
+    String value = req.getParameter(name);
+    if (value == null || value.trim().isEmpty()) {
+      return defaultValue;
+    }
+    return Integer.parseInt(value.trim());
   }
 
   protected String[] getPaths(HttpServletRequest req) {
@@ -91,6 +292,56 @@ public abstract class ExplorerInjectedServlet extends InjectedServlet {
     return builder.toString();
   }
   
+  /**
+   * A range of bytes requested by a client, see {@link ExplorerInjectedServlet#getByteRange}.
+   */
+  protected static class ByteRange {
+    private final long first;
+    private final long last;
+    private final long totalLength;
+
+    ByteRange(long first, long last, long totalLength) {
+      this.first = first;
+      this.last = last;
+      this.totalLength = totalLength;
+    }
+
+    /**
+     * @return the offset of the first byte in the range
+     */
+    public long getFirst() {
+      return first;
+    }
+
+    /**
+     * @return the offset of the last byte in the range, inclusive
+     */
+    public long getLast() {
+      return last;
+    }
+
+    /**
+     * @return the number of bytes in the range
+     */
+    public long getLength() {
+      return last - first + 1;
+    }
+
+    /**
+     * @return the length of the complete content
+     */
+    public long getTotalLength() {
+      return totalLength;
+    }
+
+    /**
+     * @return true iff the range overlaps the content
+     */
+    public boolean isSatisfiable() {
+      return first < totalLength;
+    }
+  }
+
   protected Map<String, String> splitQuery(String query) throws IOException, UnsupportedEncodingException {
     Map<String, String> query_pairs = new LinkedHashMap<String, String>();
     String[] pairs = query.split("&");
@@ -19,11 +19,15 @@
 package org.opensocial.explorer.specserver.servlet;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.Reader;
 import java.net.HttpURLConnection;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -31,16 +35,21 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.wink.json4j.JSONArray;
 import org.apache.wink.json4j.JSONException;
 import org.apache.wink.json4j.JSONObject;
+import org.opensocial.explorer.specserver.ResourceContentPool;
+import org.opensocial.explorer.specserver.api.FileContent;
 import org.opensocial.explorer.specserver.api.GadgetRegistry;
 import org.opensocial.explorer.specserver.api.GadgetResource;
 import org.opensocial.explorer.specserver.api.GadgetSpec;
-import org.opensocial.explorer.specserver.api.JSONSerializable;
+import org.opensocial.explorer.specserver.api.SerializedContent;
+import org.opensocial.explorer.specserver.api.SpecTreePage;
+import org.opensocial.explorer.specserver.api.TempGadgetSpecStore;
 import org.opensocial.explorer.specserver.temp.TempGadgetSpec;
+import org.opensocial.explorer.specserver.temp.TempGadgetSpecParser;
+import org.opensocial.explorer.specserver.temp.TempGadgetSpecParser.LimitExceededException;
 
-import com.google.common.annotations.VisibleForTesting;
-import com.google.common.collect.Maps;
 import com.google.inject.Inject;
 
 /**
@@ -52,27 +61,87 @@ import com.google.inject.Inject;
  * - Returns a JSON representation of the {@link GadgetRegistry}. 
  * - @see {@link GadgetRegistry#getSpecTree()}
  * 
+ * GET /gadgetspec/specTree?parent={folderId}[&amp;offset={offset}][&amp;limit={limit}]
+ * - Returns one page of the children of a folder in the spec tree, "root" for the top level,
+ *   as JSON of the form { "id": ..., "total": ..., "offset": ..., "children": [ {..., childCount} ] }
+ * - At most 500 children are returned at once, 100 unless a limit is given.
+ * - @see {@link GadgetRegistry#getSpecTreeChildren(String, int, int)}
+ * 
+ * GET /gadgetspec/specTree?path={id}
+ * - Returns the IDs of the folders leading to the spec or folder whose ID is {id}, "default" for
+ *   the default spec, as JSON of the form { "id": ..., "path": [ "root", ..., {id} ] }
+ * - @see {@link GadgetRegistry#getSpecTreePath(String)}
+ * 
  * GET /gadgetspec/default
  * - Returns a JSON representation of the default {@link GadgetSpec}
  * - @see {@link GadgetRegistry#getDefaultGadget()}
  * 
+ * GET /gadgetspec/batch?ids={id},{id}[&amp;have={hash},{hash}]
+ * - Returns a JSON array with the JSON representation of every requested {@link GadgetSpec}, in
+ *   the order of the ids, or null for ids that are unknown. The array is streamed spec by spec.
+ * - Every resource carries its contentHash. Resources whose contentHash is listed in have are
+ *   returned without their content, the client is expected to have it already.
+ * - At most 50 ids and 2000 hashes may be sent at once. Long lists do not fit in a URL, clients
+ *   should POST them instead.
+ * 
+ * GET /gadgetspec/search?q={query}[&amp;offset={offset}][&amp;limit={limit}]
+ * - Returns the specs in the {@link GadgetRegistry} whose titles, paths, required features or
+ *   resources match the query, best match first, as JSON of the form
+ *   { "query": ..., "total": ..., "offset": ..., "results": [ {id, title, path, score} ] }
+ * - The last word of the query also matches words it is a prefix of.
+ * - At most 100 results are returned at once, 20 unless a limit is given.
+ * - @see {@link GadgetRegistry#search(String, int, int)}
+ * 
  * GET /gadgetspec/{id}[/{resource}]
  * - If no {resource} name is provided, this returns a JSON representation of the {@link GadgetSpec} whose ID is {id}
  * - If a {resource} name is provided, this returns the resource given by {resource} for the {@link GadgetSpec} whose ID is {id}
  * 
+ * All GET responses carry ETag, Last-Modified and Cache-Control headers. Conditional requests using
+ * If-None-Match or If-Modified-Since are answered with 304 Not Modified when the content is unchanged.
+ * Registry content is gzip compressed when it is loaded and served compressed to clients whose
+ * Accept-Encoding allows it. Resources support single byte range requests, which are always served
+ * uncompressed. Registry resources that are read on demand are sent straight from their files on
+ * disk when they are large or the client does not accept gzip.
+ * 
+ * POST /gadgetspec/batch
+ * - The same as GET /gadgetspec/batch, with the ids and hashes in a JSON body of the form
+ *   { "ids": [ {id}, ... ], "have": [ {hash}, ... ] }
+ * - @see {@link #doPost(HttpServletRequest, HttpServletResponse)}
+ * 
  * POST /gadgetspec
  * - Creates a new temporary {@link GadgetSpec} with from the JSON POST data.
+ * - Temporary specs are kept in a {@link TempGadgetSpecStore} and may be evicted at any time.
  * - @see {@link TempGadgetSpec}
  * - @see {@link #doPost(HttpServletRequest, HttpServletResponse)}
  * 
+ * PATCH /gadgetspec/{id}
+ * - Creates a new temporary {@link GadgetSpec} from the spec whose ID is {id} and the changes in
+ *   the JSON PATCH data. Unchanged resources are shared with the base spec.
+ * - @see {@link #doPatch(HttpServletRequest, HttpServletResponse)}
+ * 
  * </pre>
  */
 public class GadgetSpecServlet extends ExplorerInjectedServlet {
   private static final long serialVersionUID = -6848715863895692189L;
   private static final String CLASS = GadgetSpecServlet.class.getName();
   private static final Logger LOG = Logger.getLogger(CLASS);
+  // Registry content only changes on redeploy, temp specs are specific to one user
+  private static final String REGISTRY_CACHE_CONTROL = "public, no-cache";
+  private static final String TEMP_CACHE_CONTROL = "private, no-cache";
+  // Larger files are always sent from disk rather than kept compressed in the content cache
+  private static final long MIN_FILE_LENGTH = 64 * 1024;
+  private static final int MAX_BATCH_SIZE = 50;
+  private static final int MAX_BATCH_HASHES = 2000;
+  // Enough for the ids and hashes of the largest batch
+  private static final int MAX_BATCH_BODY_LENGTH = 256 * 1024;
+  private static final int DEFAULT_SEARCH_LIMIT = 20;
+  private static final int MAX_SEARCH_LIMIT = 100;
+  private static final int DEFAULT_TREE_LIMIT = 100;
+  private static final int MAX_TREE_LIMIT = 500;
   private GadgetRegistry registry;
-  private Map<String, GadgetSpec> tempSpecs = Maps.newConcurrentMap();
+  private TempGadgetSpecStore tempSpecs;
+  private ResourceContentPool contentPool = new ResourceContentPool();
+  private TempGadgetSpecParser specParser = new TempGadgetSpecParser();
 
   @Inject
   public void setRegistry(GadgetRegistry registry) {
@@ -80,6 +149,24 @@ public class GadgetSpecServlet extends ExplorerInjectedServlet {
     this.registry = registry;
   }
 
+  @Inject
+  public void setContentPool(ResourceContentPool contentPool) {
+    checkInitialized();
+    this.contentPool = contentPool;
+  }
+
+  @Inject
+  public void setSpecParser(TempGadgetSpecParser specParser) {
+    checkInitialized();
+    this.specParser = specParser;
+  }
+
+  @Inject
+  public void setTempSpecStore(TempGadgetSpecStore tempSpecs) {
+    checkInitialized();
+    this.tempSpecs = tempSpecs;
+  }
+
   @Override
   protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException,
           IOException {
@@ -94,13 +181,23 @@ public class GadgetSpecServlet extends ExplorerInjectedServlet {
     String specId = paths[0];
 
     if ("specTree".equals(specId)) { // /gadgetspec/specTree
-      String specTree = registry.getSpecTree().toString();
-      resp.setContentLength(specTree.length());
-      resp.setContentType(JSON_CONTENT_TYPE);
-      
-      PrintWriter writer = resp.getWriter();
-      writer.print(specTree);
-      writer.flush();
+      if (req.getParameter("parent") != null) {
+        returnSpecTreePage(req, resp);
+      } else if (req.getParameter("path") != null) {
+        returnSpecTreePath(req, resp);
+      } else {
+        returnContent(registry.getSerializedSpecTree(), REGISTRY_CACHE_CONTROL, req, resp);
+      }
+      return;
+    }
+
+    if ("batch".equals(specId)) { // /gadgetspec/batch
+      returnBatch(getListParameter(req, "ids"), getListParameter(req, "have"), resp);
+      return;
+    }
+
+    if ("search".equals(specId)) { // /gadgetspec/search
+      returnSearchResults(req, resp);
       return;
     }
 
@@ -109,17 +206,17 @@ public class GadgetSpecServlet extends ExplorerInjectedServlet {
       if (spec == null) {
         resp.sendError(HttpServletResponse.SC_NOT_FOUND, "No default gadget spec was found.");
       } else {
-        returnJSONResult(spec, resp);
+        returnSpec(spec, registry.getSerializedGadgetSpec(spec.getId()), REGISTRY_CACHE_CONTROL,
+                req, resp);
       }
       return;
     }
 
     // /gadgetspec/{id}[/{resource}]
-    GadgetSpec spec;
     // Check the tempSpecs first then go to the registry
-    if (this.tempSpecs.containsKey(specId)) {
-      spec = this.tempSpecs.get(specId);
-    } else {
+    GadgetSpec spec = this.tempSpecs.get(specId);
+    boolean isTempSpec = spec != null;
+    if (!isTempSpec) {
       spec = registry.getGadgetSpec(specId);
     }
 
@@ -132,16 +229,35 @@ public class GadgetSpecServlet extends ExplorerInjectedServlet {
     // Check to see if resources are being requested through this servlet
     if (paths.length > 1) {
       String resourceName = paths[1];
-      GadgetResource resource = findResource(spec, resourceName);
+      FileContent file = isTempSpec ? null : registry.getResourceFile(specId, resourceName);
+      if (file != null && (file.getLength() >= MIN_FILE_LENGTH || !acceptsGzip(req))) {
+        if (file.getLength() < MIN_FILE_LENGTH) {
+          resp.setHeader("Vary", "Accept-Encoding");
+        }
+        returnFile(file, REGISTRY_CACHE_CONTROL, req, resp);
+        return;
+      }
+      // Registry resources were serialized when the registry was loaded
+      SerializedContent serialized = isTempSpec ? null : registry.getSerializedResource(specId,
+              resourceName);
+      if (serialized != null) {
+        returnContent(serialized, REGISTRY_CACHE_CONTROL, req, resp);
+        return;
+      }
+      GadgetResource resource = spec.getResource(resourceName);
       if (resource != null) {
-        returnResource(resource, resp);
+        returnResource(resource, isTempSpec ? TEMP_CACHE_CONTROL : REGISTRY_CACHE_CONTROL, req,
+                resp);
       } else {
         // 404 - Not Found
         resp.sendError(HttpServletResponse.SC_NOT_FOUND, resourceName + " was not found");
       }
-    } else {
+    } else if (isTempSpec) {
       // No resources being requested, just the spec. Return it.
-      returnJSONResult(spec, resp);
+      returnSpec(spec, null, TEMP_CACHE_CONTROL, req, resp);
+    } else {
+      // Registry specs were serialized when the registry was loaded
+      returnSpec(spec, registry.getSerializedGadgetSpec(specId), REGISTRY_CACHE_CONTROL, req, resp);
     }
   }
 
@@ -175,6 +291,16 @@ public class GadgetSpecServlet extends ExplorerInjectedServlet {
    *  ] 
    * }
    * </pre>
+   * 
+   * The body is parsed as it is read, see {@link TempGadgetSpecParser}. Bodies or resources that
+   * exceed the configured size limits are rejected with 413 Request Entity Too Large.
+   * 
+   * A POST to /gadgetspec/batch instead returns several specs like GET /gadgetspec/batch, for
+   * requests whose lists of ids and hashes are too long for a URL. The body is of the form
+   * 
+   * <pre>
+   * { "ids":[ <spec id string> ], "have":[ <content hash string> ] }
+   * </pre>
    */
   @Override
   protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException,
@@ -186,106 +312,435 @@ public class GadgetSpecServlet extends ExplorerInjectedServlet {
               "The request content-type must be application/json.");
       return;
     }
-    String jsonString = getRequestBody(req);
-    PrintWriter writer = null;
+    String[] paths = getPaths(req);
+    if (paths.length == 1 && "batch".equals(paths[0])) {
+      postBatch(req, resp);
+      return;
+    }
     try {
-      JSONObject json = new JSONObject(jsonString);
-      GadgetSpec tempSpec = TempGadgetSpec.parse(json);
-      String tempSpecId = tempSpec.getId();
-      this.tempSpecs.put(tempSpecId, tempSpec);
-
-      // Respond with the ID of the temp spec
-      JSONObject respObj = new JSONObject();
-      respObj.put(GadgetSpec.SPEC_ID, tempSpecId);
-      
-      resp.setContentType(JSON_CONTENT_TYPE);
-      
-      writer = resp.getWriter();
-      writer.print(respObj.toString());
+      returnTempSpecId(specParser.parse(req.getReader(), contentPool), resp);
+    } catch (LimitExceededException e) {
+      resp.sendError(HttpURLConnection.HTTP_ENTITY_TOO_LARGE, e.getLocalizedMessage());
     } catch (JSONException e) {
       resp.sendError(HttpURLConnection.HTTP_BAD_REQUEST,
               "Invalid JSON object: " + e.getLocalizedMessage());
-    } finally {
-      if (writer != null) {
-        writer.flush();
-      }
     }
   }
 
-  @VisibleForTesting
-  GadgetResource findResource(GadgetSpec spec, String resourceName) {
-    Map<String, GadgetResource> resources = null;
-    if (resourceName.endsWith(".js")) {
-      resources = spec.getJsResources();
-    } else if (resourceName.endsWith(".html")) {
-      resources = spec.getHtmlResources();
-    } else if (resourceName.endsWith(".css")) {
-      resources = spec.getCssResources();
-    } else if (resourceName.endsWith(".xml")
-            && spec.getGadgetResource().getName().equals(resourceName)) {
-      // Just return the gadget resource
-      return spec.getGadgetResource();
+  @Override
+  protected void service(HttpServletRequest req, HttpServletResponse resp)
+          throws ServletException, IOException {
+    // HttpServlet does not know PATCH
+    if ("PATCH".equals(req.getMethod())) {
+      doPatch(req, resp);
     } else {
-      LOG.warning("Unknown resource type: " + resourceName);
-      return null;
+      super.service(req, resp);
     }
+  }
 
-    if (resources == null) {
-      // We didn't find any resources of the given type
-      return null;
+  /**
+   * Creates a new temporary {@link GadgetSpec} from an existing temporary or registry spec and only
+   * the resources that changed, so the editor does not have to send every resource each time the
+   * gadget is run. The PATCH body is JSON like the POST body, but every member is optional and only
+   * changed resources are listed. A changed resource either has new content, edits of the base
+   * resource's content or is deleted, e.g.
+   * 
+   * <pre>
+   * { 
+   *  "jsResources":[ 
+   *    {
+   *      "name":<js filename string>, 
+   *      "edits":[ { "start":<offset>, "end":<offset>, "text":<replacement string> } ]
+   *    }, 
+   *    {
+   *      "name":<js filename string>, 
+   *      "deleted":true
+   *    } 
+   *  ], 
+   *  "gadgetResource":{
+   *    "content":<gadget content string>, 
+   *    "name":<gadget filename string> 
+   *  }
+   * }
+   * </pre>
+   * 
+   * The ID of a spec is derived from its content, so the base ID identifies exactly the content the
+   * edits apply to. If the base spec no longer exists the response is 404 Not Found and the client
+   * should POST the complete spec instead.
+   * 
+   * @see TempGadgetSpecParser#parsePatch
+   */
+  protected void doPatch(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    if (req.getContentType() == null || !req.getContentType().startsWith(JSON_CONTENT_TYPE)) {
+      resp.sendError(HttpURLConnection.HTTP_BAD_REQUEST,
+              "The request content-type must be application/json.");
+      return;
+    }
+    String[] paths = getPaths(req);
+    if (paths.length != 1) {
+      resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "The request must specify a gadget id.");
+      return;
+    }
+    GadgetSpec base = tempSpecs.get(paths[0]);
+    if (base == null) {
+      base = registry.getGadgetSpec(paths[0]);
     }
+    if (base == null) {
+      resp.sendError(HttpServletResponse.SC_NOT_FOUND, "Gadget spec with ID {" + paths[0]
+              + "} was not found.");
+      return;
+    }
+    try {
+      returnTempSpecId(specParser.parsePatch(req.getReader(), base, contentPool), resp);
+    } catch (LimitExceededException e) {
+      resp.sendError(HttpURLConnection.HTTP_ENTITY_TOO_LARGE, e.getLocalizedMessage());
+    } catch (JSONException e) {
+      resp.sendError(HttpURLConnection.HTTP_BAD_REQUEST,
+              "Invalid JSON object: " + e.getLocalizedMessage());
+    }
+  }
+
+  /**
+   * Stores the given temporary spec and responds with its ID.
+   */
+  private void returnTempSpecId(GadgetSpec tempSpec, HttpServletResponse resp)
+          throws JSONException, IOException {
+    String tempSpecId = this.tempSpecs.put(tempSpec);
 
-    Iterator<Entry<String, GadgetResource>> itr = resources.entrySet().iterator();
-    Entry<String, GadgetResource> entry;
-    GadgetResource resource = null;
-    while (itr.hasNext()) {
-      entry = itr.next();
-      resource = entry.getValue();
-      if (resource.getName().equals(resourceName)) {
-        break;
+    // Respond with the ID of the temp spec
+    JSONObject respObj = new JSONObject();
+    respObj.put(GadgetSpec.SPEC_ID, tempSpecId);
+
+    resp.setContentType(JSON_CONTENT_TYPE);
+
+    PrintWriter writer = resp.getWriter();
+    writer.print(respObj.toString());
+    writer.flush();
+  }
+
+  private void postBatch(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    char[] body = new char[MAX_BATCH_BODY_LENGTH + 1];
+    Reader reader = req.getReader();
+    int length = 0;
+    int read;
+    while (length < body.length && (read = reader.read(body, length, body.length - length)) != -1) {
+      length += read;
+    }
+    if (length > MAX_BATCH_BODY_LENGTH) {
+      resp.sendError(HttpURLConnection.HTTP_ENTITY_TOO_LARGE, "The request must not be longer than "
+              + MAX_BATCH_BODY_LENGTH + " characters.");
+      return;
+    }
+    List<String> ids = new ArrayList<String>();
+    List<String> hashes = new ArrayList<String>();
+    try {
+      JSONObject json = new JSONObject(new String(body, 0, length));
+      JSONArray idArray = json.optJSONArray("ids");
+      for (int i = 0; idArray != null && i < idArray.length(); i++) {
+        ids.add(idArray.getString(i));
+      }
+      JSONArray hashArray = json.optJSONArray("have");
+      for (int i = 0; hashArray != null && i < hashArray.length(); i++) {
+        hashes.add(hashArray.getString(i));
       }
+    } catch (JSONException e) {
+      resp.sendError(HttpURLConnection.HTTP_BAD_REQUEST,
+              "Invalid JSON object: " + e.getLocalizedMessage());
+      return;
+    }
+    returnBatch(ids, hashes, resp);
+  }
+
+  private void returnBatch(List<String> ids, List<String> hashes, HttpServletResponse resp)
+          throws IOException {
+    final String method = "returnBatch";
+    if (ids.isEmpty() || ids.size() > MAX_BATCH_SIZE) {
+      resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "The request must specify between 1 and "
+              + MAX_BATCH_SIZE + " gadget ids.");
+      return;
+    }
+    if (hashes.size() > MAX_BATCH_HASHES) {
+      resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "The request must not specify more than "
+              + MAX_BATCH_HASHES + " content hashes.");
+      return;
+    }
+    Set<String> clientHashes = new HashSet<String>(hashes);
+
+    resp.setContentType(JSON_CONTENT_TYPE);
+    resp.setCharacterEncoding("UTF-8");
+    // The batch may contain temp specs
+    resp.setHeader("Cache-Control", TEMP_CACHE_CONTROL);
+    PrintWriter writer = resp.getWriter();
+    writer.write('[');
+    for (int i = 0; i < ids.size(); i++) {
+      if (i > 0) {
+        writer.write(',');
+      }
+      GadgetSpec spec = tempSpecs.get(ids.get(i));
+      if (spec == null) {
+        spec = registry.getGadgetSpec(ids.get(i));
+      }
+      try {
+        if (spec == null) {
+          writer.write("null");
+        } else {
+          toBatchJSON(spec, clientHashes).write(writer);
+        }
+      } catch (JSONException e) {
+        // The response is already committed, so the spec can only be left out
+        LOG.logp(Level.WARNING, CLASS, method, "Unable to serialize gadget " + ids.get(i), e);
+        writer.write("null");
+      }
+      // Send every spec as soon as it is ready
+      writer.flush();
     }
-    return resource;
+    writer.write(']');
+    writer.flush();
   }
 
-  private void returnJSONResult(JSONSerializable spec, HttpServletResponse resp) throws IOException {
-    final String method = "returnJSONResult";
-    PrintWriter writer = null;
+  private void returnSearchResults(HttpServletRequest req, HttpServletResponse resp)
+          throws IOException {
+    final String method = "returnSearchResults";
+    String query = req.getParameter("q");
+    if (query == null || query.trim().isEmpty()) {
+      resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "The request must specify a query.");
+      return;
+    }
+    int[] page = getPage(req, resp, DEFAULT_SEARCH_LIMIT, MAX_SEARCH_LIMIT);
+    if (page == null) {
+      return;
+    }
+
+    SerializedContent results;
     try {
-      String specString = spec.toJSON().toString();
-      resp.setContentLength(specString.length());
-      resp.setContentType(JSON_CONTENT_TYPE);
-      
-      writer = resp.getWriter();
-      writer.print(specString);
-    } catch (Exception e) {
-      LOG.logp(Level.WARNING, CLASS, method, "An exception occurred returning a JSON result", e);
-      resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-    } finally {
-      if (writer != null) {
-        writer.flush();
+      // The results only change when the registry does
+      results = SerializedContent.fromJSON(registry.search(query, page[0], page[1]).toJSON(),
+              registry.getSerializedSpecTree().getLastModified());
+    } catch (JSONException e) {
+      LOG.logp(Level.WARNING, CLASS, method, "Unable to serialize the results for " + query, e);
+      resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getLocalizedMessage());
+      return;
+    }
+    returnContent(results, REGISTRY_CACHE_CONTROL, req, resp);
+  }
+
+  private void returnSpecTreePage(HttpServletRequest req, HttpServletResponse resp)
+          throws IOException {
+    final String method = "returnSpecTreePage";
+    String parentId = req.getParameter("parent");
+    int[] page = getPage(req, resp, DEFAULT_TREE_LIMIT, MAX_TREE_LIMIT);
+    if (page == null) {
+      return;
+    }
+    SpecTreePage children = registry.getSpecTreeChildren(parentId, page[0], page[1]);
+    if (children == null) {
+      resp.sendError(HttpServletResponse.SC_NOT_FOUND, "Folder with ID {" + parentId
+              + "} was not found.");
+      return;
+    }
+
+    SerializedContent content;
+    try {
+      content = SerializedContent.fromJSON(children.toJSON(),
+              registry.getSerializedSpecTree().getLastModified());
+    } catch (JSONException e) {
+      LOG.logp(Level.WARNING, CLASS, method, "Unable to serialize the children of " + parentId, e);
+      resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getLocalizedMessage());
+      return;
+    }
+    returnContent(content, REGISTRY_CACHE_CONTROL, req, resp);
+  }
+
+  private void returnSpecTreePath(HttpServletRequest req, HttpServletResponse resp)
+          throws IOException {
+    final String method = "returnSpecTreePath";
+    String id = req.getParameter("path");
+    if ("default".equalsIgnoreCase(id)) {
+      GadgetSpec spec = registry.getDefaultGadget();
+      id = spec != null ? spec.getId() : null;
+    }
+    List<String> path = id != null ? registry.getSpecTreePath(id) : null;
+    if (path == null) {
+      resp.sendError(HttpServletResponse.SC_NOT_FOUND, "Spec tree node with ID {"
+              + req.getParameter("path") + "} was not found.");
+      return;
+    }
+
+    SerializedContent content;
+    try {
+      JSONObject json = new JSONObject();
+      json.put("id", id);
+      json.put("path", new JSONArray(path));
+      content = SerializedContent.fromJSON(json, registry.getSerializedSpecTree().getLastModified());
+    } catch (JSONException e) {
+      LOG.logp(Level.WARNING, CLASS, method, "Unable to serialize the path of " + id, e);
+      resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getLocalizedMessage());
+      return;
+    }
+    returnContent(content, REGISTRY_CACHE_CONTROL, req, resp);
+  }
+
+  /**
+   * Reads the offset and limit parameters of a paged request, sending a 400 response if they are
+   * invalid.
+   * 
+   * @return the offset and the limit, or null if an error was sent
+   */
+  private int[] getPage(HttpServletRequest req, HttpServletResponse resp, int defaultLimit,
+          int maxLimit) throws IOException {
+    int offset;
+    int limit;
+    try {
+      offset = getIntParameter(req, "offset", 0);
+      limit = getIntParameter(req, "limit", defaultLimit);
+    } catch (NumberFormatException e) {
+      resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "The offset and limit must be numbers.");
+      return null;
+    }
+    if (offset < 0 || limit < 1 || limit > maxLimit) {
+      resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "The offset must not be negative and the "
+              + "limit must be between 1 and " + maxLimit + ".");
+      return null;
+    }
+    return new int[] { offset, limit };
+  }
+
+  private JSONObject toBatchJSON(GadgetSpec spec, Set<String> clientHashes) throws JSONException {
+    JSONObject json = new JSONObject();
+    json.put(GadgetSpec.SPEC_TITLE, spec.getTitle());
+    json.put(GadgetSpec.SPEC_ID, spec.getId());
+    json.put(GadgetSpec.GADGET_RESOURCE, toBatchJSON(spec.getGadgetResource(), clientHashes));
+    if (spec.getCssResources() != null) {
+      json.put(GadgetSpec.CSS_RESOURCES, toBatchJSON(spec.getCssResources(), clientHashes));
+    }
+    if (spec.getJsResources() != null) {
+      json.put(GadgetSpec.JS_RESOURCES, toBatchJSON(spec.getJsResources(), clientHashes));
+    }
+    if (spec.getHtmlResources() != null) {
+      json.put(GadgetSpec.HTML_RESOURCES, toBatchJSON(spec.getHtmlResources(), clientHashes));
+    }
+    if (spec.getEEResource() != null) {
+      json.put(GadgetSpec.EE_RESOURCE, toBatchJSON(spec.getEEResource(), clientHashes));
+    }
+    return json;
+  }
+
+  private JSONArray toBatchJSON(Map<String, GadgetResource> resources, Set<String> clientHashes)
+          throws JSONException {
+    JSONArray array = new JSONArray();
+    for (GadgetResource resource : resources.values()) {
+      array.put(toBatchJSON(resource, clientHashes));
+    }
+    return array;
+  }
+
+  private JSONObject toBatchJSON(GadgetResource resource, Set<String> clientHashes)
+          throws JSONException {
+    JSONObject json = new JSONObject();
+    json.put(GadgetResource.RESOURCE_NAME, resource.getName());
+    json.put(GadgetResource.RESOURCE_CONTENT_HASH, resource.getContentHash());
+    // Don't even read content the client already has
+    if (!clientHashes.contains(resource.getContentHash())) {
+      json.put(GadgetResource.RESOURCE_CONTENT, resource.getContent());
+    }
+    return json;
+  }
+
+  private void returnSpec(GadgetSpec spec, SerializedContent serialized, String cacheControl,
+          HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    final String method = "returnSpec";
+    if (serialized == null) {
+      try {
+        serialized = SerializedContent.fromJSON(spec.toJSON(), spec.getLastModified());
+      } catch (Exception e) {
+        LOG.logp(Level.WARNING, CLASS, method, "An exception occurred returning a JSON result", e);
+        resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        return;
       }
     }
+    returnContent(serialized, cacheControl, req, resp);
   }
 
-  private void returnResource(GadgetResource resource, HttpServletResponse resp) throws IOException {
+  private void returnContent(SerializedContent content, String cacheControl,
+          HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    // Ranges refer to the uncompressed content
+    ByteRange range = getByteRange(req, content.getLength(), content.getETag());
+    boolean gzip = false;
+    String etag = content.getETag();
+    if (content.hasGzip()) {
+      resp.setHeader("Vary", "Accept-Encoding");
+      if (range == null && acceptsGzip(req)) {
+        gzip = true;
+        etag = content.getGzipETag();
+      }
+    }
+    if (checkNotModified(req, resp, etag, content.getLastModified(), cacheControl)) {
+      return;
+    }
+    resp.setHeader("Accept-Ranges", "bytes");
+    if (range != null && !startPartialResponse(resp, range)) {
+      return;
+    }
+    setContentType(content.getContentType(), resp);
+
+    OutputStream out = resp.getOutputStream();
+    if (range != null) {
+      content.writeTo(out, (int) range.getFirst(), (int) range.getLength());
+    } else if (gzip) {
+      resp.setHeader("Content-Encoding", "gzip");
+      resp.setContentLength(content.getGzipLength());
+      content.writeGzipTo(out);
+    } else {
+      resp.setContentLength(content.getLength());
+      content.writeTo(out);
+    }
+    out.flush();
+  }
+
+  private void returnFile(FileContent content, String cacheControl, HttpServletRequest req,
+          HttpServletResponse resp) throws IOException {
+    if (checkNotModified(req, resp, content.getETag(), content.getLastModified(), cacheControl)) {
+      return;
+    }
+    resp.setHeader("Accept-Ranges", "bytes");
+    ByteRange range = getByteRange(req, content.getLength(), content.getETag());
+    long offset = 0;
+    long count = content.getLength();
+    if (range != null) {
+      if (!startPartialResponse(resp, range)) {
+        return;
+      }
+      offset = range.getFirst();
+      count = range.getLength();
+    } else {
+      resp.setContentLength((int) count);
+    }
+    setContentType(content.getContentType(), resp);
+
+    OutputStream out = resp.getOutputStream();
+    content.writeTo(out, offset, count);
+    out.flush();
+  }
+
+  private static void setContentType(String contentType, HttpServletResponse resp) {
+    resp.setContentType(contentType);
+    // Binary content has no charset
+    if (GadgetResource.ContentType.isText(contentType)) {
+      resp.setCharacterEncoding("UTF-8");
+    }
+  }
+
+  private void returnResource(GadgetResource resource, String cacheControl,
+          HttpServletRequest req, HttpServletResponse resp) throws IOException {
     final String method = "returnResource";
-    PrintWriter writer = null;
+    SerializedContent serialized;
     try {
-
-      String content = resource.getContent();
-      resp.setContentLength(content.length());
-      resp.setContentType(resource.getContentType());
-     
-      writer = resp.getWriter(); 
-      writer.print(content);
+      serialized = SerializedContent.fromResource(resource, false);
     } catch (Exception e) {
       LOG.logp(Level.WARNING, CLASS, method, e.getMessage(), e);
       resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-    } finally {
-      if (writer != null) {
-        writer.flush();
-      }
+      return;
     }
+    returnContent(serialized, cacheControl, req, resp);
   }
 }
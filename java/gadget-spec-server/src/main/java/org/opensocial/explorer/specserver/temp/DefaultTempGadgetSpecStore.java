@@ -0,0 +1,274 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.opensocial.explorer.specserver.temp;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.opensocial.explorer.specserver.DefaultGadgetSpec;
+import org.opensocial.explorer.specserver.api.GadgetResource;
+import org.opensocial.explorer.specserver.api.GadgetSpec;
+import org.opensocial.explorer.specserver.api.TempGadgetSpecStore;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * Default implementation of {@link TempGadgetSpecStore} that keeps temporary specs in memory.
+ * 
+ * The store is bounded both by the number of specs and by the approximate number of bytes of
+ * resource content the specs hold. When either bound is exceeded the least recently used specs are
+ * evicted. Specs also expire when they have not been requested for the configured idle time or when
+ * they are older than the configured maximum age, whichever comes first. A limit that is zero or
+ * negative is treated as unlimited.
+ * 
+ * Specs that leave the store are {@link DefaultGadgetSpec#release() released} so that content they
+ * share through a {@link org.opensocial.explorer.specserver.ResourceContentPool} can be freed. The
+ * byte limit is applied to each spec's content as if it were not shared.
+ */
+public class DefaultTempGadgetSpecStore implements TempGadgetSpecStore {
+  private static final String CLASS = DefaultTempGadgetSpecStore.class.getName();
+  private static final Logger LOG = Logger.getLogger(CLASS);
+
+  private final int maxEntries;
+  private final long maxBytes;
+  private final long idleNanos;
+  private final long maxAgeNanos;
+  private final Ticker ticker;
+
+  // Access ordered, so iteration starts at the least recently used spec
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f,
+          true);
+  private long totalBytes;
+  private long hitCount;
+  private long missCount;
+  private long evictionCount;
+
+  @Inject
+  public DefaultTempGadgetSpecStore(@Named("explorer.tempspecs.maxEntries") int maxEntries,
+          @Named("explorer.tempspecs.maxBytes") long maxBytes,
+          @Named("explorer.tempspecs.idleSeconds") long idleSeconds,
+          @Named("explorer.tempspecs.maxAgeSeconds") long maxAgeSeconds) {
+    this(maxEntries, maxBytes, idleSeconds, maxAgeSeconds, Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  protected DefaultTempGadgetSpecStore(int maxEntries, long maxBytes, long idleSeconds,
+          long maxAgeSeconds, Ticker ticker) {
+    this.maxEntries = maxEntries;
+    this.maxBytes = maxBytes;
+    this.idleNanos = TimeUnit.SECONDS.toNanos(idleSeconds);
+    this.maxAgeNanos = TimeUnit.SECONDS.toNanos(maxAgeSeconds);
+    this.ticker = ticker;
+  }
+
+  public String put(GadgetSpec spec) {
+    String id = spec.getId();
+    long now = ticker.read();
+    Entry entry = new Entry(spec, weigh(spec), now);
+    synchronized (entries) {
+      Entry old = entries.put(id, entry);
+      if (old != null) {
+        totalBytes -= old.weight;
+        if (old.spec != spec) {
+          release(old.spec);
+        }
+      }
+      totalBytes += entry.weight;
+      evict(now);
+    }
+    return id;
+  }
+
+  public GadgetSpec get(String id) {
+    long now = ticker.read();
+    synchronized (entries) {
+      Entry entry = entries.get(id);
+      if (entry != null && isExpired(entry, now)) {
+        removeEntry(id);
+        release(entry.spec);
+        evictionCount++;
+        entry = null;
+      }
+      if (entry == null) {
+        missCount++;
+        return null;
+      }
+      entry.lastAccess = now;
+      hitCount++;
+      return entry.spec;
+    }
+  }
+
+  public void remove(String id) {
+    synchronized (entries) {
+      Entry entry = removeEntry(id);
+      if (entry != null) {
+        release(entry.spec);
+      }
+    }
+  }
+
+  public long size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  /**
+   * @return the approximate number of bytes of resource content held by the store
+   */
+  public long getTotalBytes() {
+    synchronized (entries) {
+      return totalBytes;
+    }
+  }
+
+  public long getHitCount() {
+    synchronized (entries) {
+      return hitCount;
+    }
+  }
+
+  public long getMissCount() {
+    synchronized (entries) {
+      return missCount;
+    }
+  }
+
+  public long getEvictionCount() {
+    synchronized (entries) {
+      return evictionCount;
+    }
+  }
+
+  /**
+   * Removes expired specs and then the least recently used specs until the store is back within its
+   * bounds. The most recently added spec is always kept so that the client that just POSTed it can
+   * render it, even if it alone exceeds the byte limit. Must be called while holding the lock on
+   * {@link #entries}.
+   */
+  private void evict(long now) {
+    final String method = "evict";
+    Iterator<Map.Entry<String, Entry>> itr = entries.entrySet().iterator();
+    while (itr.hasNext()) {
+      Entry entry = itr.next().getValue();
+      if (isExpired(entry, now)) {
+        itr.remove();
+        totalBytes -= entry.weight;
+        evictionCount++;
+        release(entry.spec);
+      }
+    }
+
+    itr = entries.entrySet().iterator();
+    while (entries.size() > 1 && isOverLimit() && itr.hasNext()) {
+      Map.Entry<String, Entry> eldest = itr.next();
+      itr.remove();
+      totalBytes -= eldest.getValue().weight;
+      evictionCount++;
+      release(eldest.getValue().spec);
+      if (LOG.isLoggable(Level.FINE)) {
+        LOG.logp(Level.FINE, CLASS, method, "Evicted temporary gadget spec {0}", eldest.getKey());
+      }
+    }
+  }
+
+  private boolean isOverLimit() {
+    return (maxEntries > 0 && entries.size() > maxEntries)
+            || (maxBytes > 0 && totalBytes > maxBytes);
+  }
+
+  private boolean isExpired(Entry entry, long now) {
+    return (idleNanos > 0 && now - entry.lastAccess > idleNanos)
+            || (maxAgeNanos > 0 && now - entry.created > maxAgeNanos);
+  }
+
+  private Entry removeEntry(String id) {
+    Entry entry = entries.remove(id);
+    if (entry != null) {
+      totalBytes -= entry.weight;
+    }
+    return entry;
+  }
+
+  private void release(GadgetSpec spec) {
+    if (spec instanceof DefaultGadgetSpec) {
+      ((DefaultGadgetSpec) spec).release();
+    }
+  }
+
+  /**
+   * Returns the approximate number of bytes of heap the content of the given spec's resources
+   * occupies.
+   */
+  @VisibleForTesting
+  static long weigh(GadgetSpec spec) {
+    long weight = weigh(spec.getGadgetResource()) + weigh(spec.getEEResource());
+    weight += weigh(spec.getCssResources());
+    weight += weigh(spec.getJsResources());
+    weight += weigh(spec.getHtmlResources());
+    return weight;
+  }
+
+  private static long weigh(Map<String, GadgetResource> resources) {
+    long weight = 0;
+    if (resources != null) {
+      for (GadgetResource resource : resources.values()) {
+        weight += weigh(resource);
+      }
+    }
+    return weight;
+  }
+
+  private static long weigh(GadgetResource resource) {
+    if (resource == null) {
+      return 0;
+    }
+    long chars = 0;
+    if (resource.getName() != null) {
+      chars += resource.getName().length();
+    }
+    if (resource.getContent() != null) {
+      chars += resource.getContent().length();
+    }
+    // Strings are UTF-16 internally
+    return chars * 2;
+  }
+
+  private static class Entry {
+    private final GadgetSpec spec;
+    private final long weight;
+    private final long created;
+    private long lastAccess;
+
+    private Entry(GadgetSpec spec, long weight, long now) {
+      this.spec = spec;
+      this.weight = weight;
+      this.created = now;
+      this.lastAccess = now;
+    }
+  }
+}
@@ -0,0 +1,385 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.opensocial.explorer.specserver.temp;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import org.opensocial.explorer.specserver.ResourceContentPool;
+import org.opensocial.explorer.specserver.api.GadgetSpec;
+import org.opensocial.explorer.specserver.api.TempGadgetSpecStore;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * A {@link TempGadgetSpecStore} that keeps temporary specs in files in a directory, so that they
+ * survive restarts and can be served by every server that shares the directory.
+ *
+ * Each spec is kept in its own file named after the spec's ID. IDs are derived from the content of
+ * a spec, so servers that store the same ID write the same bytes and need no coordination. Files
+ * are written to a temporary file first and then renamed, so readers never see a partially written
+ * spec. The files hold the time the spec was last stored, the spec encoded with
+ * {@link TempGadgetSpecCodec} and a CRC-32 of both.
+ *
+ * Recently used specs are also kept decoded in a second store in memory. A spec whose file could
+ * not be written is served from memory by the server that stored it until it is removed from
+ * memory. A spec expires when its file has not been read for the configured idle time or when it
+ * was last stored longer ago than the configured maximum age. Storing a spec again rewrites its
+ * file at most once a minute. Expired files are deleted at most once a minute when a spec is
+ * stored. Since the
+ * expiration uses the modification time of the files, servers sharing the directory should have
+ * their clocks reasonably in sync.
+ */
+public class FileTempGadgetSpecStore implements TempGadgetSpecStore {
+  private static final String CLASS = FileTempGadgetSpecStore.class.getName();
+  private static final Logger LOG = Logger.getLogger(CLASS);
+  private static final int MAGIC = 0x4f535453; // "OSTS"
+  private static final String SPEC_SUFFIX = ".spec";
+  private static final String TEMP_SUFFIX = ".tmp";
+  private static final Pattern VALID_ID = Pattern.compile("[0-9a-f]{1,64}");
+  // Keeps files that are read often from being modified on every request
+  private static final long TOUCH_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+  private static final long SWEEP_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+  // Temporary files older than this were left behind by a server that stopped while writing
+  private static final long TEMP_FILE_MAX_AGE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  private final File directory;
+  private final TempGadgetSpecStore memory;
+  private final long idleMillis;
+  private final long maxAgeMillis;
+  private final ResourceContentPool pool;
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+  private final AtomicLong evictionCount = new AtomicLong();
+  // The IDs of the specs in memory whose files could not be written
+  private final Set<String> unwritten = Collections.newSetFromMap(
+          new ConcurrentHashMap<String, Boolean>());
+  private final Object sweepLock = new Object();
+  private long nextSweep;
+
+  /**
+   * @param directory
+   *          the directory to keep the specs in, it is created if it does not exist
+   * @param memory
+   *          the store that keeps recently used specs in memory
+   * @param idleSeconds
+   *          the time after which a spec that has not been requested expires, 0 or less means
+   *          never
+   * @param maxAgeSeconds
+   *          the time after which a spec expires, 0 or less means never
+   * @param pool
+   *          the pool to share the content of specs read from disk through, may be null
+   * @throws IOException
+   *           if the directory does not exist and could not be created
+   */
+  public FileTempGadgetSpecStore(File directory, TempGadgetSpecStore memory, long idleSeconds,
+          long maxAgeSeconds, ResourceContentPool pool) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create directory " + directory);
+    }
+    this.directory = directory;
+    this.memory = memory;
+    this.idleMillis = TimeUnit.SECONDS.toMillis(idleSeconds);
+    this.maxAgeMillis = TimeUnit.SECONDS.toMillis(maxAgeSeconds);
+    this.pool = pool;
+  }
+
+  public String put(GadgetSpec spec) {
+    final String method = "put";
+    String id = spec.getId();
+    File file = getFile(id);
+    // Storing a spec again restarts its maximum age
+    if (!touch(file) || maxAgeMillis > 0
+            && System.currentTimeMillis() - getStoreTime(file) > TOUCH_INTERVAL_MILLIS) {
+      try {
+        write(spec, file);
+        unwritten.remove(id);
+      } catch (IOException e) {
+        // The spec can still be served from memory by this server
+        LOG.logp(Level.SEVERE, CLASS, method, "Unable to store temporary gadget spec " + id, e);
+        unwritten.add(id);
+      }
+    }
+    memory.put(spec);
+    sweepIfDue();
+    return id;
+  }
+
+  public GadgetSpec get(String id) {
+    if (id == null || !VALID_ID.matcher(id).matches()) {
+      missCount.incrementAndGet();
+      return null;
+    }
+    File file = getFile(id);
+    GadgetSpec spec = memory.get(id);
+    if (spec != null && !touch(file) && !unwritten.contains(id)) {
+      // Removed or expired by another server
+      memory.remove(id);
+      spec = null;
+    } else if (spec == null) {
+      unwritten.remove(id);
+      spec = read(id, file);
+      if (spec != null) {
+        memory.put(spec);
+      }
+    }
+    if (spec == null) {
+      missCount.incrementAndGet();
+    } else {
+      hitCount.incrementAndGet();
+    }
+    return spec;
+  }
+
+  public void remove(String id) {
+    memory.remove(id);
+    if (id != null) {
+      unwritten.remove(id);
+    }
+    if (id != null && VALID_ID.matcher(id).matches()) {
+      getFile(id).delete();
+    }
+  }
+
+  public long size() {
+    File[] files = listFiles(SPEC_SUFFIX);
+    return files == null ? 0 : files.length;
+  }
+
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  public long getEvictionCount() {
+    return evictionCount.get();
+  }
+
+  /**
+   * Deletes the files of expired specs and temporary files left behind by failed writes.
+   */
+  @VisibleForTesting
+  void sweep() {
+    long now = System.currentTimeMillis();
+    File[] specFiles = listFiles(SPEC_SUFFIX);
+    if (specFiles != null) {
+      for (File file : specFiles) {
+        if (isExpired(file, now) && file.delete()) {
+          evictionCount.incrementAndGet();
+        }
+      }
+    }
+    File[] tempFiles = listFiles(TEMP_SUFFIX);
+    if (tempFiles != null) {
+      for (File file : tempFiles) {
+        long lastModified = file.lastModified();
+        if (lastModified != 0 && now - lastModified > TEMP_FILE_MAX_AGE_MILLIS) {
+          file.delete();
+        }
+      }
+    }
+  }
+
+  private void sweepIfDue() {
+    long now = System.currentTimeMillis();
+    synchronized (sweepLock) {
+      if (now < nextSweep) {
+        return;
+      }
+      nextSweep = now + SWEEP_INTERVAL_MILLIS;
+    }
+    sweep();
+  }
+
+  private boolean isExpired(File file, long now) {
+    long lastModified = file.lastModified();
+    if (lastModified == 0) {
+      return false;
+    }
+    if (idleMillis > 0 && now - lastModified > idleMillis) {
+      return true;
+    }
+    if (maxAgeMillis > 0) {
+      long storeTime = getStoreTime(file);
+      // Files that cannot be read were deleted by another server or are too short to be a spec,
+      // get() deals with the latter
+      return storeTime != -1 && now - storeTime > maxAgeMillis;
+    }
+    return false;
+  }
+
+  /**
+   * @return the time the spec in the given file was last stored, 0 if the file is not a spec or -1
+   *         if it cannot be read
+   */
+  private long getStoreTime(File file) {
+    try {
+      DataInputStream in = new DataInputStream(new FileInputStream(file));
+      try {
+        return in.readInt() != MAGIC ? 0 : in.readLong();
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Marks the given file as used now.
+   *
+   * @return false if the file does not exist
+   */
+  private boolean touch(File file) {
+    long lastModified = file.lastModified();
+    if (lastModified == 0) {
+      return false;
+    }
+    long now = System.currentTimeMillis();
+    if (now - lastModified > TOUCH_INTERVAL_MILLIS) {
+      file.setLastModified(now);
+    }
+    return true;
+  }
+
+  private void write(GadgetSpec spec, File file) throws IOException {
+    File temp = File.createTempFile(file.getName() + '.', TEMP_SUFFIX, directory);
+    try {
+      FileOutputStream fileOut = new FileOutputStream(temp);
+      try {
+        CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fileOut),
+                new CRC32());
+        DataOutputStream out = new DataOutputStream(checked);
+        out.writeInt(MAGIC);
+        out.writeLong(System.currentTimeMillis());
+        TempGadgetSpecCodec.encode(spec, out);
+        out.writeInt((int) checked.getChecksum().getValue());
+        out.flush();
+        fileOut.getFD().sync();
+      } finally {
+        fileOut.close();
+      }
+      try {
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      temp.delete();
+    }
+  }
+
+  /**
+   * Reads the spec with the given ID from disk. Files that are expired or cannot be decoded are
+   * deleted.
+   *
+   * @return the spec, or null if it does not exist
+   */
+  private GadgetSpec read(String id, File file) {
+    final String method = "read";
+    if (isExpired(file, System.currentTimeMillis())) {
+      if (file.delete()) {
+        evictionCount.incrementAndGet();
+      }
+      return null;
+    }
+    byte[] bytes;
+    try {
+      bytes = Files.readAllBytes(file.toPath());
+    } catch (NoSuchFileException e) {
+      return null;
+    } catch (IOException e) {
+      LOG.logp(Level.SEVERE, CLASS, method, "Unable to read temporary gadget spec " + id, e);
+      return null;
+    }
+    try {
+      TempGadgetSpec spec = decode(bytes);
+      if (id.equals(spec.getId())) {
+        return spec;
+      }
+      spec.release();
+      throw new IOException("The spec in the file has the ID " + spec.getId());
+    } catch (IOException e) {
+      LOG.logp(Level.WARNING, CLASS, method, "Deleting invalid temporary gadget spec " + file, e);
+      file.delete();
+      return null;
+    }
+  }
+
+  private TempGadgetSpec decode(byte[] bytes) throws IOException {
+    int length = bytes.length - 4;
+    if (length < 12) {
+      throw new IOException("The file is too short");
+    }
+    CRC32 crc = new CRC32();
+    crc.update(bytes, 0, length);
+    int expected = (bytes[length] & 0xFF) << 24 | (bytes[length + 1] & 0xFF) << 16
+            | (bytes[length + 2] & 0xFF) << 8 | (bytes[length + 3] & 0xFF);
+    if ((int) crc.getValue() != expected) {
+      throw new IOException("The checksum does not match");
+    }
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 0, length));
+    if (in.readInt() != MAGIC) {
+      throw new IOException("The file is not a temporary gadget spec");
+    }
+    in.readLong(); // Store time, see isExpired
+    TempGadgetSpec spec = TempGadgetSpecCodec.decode(in, pool);
+    if (in.available() != 0) {
+      spec.release();
+      throw new IOException("Unexpected data after the spec");
+    }
+    return spec;
+  }
+
+  private File getFile(String id) {
+    return new File(directory, id + SPEC_SUFFIX);
+  }
+
+  private File[] listFiles(final String suffix) {
+    return directory.listFiles(new FileFilter() {
+      public boolean accept(File file) {
+        return file.getName().endsWith(suffix);
+      }
+    });
+  }
+}
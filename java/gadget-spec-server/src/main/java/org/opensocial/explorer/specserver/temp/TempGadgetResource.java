@@ -25,6 +25,7 @@ import org.apache.wink.json4j.JSONArray;
 import org.apache.wink.json4j.JSONException;
 import org.apache.wink.json4j.JSONObject;
 import org.opensocial.explorer.specserver.DefaultGadgetResource;
+import org.opensocial.explorer.specserver.ResourceContentPool;
 import org.opensocial.explorer.specserver.api.GadgetResource;
 import org.opensocial.explorer.specserver.api.OnDiskResource;
 
@@ -40,8 +41,22 @@ import com.google.common.collect.Maps;
 public class TempGadgetResource extends DefaultGadgetResource {
 
   public TempGadgetResource(String name, String content) {
+    this(name, content, null);
+  }
+
+  public TempGadgetResource(String name, String content, ResourceContentPool pool) {
+    super(name);
+    setContent(content, pool);
+  }
+
+  /**
+   * Creates a resource whose content is already known to have the given digest, so the content
+   * does not have to be digested again.
+   */
+  public TempGadgetResource(String name, String content, String contentHash,
+          ResourceContentPool pool) {
     super(name);
-    this.content = content;
+    setContent(content, contentHash, pool);
   }
 
   public static GadgetResource parse(JSONObject json) throws JSONException {
@@ -59,7 +74,7 @@ public class TempGadgetResource extends DefaultGadgetResource {
       obj = itr.next();
       if (obj instanceof JSONObject) {
         resource = parse((JSONObject) obj);
-        resourceMap.put(resource.getContent(), resource);
+        resourceMap.put(resource.getName(), resource);
       }
     }
     return resourceMap;
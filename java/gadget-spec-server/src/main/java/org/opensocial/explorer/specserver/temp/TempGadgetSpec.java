@@ -41,16 +41,13 @@ public class TempGadgetSpec extends DefaultGadgetSpec {
   // For Gadget
   public TempGadgetSpec(String title, GadgetResource gadgetResource, Map<String, GadgetResource> cssResources,
           Map<String, GadgetResource> jsResources, Map<String, GadgetResource> htmlResources) {
-    super(gadgetResource, cssResources, jsResources, htmlResources);
-    this.title = title;
+    super(title, gadgetResource, cssResources, jsResources, htmlResources, null);
   }
   // For EE
   public TempGadgetSpec(String title, GadgetResource gadgetResource, Map<String, GadgetResource> cssResources,
       Map<String, GadgetResource> jsResources, Map<String, GadgetResource> htmlResources, GadgetResource eeResource) {
-    super(gadgetResource, cssResources, jsResources, htmlResources);
-    this.title = title;
-    this.eeResource = eeResource;
-}
+    super(title, gadgetResource, cssResources, jsResources, htmlResources, eeResource);
+  }
 
   public static GadgetSpec parse(JSONObject json) throws JSONException {
     Map<String, GadgetResource> cssResources, jsResources, htmlResources;
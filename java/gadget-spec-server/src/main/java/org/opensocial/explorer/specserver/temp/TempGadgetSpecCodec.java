@@ -0,0 +1,227 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.opensocial.explorer.specserver.temp;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.opensocial.explorer.specserver.ResourceContentPool;
+import org.opensocial.explorer.specserver.api.GadgetResource;
+import org.opensocial.explorer.specserver.api.GadgetSpec;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import com.google.common.io.BaseEncoding;
+
+/**
+ * A compact binary encoding of temporary {@link GadgetSpec}s, used to store them outside of the
+ * heap.
+ *
+ * A spec is encoded as a version byte followed by its title, its gadget and EE resources and its
+ * CSS, JS and HTML resources. Each resource is its name, the raw bytes of its content digest and
+ * its content, so decoding does not have to digest the content again. Strings are UTF-8 prefixed
+ * with their length in bytes, and lengths and counts are variable length integers. Null values are
+ * kept, since they contribute to the ID of a spec, so a decoded spec has the same ID as the encoded
+ * one.
+ */
+public final class TempGadgetSpecCodec {
+  private static final int VERSION = 1;
+  private static final BaseEncoding HEX = BaseEncoding.base16().lowerCase();
+
+  private TempGadgetSpecCodec() {}
+
+  /**
+   * Writes the given spec.
+   *
+   * @param spec
+   *          the spec to write
+   * @param out
+   *          the output to write the spec to
+   * @throws IOException
+   *           if the spec could not be written
+   */
+  public static void encode(GadgetSpec spec, DataOutput out) throws IOException {
+    out.writeByte(VERSION);
+    writeString(spec.getTitle(), out);
+    writeResource(spec.getGadgetResource(), out);
+    writeResource(spec.getEEResource(), out);
+    writeResources(spec.getCssResources(), out);
+    writeResources(spec.getJsResources(), out);
+    writeResources(spec.getHtmlResources(), out);
+  }
+
+  /**
+   * Reads a spec written by {@link #encode(GadgetSpec, DataOutput)}. The input is read completely
+   * before any content is added to the pool, so the pool is left untouched if the input is invalid.
+   *
+   * @param in
+   *          the input to read the spec from
+   * @param pool
+   *          the pool to share the content of the spec's resources through, may be null. The spec
+   *          must be {@link TempGadgetSpec#release() released} once it is discarded.
+   * @return the spec
+   * @throws IOException
+   *           if the spec could not be read or the input is not a valid spec
+   */
+  public static TempGadgetSpec decode(DataInput in, ResourceContentPool pool) throws IOException {
+    int version = in.readUnsignedByte();
+    if (version != VERSION) {
+      throw new IOException("Unsupported temp spec encoding version " + version);
+    }
+    String title = readString(in);
+    EncodedResource gadget = readResource(in);
+    EncodedResource ee = readResource(in);
+    List<EncodedResource> css = readResources(in);
+    List<EncodedResource> js = readResources(in);
+    List<EncodedResource> html = readResources(in);
+
+    return new TempGadgetSpec(title, build(gadget, pool), build(css, pool), build(js, pool),
+            build(html, pool), build(ee, pool));
+  }
+
+  private static void writeResources(Map<String, GadgetResource> resources, DataOutput out)
+          throws IOException {
+    if (resources == null) {
+      out.writeBoolean(false);
+      return;
+    }
+    out.writeBoolean(true);
+    writeLength(resources.size(), out);
+    for (GadgetResource resource : resources.values()) {
+      writeResource(resource, out);
+    }
+  }
+
+  private static void writeResource(GadgetResource resource, DataOutput out) throws IOException {
+    out.writeBoolean(resource != null);
+    if (resource == null) {
+      return;
+    }
+    writeString(resource.getName(), out);
+    byte[] hash = HEX.decode(resource.getContentHash());
+    writeLength(hash.length, out);
+    out.write(hash);
+    writeString(resource.getContent(), out);
+  }
+
+  private static void writeString(String value, DataOutput out) throws IOException {
+    out.writeBoolean(value != null);
+    if (value == null) {
+      return;
+    }
+    byte[] bytes = value.getBytes(Charsets.UTF_8);
+    writeLength(bytes.length, out);
+    out.write(bytes);
+  }
+
+  private static void writeLength(int length, DataOutput out) throws IOException {
+    while ((length & ~0x7F) != 0) {
+      out.writeByte((length & 0x7F) | 0x80);
+      length >>>= 7;
+    }
+    out.writeByte(length);
+  }
+
+  private static List<EncodedResource> readResources(DataInput in) throws IOException {
+    if (!in.readBoolean()) {
+      return null;
+    }
+    int count = readLength(in);
+    List<EncodedResource> resources = new ArrayList<EncodedResource>(Math.min(count, 64));
+    for (int i = 0; i < count; i++) {
+      EncodedResource resource = readResource(in);
+      if (resource == null) {
+        throw new IOException("Missing resource in encoded temp spec");
+      }
+      resources.add(resource);
+    }
+    return resources;
+  }
+
+  private static EncodedResource readResource(DataInput in) throws IOException {
+    if (!in.readBoolean()) {
+      return null;
+    }
+    String name = readString(in);
+    byte[] hash = new byte[readLength(in)];
+    in.readFully(hash);
+    String content = readString(in);
+    return new EncodedResource(name, HEX.encode(hash), content);
+  }
+
+  private static String readString(DataInput in) throws IOException {
+    if (!in.readBoolean()) {
+      return null;
+    }
+    byte[] bytes = new byte[readLength(in)];
+    in.readFully(bytes);
+    return new String(bytes, Charsets.UTF_8);
+  }
+
+  private static int readLength(DataInput in) throws IOException {
+    int length = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      int b = in.readUnsignedByte();
+      length |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        if (length < 0) {
+          break;
+        }
+        return length;
+      }
+    }
+    throw new IOException("Invalid length in encoded temp spec");
+  }
+
+  private static GadgetResource build(EncodedResource resource, ResourceContentPool pool) {
+    return resource == null ? null : resource.build(pool);
+  }
+
+  private static Map<String, GadgetResource> build(List<EncodedResource> resources,
+          ResourceContentPool pool) {
+    if (resources == null) {
+      return null;
+    }
+    Map<String, GadgetResource> resourceMap = Maps.newHashMap();
+    for (EncodedResource resource : resources) {
+      resourceMap.put(resource.name, resource.build(pool));
+    }
+    return resourceMap;
+  }
+
+  private static class EncodedResource {
+    private final String name;
+    private final String contentHash;
+    private final String content;
+
+    private EncodedResource(String name, String contentHash, String content) {
+      this.name = name;
+      this.contentHash = contentHash;
+      this.content = content;
+    }
+
+    private GadgetResource build(ResourceContentPool pool) {
+      return new TempGadgetResource(name, content, contentHash, pool);
+    }
+  }
+}
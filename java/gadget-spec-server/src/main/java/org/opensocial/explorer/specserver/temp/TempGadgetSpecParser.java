@@ -0,0 +1,690 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.opensocial.explorer.specserver.temp;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.wink.json4j.JSONException;
+import org.opensocial.explorer.specserver.ResourceContentPool;
+import org.opensocial.explorer.specserver.api.GadgetResource;
+import org.opensocial.explorer.specserver.api.GadgetSpec;
+
+import com.google.common.collect.Maps;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * Parses a {@link TempGadgetSpec} from the JSON documented on
+ * {@link org.opensocial.explorer.specserver.servlet.GadgetSpecServlet#doPost} while it is being
+ * read, without building a JSON tree first. Every resource's content is copied once, from the
+ * input into its String, and the size limits are enforced as soon as they are exceeded rather than
+ * after the whole body has been buffered.
+ * 
+ * The parser also reads patches, which describe a new spec by its differences to an existing base
+ * spec, see {@link #parsePatch(Reader, GadgetSpec, ResourceContentPool)}.
+ * 
+ * Like the JSON parser it replaces, strings may be enclosed in single or double quotes. Members
+ * that are not part of the schema are skipped.
+ */
+public class TempGadgetSpecParser {
+  private static final int DEFAULT_MAX_RESOURCE_LENGTH = 4 * 1024 * 1024;
+  private static final long DEFAULT_MAX_LENGTH = 16 * 1024 * 1024;
+  private static final int MAX_DEPTH = 64;
+  private static final int EOF = -1;
+  private static final int MAX_LITERAL_LENGTH = 32;
+  private static final String EDITS = "edits";
+  private static final String DELETED = "deleted";
+  private static final String EDIT_START = "start";
+  private static final String EDIT_END = "end";
+  private static final String EDIT_TEXT = "text";
+
+  private final int maxResourceLength;
+  private final long maxLength;
+
+  public TempGadgetSpecParser() {
+    this(DEFAULT_MAX_RESOURCE_LENGTH, DEFAULT_MAX_LENGTH);
+  }
+
+  /**
+   * @param maxResourceLength
+   *          the maximum number of characters in any single string, such as the content of a
+   *          resource, 0 or less means unlimited
+   * @param maxLength
+   *          the maximum number of characters in the whole document, 0 or less means unlimited
+   */
+  @Inject
+  public TempGadgetSpecParser(@Named("explorer.tempspecs.maxResourceChars") int maxResourceLength,
+          @Named("explorer.tempspecs.maxPostChars") long maxLength) {
+    this.maxResourceLength = maxResourceLength > 0 ? maxResourceLength : Integer.MAX_VALUE;
+    this.maxLength = maxLength > 0 ? maxLength : Long.MAX_VALUE;
+  }
+
+  /**
+   * Parses a temporary {@link GadgetSpec}, sharing resource content through the given pool. Specs
+   * parsed with a pool must be {@link TempGadgetSpec#release() released} once they are discarded.
+   * Nothing is added to the pool unless the whole document is valid.
+   * 
+   * @param reader
+   *          the JSON document, which is read up to its end
+   * @param pool
+   *          the pool to share content through, or null
+   * @return the parsed spec
+   * @throws LimitExceededException
+   *           if the document or one of its strings is too long
+   * @throws JSONException
+   *           if the document is not valid JSON or does not match the schema
+   * @throws IOException
+   *           if the document could not be read
+   */
+  public GadgetSpec parse(Reader reader, ResourceContentPool pool) throws JSONException,
+          IOException {
+    return new Parse(reader, false).parseSpec().build(pool);
+  }
+
+  /**
+   * Parses a patch of an existing spec into a new temporary {@link GadgetSpec}. A patch has the
+   * same members as a spec, but all of them are optional and only the resources that changed are
+   * listed. A changed resource has a name and exactly one of
+   * <ul>
+   * <li>content, which replaces the resource or adds it if the base spec has no resource of that
+   * name,</li>
+   * <li>edits, an array of <code>{"start": n, "end": m, "text": "..."}</code> objects that replace
+   * the characters from start up to but excluding end of the base resource's content with text.
+   * Offsets are in UTF-16 code units of the base content, the edits must be in ascending order and
+   * must not overlap,</li>
+   * <li>deleted set to true, which removes the resource. The gadget resource cannot be
+   * deleted.</li>
+   * </ul>
+   * Resources that are not listed are shared with the base spec. Their content is neither copied
+   * nor digested again.
+   * 
+   * @param reader
+   *          the JSON document, which is read up to its end
+   * @param base
+   *          the spec the patch applies to
+   * @param pool
+   *          the pool to share content through, or null
+   * @return the patched spec
+   * @throws LimitExceededException
+   *           if the document or one of its strings, or an edited resource is too long
+   * @throws JSONException
+   *           if the document is not valid JSON, does not match the schema or does not apply to the
+   *           base spec
+   * @throws IOException
+   *           if the document could not be read
+   */
+  public GadgetSpec parsePatch(Reader reader, GadgetSpec base, ResourceContentPool pool)
+          throws JSONException, IOException {
+    return new Parse(reader, true).parseSpec().patch(base, pool, maxResourceLength);
+  }
+
+  /**
+   * Thrown when a document exceeds one of the parser's size limits.
+   */
+  public static class LimitExceededException extends JSONException {
+    private static final long serialVersionUID = -2753262135957407624L;
+
+    public LimitExceededException(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * The name and content of a resource, which only becomes a {@link TempGadgetResource} once the
+   * whole document has been parsed. In a patch, the content may instead be described by edits of
+   * the base resource or the resource may be deleted.
+   */
+  private static class ParsedResource {
+    private String name;
+    private String content;
+    private List<Edit> edits;
+    private boolean deleted;
+
+    /**
+     * Computes the content of a resource described by edits.
+     */
+    void resolve(GadgetResource base, int maxResourceLength) throws JSONException {
+      if (edits == null) {
+        return;
+      }
+      if (base == null || base.getContent() == null) {
+        throw new JSONException("The base gadget spec has no resource " + name + " to edit");
+      }
+      String baseContent = base.getContent();
+      StringBuilder result = new StringBuilder(baseContent.length());
+      int copied = 0;
+      for (Edit edit : edits) {
+        if (edit.start < copied || edit.end < edit.start || edit.end > baseContent.length()) {
+          throw new JSONException("Invalid edit of " + name + " from " + edit.start + " to "
+                  + edit.end);
+        }
+        result.append(baseContent, copied, edit.start).append(edit.text);
+        copied = edit.end;
+        if (result.length() > maxResourceLength) {
+          throw new LimitExceededException("Resources may be at most " + maxResourceLength
+                  + " characters long");
+        }
+      }
+      result.append(baseContent, copied, baseContent.length());
+      if (result.length() > maxResourceLength) {
+        throw new LimitExceededException("Resources may be at most " + maxResourceLength
+                + " characters long");
+      }
+      content = result.toString();
+      edits = null;
+    }
+
+    GadgetResource build(ResourceContentPool pool) {
+      return new TempGadgetResource(name, content, pool);
+    }
+  }
+
+  /**
+   * A replacement of a range of characters.
+   */
+  private static class Edit {
+    private int start = -1;
+    private int end = -1;
+    private String text = "";
+  }
+
+  private static class ParsedSpec {
+    private String title;
+    private List<ParsedResource> cssResources;
+    private List<ParsedResource> jsResources;
+    private List<ParsedResource> htmlResources;
+    private ParsedResource gadgetResource;
+    private ParsedResource eeResource;
+
+    GadgetSpec build(ResourceContentPool pool) throws JSONException {
+      require(title, GadgetSpec.SPEC_TITLE);
+      require(cssResources, GadgetSpec.CSS_RESOURCES);
+      require(jsResources, GadgetSpec.JS_RESOURCES);
+      require(htmlResources, GadgetSpec.HTML_RESOURCES);
+      require(gadgetResource, GadgetSpec.GADGET_RESOURCE);
+      if (eeResource != null) {
+        return new TempGadgetSpec(title, gadgetResource.build(pool), build(cssResources, pool),
+                build(jsResources, pool), build(htmlResources, pool), eeResource.build(pool));
+      }
+      return new TempGadgetSpec(title, gadgetResource.build(pool), build(cssResources, pool),
+              build(jsResources, pool), build(htmlResources, pool));
+    }
+
+    GadgetSpec patch(GadgetSpec base, ResourceContentPool pool, int maxResourceLength)
+            throws JSONException {
+      // Compute all content first, so nothing is added to the pool if an edit does not apply
+      if (gadgetResource != null) {
+        if (gadgetResource.deleted) {
+          throw new JSONException("The " + GadgetSpec.GADGET_RESOURCE + " cannot be deleted");
+        }
+        gadgetResource.resolve(base.getGadgetResource(), maxResourceLength);
+      }
+      if (eeResource != null) {
+        eeResource.resolve(base.getEEResource(), maxResourceLength);
+      }
+      resolve(cssResources, base.getCssResources(), maxResourceLength);
+      resolve(jsResources, base.getJsResources(), maxResourceLength);
+      resolve(htmlResources, base.getHtmlResources(), maxResourceLength);
+
+      GadgetResource gadget = gadgetResource != null ? gadgetResource.build(pool) : share(
+              base.getGadgetResource(), pool);
+      GadgetResource ee;
+      if (eeResource == null) {
+        ee = share(base.getEEResource(), pool);
+      } else {
+        ee = eeResource.deleted ? null : eeResource.build(pool);
+      }
+      return new TempGadgetSpec(title != null ? title : base.getTitle(), gadget, patch(
+              base.getCssResources(), cssResources, pool), patch(base.getJsResources(),
+              jsResources, pool), patch(base.getHtmlResources(), htmlResources, pool), ee);
+    }
+
+    private static void resolve(List<ParsedResource> changes, Map<String, GadgetResource> base,
+            int maxResourceLength) throws JSONException {
+      if (changes != null) {
+        for (ParsedResource change : changes) {
+          change.resolve(base != null ? base.get(change.name) : null, maxResourceLength);
+        }
+      }
+    }
+
+    private static Map<String, GadgetResource> patch(Map<String, GadgetResource> base,
+            List<ParsedResource> changes, ResourceContentPool pool) {
+      Map<String, ParsedResource> changesByName = new LinkedHashMap<String, ParsedResource>();
+      if (changes != null) {
+        for (ParsedResource change : changes) {
+          changesByName.put(change.name, change);
+        }
+      }
+      // Changed resources keep their place, new ones are added at the end
+      Map<String, GadgetResource> resources = Maps.newLinkedHashMap();
+      if (base != null) {
+        for (GadgetResource resource : base.values()) {
+          ParsedResource change = changesByName.remove(resource.getName());
+          if (change == null) {
+            resources.put(resource.getName(), share(resource, pool));
+          } else if (!change.deleted) {
+            resources.put(change.name, change.build(pool));
+          }
+        }
+      }
+      for (ParsedResource change : changesByName.values()) {
+        if (!change.deleted) {
+          resources.put(change.name, change.build(pool));
+        }
+      }
+      return resources;
+    }
+
+    /**
+     * Creates a resource with the same content as a resource of the base spec. The new resource
+     * holds its own reference to the pooled content, so the specs can be released independently.
+     */
+    private static GadgetResource share(GadgetResource resource, ResourceContentPool pool) {
+      if (resource == null) {
+        return null;
+      }
+      return new TempGadgetResource(resource.getName(), resource.getContent(),
+              resource.getContentHash(), pool);
+    }
+
+    private static void require(Object value, String key) throws JSONException {
+      if (value == null) {
+        throw new JSONException("The gadget spec has no " + key);
+      }
+    }
+
+    private static Map<String, GadgetResource> build(List<ParsedResource> parsed,
+            ResourceContentPool pool) {
+      Map<String, GadgetResource> resources = Maps.newLinkedHashMap();
+      for (ParsedResource resource : parsed) {
+        resources.put(resource.name, resource.build(pool));
+      }
+      return resources;
+    }
+  }
+
+  /**
+   * The state of parsing one document.
+   */
+  private class Parse {
+    private final Reader reader;
+    private final boolean patch;
+    private final char[] buffer = new char[8192];
+    private int position;
+    private int limit;
+    private long consumed;
+    private int depth;
+
+    Parse(Reader reader, boolean patch) {
+      this.reader = reader;
+      this.patch = patch;
+    }
+
+    ParsedSpec parseSpec() throws JSONException, IOException {
+      ParsedSpec spec = new ParsedSpec();
+      expect('{');
+      if (!endOfContainer('}')) {
+        do {
+          String key = readKey();
+          if (GadgetSpec.SPEC_TITLE.equals(key)) {
+            spec.title = readString();
+          } else if (GadgetSpec.CSS_RESOURCES.equals(key)) {
+            spec.cssResources = readResources();
+          } else if (GadgetSpec.JS_RESOURCES.equals(key)) {
+            spec.jsResources = readResources();
+          } else if (GadgetSpec.HTML_RESOURCES.equals(key)) {
+            spec.htmlResources = readResources();
+          } else if (GadgetSpec.GADGET_RESOURCE.equals(key)) {
+            spec.gadgetResource = readResource();
+          } else if (GadgetSpec.EE_RESOURCE.equals(key)) {
+            spec.eeResource = readResource();
+          } else {
+            skipValue();
+          }
+        } while (nextMember('}'));
+      }
+      if (peekToken() != EOF) {
+        throw syntaxError("Unexpected content after the gadget spec");
+      }
+      return spec;
+    }
+
+    private List<ParsedResource> readResources() throws JSONException, IOException {
+      List<ParsedResource> resources = new ArrayList<ParsedResource>();
+      expect('[');
+      if (!endOfContainer(']')) {
+        do {
+          // Elements that are not objects are ignored
+          if (peekToken() == '{') {
+            resources.add(readResource());
+          } else {
+            skipValue();
+          }
+        } while (nextMember(']'));
+      }
+      return resources;
+    }
+
+    private ParsedResource readResource() throws JSONException, IOException {
+      ParsedResource resource = new ParsedResource();
+      expect('{');
+      if (!endOfContainer('}')) {
+        do {
+          String key = readKey();
+          if (GadgetResource.RESOURCE_NAME.equals(key)) {
+            resource.name = readString();
+          } else if (GadgetResource.RESOURCE_CONTENT.equals(key)) {
+            resource.content = readString();
+          } else if (patch && EDITS.equals(key)) {
+            resource.edits = readEdits();
+          } else if (patch && DELETED.equals(key)) {
+            resource.deleted = readBoolean();
+          } else {
+            skipValue();
+          }
+        } while (nextMember('}'));
+      }
+      if (!patch && (resource.name == null || resource.content == null)) {
+        throw new JSONException("A resource must have a " + GadgetResource.RESOURCE_NAME
+                + " and a " + GadgetResource.RESOURCE_CONTENT);
+      }
+      int forms = (resource.content != null ? 1 : 0) + (resource.edits != null ? 1 : 0)
+              + (resource.deleted ? 1 : 0);
+      if (patch && (resource.name == null || forms != 1)) {
+        throw new JSONException("A changed resource must have a " + GadgetResource.RESOURCE_NAME
+                + " and exactly one of " + GadgetResource.RESOURCE_CONTENT + ", " + EDITS
+                + " or " + DELETED);
+      }
+      return resource;
+    }
+
+    private List<Edit> readEdits() throws JSONException, IOException {
+      List<Edit> edits = new ArrayList<Edit>();
+      expect('[');
+      if (!endOfContainer(']')) {
+        do {
+          Edit edit = new Edit();
+          expect('{');
+          if (!endOfContainer('}')) {
+            do {
+              String key = readKey();
+              if (EDIT_START.equals(key)) {
+                edit.start = readInt();
+              } else if (EDIT_END.equals(key)) {
+                edit.end = readInt();
+              } else if (EDIT_TEXT.equals(key)) {
+                edit.text = readString();
+              } else {
+                skipValue();
+              }
+            } while (nextMember('}'));
+          }
+          if (edit.start < 0 || edit.end < 0) {
+            throw syntaxError("An edit must have a " + EDIT_START + " and an " + EDIT_END);
+          }
+          edits.add(edit);
+        } while (nextMember(']'));
+      }
+      return edits;
+    }
+
+    private int readInt() throws JSONException, IOException {
+      String literal = readLiteral();
+      try {
+        return Integer.parseInt(literal);
+      } catch (NumberFormatException e) {
+        throw syntaxError("Expected an integer");
+      }
+    }
+
+    private boolean readBoolean() throws JSONException, IOException {
+      String literal = readLiteral();
+      if ("true".equals(literal)) {
+        return true;
+      } else if ("false".equals(literal)) {
+        return false;
+      }
+      throw syntaxError("Expected true or false");
+    }
+
+    /**
+     * Reads a number, true, false or null.
+     */
+    private String readLiteral() throws JSONException, IOException {
+      skipWhitespace();
+      StringBuilder literal = new StringBuilder();
+      while (isLiteralChar(peek())) {
+        if (literal.length() == MAX_LITERAL_LENGTH) {
+          throw syntaxError("Literal too long");
+        }
+        literal.append((char) read());
+      }
+      if (literal.length() == 0) {
+        throw syntaxError("Expected a value");
+      }
+      return literal.toString();
+    }
+
+    private String readKey() throws JSONException, IOException {
+      String key = readString();
+      expect(':');
+      return key;
+    }
+
+    /**
+     * Consumes the separator after a member of an object or array.
+     * 
+     * @return true if another member follows, false if the container ended
+     */
+    private boolean nextMember(char end) throws JSONException, IOException {
+      int c = readToken();
+      if (c == ',') {
+        return true;
+      } else if (c == end) {
+        return false;
+      }
+      throw syntaxError("Expected ',' or '" + end + "'");
+    }
+
+    /**
+     * Consumes the end of an empty object or array.
+     * 
+     * @return true if the container is empty
+     */
+    private boolean endOfContainer(char end) throws JSONException, IOException {
+      if (peekToken() == end) {
+        read();
+        return true;
+      }
+      return false;
+    }
+
+    private void skipValue() throws JSONException, IOException {
+      int c = peekToken();
+      if (c == '"' || c == '\'') {
+        readString();
+      } else if (c == '{' || c == '[') {
+        if (++depth > MAX_DEPTH) {
+          throw syntaxError("Values are nested too deeply");
+        }
+        char end = c == '{' ? '}' : ']';
+        read();
+        if (!endOfContainer(end)) {
+          do {
+            if (end == '}') {
+              readKey();
+            }
+            skipValue();
+          } while (nextMember(end));
+        }
+        depth--;
+      } else if (c == EOF) {
+        throw syntaxError("Unexpected end of input");
+      } else {
+        readLiteral();
+      }
+    }
+
+    private boolean isLiteralChar(int c) {
+      return (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' || c == '+'
+              || c == '.' || c == 'E';
+    }
+
+    private String readString() throws JSONException, IOException {
+      int quote = readToken();
+      if (quote != '"' && quote != '\'') {
+        throw syntaxError("Expected a string");
+      }
+      StringBuilder string = new StringBuilder();
+      while (true) {
+        // Copy runs of plain characters straight from the buffer
+        int start = position;
+        while (position < limit && buffer[position] != quote && buffer[position] != '\\') {
+          position++;
+        }
+        append(string, start);
+        int c = read();
+        if (c == quote) {
+          return string.toString();
+        } else if (c == '\\') {
+          string.append(readEscape());
+          checkLength(string);
+        } else if (c == EOF) {
+          throw syntaxError("Unterminated string");
+        } else {
+          // The buffer was exhausted
+          string.append((char) c);
+          checkLength(string);
+        }
+      }
+    }
+
+    private void append(StringBuilder string, int start) throws LimitExceededException {
+      int count = position - start;
+      if (count > 0) {
+        if (string.length() + count > maxResourceLength) {
+          throw new LimitExceededException("Strings may be at most " + maxResourceLength
+                  + " characters long");
+        }
+        string.append(buffer, start, count);
+      }
+    }
+
+    private void checkLength(StringBuilder string) throws LimitExceededException {
+      if (string.length() > maxResourceLength) {
+        throw new LimitExceededException("Strings may be at most " + maxResourceLength
+                + " characters long");
+      }
+    }
+
+    private char readEscape() throws JSONException, IOException {
+      int c = read();
+      switch (c) {
+      case '"':
+      case '\'':
+      case '\\':
+      case '/':
+        return (char) c;
+      case 'b':
+        return '\b';
+      case 'f':
+        return '\f';
+      case 'n':
+        return '\n';
+      case 'r':
+        return '\r';
+      case 't':
+        return '\t';
+      case 'u':
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+          int digit = Character.digit(read(), 16);
+          if (digit < 0) {
+            throw syntaxError("Invalid unicode escape");
+          }
+          value = (value << 4) | digit;
+        }
+        return (char) value;
+      default:
+        throw syntaxError("Invalid escape sequence");
+      }
+    }
+
+    private void expect(char expected) throws JSONException, IOException {
+      if (readToken() != expected) {
+        throw syntaxError("Expected '" + expected + "'");
+      }
+    }
+
+    private int readToken() throws JSONException, IOException {
+      skipWhitespace();
+      return read();
+    }
+
+    private int peekToken() throws JSONException, IOException {
+      skipWhitespace();
+      return peek();
+    }
+
+    private void skipWhitespace() throws JSONException, IOException {
+      while (Character.isWhitespace(peek())) {
+        position++;
+      }
+    }
+
+    private int peek() throws JSONException, IOException {
+      if (position == limit && !fill()) {
+        return EOF;
+      }
+      return buffer[position];
+    }
+
+    private int read() throws JSONException, IOException {
+      if (position == limit && !fill()) {
+        return EOF;
+      }
+      return buffer[position++];
+    }
+
+    private boolean fill() throws JSONException, IOException {
+      int count = reader.read(buffer, 0, buffer.length);
+      if (count <= 0) {
+        return false;
+      }
+      consumed += count;
+      if (consumed > maxLength) {
+        throw new LimitExceededException("The gadget spec may be at most " + maxLength
+                + " characters long");
+      }
+      position = 0;
+      limit = count;
+      return true;
+    }
+
+    private JSONException syntaxError(String message) {
+      return new JSONException(message + " at character " + (consumed - limit + position));
+    }
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.opensocial.explorer.specserver.temp;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.opensocial.explorer.specserver.ResourceContentPool;
+import org.opensocial.explorer.specserver.api.TempGadgetSpecStore;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+/**
+ * Provides the {@link TempGadgetSpecStore}. When <code>explorer.tempspecs.directory</code> is set
+ * the specs are kept in that directory by a {@link FileTempGadgetSpecStore}, otherwise they are
+ * kept in memory by a {@link DefaultTempGadgetSpecStore}.
+ */
+@Singleton
+public class TempGadgetSpecStoreProvider implements Provider<TempGadgetSpecStore> {
+  private static final String CLASS = TempGadgetSpecStoreProvider.class.getName();
+  private static final Logger LOG = Logger.getLogger(CLASS);
+
+  private final TempGadgetSpecStore store;
+
+  @Inject
+  public TempGadgetSpecStoreProvider(@Named("explorer.tempspecs.directory") String directory,
+          @Named("explorer.tempspecs.maxEntries") int maxEntries,
+          @Named("explorer.tempspecs.maxBytes") long maxBytes,
+          @Named("explorer.tempspecs.idleSeconds") long idleSeconds,
+          @Named("explorer.tempspecs.maxAgeSeconds") long maxAgeSeconds,
+          ResourceContentPool pool) {
+    final String method = "TempGadgetSpecStoreProvider";
+    TempGadgetSpecStore memory = new DefaultTempGadgetSpecStore(maxEntries, maxBytes, idleSeconds,
+            maxAgeSeconds);
+    TempGadgetSpecStore fileStore = null;
+    if (directory != null && directory.trim().length() > 0) {
+      try {
+        fileStore = new FileTempGadgetSpecStore(new File(directory.trim()), memory, idleSeconds,
+                maxAgeSeconds, pool);
+      } catch (IOException e) {
+        LOG.logp(Level.SEVERE, CLASS, method,
+                "Unable to use " + directory + ", temporary gadget specs are kept in memory", e);
+      }
+    }
+    this.store = fileStore != null ? fileStore : memory;
+  }
+
+  public TempGadgetSpecStore get() {
+    return store;
+  }
+}
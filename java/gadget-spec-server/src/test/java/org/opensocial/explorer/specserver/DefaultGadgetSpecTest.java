@@ -21,12 +21,17 @@ package org.opensocial.explorer.specserver;
 import static org.junit.Assert.*;
 
 import java.io.FileNotFoundException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import org.apache.wink.json4j.JSONObject;
 import org.junit.Test;
 import org.opensocial.explorer.specserver.api.GadgetResource;
 import org.opensocial.explorer.specserver.api.GadgetSpec;
+import org.opensocial.explorer.specserver.temp.TempGadgetResource;
+import org.opensocial.explorer.specserver.temp.TempGadgetSpec;
 
 public class DefaultGadgetSpecTest {
 
@@ -131,6 +136,57 @@ public class DefaultGadgetSpecTest {
             new JSONObject(spec.toString()));
   }
   
+  @Test
+  public void testIdIsStable() throws Exception {
+    GadgetSpec spec = new DefaultGadgetSpec("specs/complex/spec.json");
+    assertTrue(spec.getId().matches("[0-9a-f]{32}"));
+    assertEquals(spec.getId(), new DefaultGadgetSpec("specs/complex/spec.json").getId());
+    // The ID depends on the content, not on how it is held
+    assertEquals(spec.getId(), new DefaultGadgetSpec("specs/complex/spec.json",
+            new ResourceContentPool(), new ResourceContentCache()).getId());
+    assertFalse(spec.getId().equals(new DefaultGadgetSpec("specs/simple/spec.json").getId()));
+  }
+
+  @Test
+  public void testTempSpecIds() throws Exception {
+    Map<String, GadgetResource> css = new HashMap<String, GadgetResource>();
+    css.put("a.css", new TempGadgetResource("a.css", "a {}"));
+    css.put("b.css", new TempGadgetResource("b.css", "b {}"));
+    Map<String, GadgetResource> reordered = new LinkedHashMap<String, GadgetResource>();
+    reordered.put("b.css", new TempGadgetResource("b.css", "b {}"));
+    reordered.put("a.css", new TempGadgetResource("a.css", "a {}"));
+    Map<String, GadgetResource> renamed = new HashMap<String, GadgetResource>();
+    renamed.put("a.css", new TempGadgetResource("a.css", "b {}"));
+    renamed.put("b.css", new TempGadgetResource("b.css", "a {}"));
+    GadgetResource gadget = new TempGadgetResource("gadget.xml", "<Module/>");
+    Map<String, GadgetResource> none = Collections.emptyMap();
+
+    String id = new TempGadgetSpec("Test", gadget, css, none, none).getId();
+    assertEquals(id, new TempGadgetSpec("Test", gadget, reordered, none, none).getId());
+    assertFalse(id.equals(new TempGadgetSpec("Test", gadget, renamed, none, none).getId()));
+    assertFalse(id.equals(new TempGadgetSpec("Other", gadget, css, none, none).getId()));
+    assertFalse(id.equals(new TempGadgetSpec("Test", gadget, none, css, none).getId()));
+  }
+
+  @Test
+  public void testGetResource() throws Exception {
+    GadgetSpec spec = new DefaultGadgetSpec("specs/complex/spec.json");
+    assertSame(spec.getGadgetResource(), spec.getResource("gadget.xml"));
+    assertSame(spec.getEEResource(), spec.getResource("complex.json"));
+    assertSame(spec.getCssResources().get("complex2.css"), spec.getResource("complex2.css"));
+    assertSame(spec.getJsResources().get("complex.js"), spec.getResource("complex.js"));
+    assertSame(spec.getHtmlResources().get("complex2.html"), spec.getResource("complex2.html"));
+    assertNull(spec.getResource("missing.js"));
+    assertNull(spec.getResource("foo.bar"));
+
+    Map<String, GadgetResource> none = Collections.emptyMap();
+    GadgetResource txt = new TempGadgetResource("notes.txt", "Notes");
+    GadgetSpec tempSpec = new TempGadgetSpec("Test", new TempGadgetResource("gadget.xml",
+            "<Module/>"), none, none, none, txt);
+    assertSame(txt, tempSpec.getResource("notes.txt"));
+    assertNull(tempSpec.getResource("other.xml"));
+  }
+
   @Test
   public void testToJSON() throws Exception {
     GadgetSpec spec = new DefaultGadgetSpec("specs/complex/spec.json");
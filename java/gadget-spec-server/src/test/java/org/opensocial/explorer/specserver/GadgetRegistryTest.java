@@ -21,6 +21,13 @@ package org.opensocial.explorer.specserver;
 import static org.junit.Assert.*;
 import static org.easymock.EasyMock.*;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
 import org.apache.wink.json4j.JSONArray;
 import org.apache.wink.json4j.JSONObject;
 import org.easymock.IAnswer;
@@ -29,10 +36,18 @@ import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 import org.opensocial.explorer.specserver.api.GadgetRegistry;
+import org.opensocial.explorer.specserver.api.GadgetResource;
 import org.opensocial.explorer.specserver.api.GadgetSpec;
 import org.opensocial.explorer.specserver.api.GadgetSpecFactory;
+import org.opensocial.explorer.specserver.api.SearchResults;
+import org.opensocial.explorer.specserver.api.SerializedContent;
+import org.opensocial.explorer.specserver.api.SpecTreePage;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
 
 public class GadgetRegistryTest {
 
@@ -62,6 +77,13 @@ public class GadgetRegistryTest {
         expect(mockSpec.getTitle()).andReturn(title).anyTimes();
         expect(mockSpec.getId()).andReturn(id).anyTimes();
         expect(mockSpec.isDefault()).andReturn(true).anyTimes();
+        expect(mockSpec.toJSON()).andReturn(new JSONObject()).anyTimes();
+        expect(mockSpec.getLastModified()).andReturn(0L).anyTimes();
+        expect(mockSpec.getGadgetResource()).andReturn(null).anyTimes();
+        expect(mockSpec.getCssResources()).andReturn(null).anyTimes();
+        expect(mockSpec.getJsResources()).andReturn(null).anyTimes();
+        expect(mockSpec.getHtmlResources()).andReturn(null).anyTimes();
+        expect(mockSpec.getEEResource()).andReturn(null).anyTimes();
         replay(mockSpec);
         return mockSpec;
       }});
@@ -75,6 +97,13 @@ public class GadgetRegistryTest {
         expect(mockSpec.getTitle()).andReturn(title).anyTimes();
         expect(mockSpec.getId()).andReturn(id).anyTimes();
         expect(mockSpec.isDefault()).andReturn(false).anyTimes();
+        expect(mockSpec.toJSON()).andReturn(new JSONObject()).anyTimes();
+        expect(mockSpec.getLastModified()).andReturn(0L).anyTimes();
+        expect(mockSpec.getGadgetResource()).andReturn(null).anyTimes();
+        expect(mockSpec.getCssResources()).andReturn(null).anyTimes();
+        expect(mockSpec.getJsResources()).andReturn(null).anyTimes();
+        expect(mockSpec.getHtmlResources()).andReturn(null).anyTimes();
+        expect(mockSpec.getEEResource()).andReturn(null).anyTimes();
         replay(mockSpec);
         return mockSpec;
       }});
@@ -103,6 +132,383 @@ public class GadgetRegistryTest {
     JSONArray specTree = gadgetRegistry.getSpecTree();
     assertNotNull(specTree);
   }
+
+  @Test
+  public void testSerializedContent() throws Exception {
+    replay(specFactory);
+    gadgetRegistry = new DefaultGadgetRegistry(new DefaultGadgetSpecFactory(), "specs.txt");
+    assertEquals(gadgetRegistry.getSpecTree(), new JSONArray(toString(gadgetRegistry
+            .getSerializedSpecTree())));
+
+    GadgetSpec spec = gadgetRegistry.getDefaultGadget();
+    SerializedContent serialized = gadgetRegistry.getSerializedGadgetSpec(spec.getId());
+    assertEquals("application/json", serialized.getContentType());
+    assertEquals(spec.toJSON(), new JSONObject(toString(serialized)));
+    assertNull(gadgetRegistry.getSerializedGadgetSpec("does-not-exist"));
+
+    GadgetResource resource = spec.getGadgetResource();
+    serialized = gadgetRegistry.getSerializedResource(spec.getId(), resource.getName());
+    assertEquals(resource.getContentType(), serialized.getContentType());
+    assertEquals(resource.getContent(), toString(serialized));
+    assertNull(gadgetRegistry.getSerializedResource(spec.getId(), "does-not-exist.js"));
+  }
+
+  @Test
+  public void testSerializedContentLazy() throws Exception {
+    replay(specFactory);
+    ResourceContentCache cache = new ResourceContentCache();
+    gadgetRegistry = new DefaultGadgetRegistry(new DefaultGadgetSpecFactory(
+            new ResourceContentPool(), cache, true), "specs.txt");
+    assertEquals(0, cache.size());
+
+    GadgetSpec spec = gadgetRegistry.getDefaultGadget();
+    SerializedContent serialized = gadgetRegistry.getSerializedGadgetSpec(spec.getId());
+    assertEquals(spec.toJSON(), new JSONObject(toString(serialized)));
+    assertSame(serialized, gadgetRegistry.getSerializedGadgetSpec(spec.getId()));
+
+    GadgetResource resource = spec.getGadgetResource();
+    serialized = gadgetRegistry.getSerializedResource(spec.getId(), resource.getName());
+    assertEquals(resource.getContentType(), serialized.getContentType());
+    assertEquals(resource.getContent(), toString(serialized));
+    assertNull(gadgetRegistry.getSerializedResource(spec.getId(), "does-not-exist.js"));
+  }
+
+  @Test
+  public void testParallelLoadingKeepsRegistryOrder() throws Exception {
+    replay(specFactory);
+    final List<String> paths = Lists.newArrayList();
+    final Map<String, GadgetSpec> mockSpecs = Maps.newHashMap();
+    for (int i = 0; i < 8; i++) {
+      String path = "specs/folder" + (i % 3) + "/spec" + i + "/spec.json";
+      GadgetSpec mockSpec = createMock(GadgetSpec.class);
+      expect(mockSpec.getPathToSpec()).andReturn(path).anyTimes();
+      expect(mockSpec.getTitle()).andReturn("spec" + i).anyTimes();
+      expect(mockSpec.getId()).andReturn(String.valueOf(i)).anyTimes();
+      expect(mockSpec.isDefault()).andReturn(i % 2 == 0).anyTimes();
+      expect(mockSpec.toJSON()).andReturn(new JSONObject()).anyTimes();
+      expect(mockSpec.getLastModified()).andReturn(0L).anyTimes();
+      expect(mockSpec.getGadgetResource()).andReturn(null).anyTimes();
+      expect(mockSpec.getCssResources()).andReturn(null).anyTimes();
+      expect(mockSpec.getJsResources()).andReturn(null).anyTimes();
+      expect(mockSpec.getHtmlResources()).andReturn(null).anyTimes();
+      expect(mockSpec.getEEResource()).andReturn(null).anyTimes();
+      replay(mockSpec);
+      paths.add(path);
+      mockSpecs.put(path, mockSpec);
+    }
+    // Specs earlier in the registry take longer to load, so they finish last
+    GadgetSpecFactory slowFactory = new GadgetSpecFactory() {
+      public GadgetSpec create(String specPath) {
+        try {
+          Thread.sleep(10 * (paths.size() - paths.indexOf(specPath)));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        return mockSpecs.get(specPath);
+      }
+    };
+
+    GadgetRegistry serial = new DefaultGadgetRegistry(slowFactory, null, paths, 1);
+    gadgetRegistry = new DefaultGadgetRegistry(slowFactory, null, paths, 4);
+    assertEquals(serial.getSpecTree(), gadgetRegistry.getSpecTree());
+    assertEquals("6", gadgetRegistry.getDefaultGadget().getId());
+    for (int i = 0; i < 8; i++) {
+      assertNotNull(gadgetRegistry.getGadgetSpec(String.valueOf(i)));
+      assertNotNull(gadgetRegistry.getSerializedGadgetSpec(String.valueOf(i)));
+    }
+  }
+
+  @Test
+  public void testReload() throws Exception {
+    replay(specFactory);
+    File dir = Files.createTempDir();
+    try {
+      File specsTxt = new File(dir, "specs.txt");
+      File fooSpec = writeSpec(dir, "foo", true, "<Module>foo</Module>");
+      File barSpec = writeSpec(dir, "bar", false, "<Module>bar</Module>");
+      Files.write(fooSpec.getPath() + "\n", specsTxt, Charsets.UTF_8);
+      DefaultGadgetRegistry registry = new DefaultGadgetRegistry(new DefaultGadgetSpecFactory(),
+              specsTxt.getPath(), null, 1, true);
+      try {
+        GadgetSpec foo = registry.getDefaultGadget();
+        assertEquals("foo", foo.getTitle());
+        // The tree holds a node for every directory of the absolute path and one for the spec
+        int treeSize = registry.getSpecTree().length();
+
+        // Adding a spec to the registry file loads only the new spec
+        Files.append(barSpec.getPath() + "\n", specsTxt, Charsets.UTF_8);
+        registry.reload(Collections.singleton(specsTxt.toPath().toAbsolutePath()));
+        assertSame(foo, registry.getDefaultGadget());
+        assertEquals(treeSize + 1, registry.getSpecTree().length());
+        GadgetSpec bar = findSpec(registry, "bar");
+        assertNotNull(bar);
+
+        // Changing a resource reloads only the spec it belongs to
+        File fooGadget = new File(fooSpec.getParentFile(), "gadget.xml");
+        Files.write("<Module>changed</Module>", fooGadget, Charsets.UTF_8);
+        registry.reload(Collections.singleton(fooGadget.toPath().toAbsolutePath()));
+        GadgetSpec changed = registry.getDefaultGadget();
+        assertNotSame(foo, changed);
+        assertEquals("<Module>changed</Module>", toString(registry.getSerializedResource(
+                changed.getId(), "gadget.xml")));
+        assertSame(bar, findSpec(registry, "bar"));
+        assertEquals(treeSize + 1, registry.getSpecTree().length());
+
+        // Unrelated changes leave the registry alone
+        registry.reload(Collections.singleton(new File(dir, "unrelated.txt").toPath()
+                .toAbsolutePath()));
+        assertSame(changed, registry.getDefaultGadget());
+      } finally {
+        registry.stopWatching();
+      }
+    } finally {
+      delete(dir);
+    }
+  }
+
+  @Test
+  public void testSnapshot() throws Exception {
+    replay(specFactory);
+    File dir = Files.createTempDir();
+    try {
+      File specsTxt = new File(dir, "specs.txt");
+      File fooSpec = writeSpec(dir, "foo", true, "<Module>foo</Module>");
+      File barSpec = writeSpec(dir, "bar", false, "<Module>bar</Module>");
+      Files.write(fooSpec.getPath() + "\n" + barSpec.getPath() + "\n", specsTxt, Charsets.UTF_8);
+      // Files modified while the registry loads are not written to the snapshot
+      long past = System.currentTimeMillis() - 60000;
+      for (File file : new File[] { fooSpec, barSpec, new File(fooSpec.getParentFile(),
+              "gadget.xml"), new File(barSpec.getParentFile(), "gadget.xml") }) {
+        file.setLastModified(past);
+      }
+      File snapshotFile = new File(dir, "registry.snapshot");
+      ResourceContentPool pool = new ResourceContentPool();
+
+      CountingFactory factory = new CountingFactory(pool);
+      DefaultGadgetRegistry loaded = new DefaultGadgetRegistry(factory, specsTxt.getPath(), null,
+              1, false, snapshotFile, pool);
+      assertEquals(2, factory.created);
+      assertTrue(snapshotFile.isFile());
+
+      factory = new CountingFactory(pool);
+      DefaultGadgetRegistry restored = new DefaultGadgetRegistry(factory, specsTxt.getPath(),
+              null, 2, false, snapshotFile, pool);
+      assertEquals(0, factory.created);
+      assertEquals(loaded.getSpecTree(), restored.getSpecTree());
+      GadgetSpec foo = restored.getDefaultGadget();
+      assertEquals(loaded.getDefaultGadget().getId(), foo.getId());
+      assertEquals(fooSpec.getPath(), foo.getPathToSpec());
+      assertEquals("<Module>foo</Module>", foo.getGadgetResource().getContent());
+      assertSame(loaded.getDefaultGadget().getGadgetResource().getContent(), foo
+              .getGadgetResource().getContent());
+      SerializedContent json = restored.getSerializedGadgetSpec(foo.getId());
+      assertEquals(loaded.getSerializedGadgetSpec(foo.getId()).getETag(), json.getETag());
+      assertEquals(foo.toJSON(), new JSONObject(toString(json)));
+      assertEquals("<Module>foo</Module>", toString(restored.getSerializedResource(foo.getId(),
+              "gadget.xml")));
+
+      // Only the spec whose files changed is loaded from its files
+      Files.write("<Module>changed</Module>", new File(barSpec.getParentFile(), "gadget.xml"),
+              Charsets.UTF_8);
+      factory = new CountingFactory(pool);
+      restored = new DefaultGadgetRegistry(factory, specsTxt.getPath(), null, 1, false,
+              snapshotFile, pool);
+      assertEquals(1, factory.created);
+      assertEquals("<Module>changed</Module>", findSpec(restored, "bar").getGadgetResource()
+              .getContent());
+      assertEquals(foo.getId(), restored.getDefaultGadget().getId());
+
+      // A snapshot that cannot be read is ignored
+      Files.write("not a snapshot", snapshotFile, Charsets.UTF_8);
+      factory = new CountingFactory(pool);
+      restored = new DefaultGadgetRegistry(factory, specsTxt.getPath(), null, 1, false,
+              snapshotFile, pool);
+      assertEquals(2, factory.created);
+      assertNotNull(findSpec(restored, "bar"));
+
+      // Neither is a snapshot that was damaged or not written completely
+      byte[] bytes = Files.toByteArray(snapshotFile);
+      byte[] damaged = bytes.clone();
+      damaged[bytes.length / 2] ^= 0x01;
+      Files.write(damaged, snapshotFile);
+      factory = new CountingFactory(pool);
+      restored = new DefaultGadgetRegistry(factory, specsTxt.getPath(), null, 1, false,
+              snapshotFile, pool);
+      assertEquals(2, factory.created);
+      Files.write(Arrays.copyOf(bytes, bytes.length - 10), snapshotFile);
+      factory = new CountingFactory(pool);
+      restored = new DefaultGadgetRegistry(factory, specsTxt.getPath(), null, 1, false,
+              snapshotFile, pool);
+      assertEquals(2, factory.created);
+      assertNotNull(findSpec(restored, "bar"));
+    } finally {
+      delete(dir);
+    }
+  }
+
+  @Test
+  public void testSearch() throws Exception {
+    replay(specFactory);
+    File dir = Files.createTempDir();
+    try {
+      File specsTxt = new File(dir, "specs.txt");
+      File weatherSpec = writeSpec(dir, "weather", true, "<Module><ModulePrefs>"
+              + "<Require feature=\"dynamic-height\"/></ModulePrefs>"
+              + "<Content>Sunny</Content></Module>");
+      File calendarSpec = writeSpec(dir, "calendar", false, "<Module><ModulePrefs>"
+              + "<Optional feature='views'/></ModulePrefs>"
+              + "<Content>Weather forecast</Content></Module>");
+      File helloSpec = writeSpec(dir, "hello", false, "<Module><Content>Hello</Content></Module>");
+      Files.write(weatherSpec.getPath() + "\n" + calendarSpec.getPath() + "\n"
+              + helloSpec.getPath() + "\n", specsTxt, Charsets.UTF_8);
+      DefaultGadgetRegistry registry = new DefaultGadgetRegistry(new DefaultGadgetSpecFactory(),
+              specsTxt.getPath(), null, 1, false);
+
+      // Titles rank above content
+      SearchResults results = registry.search("Weather", 0, 10);
+      assertEquals(2, results.getTotal());
+      assertEquals("weather", results.getHits().get(0).getSpec().getTitle());
+      assertEquals("calendar", results.getHits().get(1).getSpec().getTitle());
+      assertTrue(results.getHits().get(0).getScore() > results.getHits().get(1).getScore());
+
+      // Required and optional features
+      assertEquals("weather", registry.search("height", 0, 10).getHits().get(0).getSpec()
+              .getTitle());
+      assertEquals("calendar", registry.search("views", 0, 10).getHits().get(0).getSpec()
+              .getTitle());
+
+      // All words must match, the last one also as a prefix
+      assertEquals(1, registry.search("forecast cal", 0, 10).getTotal());
+      assertEquals(0, registry.search("cal forecast", 0, 10).getTotal());
+      assertEquals(0, registry.search("nothing", 0, 10).getTotal());
+      assertEquals(0, registry.search(" - ", 0, 10).getTotal());
+
+      // Paging
+      results = registry.search("module", 1, 1);
+      assertEquals(3, results.getTotal());
+      assertEquals(1, results.getOffset());
+      assertEquals(1, results.getHits().size());
+      assertEquals(registry.search("module", 0, 3).getHits().get(1).getSpec(),
+              results.getHits().get(0).getSpec());
+
+      // A reloaded spec is indexed again
+      assertEquals(0, registry.search("rain", 0, 10).getTotal());
+      File helloGadget = new File(helloSpec.getParentFile(), "gadget.xml");
+      Files.write("<Module><Content>Rainy weather</Content></Module>", helloGadget,
+              Charsets.UTF_8);
+      registry.reload(Collections.singleton(helloGadget.toPath().toAbsolutePath()));
+      assertEquals(3, registry.search("weather", 0, 10).getTotal());
+      assertEquals("hello", registry.search("rain", 0, 10).getHits().get(0).getSpec().getTitle());
+    } finally {
+      delete(dir);
+    }
+  }
+
+  @Test
+  public void testSpecTreeChildren() throws Exception {
+    setupGadgetSpecCreation("specs/a/one/spec.json", "12", "one");
+    setupGadgetSpecCreation("specs/a/b/two/spec.json", "34", "two");
+    setupGadgetSpecCreation("specs/a/b/three/spec.json", "56", "three");
+    setupDefaultGadgetSpecCreation("specs/four/spec.json", "78", "four");
+    replay(specFactory);
+    gadgetRegistry = new DefaultGadgetRegistry(specFactory, null, new String[] {
+        "specs/a/one/spec.json", "specs/a/b/two/spec.json", "specs/a/b/three/spec.json",
+        "specs/four/spec.json" });
+
+    SpecTreePage root = gadgetRegistry.getSpecTreeChildren("root", 0, 10);
+    assertEquals(1, root.getTotal());
+    assertEquals("folder:specs", root.getNodes().get(0).getString("id"));
+    assertEquals(2, root.getNodes().get(0).getInt("childCount"));
+
+    SpecTreePage a = gadgetRegistry.getSpecTreeChildren("folder:specs/a", 0, 10);
+    assertEquals(2, a.getTotal());
+    JSONObject one = a.getNodes().get(0);
+    assertEquals("12", one.getString("id"));
+    assertEquals("One", one.getString("name"));
+    assertEquals("folder:specs/a", one.getString("parent"));
+    assertFalse(one.getBoolean("hasChildren"));
+    assertEquals(0, one.getInt("childCount"));
+    assertEquals("folder:specs/a/b", a.getNodes().get(1).getString("id"));
+    assertEquals(2, a.getNodes().get(1).getInt("childCount"));
+
+    // Paging
+    SpecTreePage b = gadgetRegistry.getSpecTreeChildren("folder:specs/a/b", 1, 10);
+    assertEquals(2, b.getTotal());
+    assertEquals(1, b.getOffset());
+    assertEquals(1, b.getNodes().size());
+    assertEquals("56", b.getNodes().get(0).getString("id"));
+    assertEquals(0, gadgetRegistry.getSpecTreeChildren("folder:specs/a/b", 5, 10).getNodes()
+            .size());
+    JSONObject page = gadgetRegistry.getSpecTreeChildren("folder:specs", 0, 1).toJSON();
+    assertEquals(2, page.getInt("total"));
+    assertEquals(1, page.getJSONArray("children").length());
+
+    // The full tree is unchanged
+    assertFalse(gadgetRegistry.getSpecTree().getJSONObject(0).containsKey("childCount"));
+
+    assertNull(gadgetRegistry.getSpecTreeChildren("12", 0, 10));
+    assertNull(gadgetRegistry.getSpecTreeChildren("folder:nothing", 0, 10));
+
+    assertEquals(Arrays.asList("root", "folder:specs", "folder:specs/a", "folder:specs/a/b", "56"),
+            gadgetRegistry.getSpecTreePath("56"));
+    assertEquals(Arrays.asList("root", "folder:specs", "folder:specs/a"),
+            gadgetRegistry.getSpecTreePath("folder:specs/a"));
+    assertEquals(Arrays.asList("root"), gadgetRegistry.getSpecTreePath("root"));
+    assertNull(gadgetRegistry.getSpecTreePath("folder:nothing"));
+  }
+
+  private static class CountingFactory implements GadgetSpecFactory {
+    private final GadgetSpecFactory factory;
+    private int created;
+
+    CountingFactory(ResourceContentPool pool) {
+      this.factory = new DefaultGadgetSpecFactory(pool);
+    }
+
+    public synchronized GadgetSpec create(String specPath) {
+      created++;
+      return factory.create(specPath);
+    }
+  }
+
+  private void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+
+  private File writeSpec(File dir, String name, boolean isDefault, String gadget)
+          throws Exception {
+    File specDir = new File(dir, name);
+    specDir.mkdirs();
+    File spec = new File(specDir, "spec.json");
+    Files.write("{'isDefault':" + isDefault + ",'gadget':'gadget.xml','title':'" + name + "'}",
+            spec, Charsets.UTF_8);
+    Files.write(gadget, new File(specDir, "gadget.xml"), Charsets.UTF_8);
+    return spec;
+  }
+
+  private GadgetSpec findSpec(GadgetRegistry registry, String title) throws Exception {
+    JSONArray specTree = registry.getSpecTree();
+    for (int i = 0; i < specTree.length(); i++) {
+      JSONObject node = specTree.getJSONObject(i);
+      if (!node.getBoolean("hasChildren") && title.equalsIgnoreCase(node.getString("name"))) {
+        return registry.getGadgetSpec(node.getString("id"));
+      }
+    }
+    return null;
+  }
+
+  private String toString(SerializedContent content) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    content.writeTo(out);
+    assertEquals(content.getLength(), out.size());
+    return out.toString("UTF-8");
+  }
   
   
   @Test
@@ -132,7 +538,7 @@ public class GadgetRegistryTest {
     JSONObject foo = new JSONObject();
     
     specTree.put(specs);
-      specs.put("id", "109641752");
+      specs.put("id", "folder:specs");
       specs.put("name", "Specs");
       specs.put("isDefault", false);
       specs.put("parent", "root");
@@ -141,7 +547,7 @@ public class GadgetRegistryTest {
       foo.put("id", "123");
       foo.put("name", "Foo");
       foo.put("isDefault", false);
-      foo.put("parent", "109641752");
+      foo.put("parent", "folder:specs");
       foo.put("hasChildren", false);
       
     assertEquals(specTree, gadgetRegistry.getSpecTree());
@@ -161,7 +567,7 @@ public class GadgetRegistryTest {
     JSONObject bar = new JSONObject();
     
     specTree.put(specs);
-      specs.put("id", "109641752");
+      specs.put("id", "folder:specs");
       specs.put("name", "Specs");
       specs.put("isDefault", false);
       specs.put("parent", "root");
@@ -170,13 +576,13 @@ public class GadgetRegistryTest {
       foo.put("id", "123");
       foo.put("name", "Foo");
       foo.put("isDefault", false);
-      foo.put("parent", "109641752");
+      foo.put("parent", "folder:specs");
       foo.put("hasChildren", false);
     specTree.put(bar);
       bar.put("id", "456");
       bar.put("name", "Bar");
       bar.put("isDefault", false);
-      bar.put("parent", "109641752");
+      bar.put("parent", "folder:specs");
       bar.put("hasChildren", false);
     
     assertEquals(specTree, gadgetRegistry.getSpecTree());
@@ -196,7 +602,7 @@ public class GadgetRegistryTest {
     JSONObject bar = new JSONObject();
     
     specTree.put(specs);
-      specs.put("id", "109641752");
+      specs.put("id", "folder:specs");
       specs.put("name", "Specs");
       specs.put("isDefault", false);
       specs.put("parent", "root");
@@ -205,13 +611,13 @@ public class GadgetRegistryTest {
       foo.put("id", "123");
       foo.put("name", "Foo");
       foo.put("isDefault", true);
-      foo.put("parent", "109641752");
+      foo.put("parent", "folder:specs");
       foo.put("hasChildren", false);
     specTree.put(bar);
       bar.put("id", "456");
       bar.put("name", "Bar");
       bar.put("isDefault", false);
-      bar.put("parent", "109641752");
+      bar.put("parent", "folder:specs");
       bar.put("hasChildren", false);
     
     assertEquals(specTree, gadgetRegistry.getSpecTree());
@@ -231,7 +637,7 @@ public class GadgetRegistryTest {
     JSONObject bar = new JSONObject();
     
     specTree.put(specs);
-      specs.put("id", "109641752");
+      specs.put("id", "folder:specs");
       specs.put("name", "Specs");
       specs.put("isDefault", false);
       specs.put("parent", "root");
@@ -240,13 +646,13 @@ public class GadgetRegistryTest {
       foo.put("id", "123");
       foo.put("name", "Foo");
       foo.put("isDefault", false);
-      foo.put("parent", "109641752");
+      foo.put("parent", "folder:specs");
       foo.put("hasChildren", false);
     specTree.put(bar);
       bar.put("id", "456");
       bar.put("name", "Bar");
       bar.put("isDefault", true);
-      bar.put("parent", "109641752");
+      bar.put("parent", "folder:specs");
       bar.put("hasChildren", false);
     
     assertEquals(specTree, gadgetRegistry.getSpecTree());
@@ -267,28 +673,28 @@ public class GadgetRegistryTest {
     JSONObject bar = new JSONObject();
     
     specTree.put(specs);
-      specs.put("id", "109641752");
+      specs.put("id", "folder:specs");
       specs.put("name", "Specs");
       specs.put("isDefault", false);
       specs.put("parent", "root");
       specs.put("hasChildren", true);
     specTree.put(abc);
-      abc.put("id", "96354");
+      abc.put("id", "folder:specs/abc");
       abc.put("name", "Abc");
       abc.put("isDefault", false);
-      abc.put("parent", "109641752");
+      abc.put("parent", "folder:specs");
       abc.put("hasChildren", true);
     specTree.put(foo);
       foo.put("id", "123");
       foo.put("name", "Foo");
       foo.put("isDefault", false);
-      foo.put("parent", "96354");
+      foo.put("parent", "folder:specs/abc");
       foo.put("hasChildren", false);
     specTree.put(bar);
       bar.put("id", "456");
       bar.put("name", "Bar");
       bar.put("isDefault", false);
-      bar.put("parent", "96354");
+      bar.put("parent", "folder:specs/abc");
       bar.put("hasChildren", false);
     
     assertEquals(specTree, gadgetRegistry.getSpecTree());
@@ -310,34 +716,34 @@ public class GadgetRegistryTest {
     JSONObject bar = new JSONObject();
     
     specTree.put(specs);
-      specs.put("id", "109641752");
+      specs.put("id", "folder:specs");
       specs.put("name", "Specs");
       specs.put("isDefault", false);
       specs.put("parent", "root");
       specs.put("hasChildren", true);
     specTree.put(abc);
-      abc.put("id", "96354");
+      abc.put("id", "folder:specs/abc");
       abc.put("name", "Abc");
       abc.put("isDefault", false);
-      abc.put("parent", "109641752");
+      abc.put("parent", "folder:specs");
       abc.put("hasChildren", true);
     specTree.put(foo);
       foo.put("id", "123");
       foo.put("name", "Foo");
       foo.put("isDefault", false);
-      foo.put("parent", "96354");
+      foo.put("parent", "folder:specs/abc");
       foo.put("hasChildren", false);
     specTree.put(def);
-      def.put("id", "99333");
+      def.put("id", "folder:specs/def");
       def.put("name", "Def");
       def.put("isDefault", false);
-      def.put("parent", "109641752");
+      def.put("parent", "folder:specs");
       def.put("hasChildren", true);
     specTree.put(bar);
       bar.put("id", "456");
       bar.put("name", "Bar");
       bar.put("isDefault", false);
-      bar.put("parent", "99333");
+      bar.put("parent", "folder:specs/def");
       bar.put("hasChildren", false);
     
     assertEquals(specTree, gadgetRegistry.getSpecTree());
@@ -359,34 +765,34 @@ public class GadgetRegistryTest {
     JSONObject bar = new JSONObject();
 
     specTree.put(specs);
-    specs.put("id", "109641752");
+    specs.put("id", "folder:specs");
     specs.put("name", "Specs");
     specs.put("isDefault", false);
     specs.put("parent", "root");
     specs.put("hasChildren", true);
   specTree.put(abc);
-    abc.put("id", "96354");
+    abc.put("id", "folder:specs/abc");
     abc.put("name", "Abc");
     abc.put("isDefault", false);
-    abc.put("parent", "109641752");
+    abc.put("parent", "folder:specs");
     abc.put("hasChildren", true);
   specTree.put(foo);
     foo.put("id", "123");
     foo.put("name", "Foo");
     foo.put("isDefault", true);
-    foo.put("parent", "96354");
+    foo.put("parent", "folder:specs/abc");
     foo.put("hasChildren", false);
   specTree.put(def);
-    def.put("id", "99333");
+    def.put("id", "folder:specs/def");
     def.put("name", "Def");
     def.put("isDefault", false);
-    def.put("parent", "109641752");
+    def.put("parent", "folder:specs");
     def.put("hasChildren", true);
   specTree.put(bar);
     bar.put("id", "456");
     bar.put("name", "Bar");
     bar.put("isDefault", false);
-    bar.put("parent", "99333");
+    bar.put("parent", "folder:specs/def");
     bar.put("hasChildren", false);
     
     assertEquals(specTree, gadgetRegistry.getSpecTree());
@@ -408,34 +814,34 @@ public class GadgetRegistryTest {
     JSONObject bar = new JSONObject();
 
     specTree.put(specs);
-    specs.put("id", "109641752");
+    specs.put("id", "folder:specs");
     specs.put("name", "Specs");
     specs.put("isDefault", false);
     specs.put("parent", "root");
     specs.put("hasChildren", true);
   specTree.put(abc);
-    abc.put("id", "96354");
+    abc.put("id", "folder:specs/abc");
     abc.put("name", "Abc");
     abc.put("isDefault", false);
-    abc.put("parent", "109641752");
+    abc.put("parent", "folder:specs");
     abc.put("hasChildren", true);
   specTree.put(foo);
     foo.put("id", "123");
     foo.put("name", "Foo");
     foo.put("isDefault", false);
-    foo.put("parent", "96354");
+    foo.put("parent", "folder:specs/abc");
     foo.put("hasChildren", false);
   specTree.put(def);
-    def.put("id", "99333");
+    def.put("id", "folder:specs/def");
     def.put("name", "Def");
     def.put("isDefault", false);
-    def.put("parent", "109641752");
+    def.put("parent", "folder:specs");
     def.put("hasChildren", true);
   specTree.put(bar);
     bar.put("id", "456");
     bar.put("name", "Bar");
     bar.put("isDefault", true);
-    bar.put("parent", "99333");
+    bar.put("parent", "folder:specs/def");
     bar.put("hasChildren", false);
     
     assertEquals(specTree, gadgetRegistry.getSpecTree());
@@ -458,40 +864,40 @@ public class GadgetRegistryTest {
     JSONObject bar = new JSONObject();
     
     specTree.put(specs);
-      specs.put("id", "109641752");
+      specs.put("id", "folder:specs");
       specs.put("name", "Specs");
       specs.put("isDefault", false);
       specs.put("parent", "root");
       specs.put("hasChildren", true);
     specTree.put(abc);
-      abc.put("id", "96354");
+      abc.put("id", "folder:specs/abc");
       abc.put("name", "Abc");
       abc.put("isDefault", false);
-      abc.put("parent", "109641752");
+      abc.put("parent", "folder:specs");
       abc.put("hasChildren", true);
     specTree.put(foo);
       foo.put("id", "123");
       foo.put("name", "Foo");
       foo.put("isDefault", true);
-      foo.put("parent", "96354");
+      foo.put("parent", "folder:specs/abc");
       foo.put("hasChildren", false);
     specTree.put(specs2);
-      specs2.put("id", "-896072934");
+      specs2.put("id", "folder:specs2");
       specs2.put("name", "Specs2");
       specs2.put("isDefault", false);
       specs2.put("parent", "root");
       specs2.put("hasChildren", true);
     specTree.put(def);
-      def.put("id", "99333");
+      def.put("id", "folder:specs2/def");
       def.put("name", "Def");
       def.put("isDefault", false);
-      def.put("parent", "-896072934");
+      def.put("parent", "folder:specs2");
       def.put("hasChildren", true);
     specTree.put(bar);
       bar.put("id", "456");
       bar.put("name", "Bar");
       bar.put("isDefault", false);
-      bar.put("parent", "99333");
+      bar.put("parent", "folder:specs2/def");
       bar.put("hasChildren", false);
  
     assertEquals(specTree, gadgetRegistry.getSpecTree());
@@ -514,45 +920,76 @@ public class GadgetRegistryTest {
     JSONObject bar = new JSONObject();
     
     specTree.put(specs);
-    specs.put("id", "109641752");
+    specs.put("id", "folder:specs");
     specs.put("name", "Specs");
     specs.put("isDefault", false);
     specs.put("parent", "root");
     specs.put("hasChildren", true);
   specTree.put(abc);
-    abc.put("id", "96354");
+    abc.put("id", "folder:specs/abc");
     abc.put("name", "Abc");
     abc.put("isDefault", false);
-    abc.put("parent", "109641752");
+    abc.put("parent", "folder:specs");
     abc.put("hasChildren", true);
   specTree.put(foo);
     foo.put("id", "123");
     foo.put("name", "Foo");
     foo.put("isDefault", false);
-    foo.put("parent", "96354");
+    foo.put("parent", "folder:specs/abc");
     foo.put("hasChildren", false);
   specTree.put(specs2);
-    specs2.put("id", "-896072934");
+    specs2.put("id", "folder:specs2");
     specs2.put("name", "Specs2");
     specs2.put("isDefault", false);
     specs2.put("parent", "root");
     specs2.put("hasChildren", true);
   specTree.put(def);
-    def.put("id", "99333");
+    def.put("id", "folder:specs2/def");
     def.put("name", "Def");
     def.put("isDefault", false);
-    def.put("parent", "-896072934");
+    def.put("parent", "folder:specs2");
     def.put("hasChildren", true);
   specTree.put(bar);
     bar.put("id", "456");
     bar.put("name", "Bar");
     bar.put("isDefault", true);
-    bar.put("parent", "99333");
+    bar.put("parent", "folder:specs2/def");
     bar.put("hasChildren", false);
     
     assertEquals(specTree, gadgetRegistry.getSpecTree());
   }
   
+  @Test
+  public void testSameFolderNameDifferentParents() throws Exception {
+    setupGadgetSpecCreation("specs/a/common/one/spec.json", "12", "one");
+    setupGadgetSpecCreation("specs/b/common/two/spec.json", "34", "two");
+    replay(specFactory);
+    gadgetRegistry = new DefaultGadgetRegistry(specFactory, null,
+        new String[] {"specs/a/common/one/spec.json", "specs/b/common/two/spec.json"});
+
+    JSONArray specTree = new JSONArray();
+    specTree.put(createNode("folder:specs", "Specs", "root", true));
+    specTree.put(createNode("folder:specs/a", "A", "folder:specs", true));
+    specTree.put(createNode("folder:specs/a/common", "Common", "folder:specs/a", true));
+    specTree.put(createNode("12", "One", "folder:specs/a/common", false));
+    specTree.put(createNode("folder:specs/b", "B", "folder:specs", true));
+    specTree.put(createNode("folder:specs/b/common", "Common", "folder:specs/b", true));
+    specTree.put(createNode("34", "Two", "folder:specs/b/common", false));
+
+    assertEquals(specTree, gadgetRegistry.getSpecTree());
+  }
+
+  private JSONObject createNode(String id, String name, String parent, boolean hasChildren)
+          throws Exception {
+    JSONObject node = new JSONObject();
+    node.put("id", id);
+    node.put("name", name);
+    node.put("isDefault", false);
+    node.put("parent", parent);
+    node.put("hasChildren", hasChildren);
+    return node;
+  }
+
   @Test
   public void testLargeArray() throws Exception {
     setupGadgetSpecCreation("specs/a/one/spec.json", "12", "one");
@@ -573,46 +1010,46 @@ public class GadgetRegistryTest {
     JSONObject four = new JSONObject();
     
     specTree.put(specs);
-      specs.put("id", "109641752");
+      specs.put("id", "folder:specs");
       specs.put("name", "Specs");
       specs.put("isDefault", false);
       specs.put("parent", "root");
       specs.put("hasChildren", true);
     specTree.put(a);
-      a.put("id", "97");
+      a.put("id", "folder:specs/a");
       a.put("name", "A");
       a.put("isDefault", false);
-      a.put("parent", "109641752");
+      a.put("parent", "folder:specs");
       a.put("hasChildren", true);
     specTree.put(one);
       one.put("id", "12");
       one.put("name", "One");
       one.put("isDefault", false);
-      one.put("parent", "97");
+      one.put("parent", "folder:specs/a");
       one.put("hasChildren", false);
     specTree.put(b);
-      b.put("id", "98");
+      b.put("id", "folder:specs/a/b");
       b.put("name", "B");
       b.put("isDefault", false);
-      b.put("parent", "97");
+      b.put("parent", "folder:specs/a");
       b.put("hasChildren", true);
     specTree.put(two);
       two.put("id", "34");
       two.put("name", "Two");
       two.put("isDefault", false);
-      two.put("parent", "98");
+      two.put("parent", "folder:specs/a/b");
       two.put("hasChildren", false);
     specTree.put(three);
       three.put("id", "56");
       three.put("name", "Three");
       three.put("isDefault", false);
-      three.put("parent", "98");
+      three.put("parent", "folder:specs/a/b");
       three.put("hasChildren", false);
     specTree.put(four);
       four.put("id", "78");
       four.put("name", "Four");
       four.put("isDefault", true);
-      four.put("parent", "109641752");
+      four.put("parent", "folder:specs");
       four.put("hasChildren", false);
   
     assertEquals(specTree, gadgetRegistry.getSpecTree());
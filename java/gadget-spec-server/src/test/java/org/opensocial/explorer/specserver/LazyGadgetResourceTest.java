@@ -0,0 +1,167 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.opensocial.explorer.specserver;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+
+import org.apache.shindig.common.util.ResourceLoader;
+import org.junit.Test;
+import org.opensocial.explorer.specserver.api.FileContent;
+import org.opensocial.explorer.specserver.api.GadgetResource;
+import org.opensocial.explorer.specserver.api.GadgetSpec;
+import org.opensocial.explorer.specserver.api.SerializedContent;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+public class LazyGadgetResourceTest {
+
+  @Test
+  public void testMetadata() throws Exception {
+    String content = ResourceLoader.getContent("specs/complex/complex.js");
+    LazyGadgetResource resource = new LazyGadgetResource("complex.js", "specs/complex/complex.js",
+            new ResourceContentCache());
+    assertEquals("complex.js", resource.getName());
+    assertEquals("specs/complex/complex.js", resource.getPath());
+    assertEquals("application/javascript", resource.getContentType());
+    assertEquals(ResourceContentPool.digest(content), resource.getContentHash());
+    assertEquals(content.getBytes("UTF-8").length, resource.getSize());
+  }
+
+  @Test
+  public void testContentIsLoadedOnDemand() throws Exception {
+    ResourceContentCache cache = new ResourceContentCache();
+    LazyGadgetResource resource = new LazyGadgetResource("complex.js", "specs/complex/complex.js",
+            cache);
+    assertEquals(0, cache.size());
+
+    String content = resource.getContent();
+    assertEquals(ResourceLoader.getContent("specs/complex/complex.js"), content);
+    assertEquals(1, cache.size());
+    assertSame(content, resource.getContent());
+    assertEquals(1, cache.getStats().hitCount());
+  }
+
+  @Test
+  public void testEvictedContentIsReadAgain() throws Exception {
+    // Too small to hold anything
+    ResourceContentCache cache = new ResourceContentCache(1);
+    LazyGadgetResource resource = new LazyGadgetResource("complex.js", "specs/complex/complex.js",
+            cache);
+    String content = ResourceLoader.getContent("specs/complex/complex.js");
+    assertEquals(content, resource.getContent());
+    assertEquals(content, resource.getContent());
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testChangedContentIsNotCached() throws Exception {
+    File file = File.createTempFile("lazy", ".js");
+    try {
+      Files.write("var a = 1;", file, Charsets.UTF_8);
+      ResourceContentCache cache = new ResourceContentCache();
+      LazyGadgetResource resource = new LazyGadgetResource("lazy.js", file.getPath(), cache);
+      Files.write("var a = 2;", file, Charsets.UTF_8);
+
+      assertEquals("var a = 2;", resource.getContent());
+      assertEquals(0, cache.size());
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testChangedSerializedContentIsNotCached() throws Exception {
+    File file = File.createTempFile("lazy", ".js");
+    try {
+      Files.write("var a = 1;", file, Charsets.UTF_8);
+      ResourceContentCache cache = new ResourceContentCache();
+      LazyGadgetResource resource = new LazyGadgetResource("lazy.js", file.getPath(), cache);
+      Files.write("var a = 2;", file, Charsets.UTF_8);
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      resource.getSerializedContent().writeTo(out);
+      assertEquals("var a = 2;", out.toString("UTF-8"));
+      assertEquals(0, cache.size());
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testSerializedContent() throws Exception {
+    ResourceContentCache cache = new ResourceContentCache();
+    LazyGadgetResource resource = new LazyGadgetResource("complex.js", "specs/complex/complex.js",
+            cache);
+    SerializedContent serialized = resource.getSerializedContent();
+    assertEquals("application/javascript", serialized.getContentType());
+    assertEquals(resource.getSize(), serialized.getLength());
+    assertSame(serialized, resource.getSerializedContent());
+  }
+
+  @Test
+  public void testFileContent() throws Exception {
+    File file = File.createTempFile("lazy", ".js");
+    try {
+      Files.write("var \u00e4 = 1;", file, Charsets.UTF_8);
+      LazyGadgetResource resource = new LazyGadgetResource("lazy.js", file.getPath(),
+              new ResourceContentCache());
+      FileContent fileContent = resource.getFileContent();
+      assertNotNull(fileContent);
+      assertEquals(resource.getSerializedContent().getETag(), fileContent.getETag());
+      assertEquals("application/javascript", fileContent.getContentType());
+      assertEquals(file.length(), fileContent.getLength());
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      fileContent.writeTo(out, 4, fileContent.getLength() - 4);
+      assertEquals("\u00e4 = 1;", out.toString("UTF-8"));
+
+      Files.write("var \u00e4 = 10;", file, Charsets.UTF_8);
+      assertNull(resource.getFileContent());
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testClasspathFileContent() throws Exception {
+    // Test resources are on the file system, resources in jars have no file content
+    LazyGadgetResource resource = new LazyGadgetResource("complex.js", "specs/complex/complex.js",
+            new ResourceContentCache());
+    assertNotNull(resource.getFileContent());
+    assertEquals(resource.getSize(), resource.getFileContent().getLength());
+  }
+
+  @Test
+  public void testLazySpec() throws Exception {
+    ResourceContentCache cache = new ResourceContentCache();
+    GadgetSpec spec = new DefaultGadgetSpecFactory(new ResourceContentPool(), cache, true)
+            .create("specs/complex/spec.json");
+    assertTrue(spec.getGadgetResource() instanceof LazyGadgetResource);
+    for (GadgetResource resource : spec.getJsResources().values()) {
+      assertTrue(resource instanceof LazyGadgetResource);
+    }
+    assertEquals(0, cache.size());
+    assertEquals(ResourceLoader.getContent("specs/complex/gadget.xml"), spec.getGadgetResource()
+            .getContent());
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.opensocial.explorer.specserver;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.opensocial.explorer.specserver.temp.TempGadgetResource;
+
+public class ResourceContentPoolTest {
+
+  @Test
+  public void testDigest() throws Exception {
+    assertEquals("e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855",
+            ResourceContentPool.digest(""));
+    assertEquals(ResourceContentPool.digest("foo"), ResourceContentPool.digest(new String("foo")));
+    assertFalse(ResourceContentPool.digest("foo").equals(ResourceContentPool.digest("bar")));
+  }
+
+  @Test
+  public void testAcquireSharesContent() throws Exception {
+    ResourceContentPool pool = new ResourceContentPool();
+    String first = new String("content");
+    String second = new String("content");
+    String digest = ResourceContentPool.digest(first);
+
+    assertSame(first, pool.acquire(digest, first));
+    assertSame(first, pool.acquire(digest, second));
+    assertEquals(1, pool.size());
+    assertEquals(2, pool.getReferenceCount(digest));
+  }
+
+  @Test
+  public void testReleaseDropsUnreferencedContent() throws Exception {
+    ResourceContentPool pool = new ResourceContentPool();
+    String digest = ResourceContentPool.digest("content");
+    pool.acquire(digest, "content");
+    pool.acquire(digest, "content");
+
+    pool.release(digest);
+    assertEquals(1, pool.getReferenceCount(digest));
+    pool.release(digest);
+    assertEquals(0, pool.getReferenceCount(digest));
+    assertEquals(0, pool.size());
+
+    // Releasing unknown content is a no-op
+    pool.release(digest);
+    assertEquals(0, pool.size());
+  }
+
+  @Test
+  public void testResourcesShareContent() throws Exception {
+    ResourceContentPool pool = new ResourceContentPool();
+    DefaultGadgetResource first = new TempGadgetResource("foo.js", new String("var a = 1;"), pool);
+    DefaultGadgetResource second = new TempGadgetResource("bar.js", new String("var a = 1;"), pool);
+    DefaultGadgetResource other = new TempGadgetResource("baz.js", "var b = 2;", pool);
+
+    assertSame(first.getContent(), second.getContent());
+    assertEquals(first.getContentHash(), second.getContentHash());
+    assertEquals(2, pool.size());
+
+    first.release();
+    first.release();
+    assertEquals(1, pool.getReferenceCount(second.getContentHash()));
+    second.release();
+    other.release();
+    assertEquals(0, pool.size());
+  }
+
+  @Test
+  public void testSpecsShareContent() throws Exception {
+    ResourceContentPool pool = new ResourceContentPool();
+    DefaultGadgetSpec simple = new DefaultGadgetSpec("specs/simple/spec.json", pool);
+    DefaultGadgetSpec complex = new DefaultGadgetSpec("specs/complex/spec.json", pool);
+
+    assertSame(simple.getGadgetResource().getContent(), complex.getGadgetResource().getContent());
+
+    complex.release();
+    simple.release();
+    assertEquals(0, pool.size());
+  }
+}
@@ -22,13 +22,17 @@ import static org.easymock.EasyMock.*;
 import static org.junit.Assert.*;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
-import java.util.Map;
+import java.util.zip.GZIPInputStream;
 
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -40,13 +44,22 @@ import org.easymock.IMocksControl;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.opensocial.explorer.specserver.api.FileContent;
 import org.opensocial.explorer.specserver.api.GadgetRegistry;
 import org.opensocial.explorer.specserver.api.GadgetResource;
 import org.opensocial.explorer.specserver.api.GadgetSpec;
+import org.opensocial.explorer.specserver.api.SearchResults;
+import org.opensocial.explorer.specserver.api.SerializedContent;
+import org.opensocial.explorer.specserver.api.SpecTreePage;
+import org.opensocial.explorer.specserver.api.TempGadgetSpecStore;
 import org.opensocial.explorer.specserver.servlet.GadgetSpecServlet;
-import org.powermock.reflect.Whitebox;
+import org.opensocial.explorer.specserver.temp.DefaultTempGadgetSpecStore;
+import org.opensocial.explorer.specserver.temp.TempGadgetSpecParser;
 
-import com.google.common.collect.Maps;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.CharStreams;
+import com.google.common.io.Files;
 
 public class GadgetSpecServletTest {
 
@@ -67,6 +80,7 @@ public class GadgetSpecServletTest {
 
     registry = createMock(GadgetRegistry.class);
     servlet.setRegistry(registry);
+    servlet.setTempSpecStore(new DefaultTempGadgetSpecStore(1000, 0, 0, 0));
   }
 
   @After
@@ -83,11 +97,12 @@ public class GadgetSpecServletTest {
    */
   @Test
   public void testGetSpecTree() throws Exception {
-    expectRequestAndResponse("/specTree");
+    expectRequestAndStreamResponse("/specTree");
     niceControl.replay();
 
-    JSONArray specTreeJson = new JSONArray();
-    expect(registry.getSpecTree()).andReturn(specTreeJson);
+    JSONArray specTreeJson = new JSONArray("[{'id':'123','name':'Foo'}]");
+    expect(registry.getSerializedSpecTree()).andReturn(
+            SerializedContent.fromJSON(specTreeJson, 0));
     replay(registry);
 
     servlet.doGet(request, response);
@@ -95,6 +110,81 @@ public class GadgetSpecServletTest {
     assertEquals(specTreeJson, new JSONArray(getWriterOutput()));
   }
 
+  /**
+   * Test GET /gadgetspec/specTree?parent=...
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testGetSpecTreeChildren() throws Exception {
+    expectRequestAndStreamResponse("/specTree");
+    expect(request.getParameter("parent")).andStubReturn("folder:specs");
+    expect(request.getParameter("offset")).andStubReturn("1");
+    niceControl.replay();
+
+    JSONObject node = new JSONObject("{'id':'123','name':'Foo','childCount':0}");
+    expect(registry.getSpecTreeChildren("folder:specs", 1, 100)).andReturn(
+            new SpecTreePage("folder:specs", 2, 1, ImmutableList.of(node)));
+    expect(registry.getSerializedSpecTree()).andReturn(
+            SerializedContent.fromJSON(new JSONArray(), 0));
+    replay(registry);
+
+    servlet.doGet(request, response);
+
+    JSONObject json = new JSONObject(getWriterOutput());
+    assertEquals("folder:specs", json.getString("id"));
+    assertEquals(2, json.getInt("total"));
+    assertEquals(1, json.getInt("offset"));
+    assertEquals(node, json.getJSONArray("children").getJSONObject(0));
+  }
+
+  /**
+   * Test GET /gadgetspec/specTree?path=default
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testGetSpecTreePath() throws Exception {
+    expectRequestAndStreamResponse("/specTree");
+    expect(request.getParameter("path")).andStubReturn("default");
+    niceControl.replay();
+
+    GadgetSpec spec = createMock(GadgetSpec.class);
+    expect(spec.getId()).andStubReturn("123");
+    replay(spec);
+    expect(registry.getDefaultGadget()).andReturn(spec);
+    expect(registry.getSpecTreePath("123")).andReturn(
+            ImmutableList.of("root", "folder:specs", "123"));
+    expect(registry.getSerializedSpecTree()).andReturn(
+            SerializedContent.fromJSON(new JSONArray(), 0));
+    replay(registry);
+
+    servlet.doGet(request, response);
+
+    JSONObject json = new JSONObject(getWriterOutput());
+    assertEquals("123", json.getString("id"));
+    assertEquals(new JSONArray("['root','folder:specs','123']"), json.getJSONArray("path"));
+  }
+
+  /**
+   * Test GET /gadgetspec/specTree?parent=... for an unknown folder
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testGetSpecTreeChildrenNotFound() throws Exception {
+    expect(request.getMethod()).andStubReturn("GET");
+    expect(request.getPathInfo()).andStubReturn("/specTree");
+    expect(request.getParameter("parent")).andStubReturn("folder:nothing");
+    response.sendError(eq(404), isA(String.class));
+    expectLastCall().once();
+    niceControl.replay();
+    expect(registry.getSpecTreeChildren("folder:nothing", 0, 100)).andReturn(null);
+    replay(registry);
+
+    servlet.doGet(request, response);
+  }
+
   /**
    * Test GET /gadgetspec/default
    * 
@@ -102,14 +192,16 @@ public class GadgetSpecServletTest {
    */
   @Test
   public void testGetDefaultSpec() throws Exception {
-    expectRequestAndResponse("/default");
+    expectRequestAndStreamResponse("/default");
     niceControl.replay();
 
     GadgetSpec mockSpec = createMock(GadgetSpec.class);
     JSONObject defaultGadgetJson = new JSONObject("{'foo':'bar'}");
-    expect(mockSpec.toJSON()).andReturn(defaultGadgetJson);
+    expect(mockSpec.getId()).andReturn("-1");
 
     expect(registry.getDefaultGadget()).andReturn(mockSpec);
+    expect(registry.getSerializedGadgetSpec("-1")).andReturn(
+            SerializedContent.fromJSON(defaultGadgetJson, 0));
     replay(registry, mockSpec);
 
     servlet.doGet(request, response);
@@ -126,14 +218,15 @@ public class GadgetSpecServletTest {
    */
   @Test
   public void testGetSpecById() throws Exception {
-    expectRequestAndResponse("/-1");
+    expectRequestAndStreamResponse("/-1");
     niceControl.replay();
 
     GadgetSpec mockSpec = createMock(GadgetSpec.class);
     JSONObject defaultGadgetJson = new JSONObject("{'foo':'bar'}");
-    expect(mockSpec.toJSON()).andReturn(defaultGadgetJson);
 
     expect(registry.getGadgetSpec("-1")).andReturn(mockSpec);
+    expect(registry.getSerializedGadgetSpec("-1")).andReturn(
+            SerializedContent.fromJSON(defaultGadgetJson, 0));
     replay(registry, mockSpec);
 
     servlet.doGet(request, response);
@@ -150,31 +243,26 @@ public class GadgetSpecServletTest {
    */
   @Test
   public void testGetResourceById() throws Exception {
-    expectRequestAndResponse("GET", "/-1/foo.css", 200, "text/css");
+    expectRequestAndStreamResponse("/-1/foo.css", "text/css");
     niceControl.replay();
 
     GadgetSpec mockSpec = createMock(GadgetSpec.class);
-    Map<String, GadgetResource> cssResources = Maps.newLinkedHashMap();
 
     String resourceContent = "The quick brown fox jumps over the lazy dog";
     GadgetResource mockResource = createMock(GadgetResource.class);
-    expect(mockResource.getName()).andReturn("foo.css");
     expect(mockResource.getContent()).andReturn(resourceContent);
     expect(mockResource.getContentType()).andReturn("text/css");
-
-    GadgetResource mockResource2 = createMock(GadgetResource.class);
-    expect(mockResource2.getName()).andStubReturn("bar.css");
-
-    cssResources.put("bar.css", mockResource2);
-    cssResources.put("foo.css", mockResource);
-    expect(mockSpec.getCssResources()).andReturn(cssResources);
+    expect(mockResource.getLastModified()).andReturn(0L);
+    expect(mockSpec.getResource("foo.css")).andReturn(mockResource);
 
     expect(registry.getGadgetSpec("-1")).andReturn(mockSpec);
-    replay(registry, mockSpec, mockResource, mockResource2);
+    expect(registry.getResourceFile("-1", "foo.css")).andReturn(null);
+    expect(registry.getSerializedResource("-1", "foo.css")).andReturn(null);
+    replay(registry, mockSpec, mockResource);
 
     servlet.doGet(request, response);
 
-    verify(mockSpec, mockResource, mockResource2);
+    verify(mockSpec, mockResource);
 
     assertEquals(resourceContent, getWriterOutput());
   }
@@ -196,8 +284,10 @@ public class GadgetSpecServletTest {
 
     GadgetSpec mockSpec = createMock(GadgetSpec.class);
 
-    expect(mockSpec.getCssResources()).andReturn(null);
+    expect(mockSpec.getResource("foo.css")).andReturn(null);
     expect(registry.getGadgetSpec("-1")).andReturn(mockSpec);
+    expect(registry.getResourceFile("-1", "foo.css")).andReturn(null);
+    expect(registry.getSerializedResource("-1", "foo.css")).andReturn(null);
     replay(registry, mockSpec);
 
     servlet.doGet(request, response);
@@ -205,6 +295,559 @@ public class GadgetSpecServletTest {
     verify(mockSpec);
   }
 
+  /**
+   * Test that GET /gadgetspec/{id} returns validators for the spec
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testGetSpecValidators() throws Exception {
+    expectRequestAndStreamResponse("/-1");
+    SerializedContent serialized = SerializedContent.fromJSON(new JSONObject("{'foo':'bar'}"),
+            123000L);
+    response.setHeader("ETag", serialized.getETag());
+    expectLastCall().once();
+    response.setDateHeader("Last-Modified", 123000L);
+    expectLastCall().once();
+    response.setHeader("Cache-Control", "public, no-cache");
+    expectLastCall().once();
+    niceControl.replay();
+
+    expect(registry.getGadgetSpec("-1")).andReturn(createMock(GadgetSpec.class));
+    expect(registry.getSerializedGadgetSpec("-1")).andReturn(serialized);
+    replay(registry);
+
+    servlet.doGet(request, response);
+  }
+
+  /**
+   * Test GET /gadgetspec/specTree with a matching If-None-Match header
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testGetSpecTreeNotModified() throws Exception {
+    SerializedContent serialized = SerializedContent.fromJSON(new JSONArray(), 123000L);
+    expect(request.getMethod()).andStubReturn("GET");
+    expect(request.getPathInfo()).andStubReturn("/specTree");
+    expect(request.getHeader("If-None-Match")).andStubReturn(
+            "\"foo\", W/" + serialized.getETag());
+    response.setStatus(304);
+    expectLastCall().once();
+    niceControl.replay();
+
+    expect(registry.getSerializedSpecTree()).andReturn(serialized);
+    replay(registry);
+
+    servlet.doGet(request, response);
+  }
+
+  /**
+   * Test GET /gadgetspec/specTree with a non-matching If-None-Match header, which takes precedence
+   * over If-Modified-Since
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testGetSpecTreeModified() throws Exception {
+    SerializedContent serialized = SerializedContent.fromJSON(new JSONArray(), 123000L);
+    expectRequestAndStreamResponse("/specTree");
+    expect(request.getHeader("If-None-Match")).andStubReturn("\"foo\"");
+    expect(request.getDateHeader("If-Modified-Since")).andStubReturn(124000L);
+    niceControl.replay();
+
+    expect(registry.getSerializedSpecTree()).andReturn(serialized);
+    replay(registry);
+
+    servlet.doGet(request, response);
+
+    assertEquals(new JSONArray(), new JSONArray(getWriterOutput()));
+  }
+
+  /**
+   * Test GET /gadgetspec/{id}/{resourceName} with an If-Modified-Since header
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testGetResourceNotModifiedSince() throws Exception {
+    SerializedContent serialized = new SerializedContent("<Module/>".getBytes("UTF-8"),
+            "application/xml", 123456L);
+    expect(request.getMethod()).andStubReturn("GET");
+    expect(request.getPathInfo()).andStubReturn("/-1/gadget.xml");
+    expect(request.getDateHeader("If-Modified-Since")).andStubReturn(123000L);
+    response.setHeader("ETag", serialized.getETag());
+    expectLastCall().once();
+    response.setStatus(304);
+    expectLastCall().once();
+    niceControl.replay();
+
+    expect(registry.getGadgetSpec("-1")).andReturn(createMock(GadgetSpec.class));
+    expect(registry.getResourceFile("-1", "gadget.xml")).andReturn(null);
+    expect(registry.getSerializedResource("-1", "gadget.xml")).andReturn(serialized);
+    replay(registry);
+
+    servlet.doGet(request, response);
+  }
+
+  /**
+   * Test GET /gadgetspec/{id}/{resourceName} for a temp spec resource that is not plain ASCII
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testGetTempResourceContentLength() throws Exception {
+    String resourceContent = "Gr\u00fc\u00dfe \u2603";
+    expectRequestAndStreamResponse("/-1/foo.js", "application/javascript");
+    response.setContentLength(resourceContent.getBytes("UTF-8").length);
+    expectLastCall().once();
+    niceControl.replay();
+
+    GadgetSpec mockSpec = createMock(GadgetSpec.class);
+    GadgetResource mockResource = createMock(GadgetResource.class);
+    expect(mockResource.getContent()).andReturn(resourceContent);
+    expect(mockResource.getContentType()).andReturn("application/javascript");
+    expect(mockResource.getLastModified()).andReturn(0L);
+    expect(mockSpec.getResource("foo.js")).andReturn(mockResource);
+    TempGadgetSpecStore tempSpecs = createMock(TempGadgetSpecStore.class);
+    expect(tempSpecs.get("-1")).andReturn(mockSpec);
+    servlet.setTempSpecStore(tempSpecs);
+    replay(registry, mockSpec, mockResource, tempSpecs);
+
+    servlet.doGet(request, response);
+
+    verify(mockSpec, mockResource, tempSpecs);
+    assertEquals(resourceContent, getWriterOutput());
+  }
+
+  /**
+   * Test GET /gadgetspec/specTree from a client that accepts gzip
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testGetSpecTreeGzip() throws Exception {
+    JSONArray specTreeJson = createLargeSpecTree();
+    SerializedContent serialized = SerializedContent.fromJSON(specTreeJson, 0, true);
+    assertTrue(serialized.hasGzip());
+    expectRequestAndStreamResponse("/specTree");
+    expect(request.getHeader("Accept-Encoding")).andStubReturn("deflate, gzip;q=0.8");
+    response.setHeader("Vary", "Accept-Encoding");
+    expectLastCall().once();
+    response.setHeader("Content-Encoding", "gzip");
+    expectLastCall().once();
+    response.setHeader("ETag", serialized.getGzipETag());
+    expectLastCall().once();
+    response.setContentLength(serialized.getGzipLength());
+    expectLastCall().once();
+    niceControl.replay();
+
+    expect(registry.getSerializedSpecTree()).andReturn(serialized);
+    replay(registry);
+
+    servlet.doGet(request, response);
+
+    assertTrue(stream.size() < serialized.getLength());
+    GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(stream.toByteArray()));
+    assertEquals(specTreeJson, new JSONArray(CharStreams.toString(
+            new InputStreamReader(gzip, "UTF-8"))));
+  }
+
+  /**
+   * Test GET /gadgetspec/specTree from a client that refuses gzip
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testGetSpecTreeGzipRefused() throws Exception {
+    JSONArray specTreeJson = createLargeSpecTree();
+    SerializedContent serialized = SerializedContent.fromJSON(specTreeJson, 0, true);
+    expectRequestAndStreamResponse("/specTree");
+    expect(request.getHeader("Accept-Encoding")).andStubReturn("gzip;q=0, *");
+    response.setHeader("Vary", "Accept-Encoding");
+    expectLastCall().once();
+    response.setHeader("ETag", serialized.getETag());
+    expectLastCall().once();
+    response.setContentLength(serialized.getLength());
+    expectLastCall().once();
+    niceControl.replay();
+
+    expect(registry.getSerializedSpecTree()).andReturn(serialized);
+    replay(registry);
+
+    servlet.doGet(request, response);
+
+    assertEquals(specTreeJson, new JSONArray(getWriterOutput()));
+  }
+
+  /**
+   * Test GET /gadgetspec/{id}/{resourceName} with a Range header
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testGetResourceRange() throws Exception {
+    String content = createLargeSpecTree().toString();
+    SerializedContent serialized = new SerializedContent(content.getBytes("UTF-8"),
+            "application/javascript", 0, true);
+    assertTrue(serialized.hasGzip());
+    expectRequestAndStreamResponse("/-1/foo.js", "application/javascript");
+    expect(request.getHeader("Range")).andStubReturn("bytes=10-19");
+    expect(request.getHeader("Accept-Encoding")).andStubReturn("gzip");
+    response.setStatus(206);
+    expectLastCall().once();
+    response.setHeader("Content-Range", "bytes 10-19/" + serialized.getLength());
+    expectLastCall().once();
+    response.setHeader("ETag", serialized.getETag());
+    expectLastCall().once();
+    response.setContentLength(10);
+    expectLastCall().once();
+    niceControl.replay();
+
+    expect(registry.getGadgetSpec("-1")).andReturn(createMock(GadgetSpec.class));
+    expect(registry.getResourceFile("-1", "foo.js")).andReturn(null);
+    expect(registry.getSerializedResource("-1", "foo.js")).andReturn(serialized);
+    replay(registry);
+
+    servlet.doGet(request, response);
+
+    // Ranges are never compressed
+    assertEquals(content.substring(10, 20), getWriterOutput());
+  }
+
+  /**
+   * Test GET /gadgetspec/{id}/{resourceName} with a Range header beyond the end of the content
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testGetResourceRangeNotSatisfiable() throws Exception {
+    SerializedContent serialized = new SerializedContent("<Module/>".getBytes("UTF-8"),
+            "application/xml", 0);
+    expect(request.getMethod()).andStubReturn("GET");
+    expect(request.getPathInfo()).andStubReturn("/-1/gadget.xml");
+    expect(request.getHeader("Range")).andStubReturn("bytes=100-");
+    response.setStatus(416);
+    expectLastCall().once();
+    response.setHeader("Content-Range", "bytes */9");
+    expectLastCall().once();
+    response.setContentLength(0);
+    expectLastCall().once();
+    niceControl.replay();
+
+    expect(registry.getGadgetSpec("-1")).andReturn(createMock(GadgetSpec.class));
+    expect(registry.getResourceFile("-1", "gadget.xml")).andReturn(null);
+    expect(registry.getSerializedResource("-1", "gadget.xml")).andReturn(serialized);
+    replay(registry);
+
+    servlet.doGet(request, response);
+  }
+
+  /**
+   * Test GET /gadgetspec/{id}/{resourceName} for a resource that is sent from a file
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testGetResourceFromFile() throws Exception {
+    File file = File.createTempFile("spec", ".js");
+    try {
+      String content = "var foo = 'bar';";
+      Files.write(content, file, Charsets.UTF_8);
+      FileContent fileContent = new FileContent(file, "application/javascript", "abc", 0,
+              file.length());
+      expectRequestAndStreamResponse("/-1/foo.js", "application/javascript");
+      expect(request.getHeader("Range")).andStubReturn("bytes=-5");
+      response.setCharacterEncoding("UTF-8");
+      expectLastCall().once();
+      response.setStatus(206);
+      expectLastCall().once();
+      response.setHeader("Content-Range", "bytes 11-15/16");
+      expectLastCall().once();
+      response.setHeader("ETag", "\"abc\"");
+      expectLastCall().once();
+      response.setHeader("Vary", "Accept-Encoding");
+      expectLastCall().once();
+      niceControl.replay();
+
+      expect(registry.getGadgetSpec("-1")).andReturn(createMock(GadgetSpec.class));
+      expect(registry.getResourceFile("-1", "foo.js")).andReturn(fileContent);
+      replay(registry);
+
+      servlet.doGet(request, response);
+
+      assertEquals("bar';", getWriterOutput());
+    } finally {
+      file.delete();
+    }
+  }
+
+  /**
+   * Test GET /gadgetspec/{id}/{resourceName} for a binary resource that is sent from a file
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testGetBinaryResourceFromFile() throws Exception {
+    File file = File.createTempFile("spec", ".png");
+    try {
+      Files.write(new byte[] { (byte) 0x89, 'P', 'N', 'G' }, file);
+      FileContent fileContent = new FileContent(file, "application/octet-stream", "abc", 0,
+              file.length());
+      expectRequestAndStreamResponse("/-1/foo.png", "application/octet-stream");
+      response.setCharacterEncoding((String) anyObject());
+      expectLastCall().andThrow(new AssertionError("Binary content must not have a charset"))
+              .anyTimes();
+      niceControl.replay();
+
+      expect(registry.getGadgetSpec("-1")).andReturn(createMock(GadgetSpec.class));
+      expect(registry.getResourceFile("-1", "foo.png")).andReturn(fileContent);
+      replay(registry);
+
+      servlet.doGet(request, response);
+
+      assertArrayEquals(Files.toByteArray(file), stream.toByteArray());
+    } finally {
+      file.delete();
+    }
+  }
+
+  /**
+   * Test PATCH /gadgetspec/{id}
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testPatchSpec() throws Exception {
+    TempGadgetSpecStore tempSpecs = new DefaultTempGadgetSpecStore(1000, 0, 0, 0);
+    servlet.setTempSpecStore(tempSpecs);
+    GadgetSpec base = new TempGadgetSpecParser().parse(new StringReader("{'title':'testing',"
+            + "'cssResources':[],'jsResources':[],'htmlResources':[],"
+            + "'gadgetResource':{'content':'<Module/>','name':'gadget.xml'}}"), null);
+    tempSpecs.put(base);
+
+    expectRequestAndResponse("PATCH", "/" + base.getId());
+    String patchBody = "{'gadgetResource':{'name':'gadget.xml',"
+            + "'edits':[{'start':7,'end':7,'text':' title=\\'x\\''}]}}";
+    expect(request.getReader()).andReturn(new BufferedReader(new StringReader(patchBody)));
+    expect(request.getContentType()).andStubReturn("application/json");
+    niceControl.replay();
+    replay(registry);
+
+    servlet.service(request, response);
+
+    String id = new JSONObject(getWriterOutput()).getString("id");
+    assertEquals("<Module title='x'/>", tempSpecs.get(id).getGadgetResource().getContent());
+    assertNotNull(tempSpecs.get(base.getId()));
+  }
+
+  /**
+   * Test PATCH /gadgetspec/{id} for a spec that does not exist
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testPatchSpecNotFound() throws Exception {
+    expect(request.getMethod()).andStubReturn("PATCH");
+    expect(request.getPathInfo()).andStubReturn("/-1");
+    expect(request.getContentType()).andStubReturn("application/json");
+    response.sendError(eq(404), isA(String.class));
+    expectLastCall().once();
+    niceControl.replay();
+    expect(registry.getGadgetSpec("-1")).andReturn(null);
+    replay(registry);
+
+    servlet.service(request, response);
+  }
+
+  /**
+   * Test GET /gadgetspec/batch
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testGetBatch() throws Exception {
+    TempGadgetSpecParser parser = new TempGadgetSpecParser();
+    GadgetSpec spec = parser.parse(new StringReader("{'title':'testing',"
+            + "'cssResources':[{'content':'a {}','name':'a.css'}],'jsResources':[],"
+            + "'gadgetResource':{'content':'<Module/>','name':'gadget.xml'},'htmlResources':[]}"),
+            null);
+    TempGadgetSpecStore tempSpecs = new DefaultTempGadgetSpecStore(1000, 0, 0, 0);
+    servlet.setTempSpecStore(tempSpecs);
+    tempSpecs.put(spec);
+    String cssHash = spec.getResource("a.css").getContentHash();
+
+    expectRequestAndResponse("/batch");
+    expect(request.getParameter("ids")).andStubReturn(spec.getId() + ",missing," + spec.getId());
+    expect(request.getParameter("have")).andStubReturn(cssHash);
+    niceControl.replay();
+    expect(registry.getGadgetSpec("missing")).andReturn(null);
+    replay(registry);
+
+    servlet.doGet(request, response);
+
+    JSONArray batch = new JSONArray(getWriterOutput());
+    assertEquals(3, batch.length());
+    assertNull(batch.get(1));
+    JSONObject json = batch.getJSONObject(0);
+    assertEquals(spec.getId(), json.getString("id"));
+    assertEquals("testing", json.getString("title"));
+    JSONObject gadget = json.getJSONObject("gadgetResource");
+    assertEquals("<Module/>", gadget.getString("content"));
+    assertEquals(spec.getGadgetResource().getContentHash(), gadget.getString("contentHash"));
+    JSONObject css = json.getJSONArray("cssResources").getJSONObject(0);
+    assertEquals("a.css", css.getString("name"));
+    assertEquals(cssHash, css.getString("contentHash"));
+    assertFalse(css.has("content"));
+    assertEquals(json, batch.getJSONObject(2));
+  }
+
+  /**
+   * Test POST /gadgetspec/batch
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testPostBatch() throws Exception {
+    TempGadgetSpecParser parser = new TempGadgetSpecParser();
+    GadgetSpec spec = parser.parse(new StringReader("{'title':'testing',"
+            + "'cssResources':[{'content':'a {}','name':'a.css'}],'jsResources':[],"
+            + "'gadgetResource':{'content':'<Module/>','name':'gadget.xml'},'htmlResources':[]}"),
+            null);
+    TempGadgetSpecStore tempSpecs = new DefaultTempGadgetSpecStore(1000, 0, 0, 0);
+    servlet.setTempSpecStore(tempSpecs);
+    tempSpecs.put(spec);
+    String cssHash = spec.getResource("a.css").getContentHash();
+
+    expectRequestAndResponse("POST", "/batch");
+    expect(request.getContentType()).andStubReturn("application/json");
+    expect(request.getReader()).andReturn(new BufferedReader(new StringReader("{'ids':['"
+            + spec.getId() + "','missing'],'have':['" + cssHash + "']}")));
+    niceControl.replay();
+    expect(registry.getGadgetSpec("missing")).andReturn(null);
+    replay(registry);
+
+    servlet.doPost(request, response);
+
+    JSONArray batch = new JSONArray(getWriterOutput());
+    assertEquals(2, batch.length());
+    assertNull(batch.get(1));
+    JSONObject json = batch.getJSONObject(0);
+    assertEquals(spec.getId(), json.getString("id"));
+    assertEquals("<Module/>", json.getJSONObject("gadgetResource").getString("content"));
+    assertFalse(json.getJSONArray("cssResources").getJSONObject(0).has("content"));
+    // Nothing was stored
+    assertEquals(1, tempSpecs.size());
+  }
+
+  /**
+   * Test POST /gadgetspec/batch with too many content hashes
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testPostBatchWithTooManyHashes() throws Exception {
+    StringBuilder body = new StringBuilder("{'ids':['123'],'have':['0'");
+    for (int i = 1; i <= 2000; i++) {
+      body.append(",'").append(i).append('\'');
+    }
+    body.append("]}");
+    expect(request.getMethod()).andStubReturn("POST");
+    expect(request.getPathInfo()).andStubReturn("/batch");
+    expect(request.getContentType()).andStubReturn("application/json");
+    expect(request.getReader()).andReturn(new BufferedReader(new StringReader(body.toString())));
+    response.sendError(eq(400), isA(String.class));
+    expectLastCall().once();
+    niceControl.replay();
+    replay(registry);
+
+    servlet.doPost(request, response);
+  }
+
+  /**
+   * Test GET /gadgetspec/batch without ids
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testGetBatchWithoutIds() throws Exception {
+    expect(request.getMethod()).andStubReturn("GET");
+    expect(request.getPathInfo()).andStubReturn("/batch");
+    response.sendError(eq(400), isA(String.class));
+    expectLastCall().once();
+    niceControl.replay();
+    replay(registry);
+
+    servlet.doGet(request, response);
+  }
+
+  /**
+   * Test GET /gadgetspec/search
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testSearch() throws Exception {
+    expectRequestAndStreamResponse("/search");
+    expect(request.getParameter("q")).andStubReturn("hello wor");
+    expect(request.getParameter("offset")).andStubReturn("10");
+    expect(request.getParameter("limit")).andStubReturn("5");
+    niceControl.replay();
+
+    GadgetSpec mockSpec = createMock(GadgetSpec.class);
+    expect(mockSpec.getId()).andStubReturn("123");
+    expect(mockSpec.getTitle()).andStubReturn("Hello World");
+    expect(mockSpec.getPathToSpec()).andStubReturn("specs/hello/spec.json");
+    replay(mockSpec);
+    expect(registry.search("hello wor", 10, 5)).andReturn(new SearchResults("hello wor", 11, 10,
+            ImmutableList.of(new SearchResults.Hit(mockSpec, 2.5f))));
+    expect(registry.getSerializedSpecTree()).andReturn(
+            SerializedContent.fromJSON(new JSONArray(), 0));
+    replay(registry);
+
+    servlet.doGet(request, response);
+
+    JSONObject json = new JSONObject(getWriterOutput());
+    assertEquals("hello wor", json.getString("query"));
+    assertEquals(11, json.getInt("total"));
+    assertEquals(10, json.getInt("offset"));
+    JSONArray results = json.getJSONArray("results");
+    assertEquals(1, results.length());
+    assertEquals("123", results.getJSONObject(0).getString("id"));
+    assertEquals("Hello World", results.getJSONObject(0).getString("title"));
+    assertEquals("specs/hello/spec.json", results.getJSONObject(0).getString("path"));
+    assertEquals(2.5, ((Number) results.getJSONObject(0).get("score")).doubleValue(),
+            0.001);
+  }
+
+  /**
+   * Test GET /gadgetspec/search with invalid parameters
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testSearchInvalid() throws Exception {
+    String[][] invalid = { { null, null }, { "  ", null }, { "a", "x" }, { "a", "0" },
+            { "a", "101" } };
+    for (String[] params : invalid) {
+      IMocksControl control = EasyMock.createNiceControl();
+      HttpServletRequest request = control.createMock(HttpServletRequest.class);
+      HttpServletResponse response = control.createMock(HttpServletResponse.class);
+      expect(request.getMethod()).andStubReturn("GET");
+      expect(request.getPathInfo()).andStubReturn("/search");
+      expect(request.getParameter("q")).andStubReturn(params[0]);
+      expect(request.getParameter("limit")).andStubReturn(params[1]);
+      response.sendError(eq(400), isA(String.class));
+      expectLastCall().once();
+      control.replay();
+
+      servlet.doGet(request, response);
+      control.verify();
+    }
+    niceControl.replay();
+    replay(registry);
+  }
+
   /**
    * Test POST /gadgetspec
    * 
@@ -212,6 +855,8 @@ public class GadgetSpecServletTest {
    */
   @Test
   public void testPostSpec() throws Exception {
+    TempGadgetSpecStore tempSpecs = new DefaultTempGadgetSpecStore(1000, 0, 0, 0);
+    servlet.setTempSpecStore(tempSpecs);
     expectRequestAndResponse("POST", "");
     String postBody = "{'title':'testing',"
             + "'cssResources':[{'content':'csscontentstring','name':'cssfilename.css'}],"
@@ -230,10 +875,8 @@ public class GadgetSpecServletTest {
     JSONObject responseJson = new JSONObject(getWriterOutput());
     assertTrue(responseJson.has("id"));
 
-    Map<String, GadgetSpec> tempSpecs = Whitebox.<Map<String, GadgetSpec>> getInternalState(
-            servlet, "tempSpecs");
     String id = responseJson.getString("id");
-    assertTrue(tempSpecs.containsKey(id));
+    assertNotNull(tempSpecs.get(id));
   }
 
   /**
@@ -243,25 +886,49 @@ public class GadgetSpecServletTest {
    */
   @Test
   public void testGetTempSpec() throws Exception {
-    expectRequestAndResponse("/-1");
+    expectRequestAndStreamResponse("/-1");
     niceControl.replay();
     
     GadgetSpec mockSpec = createMock(GadgetSpec.class);
     JSONObject defaultGadgetJson = new JSONObject("{'foo':'bar'}");
     expect(mockSpec.toJSON()).andReturn(defaultGadgetJson);
-    Map<String, GadgetSpec> tempSpecs = Maps.newConcurrentMap();
-    tempSpecs.put("-1", mockSpec);
-    Whitebox.setInternalState(servlet, "tempSpecs", tempSpecs);
+    expect(mockSpec.getLastModified()).andReturn(0L);
+    TempGadgetSpecStore tempSpecs = createMock(TempGadgetSpecStore.class);
+    expect(tempSpecs.get("-1")).andReturn(mockSpec);
+    servlet.setTempSpecStore(tempSpecs);
     
-    replay(registry, mockSpec);
+    replay(registry, mockSpec, tempSpecs);
     
     servlet.doGet(request, response);
        
-    verify(mockSpec);
+    verify(mockSpec, tempSpecs);
     
     assertEquals(defaultGadgetJson, new JSONObject(getWriterOutput()));
   }
 
+  /**
+   * Test POST /gadgetspec with a resource larger than the configured limit
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testPostSpecTooLarge() throws Exception {
+    servlet.setSpecParser(new TempGadgetSpecParser(10, 0));
+    String postBody = "{'title':'testing','cssResources':[],'jsResources':[],'htmlResources':[],"
+            + "'gadgetResource':{'content':'<Module>too long</Module>','name':'gadget.xml'}}";
+    expect(request.getReader()).andReturn(new BufferedReader(new StringReader(postBody)));
+    expect(request.getContentType()).andReturn("application/json");
+    expect(request.getMethod()).andStubReturn("POST");
+
+    response.sendError(eq(413), isA(String.class));
+    expectLastCall().once();
+
+    niceControl.replay();
+    replay(registry);
+
+    servlet.doPost(request, response);
+  }
+
   /**
    * Test POST /gadgetspec with bad JSON
    * 
@@ -342,6 +1009,7 @@ public class GadgetSpecServletTest {
     expect(mockSpec.toJSON()).andThrow(new JSONException("This is not JSON"));
 
     expect(registry.getGadgetSpec("-1")).andReturn(mockSpec);
+    expect(registry.getSerializedGadgetSpec("-1")).andReturn(null);
     replay(registry, mockSpec);
 
     servlet.doGet(request, response);
@@ -349,52 +1017,6 @@ public class GadgetSpecServletTest {
     verify(mockSpec);
   }
 
-  /**
-   * Test the findResource method, to ensure that it can handle all required content types
-   * 
-   * @throws Exception
-   */
-  @Test
-  public void testFindResource() throws Exception {
-    GadgetSpec mockSpec = createMock(GadgetSpec.class);
-    Map<String, GadgetResource> jsResources, htmlResources, cssResources;
-    jsResources = Maps.newLinkedHashMap();
-    htmlResources = Maps.newLinkedHashMap();
-    cssResources = Maps.newLinkedHashMap();
-
-    GadgetResource jsResource = createMock(GadgetResource.class);
-    expect(jsResource.getName()).andReturn("foo.js");
-    jsResources.put("foo.js", jsResource);
-
-    GadgetResource htmlResource = createMock(GadgetResource.class);
-    expect(htmlResource.getName()).andReturn("bar.html");
-    htmlResources.put("bar.html", htmlResource);
-
-    GadgetResource cssResource = createMock(GadgetResource.class);
-    expect(cssResource.getName()).andReturn("baz.css");
-    cssResources.put("baz.css", cssResource);
-
-    GadgetResource xmlResource = createMock(GadgetResource.class);
-    expect(xmlResource.getName()).andReturn("gadget.xml").atLeastOnce();
-
-    expect(mockSpec.getJsResources()).andReturn(jsResources);
-    expect(mockSpec.getHtmlResources()).andReturn(htmlResources);
-    expect(mockSpec.getCssResources()).andReturn(cssResources);
-    expect(mockSpec.getGadgetResource()).andReturn(xmlResource).atLeastOnce();
-
-    replay(mockSpec, jsResource, htmlResource, cssResource, xmlResource, registry);
-    niceControl.replay();
-
-    assertEquals(jsResource, servlet.findResource(mockSpec, "foo.js"));
-    assertEquals(htmlResource, servlet.findResource(mockSpec, "bar.html"));
-    assertEquals(cssResource, servlet.findResource(mockSpec, "baz.css"));
-    assertEquals(xmlResource, servlet.findResource(mockSpec, "gadget.xml"));
-    assertNull(servlet.findResource(mockSpec, "foo.bar"));
-
-    verify(mockSpec, jsResource, htmlResource, cssResource, xmlResource);
-
-  }
-
   /*
    * Convenience method to get a String representation of the content written to response
    */
@@ -404,6 +1026,38 @@ public class GadgetSpecServletTest {
 
   }
 
+  private JSONArray createLargeSpecTree() throws JSONException {
+    JSONArray specTree = new JSONArray();
+    for (int i = 0; i < 50; i++) {
+      JSONObject node = new JSONObject();
+      node.put("id", String.valueOf(i));
+      node.put("name", "Spec " + i);
+      node.put("parent", "root");
+      specTree.add(node);
+    }
+    return specTree;
+  }
+
+  private void expectRequestAndStreamResponse(String requestPath) throws IOException {
+    expectRequestAndStreamResponse(requestPath, "application/json");
+  }
+
+  private void expectRequestAndStreamResponse(String requestPath, String responseContentType)
+          throws IOException {
+    expect(request.getMethod()).andStubReturn("GET");
+    expect(request.getPathInfo()).andStubReturn(requestPath);
+
+    response.setContentType(responseContentType);
+    expectLastCall().once();
+
+    expect(response.getOutputStream()).andReturn(new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        stream.write(b);
+      }
+    }).once();
+  }
+
   private void expectRequestAndResponse(String requestPath) throws IOException {
     expectRequestAndResponse("GET", requestPath);
   }
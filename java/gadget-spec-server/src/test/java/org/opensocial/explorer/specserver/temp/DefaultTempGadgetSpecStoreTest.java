@@ -0,0 +1,193 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.opensocial.explorer.specserver.temp;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opensocial.explorer.specserver.ResourceContentPool;
+import org.opensocial.explorer.specserver.api.GadgetResource;
+import org.opensocial.explorer.specserver.api.GadgetSpec;
+
+import com.google.common.base.Strings;
+import com.google.common.base.Ticker;
+
+public class DefaultTempGadgetSpecStoreTest {
+
+  private FakeTicker ticker;
+
+  @Before
+  public void setUp() throws Exception {
+    ticker = new FakeTicker();
+  }
+
+  @Test
+  public void testPutAndGet() throws Exception {
+    DefaultTempGadgetSpecStore store = new DefaultTempGadgetSpecStore(0, 0, 0, 0, ticker);
+    GadgetSpec spec = createSpec("content");
+    String id = store.put(spec);
+
+    assertEquals(spec.getId(), id);
+    assertSame(spec, store.get(id));
+    assertNull(store.get("does-not-exist"));
+    assertEquals(1, store.size());
+    assertEquals(1, store.getHitCount());
+    assertEquals(1, store.getMissCount());
+    assertEquals(0, store.getEvictionCount());
+  }
+
+  @Test
+  public void testRemove() throws Exception {
+    DefaultTempGadgetSpecStore store = new DefaultTempGadgetSpecStore(0, 0, 0, 0, ticker);
+    String id = store.put(createSpec("content"));
+    store.remove(id);
+
+    assertNull(store.get(id));
+    assertEquals(0, store.size());
+    assertEquals(0, store.getTotalBytes());
+  }
+
+  @Test
+  public void testMaxEntriesEvictsLeastRecentlyUsed() throws Exception {
+    DefaultTempGadgetSpecStore store = new DefaultTempGadgetSpecStore(2, 0, 0, 0, ticker);
+    String first = store.put(createSpec("first"));
+    String second = store.put(createSpec("second"));
+
+    // Touch the first spec so the second one becomes the eldest
+    assertNotNull(store.get(first));
+    String third = store.put(createSpec("third"));
+
+    assertEquals(2, store.size());
+    assertNotNull(store.get(first));
+    assertNull(store.get(second));
+    assertNotNull(store.get(third));
+    assertEquals(1, store.getEvictionCount());
+  }
+
+  @Test
+  public void testMaxBytes() throws Exception {
+    GadgetSpec big = createSpec(Strings.repeat("a", 1000));
+    long weight = DefaultTempGadgetSpecStore.weigh(big);
+    DefaultTempGadgetSpecStore store = new DefaultTempGadgetSpecStore(0, weight * 2, 0, 0, ticker);
+
+    String first = store.put(big);
+    String second = store.put(createSpec(Strings.repeat("b", 1000)));
+    assertEquals(2, store.size());
+    assertEquals(weight * 2, store.getTotalBytes());
+
+    String third = store.put(createSpec(Strings.repeat("c", 1000)));
+    assertEquals(2, store.size());
+    assertNull(store.get(first));
+    assertNotNull(store.get(second));
+    assertNotNull(store.get(third));
+  }
+
+  @Test
+  public void testOversizedSpecIsKept() throws Exception {
+    DefaultTempGadgetSpecStore store = new DefaultTempGadgetSpecStore(0, 10, 0, 0, ticker);
+    String first = store.put(createSpec(Strings.repeat("a", 100)));
+    String second = store.put(createSpec(Strings.repeat("b", 100)));
+
+    assertEquals(1, store.size());
+    assertNull(store.get(first));
+    assertNotNull(store.get(second));
+  }
+
+  @Test
+  public void testIdleExpiration() throws Exception {
+    DefaultTempGadgetSpecStore store = new DefaultTempGadgetSpecStore(0, 0, 60, 0, ticker);
+    String first = store.put(createSpec("first"));
+    String second = store.put(createSpec("second"));
+
+    ticker.advance(45, TimeUnit.SECONDS);
+    assertNotNull(store.get(first));
+    ticker.advance(45, TimeUnit.SECONDS);
+
+    assertNotNull(store.get(first));
+    assertNull(store.get(second));
+    assertEquals(1, store.getEvictionCount());
+  }
+
+  @Test
+  public void testMaxAgeExpiration() throws Exception {
+    DefaultTempGadgetSpecStore store = new DefaultTempGadgetSpecStore(0, 0, 60, 100, ticker);
+    String id = store.put(createSpec("content"));
+
+    for (int i = 0; i < 5; i++) {
+      ticker.advance(30, TimeUnit.SECONDS);
+      if (i < 3) {
+        assertNotNull(store.get(id));
+      }
+    }
+    assertNull(store.get(id));
+    assertEquals(0, store.size());
+  }
+
+  @Test
+  public void testExpiredSpecsAreSweptOnPut() throws Exception {
+    DefaultTempGadgetSpecStore store = new DefaultTempGadgetSpecStore(0, 0, 60, 0, ticker);
+    store.put(createSpec("first"));
+    ticker.advance(2, TimeUnit.MINUTES);
+    store.put(createSpec("second"));
+
+    assertEquals(1, store.size());
+    assertEquals(1, store.getEvictionCount());
+  }
+
+  @Test
+  public void testEvictedSpecsAreReleased() throws Exception {
+    ResourceContentPool pool = new ResourceContentPool();
+    DefaultTempGadgetSpecStore store = new DefaultTempGadgetSpecStore(1, 0, 0, 0, ticker);
+    store.put(createSpec("first", pool));
+    assertEquals(1, pool.size());
+
+    store.put(createSpec("second", pool));
+    assertEquals(1, pool.size());
+    assertEquals(0, pool.getReferenceCount(ResourceContentPool.digest("first")));
+
+    store.remove(store.put(createSpec("third", pool)));
+    assertEquals(0, pool.size());
+  }
+
+  private GadgetSpec createSpec(String content, ResourceContentPool pool) {
+    GadgetResource gadget = new TempGadgetResource("gadget.xml", content, pool);
+    return new TempGadgetSpec("title", gadget, null, null, null);
+  }
+
+  private GadgetSpec createSpec(String content) {
+    GadgetResource gadget = new TempGadgetResource("gadget.xml", content);
+    return new TempGadgetSpec("title", gadget, null, null, null);
+  }
+
+  private static class FakeTicker extends Ticker {
+    private long nanos;
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+
+    public void advance(long time, TimeUnit unit) {
+      nanos += unit.toNanos(time);
+    }
+  }
+}
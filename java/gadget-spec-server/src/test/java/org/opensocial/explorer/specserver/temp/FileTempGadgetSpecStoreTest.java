@@ -0,0 +1,198 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.opensocial.explorer.specserver.temp;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensocial.explorer.specserver.ResourceContentPool;
+import org.opensocial.explorer.specserver.api.GadgetResource;
+import org.opensocial.explorer.specserver.api.GadgetSpec;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+
+public class FileTempGadgetSpecStoreTest {
+
+  private File directory;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = Files.createTempDir();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    for (File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  @Test
+  public void testPutAndGet() throws Exception {
+    FileTempGadgetSpecStore store = createStore(0);
+    GadgetSpec spec = createSpec("content");
+    String id = store.put(spec);
+
+    assertEquals(spec.getId(), id);
+    assertSame(spec, store.get(id));
+    assertNull(store.get("0123"));
+    assertEquals(1, store.size());
+    assertEquals(1, store.getHitCount());
+    assertEquals(1, store.getMissCount());
+  }
+
+  @Test
+  public void testSharedDirectory() throws Exception {
+    GadgetSpec spec = createSpec("content");
+    String id = createStore(0).put(spec);
+
+    // Another server, or this one after a restart
+    ResourceContentPool pool = new ResourceContentPool();
+    FileTempGadgetSpecStore other = new FileTempGadgetSpecStore(directory,
+            new DefaultTempGadgetSpecStore(0, 0, 0, 0), 0, 0, pool);
+    GadgetSpec read = other.get(id);
+    assertNotNull(read);
+    assertEquals(id, read.getId());
+    assertEquals("content", read.getGadgetResource().getContent());
+    assertEquals("a {}", read.getCssResources().get("a.css").getContent());
+    assertSame(read, other.get(id));
+    assertEquals(2, pool.size());
+
+    other.remove(id);
+    assertEquals(0, pool.size());
+    assertNull(createStore(0).get(id));
+  }
+
+  @Test
+  public void testRemovedByAnotherServer() throws Exception {
+    FileTempGadgetSpecStore store = createStore(0);
+    String id = store.put(createSpec("content"));
+    createStore(0).remove(id);
+
+    assertNull(store.get(id));
+    assertEquals(0, store.size());
+  }
+
+  @Test
+  public void testUnwrittenSpecsAreServedFromMemory() throws Exception {
+    FileTempGadgetSpecStore store = createStore(0);
+    directory.delete();
+    try {
+      GadgetSpec spec = createSpec("content");
+      String id = store.put(spec);
+      assertSame(spec, store.get(id));
+      store.remove(id);
+      assertNull(store.get(id));
+    } finally {
+      directory.mkdir();
+    }
+  }
+
+  @Test
+  public void testStoringAgainRestartsMaxAge() throws Exception {
+    FileTempGadgetSpecStore store = new FileTempGadgetSpecStore(directory,
+            new DefaultTempGadgetSpecStore(0, 0, 0, 0), 0, 3600, null);
+    GadgetSpec spec = createSpec("content");
+    String id = store.put(spec);
+    // The spec was first stored two hours ago
+    File file = new File(directory, id + ".spec");
+    byte[] bytes = Files.toByteArray(file);
+    ByteBuffer.wrap(bytes).putLong(4, System.currentTimeMillis() - 2 * 3600 * 1000);
+    Files.write(bytes, file);
+
+    store.put(spec);
+    store.sweep();
+    assertEquals(0, store.getEvictionCount());
+    assertNotNull(createStore(0).get(id));
+  }
+
+  @Test
+  public void testInvalidIds() throws Exception {
+    FileTempGadgetSpecStore store = createStore(0);
+    store.remove("../" + directory.getName());
+    assertTrue(directory.isDirectory());
+    assertNull(store.get("../" + directory.getName()));
+    assertNull(store.get(null));
+    assertEquals(2, store.getMissCount());
+  }
+
+  @Test
+  public void testInvalidFilesAreDeleted() throws Exception {
+    FileTempGadgetSpecStore store = createStore(0);
+    String id = createSpec("content").getId();
+    File file = new File(directory, id + ".spec");
+    Files.write("not a spec", file, Charsets.UTF_8);
+    assertNull(store.get(id));
+    assertFalse(file.exists());
+
+    // A valid spec stored under the wrong ID
+    String otherId = createStore(0).put(createSpec("other"));
+    Files.move(new File(directory, otherId + ".spec"), file);
+    assertNull(store.get(id));
+    assertFalse(file.exists());
+  }
+
+  @Test
+  public void testIdleSpecsExpire() throws Exception {
+    FileTempGadgetSpecStore store = createStore(60);
+    String idle = store.put(createSpec("idle"));
+    String active = store.put(createSpec("active"));
+    new File(directory, idle + ".spec").setLastModified(System.currentTimeMillis() - 120000);
+    store.sweep();
+
+    assertEquals(1, store.size());
+    assertEquals(1, store.getEvictionCount());
+    assertNull(store.get(idle));
+    assertNotNull(store.get(active));
+  }
+
+  @Test
+  public void testSweepDeletesAbandonedTempFiles() throws Exception {
+    FileTempGadgetSpecStore store = createStore(0);
+    File recent = new File(directory, "1.spec.1.tmp");
+    File abandoned = new File(directory, "2.spec.2.tmp");
+    Files.touch(recent);
+    Files.touch(abandoned);
+    abandoned.setLastModified(System.currentTimeMillis() - 2 * 3600 * 1000);
+    store.sweep();
+
+    assertTrue(recent.exists());
+    assertFalse(abandoned.exists());
+  }
+
+  private FileTempGadgetSpecStore createStore(long idleSeconds) throws IOException {
+    return new FileTempGadgetSpecStore(directory, new DefaultTempGadgetSpecStore(0, 0, 0, 0),
+            idleSeconds, 0, null);
+  }
+
+  private GadgetSpec createSpec(String content) {
+    GadgetResource gadget = new TempGadgetResource("gadget.xml", content);
+    GadgetResource css = new TempGadgetResource("a.css", "a {}");
+    return new TempGadgetSpec("title", gadget, ImmutableMap.of("a.css", css), null, null);
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.opensocial.explorer.specserver.temp;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.opensocial.explorer.specserver.ResourceContentPool;
+import org.opensocial.explorer.specserver.api.GadgetResource;
+import org.opensocial.explorer.specserver.api.GadgetSpec;
+
+import com.google.common.base.Strings;
+
+public class TempGadgetSpecCodecTest {
+  private static final String SPEC = "{'title':'testing',"
+          + "'cssResources':[{'content':'a {}','name':'a.css'},{'content':'b {}','name':'b.css'}],"
+          + "'jsResources':[{'content':'var a = \\'\\u00e4\\';','name':'a.js'}],"
+          + "'htmlResources':[],"
+          + "'gadgetResource':{'content':'<Module/>','name':'gadget.xml'},"
+          + "'eeResource':{'content':'{}','name':'ee.json'}}";
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    GadgetSpec spec = new TempGadgetSpecParser().parse(new StringReader(SPEC), null);
+    GadgetSpec decoded = decode(encode(spec), null);
+
+    assertEquals(spec.getId(), decoded.getId());
+    assertEquals("testing", decoded.getTitle());
+    assertEquals("<Module/>", decoded.getGadgetResource().getContent());
+    assertEquals("{}", decoded.getEEResource().getContent());
+    assertEquals(2, decoded.getCssResources().size());
+    assertEquals("b {}", decoded.getCssResources().get("b.css").getContent());
+    GadgetResource js = decoded.getJsResources().get("a.js");
+    assertEquals("var a = '\u00e4';", js.getContent());
+    assertEquals(spec.getJsResources().get("a.js").getContentHash(), js.getContentHash());
+    assertTrue(decoded.getHtmlResources().isEmpty());
+  }
+
+  @Test
+  public void testNullsAreKept() throws Exception {
+    GadgetSpec spec = new TempGadgetSpec(null, new TempGadgetResource("gadget.xml", "<Module/>"),
+            null, null, null);
+    GadgetSpec decoded = decode(encode(spec), null);
+
+    assertEquals(spec.getId(), decoded.getId());
+    assertNull(decoded.getTitle());
+    assertNull(decoded.getEEResource());
+    assertNull(decoded.getCssResources());
+  }
+
+  @Test
+  public void testEncodingIsCompact() throws Exception {
+    String content = Strings.repeat("x", 1000);
+    GadgetSpec spec = new TempGadgetSpec("t", new TempGadgetResource("g.js", content), null, null,
+            null);
+    // Version, title, gadget resource with a SHA-256 digest, null EE resource and resource maps
+    assertEquals(1 + 3 + (1 + 6 + 33 + 1003) + 1 + 3, encode(spec).length);
+  }
+
+  @Test
+  public void testDecodeWithPool() throws Exception {
+    ResourceContentPool pool = new ResourceContentPool();
+    GadgetSpec spec = new TempGadgetSpecParser().parse(new StringReader(SPEC), pool);
+    TempGadgetSpec decoded = decode(encode(spec), pool);
+
+    GadgetResource css = decoded.getCssResources().get("a.css");
+    assertSame(spec.getCssResources().get("a.css").getContent(), css.getContent());
+    assertEquals(2, pool.getReferenceCount(css.getContentHash()));
+    decoded.release();
+    assertEquals(1, pool.getReferenceCount(css.getContentHash()));
+  }
+
+  @Test
+  public void testTruncatedInput() throws Exception {
+    ResourceContentPool pool = new ResourceContentPool();
+    GadgetSpec spec = new TempGadgetSpecParser().parse(new StringReader(SPEC), null);
+    byte[] bytes = encode(spec);
+    for (int length = 0; length < bytes.length; length += 7) {
+      try {
+        decode(Arrays.copyOf(bytes, length), pool);
+        fail("Decoded " + length + " bytes");
+      } catch (IOException e) {
+        assertEquals(0, pool.size());
+      }
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testUnknownVersion() throws Exception {
+    decode(new byte[] { 99 }, null);
+  }
+
+  private static byte[] encode(GadgetSpec spec) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    TempGadgetSpecCodec.encode(spec, out);
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  private static TempGadgetSpec decode(byte[] bytes, ResourceContentPool pool) throws IOException {
+    return TempGadgetSpecCodec.decode(new DataInputStream(new ByteArrayInputStream(bytes)), pool);
+  }
+}
@@ -0,0 +1,217 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.opensocial.explorer.specserver.temp;
+
+import static org.junit.Assert.*;
+
+import java.io.StringReader;
+
+import org.apache.wink.json4j.JSONException;
+import org.junit.Test;
+import org.opensocial.explorer.specserver.ResourceContentPool;
+import org.opensocial.explorer.specserver.api.GadgetResource;
+import org.opensocial.explorer.specserver.api.GadgetSpec;
+import org.opensocial.explorer.specserver.temp.TempGadgetSpecParser.LimitExceededException;
+
+import com.google.common.base.Strings;
+
+public class TempGadgetSpecParserTest {
+  private static final String SPEC = "{\"title\":\"testing\","
+          + "\"cssResources\":[{\"content\":\"a {}\",\"name\":\"a.css\"},"
+          + "{\"content\":\"b {}\",\"name\":\"b.css\"}],"
+          + "\"jsResources\":[{\"content\":\"var a = 1;\\nvar b = '\\u00e4';\",\"name\":\"a.js\"}],"
+          + "\"gadgetResource\":{\"content\":\"<Module/>\",\"name\":\"gadget.xml\"},"
+          + "\"htmlResources\":[]}";
+
+  private final TempGadgetSpecParser parser = new TempGadgetSpecParser();
+
+  @Test
+  public void testParse() throws Exception {
+    GadgetSpec spec = parser.parse(new StringReader(SPEC), null);
+    assertEquals("testing", spec.getTitle());
+    assertEquals("<Module/>", spec.getGadgetResource().getContent());
+    assertEquals("gadget.xml", spec.getGadgetResource().getName());
+    assertEquals(2, spec.getCssResources().size());
+    assertEquals("b {}", spec.getCssResources().get("b.css").getContent());
+    assertEquals("var a = 1;\nvar b = '\u00e4';", spec.getJsResources().get("a.js").getContent());
+    assertTrue(spec.getHtmlResources().isEmpty());
+    assertNull(spec.getEEResource());
+  }
+
+  @Test
+  public void testUnknownExtensions() throws Exception {
+    String json = SPEC.replace("\"htmlResources\":[]",
+            "'htmlResources':[{'name':'logo.svg','content':'<svg/>'},{'name':'README','content':''}]");
+    GadgetSpec spec = parser.parse(new StringReader(json), null);
+    assertEquals("application/octet-stream", spec.getResource("logo.svg").getContentType());
+    assertEquals("application/octet-stream", spec.getResource("README").getContentType());
+    assertEquals("text/xml", spec.getGadgetResource().getContentType());
+    assertEquals("text/css", spec.getResource("b.css").getContentType());
+  }
+
+  @Test
+  public void testNewlinesArePreserved() throws Exception {
+    String json = SPEC.replace("<Module/>", "<Module>\r\n  <Content/>\n</Module>");
+    GadgetSpec spec = parser.parse(new StringReader(json), null);
+    assertEquals("<Module>\r\n  <Content/>\n</Module>", spec.getGadgetResource().getContent());
+  }
+
+  @Test
+  public void testSingleQuotesAndUnknownMembers() throws Exception {
+    String json = "{ 'title' : 'test', 'extra': {'nested': [1, -2.5e3, true, null, {}]},"
+            + " 'cssResources': [ 'ignored' ], 'jsResources': [], 'htmlResources': [],"
+            + " 'gadgetResource': {'name': 'gadget.xml', 'content': 'it\\'s \"quoted\"', 'x': 1},"
+            + " 'eeResource': {'name': 'ee.json', 'content': '{}'} }  ";
+    GadgetSpec spec = parser.parse(new StringReader(json), null);
+    assertEquals("it's \"quoted\"", spec.getGadgetResource().getContent());
+    assertTrue(spec.getCssResources().isEmpty());
+    assertEquals("{}", spec.getEEResource().getContent());
+  }
+
+  @Test
+  public void testContentLargerThanBuffer() throws Exception {
+    String content = Strings.repeat("line\\twith \\\"escapes\\\"\\n", 2000);
+    String json = SPEC.replace("<Module/>", content);
+    GadgetSpec spec = parser.parse(new StringReader(json), null);
+    assertEquals(Strings.repeat("line\twith \"escapes\"\n", 2000), spec.getGadgetResource()
+            .getContent());
+  }
+
+  @Test(expected = LimitExceededException.class)
+  public void testResourceTooLarge() throws Exception {
+    TempGadgetSpecParser limited = new TempGadgetSpecParser(100, 0);
+    limited.parse(new StringReader(SPEC.replace("<Module/>", Strings.repeat("x", 101))), null);
+  }
+
+  @Test(expected = LimitExceededException.class)
+  public void testSpecTooLarge() throws Exception {
+    TempGadgetSpecParser limited = new TempGadgetSpecParser(0, 10000);
+    limited.parse(new StringReader(SPEC.replace("<Module/>", Strings.repeat("x", 10000))), null);
+  }
+
+  @Test
+  public void testInvalidJSON() throws Exception {
+    String[] invalid = { "", "I'm not JSON", "{\"title\":\"a\"", "{\"title\":\"a\",}",
+        "{\"title\":\"\\x\"}", SPEC + "{}", SPEC.replace("\"htmlResources\":[]", "\"x\":[") };
+    for (String json : invalid) {
+      try {
+        parser.parse(new StringReader(json), null);
+        fail("Parsed " + json);
+      } catch (JSONException e) {
+        assertFalse(e instanceof LimitExceededException);
+      }
+    }
+  }
+
+  @Test
+  public void testMissingMembers() throws Exception {
+    try {
+      parser.parse(new StringReader(SPEC.replace("\"title\":\"testing\",", "")), null);
+      fail();
+    } catch (JSONException e) {
+      assertTrue(e.getMessage().contains("title"));
+    }
+    try {
+      parser.parse(new StringReader(SPEC.replace("\"name\":\"gadget.xml\"", "\"x\":1")), null);
+      fail();
+    } catch (JSONException e) {
+      assertTrue(e.getMessage().contains("name"));
+    }
+  }
+
+  @Test
+  public void testPatch() throws Exception {
+    ResourceContentPool pool = new ResourceContentPool();
+    GadgetSpec base = parser.parse(new StringReader(SPEC), pool);
+    String patch = "{'cssResources':[{'name':'a.css','deleted':true},"
+            + "{'name':'c.css','content':'c {}'}],"
+            + "'jsResources':[{'name':'a.js','edits':[{'start':4,'end':5,'text':'x'},"
+            + "{'start':10,'end':10,'text':'\\n// added'}]}],"
+            + "'gadgetResource':{'name':'gadget.xml','edits':[{'start':7,'end':9}]}}";
+    GadgetSpec patched = parser.parsePatch(new StringReader(patch), base, pool);
+
+    assertEquals("testing", patched.getTitle());
+    assertEquals("<Module", patched.getGadgetResource().getContent());
+    assertEquals("var x = 1;\n// added\nvar b = '\u00e4';", patched.getJsResources().get("a.js")
+            .getContent());
+    assertEquals(2, patched.getCssResources().size());
+    assertNull(patched.getCssResources().get("a.css"));
+    assertEquals("c {}", patched.getCssResources().get("c.css").getContent());
+    GadgetResource shared = patched.getCssResources().get("b.css");
+    assertSame(base.getCssResources().get("b.css").getContent(), shared.getContent());
+    assertEquals(2, pool.getReferenceCount(shared.getContentHash()));
+    assertFalse(base.getId().equals(patched.getId()));
+
+    // The base is unchanged and the specs can be released independently
+    assertEquals("<Module/>", base.getGadgetResource().getContent());
+    ((TempGadgetSpec) base).release();
+    assertEquals(1, pool.getReferenceCount(shared.getContentHash()));
+  }
+
+  @Test
+  public void testEmptyPatch() throws Exception {
+    GadgetSpec base = parser.parse(new StringReader(SPEC), null);
+    GadgetSpec patched = parser.parsePatch(new StringReader("{}"), base, null);
+    assertEquals(base.getId(), patched.getId());
+  }
+
+  @Test
+  public void testInvalidPatches() throws Exception {
+    ResourceContentPool pool = new ResourceContentPool();
+    GadgetSpec base = parser.parse(new StringReader(SPEC), null);
+    String[] invalid = { "{'gadgetResource':{'name':'gadget.xml','deleted':true}}",
+        "{'jsResources':[{'name':'b.js','edits':[{'start':0,'end':0,'text':'x'}]}]}",
+        "{'jsResources':[{'name':'a.js','edits':[{'start':5,'end':6},{'start':0,'end':1}]}]}",
+        "{'jsResources':[{'name':'a.js','edits':[{'start':0,'end':1000}]}]}",
+        "{'jsResources':[{'name':'a.js','edits':[{'end':1}]}]}",
+        "{'jsResources':[{'name':'a.js','content':'x','deleted':true}]}",
+        "{'cssResources':[{'name':'c.css','content':'c {}'}],'jsResources':[{'name':'a.js'}]}" };
+    for (String patch : invalid) {
+      try {
+        parser.parsePatch(new StringReader(patch), base, pool);
+        fail("Applied " + patch);
+      } catch (JSONException e) {
+        assertEquals(0, pool.size());
+      }
+    }
+  }
+
+  @Test(expected = LimitExceededException.class)
+  public void testPatchedResourceTooLarge() throws Exception {
+    TempGadgetSpecParser limited = new TempGadgetSpecParser(20, 0);
+    GadgetSpec base = limited.parse(new StringReader(SPEC), null);
+    limited.parsePatch(new StringReader("{'jsResources':[{'name':'a.js','edits':"
+            + "[{'start':0,'end':0,'text':'0123456789'}]}]}"), base, null);
+  }
+
+  @Test
+  public void testPoolIsOnlyUsedForValidSpecs() throws Exception {
+    ResourceContentPool pool = new ResourceContentPool();
+    try {
+      parser.parse(new StringReader(SPEC.replace("\"title\":\"testing\",", "")), pool);
+      fail();
+    } catch (JSONException e) {
+      assertEquals(0, pool.size());
+    }
+
+    GadgetSpec spec = parser.parse(new StringReader(SPEC), pool);
+    GadgetResource resource = spec.getGadgetResource();
+    assertEquals(1, pool.getReferenceCount(resource.getContentHash()));
+  }
+}
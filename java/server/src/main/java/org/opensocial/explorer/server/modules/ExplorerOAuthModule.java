@@ -23,11 +23,13 @@ import org.apache.shindig.gadgets.oauth.OAuthStore;
 import org.apache.shindig.gadgets.oauth2.OAuth2Module;
 import org.apache.shindig.gadgets.oauth2.OAuth2Store;
 import org.apache.shindig.gadgets.oauth2.persistence.sample.OAuth2PersistenceModule;
+import org.opensocial.explorer.server.oauth.IOAuthPersister;
+import org.opensocial.explorer.server.oauth.OSEOAuthPersisterProvider;
 import org.opensocial.explorer.server.oauth.OSEOAuthStoreProvider;
 import org.opensocial.explorer.server.oauth2.IOAuth2Cache;
 import org.opensocial.explorer.server.oauth2.IOAuth2Persister;
 import org.opensocial.explorer.server.oauth2.OSEInMemoryCache;
-import org.opensocial.explorer.server.oauth2.OSEOAuth2Persister;
+import org.opensocial.explorer.server.oauth2.OSEOAuth2PersisterProvider;
 import org.opensocial.explorer.server.oauth2.OSEOAuth2StoreProvider;
 
 import com.google.inject.AbstractModule;
@@ -53,6 +55,7 @@ public class ExplorerOAuthModule extends AbstractModule {
     @Override
     protected void configure() {
       bind(OAuthStore.class).toProvider(OSEOAuthStoreProvider.class);
+      bind(IOAuthPersister.class).toProvider(OSEOAuthPersisterProvider.class);
     }
   }
   
@@ -67,7 +70,7 @@ public class ExplorerOAuthModule extends AbstractModule {
     @Override
     protected void configure() {
       bind(IOAuth2Cache.class).to(OSEInMemoryCache.class);
-      bind(IOAuth2Persister.class).to(OSEOAuth2Persister.class);
+      bind(IOAuth2Persister.class).toProvider(OSEOAuth2PersisterProvider.class);
     }
   }
 }
@@ -0,0 +1,78 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.opensocial.explorer.server.oauth;
+
+import java.util.Map;
+
+import org.apache.shindig.gadgets.oauth.BasicOAuthStoreConsumerKeyAndSecret;
+import org.apache.shindig.gadgets.oauth.OAuthStore.TokenInfo;
+import org.opensocial.explorer.server.oauth.OSEOAuthStore.TokenInfoIndex;
+
+/**
+ * Used by {@link OSEOAuthStore} to keep the OAuth 1.0a services users add and the tokens of all
+ * users beyond the life of the server.
+ *
+ * The store reads the services and tokens once when it is created and serves all lookups from
+ * memory afterwards. The changes of each service and token are passed on in the order the store
+ * applies them. They are called on request threads while the store holds the lock of the service's
+ * user or of the token, so implementations should only queue changes instead of encrypting or
+ * writing them, and report failures themselves instead of failing the request.
+ */
+public interface IOAuthPersister {
+
+  /**
+   * Loads the services users added.
+   * @return The services of each user, keyed by user ID and service name.
+   */
+  Map<String, Map<String, BasicOAuthStoreConsumerKeyAndSecret>> loadUserServices();
+
+  /**
+   * Loads the tokens of all users.
+   * @return The tokens keyed by service name, token name and user ID.
+   */
+  Map<TokenInfoIndex, TokenInfo> loadTokens();
+
+  /**
+   * Stores a service a user added, replacing the service of the same name.
+   * @param userId The user ID.
+   * @param serviceName The name of the service.
+   * @param kas The container class with all of the service's information.
+   */
+  void storeUserService(String userId, String serviceName, BasicOAuthStoreConsumerKeyAndSecret kas);
+
+  /**
+   * Removes a service a user added.
+   * @param userId The user ID.
+   * @param serviceName The name of the service.
+   */
+  void removeUserService(String userId, String serviceName);
+
+  /**
+   * Stores a token, replacing the token with the same index.
+   * @param index The service name, token name and user ID of the token.
+   * @param tokenInfo The token.
+   */
+  void storeToken(TokenInfoIndex index, TokenInfo tokenInfo);
+
+  /**
+   * Removes a token.
+   * @param index The service name, token name and user ID of the token.
+   */
+  void removeToken(TokenInfoIndex index);
+}
@@ -0,0 +1,386 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.opensocial.explorer.server.oauth;
+
+import static org.opensocial.explorer.server.persistence.JournalRecords.openValue;
+import static org.opensocial.explorer.server.persistence.JournalRecords.readBytes;
+import static org.opensocial.explorer.server.persistence.JournalRecords.readString;
+import static org.opensocial.explorer.server.persistence.JournalRecords.writeBytes;
+import static org.opensocial.explorer.server.persistence.JournalRecords.writeString;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.shindig.gadgets.oauth.BasicOAuthStoreConsumerKeyAndSecret;
+import org.apache.shindig.gadgets.oauth.BasicOAuthStoreConsumerKeyAndSecret.KeyType;
+import org.apache.shindig.gadgets.oauth.OAuthStore.TokenInfo;
+import org.apache.shindig.gadgets.oauth2.persistence.OAuth2Encrypter;
+import org.apache.shindig.gadgets.oauth2.persistence.OAuth2EncryptionException;
+import org.opensocial.explorer.server.oauth.OSEOAuthStore.TokenInfoIndex;
+import org.opensocial.explorer.server.persistence.JournalFile;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * An {@link IOAuthPersister} that keeps the OAuth 1.0a services users add and the tokens of all
+ * users in a {@link JournalFile}, so that users do not have to authorize every service again after
+ * a restart.
+ *
+ * The consumer secrets, access tokens, token secrets and session handles are encrypted with the
+ * {@link OAuth2Encrypter} before they are written. Request threads only queue their changes, they
+ * are encoded, encrypted and written behind by a single background thread: while it writes one
+ * batch, the changes of other requests collect in the next one, so a busy server shares one fsync
+ * between many changes and repeated changes of the same service or token are written once. The
+ * changes made in the moments before the server is killed may be lost, {@link #close()} writes all
+ * of them.
+ */
+public class OSEFileOAuthPersister implements IOAuthPersister, Closeable {
+  private static final String CLAZZ = OSEFileOAuthPersister.class.getName();
+  private static final Logger LOG = Logger.getLogger(CLAZZ);
+  private static final String SERVICE_PREFIX = "service";
+  private static final String TOKEN_PREFIX = "token";
+  private static final int VERSION = 1;
+  private static final long CLOSE_TIMEOUT_SECONDS = 30;
+  private static final long RETRY_DELAY_SECONDS = 10;
+
+  private final OAuth2Encrypter encrypter;
+  private final JournalFile journal;
+  private final ScheduledThreadPoolExecutor writer;
+  private final Runnable writeBehind = new Runnable() {
+    public void run() {
+      writeBehind();
+    }
+  };
+  // The changes that were not written yet, a null value removes its key. Guarded by this.
+  private Map<String, Change> pending = new LinkedHashMap<String, Change>();
+  private boolean writeScheduled;
+  private boolean closed;
+
+  /**
+   * @param encrypter
+   *          encrypts the secrets before they are written
+   * @param file
+   *          the file to keep the services and tokens in, it is created if it does not exist
+   * @throws IOException
+   *           if the file could not be created or read
+   */
+  public OSEFileOAuthPersister(OAuth2Encrypter encrypter, File file) throws IOException {
+    this(encrypter, new JournalFile(file, JournalFile.DEFAULT_COMPACT_BYTES));
+  }
+
+  @VisibleForTesting
+  OSEFileOAuthPersister(OAuth2Encrypter encrypter, JournalFile journal) {
+    this.encrypter = encrypter;
+    this.journal = journal;
+    this.writer = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder()
+            .setNameFormat("oauth-store-writer-%d").setDaemon(true).build());
+    // close() writes the changes of a pending retry itself
+    this.writer.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+  }
+
+  public Map<String, Map<String, BasicOAuthStoreConsumerKeyAndSecret>> loadUserServices() {
+    final String method = "loadUserServices";
+    Map<String, Map<String, BasicOAuthStoreConsumerKeyAndSecret>> services =
+            new HashMap<String, Map<String, BasicOAuthStoreConsumerKeyAndSecret>>();
+    for (Entry<String, byte[]> entry : this.journal.getAll().entrySet()) {
+      if (entry.getKey().startsWith(SERVICE_PREFIX + '\n')) {
+        try {
+          DataInputStream in = openValue(entry.getValue(), VERSION);
+          String userId = readString(in);
+          String serviceName = readString(in);
+          BasicOAuthStoreConsumerKeyAndSecret kas = new BasicOAuthStoreConsumerKeyAndSecret(
+                  readString(in), decrypt(readBytes(in)), KeyType.valueOf(in.readUTF()),
+                  readString(in), readString(in), in.readBoolean());
+          Map<String, BasicOAuthStoreConsumerKeyAndSecret> userServices = services.get(userId);
+          if (userServices == null) {
+            userServices = new HashMap<String, BasicOAuthStoreConsumerKeyAndSecret>();
+            services.put(userId, userServices);
+          }
+          userServices.put(serviceName, kas);
+        } catch (Exception e) {
+          LOG.logp(Level.WARNING, CLAZZ, method, "Skipping the unreadable service "
+                  + entry.getKey().substring(SERVICE_PREFIX.length() + 1), e);
+        }
+      }
+    }
+    return services;
+  }
+
+  public Map<TokenInfoIndex, TokenInfo> loadTokens() {
+    final String method = "loadTokens";
+    Map<TokenInfoIndex, TokenInfo> tokens = new HashMap<TokenInfoIndex, TokenInfo>();
+    for (Entry<String, byte[]> entry : this.journal.getAll().entrySet()) {
+      if (entry.getKey().startsWith(TOKEN_PREFIX + '\n')) {
+        try {
+          DataInputStream in = openValue(entry.getValue(), VERSION);
+          TokenInfoIndex index = new TokenInfoIndex(readString(in), readString(in),
+                  readString(in));
+          tokens.put(index, new TokenInfo(decrypt(readBytes(in)), decrypt(readBytes(in)),
+                  decrypt(readBytes(in)), in.readLong()));
+        } catch (Exception e) {
+          LOG.logp(Level.WARNING, CLAZZ, method, "Skipping the unreadable token "
+                  + entry.getKey().substring(TOKEN_PREFIX.length() + 1), e);
+        }
+      }
+    }
+    return tokens;
+  }
+
+  public void storeUserService(String userId, String serviceName,
+          BasicOAuthStoreConsumerKeyAndSecret kas) {
+    enqueue(getServiceKey(userId, serviceName), new ServiceChange(userId, serviceName, kas));
+  }
+
+  public void removeUserService(String userId, String serviceName) {
+    enqueue(getServiceKey(userId, serviceName), null);
+  }
+
+  public void storeToken(TokenInfoIndex index, TokenInfo tokenInfo) {
+    enqueue(getTokenKey(index), new TokenChange(index, tokenInfo));
+  }
+
+  public void removeToken(TokenInfoIndex index) {
+    enqueue(getTokenKey(index), null);
+  }
+
+  /**
+   * Writes all changes made so far and waits until they are on disk.
+   * @throws IOException If the changes could not be written.
+   */
+  public void flush() throws IOException {
+    Future<Void> written;
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      written = this.writer.submit(new Callable<Void>() {
+        public Void call() throws IOException {
+          write();
+          return null;
+        }
+      });
+    }
+    try {
+      written.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the OAuth store writer");
+    } catch (ExecutionException e) {
+      throw e.getCause() instanceof IOException ? (IOException) e.getCause()
+              : new IOException(e.getCause());
+    }
+  }
+
+  /**
+   * Writes all changes made so far and closes the file. Changes made afterwards are not written.
+   */
+  public void close() throws IOException {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+    }
+    this.writer.shutdown();
+    try {
+      this.writer.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    try {
+      write();
+    } finally {
+      this.journal.close();
+    }
+  }
+
+  private void enqueue(String key, Change value) {
+    final String method = "enqueue";
+    synchronized (this) {
+      if (closed) {
+        LOG.logp(Level.WARNING, CLAZZ, method, "The OAuth store is closed, not persisting " + key);
+        return;
+      }
+      this.pending.put(key, value);
+      if (!writeScheduled) {
+        writeScheduled = true;
+        this.writer.execute(this.writeBehind);
+      }
+    }
+  }
+
+  private void writeBehind() {
+    final String method = "writeBehind";
+    try {
+      write();
+    } catch (IOException e) {
+      // The services and tokens are still used until the server stops
+      LOG.logp(Level.SEVERE, CLAZZ, method, "Unable to persist OAuth services and tokens", e);
+    }
+  }
+
+  private void write() throws IOException {
+    final String method = "write";
+    Map<String, Change> batch;
+    synchronized (this) {
+      batch = this.pending;
+      this.pending = new LinkedHashMap<String, Change>();
+      writeScheduled = false;
+    }
+    if (batch.isEmpty()) {
+      return;
+    }
+    Map<String, byte[]> changes = new LinkedHashMap<String, byte[]>();
+    for (Entry<String, Change> change : batch.entrySet()) {
+      try {
+        changes.put(change.getKey(), change.getValue() != null ? change.getValue().encode() : null);
+      } catch (Exception e) {
+        // The service or token is still used until the server stops
+        LOG.logp(Level.SEVERE, CLAZZ, method, "Unable to persist " + change.getValue(), e);
+      }
+    }
+    try {
+      this.journal.write(changes);
+    } catch (IOException e) {
+      retry(batch);
+      throw e;
+    }
+  }
+
+  /**
+   * Puts a batch that could not be written back into the pending changes and writes it again after
+   * a while. Changes made since the batch was taken replace the ones in it.
+   */
+  private synchronized void retry(Map<String, Change> batch) {
+    batch.putAll(this.pending);
+    this.pending = batch;
+    if (!closed && !writeScheduled) {
+      writeScheduled = true;
+      this.writer.schedule(this.writeBehind, RETRY_DELAY_SECONDS, TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * A service or token to store, encoded when it is written.
+   */
+  private abstract static class Change {
+    abstract byte[] encode() throws IOException, OAuth2EncryptionException;
+  }
+
+  private class ServiceChange extends Change {
+    private final String userId;
+    private final String serviceName;
+    private final BasicOAuthStoreConsumerKeyAndSecret kas;
+
+    ServiceChange(String userId, String serviceName, BasicOAuthStoreConsumerKeyAndSecret kas) {
+      this.userId = userId;
+      this.serviceName = serviceName;
+      this.kas = kas;
+    }
+
+    @Override
+    byte[] encode() throws IOException, OAuth2EncryptionException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeByte(VERSION);
+      writeString(out, userId);
+      writeString(out, serviceName);
+      writeString(out, kas.getConsumerKey());
+      writeBytes(out, encrypt(kas.getConsumerSecret()));
+      out.writeUTF(kas.getKeyType().name());
+      writeString(out, kas.getKeyName());
+      writeString(out, kas.getCallbackUrl());
+      out.writeBoolean(kas.isOauthBodyHash());
+      out.flush();
+      return bytes.toByteArray();
+    }
+
+    @Override
+    public String toString() {
+      return "the service " + serviceName + " of user " + userId;
+    }
+  }
+
+  private class TokenChange extends Change {
+    private final TokenInfoIndex index;
+    private final TokenInfo tokenInfo;
+
+    TokenChange(TokenInfoIndex index, TokenInfo tokenInfo) {
+      this.index = index;
+      this.tokenInfo = tokenInfo;
+    }
+
+    @Override
+    byte[] encode() throws IOException, OAuth2EncryptionException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeByte(VERSION);
+      writeString(out, index.getServiceName());
+      writeString(out, index.getTokenName());
+      writeString(out, index.getUserId());
+      writeBytes(out, encrypt(tokenInfo.getAccessToken()));
+      writeBytes(out, encrypt(tokenInfo.getTokenSecret()));
+      writeBytes(out, encrypt(tokenInfo.getSessionHandle()));
+      out.writeLong(tokenInfo.getTokenExpireMillis());
+      out.flush();
+      return bytes.toByteArray();
+    }
+
+    @Override
+    public String toString() {
+      return "the token " + index.getTokenName() + " of service " + index.getServiceName()
+              + " of user " + index.getUserId();
+    }
+  }
+
+  private static String getServiceKey(String userId, String serviceName) {
+    return JournalFile.getKey(SERVICE_PREFIX, userId, serviceName);
+  }
+
+  private static String getTokenKey(TokenInfoIndex index) {
+    return JournalFile.getKey(TOKEN_PREFIX, index.getServiceName(), index.getTokenName(),
+            index.getUserId());
+  }
+
+  private byte[] encrypt(String plain) throws OAuth2EncryptionException {
+    return plain == null ? null : this.encrypter.encrypt(plain.getBytes(Charsets.UTF_8));
+  }
+
+  private String decrypt(byte[] encrypted) throws OAuth2EncryptionException {
+    return encrypted == null ? null : new String(this.encrypter.decrypt(encrypted), Charsets.UTF_8);
+  }
+}
@@ -0,0 +1,54 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.opensocial.explorer.server.oauth;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.shindig.gadgets.oauth.BasicOAuthStoreConsumerKeyAndSecret;
+import org.apache.shindig.gadgets.oauth.OAuthStore.TokenInfo;
+import org.opensocial.explorer.server.oauth.OSEOAuthStore.TokenInfoIndex;
+
+/**
+ * An {@link IOAuthPersister} that keeps nothing, so the services and tokens of
+ * {@link OSEOAuthStore} only live in memory.
+ */
+public class OSENoOpOAuthPersister implements IOAuthPersister {
+
+  public Map<String, Map<String, BasicOAuthStoreConsumerKeyAndSecret>> loadUserServices() {
+    return Collections.emptyMap();
+  }
+
+  public Map<TokenInfoIndex, TokenInfo> loadTokens() {
+    return Collections.emptyMap();
+  }
+
+  public void storeUserService(String userId, String serviceName,
+          BasicOAuthStoreConsumerKeyAndSecret kas) {
+  }
+
+  public void removeUserService(String userId, String serviceName) {
+  }
+
+  public void storeToken(TokenInfoIndex index, TokenInfo tokenInfo) {
+  }
+
+  public void removeToken(TokenInfoIndex index) {
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.opensocial.explorer.server.oauth;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.shindig.gadgets.oauth2.persistence.OAuth2Encrypter;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+/**
+ * Provides the {@link IOAuthPersister}. When <code>explorer.oauth.store.file</code> is set the
+ * OAuth 1.0a services users add and all tokens are kept in that file by an
+ * {@link OSEFileOAuthPersister}, which writes its last changes when the JVM shuts down. Otherwise
+ * they are only kept in memory by {@link OSEOAuthStore}.
+ */
+@Singleton
+public class OSEOAuthPersisterProvider implements Provider<IOAuthPersister> {
+  private static final String CLAZZ = OSEOAuthPersisterProvider.class.getName();
+  private static final Logger LOG = Logger.getLogger(CLAZZ);
+
+  private final IOAuthPersister persister;
+
+  @Inject
+  public OSEOAuthPersisterProvider(@Named("explorer.oauth.store.file") String file,
+          OAuth2Encrypter encrypter) {
+    final String method = "OSEOAuthPersisterProvider";
+    IOAuthPersister filePersister = null;
+    if (file != null && file.trim().length() > 0) {
+      try {
+        final OSEFileOAuthPersister created = new OSEFileOAuthPersister(encrypter,
+                new File(file.trim()));
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+          public void run() {
+            try {
+              created.close();
+            } catch (IOException e) {
+              LOG.logp(Level.SEVERE, CLAZZ, "close", "Unable to persist the last OAuth changes", e);
+            }
+          }
+        }, "oauth-store-close"));
+        filePersister = created;
+      } catch (IOException e) {
+        LOG.logp(Level.SEVERE, CLAZZ, method,
+                "Unable to use " + file + ", OAuth services and tokens are kept in memory", e);
+      }
+    }
+    this.persister = filePersister != null ? filePersister : new OSENoOpOAuthPersister();
+  }
+
+  public IOAuthPersister get() {
+    return persister;
+  }
+}
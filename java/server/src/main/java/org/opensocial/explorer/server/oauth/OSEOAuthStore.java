@@ -18,10 +18,11 @@
  */
 package org.opensocial.explorer.server.oauth;
 
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -42,8 +43,9 @@ import org.apache.wink.json4j.JSONArray;
 import org.apache.wink.json4j.JSONException;
 import org.apache.wink.json4j.JSONObject;
 
-import com.google.caja.util.Maps;
 import com.google.common.base.Objects;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Striped;
 import com.google.inject.Inject;
 
 /**
@@ -53,6 +55,18 @@ import com.google.inject.Inject;
  * provider to a single gadget.  Instead any gadget may use and service provider as long
  * as it uses the correct service name.  This is probably not something you want to do in a
  * production environment but for development it should be OK.
+ * 
+ * The store is shared by all of Shindig's request threads and the services servlet. All of its
+ * maps, including the map of services of each user, are concurrent, so lookups never take a lock
+ * and updates for different users or tokens do not contend. The map of services of a user is
+ * created atomically and never removed, so a service is never added to a map that is being
+ * replaced.
+ *
+ * The services users add and the tokens are passed on to an {@link IOAuthPersister}, and read back
+ * from it when the store is created. A change is applied and passed on under the lock of the
+ * user's map of services or under the lock of the token's stripe, so the persister sees the
+ * changes of a service or token in the order they were made. Persisters only queue changes, so
+ * these locks are held briefly.
  */
 public class OSEOAuthStore implements OAuthStore {
   private static final String CLAZZ = OSEOAuthStore.class.getName();
@@ -63,9 +77,12 @@ public class OSEOAuthStore implements OAuthStore {
   private static final String OAUTH_BODY_HASH_KEY = "bodyHash";
   private Logger LOG = Logger.getLogger(CLAZZ);
   
-  private Map<String, BasicOAuthStoreConsumerKeyAndSecret> keyAndSecretStore;
-  private Map<String, Map<String, BasicOAuthStoreConsumerKeyAndSecret>> userStore;
-  private Map<TokenInfoIndex, TokenInfo> tokenStore;
+  private final ConcurrentMap<String, BasicOAuthStoreConsumerKeyAndSecret> keyAndSecretStore;
+  private final ConcurrentMap<String, ConcurrentMap<String, BasicOAuthStoreConsumerKeyAndSecret>> userStore;
+  private final ConcurrentMap<TokenInfoIndex, TokenInfo> tokenStore;
+  private final IOAuthPersister persister;
+  // Orders the changes of each token, any two tokens rarely share a lock
+  private final Striped<Lock> tokenLocks = Striped.lock(64);
   private String defaultCallbackUrl;
   private Authority authority;
   private String contextRoot;
@@ -73,10 +90,10 @@ public class OSEOAuthStore implements OAuthStore {
   /**
    * Token index for the token store.
    */
-  private static class TokenInfoIndex {
-    private String serviceName;
-    private String tokenName;
-    private String userId;
+  public static class TokenInfoIndex {
+    private final String serviceName;
+    private final String tokenName;
+    private final String userId;
     
     public TokenInfoIndex(String serviceName, String tokenName, String userId) {
       this.serviceName = serviceName;
@@ -120,9 +137,27 @@ public class OSEOAuthStore implements OAuthStore {
    */
   @Inject
   public OSEOAuthStore() {
-    this.keyAndSecretStore = Maps.newHashMap();
-    this.tokenStore = Maps.newHashMap();
-    this.userStore = Maps.newHashMap();
+    this(new OSENoOpOAuthPersister());
+  }
+  
+  /**
+   * Token store for the OpenSocial Explorer that restores the services users added and the tokens
+   * from the given persister and passes all changes to them on to it.
+   * @param persister The persister.
+   */
+  public OSEOAuthStore(IOAuthPersister persister) {
+    this.keyAndSecretStore = Maps.newConcurrentMap();
+    this.tokenStore = Maps.newConcurrentMap();
+    this.userStore = Maps.newConcurrentMap();
+    this.persister = persister;
+    Map<String, Map<String, BasicOAuthStoreConsumerKeyAndSecret>> users = persister.loadUserServices();
+    for (Entry<String, Map<String, BasicOAuthStoreConsumerKeyAndSecret>> user : users.entrySet()) {
+      ConcurrentMap<String, BasicOAuthStoreConsumerKeyAndSecret> userServices =
+              Maps.newConcurrentMap();
+      userServices.putAll(user.getValue());
+      this.userStore.put(user.getKey(), userServices);
+    }
+    this.tokenStore.putAll(persister.loadTokens());
   }
   
   /**
@@ -186,16 +221,21 @@ public class OSEOAuthStore implements OAuthStore {
   public ConsumerInfo getConsumerKeyAndSecret(SecurityToken securityToken, String serviceName,
           OAuthServiceProvider provider) throws GadgetException {
     
-    BasicOAuthStoreConsumerKeyAndSecret cks;
+    BasicOAuthStoreConsumerKeyAndSecret cks = null;
     String ownerId = securityToken.getOwnerId();
     
-    // Check user store if security token matches any keys
-    if(this.userStore.containsKey(ownerId)) {
-      cks = userStore.get(ownerId).get(serviceName);
+    // Check user store if security token matches any keys. Each map is read once, so a service
+    // that is deleted concurrently is either found or not, never half way.
+    Map<String, BasicOAuthStoreConsumerKeyAndSecret> userServices = ownerId != null ? 
+            this.userStore.get(ownerId) : null;
+    if(userServices != null) {
+      cks = userServices.get(serviceName);
+    }
     // Check anon store
-    } else if (this.keyAndSecretStore.containsKey(serviceName)) {
+    if(cks == null) {
       cks = keyAndSecretStore.get(serviceName);
-    } else {
+    }
+    if(cks == null) {
       throw new GadgetException(Code.OAUTH_STORAGE_ERROR, "No OAuth key and secret defined for the service " + serviceName);
     }
     
@@ -235,13 +275,28 @@ public class OSEOAuthStore implements OAuthStore {
   public void setTokenInfo(SecurityToken securityToken, ConsumerInfo consumerInfo,
           String serviceName, String tokenName, TokenInfo tokenInfo) throws GadgetException {
     TokenInfoIndex index = new TokenInfoIndex(serviceName, tokenName, securityToken.getViewerId());
-    tokenStore.put(index, tokenInfo);
+    Lock lock = tokenLocks.get(index);
+    lock.lock();
+    try {
+      tokenStore.put(index, tokenInfo);
+      persister.storeToken(index, tokenInfo);
+    } finally {
+      lock.unlock();
+    }
   }
 
   public void removeToken(SecurityToken securityToken, ConsumerInfo consumerInfo,
           String serviceName, String tokenName) throws GadgetException {
     TokenInfoIndex index = new TokenInfoIndex(serviceName, tokenName, securityToken.getViewerId());
-    tokenStore.remove(index);
+    Lock lock = tokenLocks.get(index);
+    lock.lock();
+    try {
+      if (tokenStore.remove(index) != null) {
+        persister.removeToken(index);
+      }
+    } finally {
+      lock.unlock();
+    }
   }
   
   /**
@@ -252,11 +307,17 @@ public class OSEOAuthStore implements OAuthStore {
    * @param kas The container class with all of the service's information.
    */
   public void addUserService(String userId, String serviceName, BasicOAuthStoreConsumerKeyAndSecret kas) {
-    if(this.userStore.containsKey(userId)) {
-      this.userStore.get(userId).put(serviceName, kas);
-    } else {
-      this.userStore.put(userId, new HashMap<String, BasicOAuthStoreConsumerKeyAndSecret>());
-      this.userStore.get(userId).put(serviceName, kas);
+    ConcurrentMap<String, BasicOAuthStoreConsumerKeyAndSecret> userServices = this.userStore.get(userId);
+    if(userServices == null) {
+      ConcurrentMap<String, BasicOAuthStoreConsumerKeyAndSecret> created = Maps.newConcurrentMap();
+      userServices = this.userStore.putIfAbsent(userId, created);
+      if(userServices == null) {
+        userServices = created;
+      }
+    }
+    synchronized (userServices) {
+      userServices.put(serviceName, kas);
+      persister.storeUserService(userId, serviceName, kas);
     }
   }
   
@@ -267,11 +328,15 @@ public class OSEOAuthStore implements OAuthStore {
    * @param serviceName The name of the service.
    */
   public void deleteUserService(String userId, String serviceName) throws NoSuchStoreException {
-    if(this.userStore.containsKey(userId)) {
-      this.userStore.get(userId).remove(serviceName);
-    } else {
+    Map<String, BasicOAuthStoreConsumerKeyAndSecret> userServices = this.userStore.get(userId);
+    if(userServices == null) {
       throw new NoSuchStoreException("Couldn't find the given userId in userStore!");
     }
+    synchronized (userServices) {
+      if (userServices.remove(serviceName) != null) {
+        persister.removeUserService(userId, serviceName);
+      }
+    }
   }
   
   /**
@@ -281,8 +346,8 @@ public class OSEOAuthStore implements OAuthStore {
    */
   public JSONArray getUserServices(String userId) throws JSONException {
     JSONArray array = new JSONArray();
-    if(this.userStore.containsKey(userId)) {
-      Map<String, BasicOAuthStoreConsumerKeyAndSecret> userMap = this.userStore.get(userId);
+    Map<String, BasicOAuthStoreConsumerKeyAndSecret> userMap = this.userStore.get(userId);
+    if(userMap != null) {
       for (Entry<String, BasicOAuthStoreConsumerKeyAndSecret> entry : userMap.entrySet()) {
         BasicOAuthStoreConsumerKeyAndSecret kas = entry.getValue();
         JSONObject service = new JSONObject();
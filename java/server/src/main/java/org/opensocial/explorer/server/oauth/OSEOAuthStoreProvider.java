@@ -46,8 +46,8 @@ public class OSEOAuthStoreProvider implements Provider<OSEOAuthStore> {
   @Inject
   public OSEOAuthStoreProvider(@Named(OAUTH_CALLBACK_URL) String defaultCallbackUrl,
           Authority authority, @Named("explorer.oauth.config") String oauthConfig, 
-          @Named("shindig.contextroot") String contextRoot) {
-    this.store = new OSEOAuthStore();
+          @Named("shindig.contextroot") String contextRoot, IOAuthPersister persister) {
+    this.store = new OSEOAuthStore(persister);
     this.store.setAuthority(authority);
     this.store.setContextRoot(contextRoot);
     this.store.setDefaultCallbackUrl(defaultCallbackUrl);
@@ -77,4 +77,10 @@ public interface IOAuth2Cache extends OAuth2Cache {
    * @return Whether or not the user exists.
    */
   boolean isUserExisting(String userId);
+
+  /**
+   * Gets the number of accessors and tokens in the cache and how many of them were evicted.
+   * @return The current statistics of the cache.
+   */
+  OAuth2CacheStats getStats();
 }
@@ -31,6 +31,7 @@ import org.apache.wink.json4j.JSONException;
 import org.opensocial.explorer.server.oauth.NoSuchStoreException;
 
 import java.io.UnsupportedEncodingException;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -84,4 +85,10 @@ public interface IOAuth2Persister extends OAuth2Persister {
    * @return Whether or not the user exists.
    */
   boolean isUserExisting(String userId);
+
+  /**
+   * Gets the clients of all users, so they can be loaded into the cache on startup.
+   * @return The clients of each user by service name, by user ID.
+   */
+  Map<String, Map<String, OAuth2Client>> loadUserClients();
 }
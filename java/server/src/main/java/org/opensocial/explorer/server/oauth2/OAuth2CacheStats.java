@@ -0,0 +1,69 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.opensocial.explorer.server.oauth2;
+
+/**
+ * A snapshot of the size and eviction counts of an {@link IOAuth2Cache}.
+ */
+public class OAuth2CacheStats {
+  private final long accessorCount;
+  private final long accessorEvictionCount;
+  private final long tokenCount;
+  private final long expiredTokenCount;
+
+  /**
+   * @param accessorCount
+   *          the number of accessors in the cache
+   * @param accessorEvictionCount
+   *          the number of accessors evicted because the cache was full or they were not used
+   * @param tokenCount
+   *          the number of tokens in the cache
+   * @param expiredTokenCount
+   *          the number of tokens evicted because they expired
+   */
+  public OAuth2CacheStats(long accessorCount, long accessorEvictionCount, long tokenCount,
+          long expiredTokenCount) {
+    this.accessorCount = accessorCount;
+    this.accessorEvictionCount = accessorEvictionCount;
+    this.tokenCount = tokenCount;
+    this.expiredTokenCount = expiredTokenCount;
+  }
+
+  public long getAccessorCount() {
+    return accessorCount;
+  }
+
+  public long getAccessorEvictionCount() {
+    return accessorEvictionCount;
+  }
+
+  public long getTokenCount() {
+    return tokenCount;
+  }
+
+  public long getExpiredTokenCount() {
+    return expiredTokenCount;
+  }
+
+  @Override
+  public String toString() {
+    return "accessors=" + accessorCount + ", evictedAccessors=" + accessorEvictionCount
+            + ", tokens=" + tokenCount + ", expiredTokens=" + expiredTokenCount;
+  }
+}
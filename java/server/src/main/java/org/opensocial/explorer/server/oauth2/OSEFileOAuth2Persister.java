@@ -0,0 +1,448 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.opensocial.explorer.server.oauth2;
+
+import static org.opensocial.explorer.server.persistence.JournalRecords.openValue;
+import static org.opensocial.explorer.server.persistence.JournalRecords.readBytes;
+import static org.opensocial.explorer.server.persistence.JournalRecords.readString;
+import static org.opensocial.explorer.server.persistence.JournalRecords.writeBytes;
+import static org.opensocial.explorer.server.persistence.JournalRecords.writeString;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.shindig.common.servlet.Authority;
+import org.apache.shindig.gadgets.oauth2.OAuth2Accessor;
+import org.apache.shindig.gadgets.oauth2.OAuth2Token;
+import org.apache.shindig.gadgets.oauth2.OAuth2Token.Type;
+import org.apache.shindig.gadgets.oauth2.persistence.OAuth2Client;
+import org.apache.shindig.gadgets.oauth2.persistence.OAuth2Encrypter;
+import org.apache.shindig.gadgets.oauth2.persistence.OAuth2EncryptionException;
+import org.apache.shindig.gadgets.oauth2.persistence.OAuth2PersistenceException;
+import org.apache.shindig.gadgets.oauth2.persistence.OAuth2TokenPersistence;
+import org.opensocial.explorer.server.oauth.NoSuchStoreException;
+import org.opensocial.explorer.server.persistence.JournalFile;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * An {@link OSEOAuth2Persister} that also keeps the clients users add and the tokens of all users
+ * in a {@link JournalFile}, so that users do not have to authorize every service again after a
+ * restart.
+ *
+ * The client secrets and token secrets are encrypted with the {@link OAuth2Encrypter} before they
+ * are written. Clients and tokens are written before the call that changes them returns, the
+ * writes of concurrent requests share one fsync. The file is read once on startup, when the clients
+ * and tokens are loaded into the cache, and on cache misses.
+ *
+ * Like {@link OSEInMemoryCache}, tokens are keyed without the gadget URI, so a token is shared by
+ * all gadgets using the same service. Expired tokens are not loaded or found and are removed from
+ * the file when they are looked up, on startup and, at most every ten minutes, when a token is
+ * stored, so the file does not keep growing with tokens nobody can use.
+ */
+public class OSEFileOAuth2Persister extends OSEOAuth2Persister {
+  private static final String CLAZZ = OSEFileOAuth2Persister.class.getName();
+  private static final Logger LOG = Logger.getLogger(CLAZZ);
+  private static final String CLIENT_PREFIX = "client";
+  private static final String TOKEN_PREFIX = "token";
+  private static final int VERSION = 2;
+  private static final long PRUNE_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+  private final OAuth2Encrypter encrypter;
+  private final JournalFile journal;
+  private final Object pruneLock = new Object();
+  private long nextPrune;
+
+  /**
+   * @param file
+   *          the file to keep the clients and tokens in, it is created if it does not exist
+   * @throws IOException
+   *           if the file could not be created or read
+   */
+  public OSEFileOAuth2Persister(final OAuth2Encrypter encrypter, final Authority authority,
+          final String globalRedirectUri, final String contextRoot, final String oauthConfig,
+          final File file) throws IOException {
+    super(encrypter, authority, globalRedirectUri, contextRoot, oauthConfig);
+    this.encrypter = encrypter;
+    this.journal = new JournalFile(file, JournalFile.DEFAULT_COMPACT_BYTES);
+    readUserClients(file);
+  }
+
+  private void readUserClients(File file) {
+    final String method = "readUserClients";
+    for (Entry<String, byte[]> entry : this.journal.getAll().entrySet()) {
+      if (isRecord(entry.getKey(), CLIENT_PREFIX)) {
+        try {
+          DataInputStream in = openValue(entry.getValue(), VERSION);
+          String userId = readString(in);
+          String serviceName = readString(in);
+          super.addUserClient(userId, serviceName, decodeClient(in));
+        } catch (final Exception e) {
+          LOG.logp(Level.WARNING, CLAZZ, method, "Skipping the unreadable client "
+                  + entry.getKey() + " in " + file, e);
+        }
+      }
+    }
+  }
+
+  @Override
+  public void addUserClient(String userId, String serviceName, OAuth2Client client) {
+    final String method = "addUserClient";
+    super.addUserClient(userId, serviceName, client);
+    try {
+      this.journal.put(getClientKey(userId, serviceName), encodeClient(userId, serviceName,
+              client));
+    } catch (final Exception e) {
+      // The client is still used until the server stops
+      LOG.logp(Level.SEVERE, CLAZZ, method, "Unable to persist the client " + serviceName
+              + " of user " + userId, e);
+    }
+  }
+
+  @Override
+  public void deleteUserClient(String userId, String serviceName) throws NoSuchStoreException {
+    final String method = "deleteUserClient";
+    super.deleteUserClient(userId, serviceName);
+    try {
+      this.journal.remove(getClientKey(userId, serviceName));
+    } catch (final IOException e) {
+      LOG.logp(Level.SEVERE, CLAZZ, method, "Unable to delete the persisted client " + serviceName
+              + " of user " + userId, e);
+    }
+  }
+
+  @Override
+  public OAuth2Token findToken(String gadgetUri, String serviceName, String user, String scope,
+          Type type) throws OAuth2PersistenceException {
+    String key = getTokenKey(serviceName, user, scope, type);
+    byte[] bytes = this.journal.get(key);
+    if (bytes == null) {
+      return null;
+    }
+    OAuth2Token token = decodeToken(bytes);
+    if (isExpired(token.getExpiresAt(), System.currentTimeMillis())) {
+      removeTokens(Collections.singletonList(key));
+      return null;
+    }
+    return token;
+  }
+
+  @Override
+  public void insertToken(OAuth2Token token) throws OAuth2PersistenceException {
+    storeToken(token);
+  }
+
+  @Override
+  public void updateToken(OAuth2Token token) throws OAuth2PersistenceException {
+    storeToken(token);
+  }
+
+  @Override
+  public boolean removeToken(String gadgetUri, String serviceName, String user, String scope,
+          Type type) throws OAuth2PersistenceException {
+    String key = getTokenKey(serviceName, user, scope, type);
+    if (key == null || this.journal.get(key) == null) {
+      return false;
+    }
+    try {
+      this.journal.remove(key);
+      return true;
+    } catch (final IOException e) {
+      throw new OAuth2PersistenceException(e);
+    }
+  }
+
+  @Override
+  public Set<OAuth2Token> loadTokens() throws OAuth2PersistenceException {
+    final String method = "loadTokens";
+    final Set<OAuth2Token> tokens = new HashSet<OAuth2Token>();
+    final List<String> expired = new ArrayList<String>();
+    final long now = System.currentTimeMillis();
+    for (Entry<String, byte[]> entry : this.journal.getAll().entrySet()) {
+      if (isRecord(entry.getKey(), TOKEN_PREFIX)) {
+        try {
+          OAuth2Token token = decodeToken(entry.getValue());
+          if (isExpired(token.getExpiresAt(), now)) {
+            expired.add(entry.getKey());
+          } else {
+            tokens.add(token);
+          }
+        } catch (final OAuth2PersistenceException e) {
+          LOG.logp(Level.WARNING, CLAZZ, method, "Skipping the unreadable token "
+                  + entry.getKey(), e);
+        }
+      }
+    }
+    removeTokens(expired);
+    return tokens;
+  }
+
+  /**
+   * Removes the expired tokens from the file. Called at most every ten minutes when a token is
+   * stored.
+   */
+  @VisibleForTesting
+  void pruneExpiredTokens() {
+    final List<String> expired = new ArrayList<String>();
+    final long now = System.currentTimeMillis();
+    for (Entry<String, byte[]> entry : this.journal.getAll().entrySet()) {
+      if (isRecord(entry.getKey(), TOKEN_PREFIX)
+              && isExpired(readExpiresAt(entry.getValue()), now)) {
+        expired.add(entry.getKey());
+      }
+    }
+    removeTokens(expired);
+  }
+
+  private void pruneIfDue() {
+    final long now = System.currentTimeMillis();
+    synchronized (this.pruneLock) {
+      if (now < this.nextPrune) {
+        return;
+      }
+      this.nextPrune = now + PRUNE_INTERVAL_MILLIS;
+    }
+    pruneExpiredTokens();
+  }
+
+  private void removeTokens(List<String> keys) {
+    final String method = "removeTokens";
+    if (keys.isEmpty()) {
+      return;
+    }
+    final Map<String, byte[]> removals = new LinkedHashMap<String, byte[]>();
+    for (String key : keys) {
+      removals.put(key, null);
+    }
+    try {
+      this.journal.write(removals);
+    } catch (final IOException e) {
+      // They are removed again the next time
+      LOG.logp(Level.WARNING, CLAZZ, method, "Unable to remove " + keys.size()
+              + " expired tokens", e);
+    }
+  }
+
+  private void storeToken(OAuth2Token token) throws OAuth2PersistenceException {
+    String key = getTokenKey(token.getServiceName(), token.getUser(), token.getScope(),
+            token.getType());
+    if (key == null) {
+      throw new OAuth2PersistenceException("The token has no service name or user");
+    }
+    try {
+      this.journal.put(key, encodeToken(token));
+    } catch (final IOException e) {
+      throw new OAuth2PersistenceException(e);
+    }
+    pruneIfDue();
+  }
+
+  private static String getClientKey(String userId, String serviceName) {
+    return JournalFile.getKey(CLIENT_PREFIX, userId, serviceName);
+  }
+
+  private static String getTokenKey(String serviceName, String user, String scope, Type type) {
+    if (serviceName == null || user == null || type == null) {
+      return null;
+    }
+    return JournalFile.getKey(TOKEN_PREFIX, serviceName, user, scope == null ? "" : scope,
+            type.name());
+  }
+
+  private static boolean isRecord(String key, String prefix) {
+    return key.startsWith(prefix) && key.length() > prefix.length()
+            && key.charAt(prefix.length()) == '\n';
+  }
+
+  private static boolean isExpired(long expiresAt, long now) {
+    // Like OSEInMemoryCache, tokens that do not expire have an expiry time of 0
+    return expiresAt > 0 && expiresAt <= now;
+  }
+
+  private byte[] encodeClient(String userId, String serviceName, OAuth2Client client)
+          throws IOException, OAuth2EncryptionException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeByte(VERSION);
+    writeString(out, userId);
+    writeString(out, serviceName);
+    writeString(out, client.getGadgetUri());
+    writeString(out, client.getServiceName());
+    writeString(out, client.getClientId());
+    writeBytes(out, encrypt(client.getClientSecret()));
+    writeString(out, client.getAuthorizationUrl());
+    writeString(out, client.getTokenUrl());
+    writeString(out, client.getRedirectUri());
+    writeString(out, client.getGrantType());
+    writeString(out, client.getClientAuthenticationType());
+    writeString(out, client.getType() == null ? null : client.getType().name());
+    out.writeBoolean(client.isAllowModuleOverride());
+    out.writeBoolean(client.isAuthorizationHeader());
+    out.writeBoolean(client.isUrlParameter());
+    out.writeBoolean(client.isSharedToken());
+    String[] domains = client.getAllowedDomains();
+    out.writeInt(domains == null ? -1 : domains.length);
+    if (domains != null) {
+      for (String domain : domains) {
+        writeString(out, domain);
+      }
+    }
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  private OAuth2Client decodeClient(DataInputStream in) throws OAuth2PersistenceException {
+    try {
+      final OAuth2Client client = new OAuth2Client(this.encrypter);
+      client.setGadgetUri(readString(in));
+      client.setServiceName(readString(in));
+      client.setClientId(readString(in));
+      client.setClientSecret(decrypt(readBytes(in)));
+      client.setAuthorizationUrl(readString(in));
+      client.setTokenUrl(readString(in));
+      client.setRedirectUri(readString(in));
+      client.setGrantType(readString(in));
+      client.setClientAuthenticationType(readString(in));
+      String type = readString(in);
+      client.setType(type == null ? null : OAuth2Accessor.Type.valueOf(type));
+      client.setAllowModuleOverride(in.readBoolean());
+      client.setAuthorizationHeader(in.readBoolean());
+      client.setUrlParameter(in.readBoolean());
+      client.setSharedToken(in.readBoolean());
+      int domainCount = in.readInt();
+      if (domainCount >= 0) {
+        String[] domains = new String[domainCount];
+        for (int i = 0; i < domainCount; i++) {
+          domains[i] = readString(in);
+        }
+        client.setAllowedDomains(domains);
+      }
+      return client;
+    } catch (final Exception e) {
+      throw new OAuth2PersistenceException(e);
+    }
+  }
+
+  private byte[] encodeToken(OAuth2Token token) throws OAuth2PersistenceException {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeByte(VERSION);
+      writeString(out, token.getGadgetUri());
+      writeString(out, token.getServiceName());
+      writeString(out, token.getUser());
+      writeString(out, token.getScope());
+      out.writeUTF(token.getType().name());
+      writeString(out, token.getTokenType());
+      out.writeLong(token.getIssuedAt());
+      out.writeLong(token.getExpiresAt());
+      writeBytes(out, encrypt(token.getSecret()));
+      writeString(out, token.getMacAlgorithm());
+      writeString(out, token.getMacExt());
+      writeBytes(out, encrypt(token.getMacSecret()));
+      Map<String, String> properties = token.getProperties();
+      out.writeInt(properties == null ? -1 : properties.size());
+      if (properties != null) {
+        for (Entry<String, String> property : properties.entrySet()) {
+          writeString(out, property.getKey());
+          writeString(out, property.getValue());
+        }
+      }
+      out.flush();
+      return bytes.toByteArray();
+    } catch (final IOException e) {
+      throw new OAuth2PersistenceException(e);
+    } catch (final OAuth2EncryptionException e) {
+      throw new OAuth2PersistenceException(e);
+    }
+  }
+
+  private OAuth2Token decodeToken(byte[] bytes) throws OAuth2PersistenceException {
+    try {
+      DataInputStream in = openValue(bytes, VERSION);
+      final OAuth2TokenPersistence token = new OAuth2TokenPersistence(this.encrypter);
+      token.setGadgetUri(readString(in));
+      token.setServiceName(readString(in));
+      token.setUser(readString(in));
+      token.setScope(readString(in));
+      token.setType(Type.valueOf(in.readUTF()));
+      token.setTokenType(readString(in));
+      token.setIssuedAt(in.readLong());
+      token.setExpiresAt(in.readLong());
+      token.setSecret(decrypt(readBytes(in)));
+      token.setMacAlgorithm(readString(in));
+      token.setMacExt(readString(in));
+      token.setMacSecret(decrypt(readBytes(in)));
+      int propertyCount = in.readInt();
+      if (propertyCount >= 0) {
+        Map<String, String> properties = new HashMap<String, String>();
+        for (int i = 0; i < propertyCount; i++) {
+          properties.put(readString(in), readString(in));
+        }
+        token.setProperties(properties);
+      }
+      return token;
+    } catch (final Exception e) {
+      throw new OAuth2PersistenceException(e);
+    }
+  }
+
+  private byte[] encrypt(byte[] plain) throws OAuth2EncryptionException {
+    return plain == null ? null : this.encrypter.encrypt(plain);
+  }
+
+  private byte[] decrypt(byte[] encrypted) throws OAuth2EncryptionException {
+    return encrypted == null ? null : this.encrypter.decrypt(encrypted);
+  }
+
+  /**
+   * @return the expiry time of the given encoded token without decrypting it, or 0 if it cannot be
+   *         read
+   */
+  private static long readExpiresAt(byte[] bytes) {
+    try {
+      DataInputStream in = openValue(bytes, VERSION);
+      readString(in); // Gadget URI
+      readString(in); // Service name
+      readString(in); // User
+      readString(in); // Scope
+      in.readUTF(); // Type
+      readString(in); // Token type
+      in.readLong(); // Issued at
+      return in.readLong();
+    } catch (final IOException e) {
+      return 0;
+    }
+  }
+}
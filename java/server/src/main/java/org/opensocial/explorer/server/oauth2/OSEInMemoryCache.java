@@ -19,10 +19,16 @@
 package org.opensocial.explorer.server.oauth2;
 
 import java.io.UnsupportedEncodingException;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import org.apache.shindig.gadgets.oauth2.OAuth2Accessor;
 import org.apache.shindig.gadgets.oauth2.OAuth2CallbackState;
@@ -35,38 +41,125 @@ import org.apache.wink.json4j.JSONException;
 import org.apache.wink.json4j.JSONObject;
 import org.opensocial.explorer.server.oauth.NoSuchStoreException;
 
-import com.google.common.collect.Maps;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ForwardingConcurrentMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
 
 /**
  * An in-memory cache for OAuth 2.0.  In the cache we do not use the gadget URLs in the keys.
  * This allows us to reuse OAuth 2.0 accessors, tokens, and client info for multiple
  * gadgets.  Not something you would want to do for production containers but is suitable for
  * development containers like the OpenSocial Explorer. 
+ * 
+ * Every request that uses OAuth 2.0 looks up accessors, clients and tokens, so all of the maps
+ * of the cache, including the map of clients of each user, are concurrent and lookups never take
+ * a lock. The maps replace the synchronized maps of {@link InMemoryCache}. The map of clients of a
+ * user is created atomically and never removed, so a client is never added to a map that is being
+ * replaced.
+ * 
+ * Accessors are created for every user, service and scope seen, so at most the configured number of
+ * accessors are kept, least recently used first out, and accessors that were not used for the
+ * configured idle time are dropped. A dropped accessor is created again from its client and tokens
+ * on its next use. Tokens whose expiry time has passed are dropped when they are looked up and by a
+ * periodic sweep, so they do not stay in memory until a restart. Tokens are not otherwise evicted,
+ * as with the in-memory persister the cache is the only place they are kept. The sweep does not
+ * reach the persister, {@link OSEFileOAuth2Persister} drops expired tokens from its file itself.
  */
+@Singleton
 public class OSEInMemoryCache extends InMemoryCache implements IOAuth2Cache {
-  private final Map<String, OAuth2Accessor> accessors;
-  private final Map<String, OAuth2Client> clients;
-  private final Map<String, OAuth2Token> tokens;
+  private static final String CLASS = OSEInMemoryCache.class.getName();
+  private static final Logger LOG = Logger.getLogger(CLASS);
+  private static final long DEFAULT_MAX_ACCESSORS = 10000;
+  private static final long DEFAULT_ACCESSOR_IDLE_SECONDS = 1800;
 
-  private Map<String, Map<String, OAuth2Client>> userClientStore;
-  
-  @Inject
+  private final Cache<String, OAuth2Accessor> accessorCache;
+  private final ConcurrentMap<String, OAuth2Accessor> accessors;
+  private final ConcurrentMap<String, OAuth2Client> clients;
+  private final ConcurrentMap<String, OAuth2Token> tokens;
+  private final AtomicLong expiredTokenCount = new AtomicLong();
+  private final ScheduledExecutorService sweeper;
+
+  private final ConcurrentMap<String, ConcurrentMap<String, OAuth2Client>> userClientStore;
+
+  /**
+   * Creates a cache with the default limits for accessors and no periodic sweep.
+   */
   public OSEInMemoryCache() {
-    final Map<String, OAuth2Token> tMap = Maps.newHashMap();
-    this.tokens = Collections.synchronizedMap(tMap);
-    final Map<String, OAuth2Client> cMap = Maps.newHashMap();
-    this.clients = Collections.synchronizedMap(cMap);
-    final Map<String, OAuth2Accessor> aMap = Maps.newHashMap();
-    this.accessors = Collections.synchronizedMap(aMap);
-    final Map<String, Map<String, OAuth2Client>> uMap = Maps.newHashMap();
-    this.userClientStore = Collections.synchronizedMap(uMap);
+    this(DEFAULT_MAX_ACCESSORS, DEFAULT_ACCESSOR_IDLE_SECONDS, 0, Ticker.systemTicker());
+  }
+
+  /**
+   * @param maxAccessors
+   *          the maximum number of accessors kept, 0 or less means unlimited
+   * @param accessorIdleSeconds
+   *          the time after which an unused accessor is dropped, 0 or less means never
+   * @param sweepSeconds
+   *          the time between two sweeps for expired tokens, 0 or less means tokens are only
+   *          dropped when they are looked up
+   */
+  @Inject
+  public OSEInMemoryCache(@Named("explorer.oauth20.cache.maxAccessors") long maxAccessors,
+          @Named("explorer.oauth20.cache.accessorIdleSeconds") long accessorIdleSeconds,
+          @Named("explorer.oauth20.cache.sweepSeconds") long sweepSeconds) {
+    this(maxAccessors, accessorIdleSeconds, sweepSeconds, Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  OSEInMemoryCache(long maxAccessors, long accessorIdleSeconds, long sweepSeconds, Ticker ticker) {
+    CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder().recordStats().ticker(ticker);
+    if (maxAccessors > 0) {
+      builder.maximumSize(maxAccessors);
+    }
+    if (accessorIdleSeconds > 0) {
+      builder.expireAfterAccess(accessorIdleSeconds, TimeUnit.SECONDS);
+    }
+    this.accessorCache = builder.build();
+    this.accessors = new NullKeyConcurrentMap<OAuth2Accessor>(this.accessorCache.asMap());
+    this.tokens = newNullKeyConcurrentMap();
+    this.clients = newNullKeyConcurrentMap();
+    this.userClientStore = newNullKeyConcurrentMap();
+    if (sweepSeconds > 0) {
+      this.sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+              .setNameFormat("oauth2-cache-sweeper-%d").setDaemon(true).build());
+      this.sweeper.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          sweep();
+        }
+      }, sweepSeconds, sweepSeconds, TimeUnit.SECONDS);
+    } else {
+      this.sweeper = null;
+    }
+  }
+
+  private static <V> ConcurrentMap<String, V> newNullKeyConcurrentMap() {
+    return new NullKeyConcurrentMap<V>(new ConcurrentHashMap<String, V>());
+  }
+
+  @Override
+  protected Map<String, OAuth2Accessor> getAccessorMap() {
+    return this.accessors;
+  }
+
+  @Override
+  protected Map<String, OAuth2Client> getClientMap() {
+    return this.clients;
+  }
+
+  @Override
+  protected Map<String, OAuth2Token> getTokenMap() {
+    return this.tokens;
   }
   
   public JSONArray getUserClients(String userId) throws JSONException, UnsupportedEncodingException {
     JSONArray array = new JSONArray();
-    if(this.userClientStore.containsKey(userId)) {
-      Map<String, OAuth2Client> userMap = this.userClientStore.get(userId);
+    Map<String, OAuth2Client> userMap = this.userClientStore.get(userId);
+    if(userMap != null) {
       for (Entry<String, OAuth2Client> entry : userMap.entrySet()) {
         OAuth2Client client = entry.getValue();
         JSONObject service = new JSONObject();
@@ -90,25 +183,27 @@ public class OSEInMemoryCache extends InMemoryCache implements IOAuth2Cache {
   
   public OAuth2Client getUserClient(String userId, String serviceName) {
       Map<String, OAuth2Client> userMap = this.userClientStore.get(userId);
-      return userMap.get(serviceName);
+      return userMap != null ? userMap.get(serviceName) : null;
   }
   
   public void addUserClient(String userId, String serviceName, OAuth2Client client) {
-    if(this.userClientStore.containsKey(userId)) {
-      this.userClientStore.get(userId).put(serviceName, client);
-    } else {
-      Map<String, OAuth2Client> newUser = new HashMap<String, OAuth2Client>();
-      newUser.put(serviceName, client);
-      this.userClientStore.put(userId, newUser);
+    ConcurrentMap<String, OAuth2Client> userMap = this.userClientStore.get(userId);
+    if(userMap == null) {
+      ConcurrentMap<String, OAuth2Client> newUser = newNullKeyConcurrentMap();
+      userMap = this.userClientStore.putIfAbsent(userId, newUser);
+      if(userMap == null) {
+        userMap = newUser;
+      }
     }
+    userMap.put(serviceName, client);
   }
   
   public void deleteUserClient(String userId, String serviceName) throws NoSuchStoreException {
-    if(this.userClientStore.containsKey(userId)) {
-      this.userClientStore.get(userId).remove(serviceName);
-    } else {
+    Map<String, OAuth2Client> userMap = this.userClientStore.get(userId);
+    if(userMap == null) {
       throw new NoSuchStoreException("Couldn't find the given userId in userStore:" + userId);
     }
+    userMap.remove(serviceName);
   }
   
   public boolean isUserExisting(String userId) {
@@ -154,5 +249,113 @@ public class OSEInMemoryCache extends InMemoryCache implements IOAuth2Cache {
     final String s = scope == null ? "" : scope;
     return serviceName + ":" + user + ":" + s;
   }
-}
 
+  /**
+   * Looks up a token, dropping it if it has expired.
+   */
+  @Override
+  public OAuth2Token getToken(final String gadgetUri, final String serviceName, final String user,
+          final String scope, final Type type) {
+    String key = this.getTokenKey(gadgetUri, serviceName, user, scope, type);
+    OAuth2Token token = this.tokens.get(key);
+    if (token != null && isExpired(token, System.currentTimeMillis())) {
+      removeExpiredToken(key, token);
+      return null;
+    }
+    return token;
+  }
+
+  public OAuth2CacheStats getStats() {
+    return new OAuth2CacheStats(this.accessorCache.size(),
+            this.accessorCache.stats().evictionCount(), this.tokens.size(),
+            this.expiredTokenCount.get());
+  }
+
+  /**
+   * Drops the expired tokens and the accessors that are over the limits. Called periodically if a
+   * sweep interval is configured.
+   */
+  @VisibleForTesting
+  void sweep() {
+    final String method = "sweep";
+    try {
+      long now = System.currentTimeMillis();
+      for (Entry<String, OAuth2Token> entry : this.tokens.entrySet()) {
+        if (isExpired(entry.getValue(), now)) {
+          removeExpiredToken(entry.getKey(), entry.getValue());
+        }
+      }
+      this.accessorCache.cleanUp();
+    } catch (RuntimeException e) {
+      // An exception would cancel the following sweeps
+      LOG.logp(Level.WARNING, CLASS, method, "Unable to sweep the OAuth 2.0 cache", e);
+    }
+  }
+
+  /**
+   * Stops the periodic sweep, if any.
+   */
+  public void shutdown() {
+    if (this.sweeper != null) {
+      this.sweeper.shutdownNow();
+    }
+  }
+
+  private void removeExpiredToken(String key, OAuth2Token token) {
+    // Only if the token was not replaced in the meantime
+    if (this.tokens.remove(key, token)) {
+      this.expiredTokenCount.incrementAndGet();
+    }
+  }
+
+  private static boolean isExpired(OAuth2Token token, long now) {
+    // Tokens that do not expire have an expiry time of 0
+    return token.getExpiresAt() > 0 && token.getExpiresAt() <= now;
+  }
+
+  /**
+   * A concurrent map that, like the synchronized HashMaps it replaces, accepts null keys in
+   * lookups. {@link #getTokenKey} and the other key methods return null for incomplete requests,
+   * which are simply not found. Null keys and values are never stored.
+   */
+  private static class NullKeyConcurrentMap<V> extends ForwardingConcurrentMap<String, V> {
+    private final ConcurrentMap<String, V> delegate;
+
+    private NullKeyConcurrentMap(ConcurrentMap<String, V> delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    protected ConcurrentMap<String, V> delegate() {
+      return delegate;
+    }
+
+    @Override
+    public V get(Object key) {
+      return key == null ? null : super.get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+      return key != null && super.containsKey(key);
+    }
+
+    @Override
+    public V put(String key, V value) {
+      if (key == null) {
+        return null;
+      }
+      return value == null ? super.remove(key) : super.put(key, value);
+    }
+
+    @Override
+    public V remove(Object key) {
+      return key == null ? null : super.remove(key);
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+      return key != null && value != null && super.remove(key, value);
+    }
+  }
+}
@@ -153,6 +153,16 @@ public class OSEOAuth2Persister implements IOAuth2Persister {
   public boolean isUserExisting(String userId) {
     return this.userClientStore.containsKey(userId);
   }
+
+  public Map<String, Map<String, OAuth2Client>> loadUserClients() {
+    final Map<String, Map<String, OAuth2Client>> ret = Maps.newHashMap();
+    synchronized (this.userClientStore) {
+      for (Entry<String, Map<String, OAuth2Client>> entry : this.userClientStore.entrySet()) {
+        ret.put(entry.getKey(), new HashMap<String, OAuth2Client>(entry.getValue()));
+      }
+    }
+    return ret;
+  }
   
   protected void loadConfig() {
     final String method = "loadConfig";
@@ -0,0 +1,71 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.opensocial.explorer.server.oauth2;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.shindig.common.Nullable;
+import org.apache.shindig.common.servlet.Authority;
+import org.apache.shindig.gadgets.oauth2.persistence.OAuth2Encrypter;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+/**
+ * Provides the {@link IOAuth2Persister}. When <code>explorer.oauth20.store.file</code> is set the
+ * clients users add and all tokens are kept in that file by an {@link OSEFileOAuth2Persister},
+ * otherwise they are only kept in memory by an {@link OSEOAuth2Persister}.
+ */
+@Singleton
+public class OSEOAuth2PersisterProvider implements Provider<IOAuth2Persister> {
+  private static final String CLAZZ = OSEOAuth2PersisterProvider.class.getName();
+  private static final Logger LOG = Logger.getLogger(CLAZZ);
+
+  private final IOAuth2Persister persister;
+
+  @Inject
+  public OSEOAuth2PersisterProvider(@Named("explorer.oauth20.store.file") String file,
+          final OAuth2Encrypter encrypter, final Authority authority,
+          final String globalRedirectUri, @Nullable
+          @Named("shindig.contextroot") final String contextRoot,
+          final @Named("explorer.oauth20.config") String oauthConfig) {
+    final String method = "OSEOAuth2PersisterProvider";
+    IOAuth2Persister filePersister = null;
+    if (file != null && file.trim().length() > 0) {
+      try {
+        filePersister = new OSEFileOAuth2Persister(encrypter, authority, globalRedirectUri,
+                contextRoot, oauthConfig, new File(file.trim()));
+      } catch (IOException e) {
+        LOG.logp(Level.SEVERE, CLAZZ, method,
+                "Unable to use " + file + ", OAuth 2.0 clients and tokens are kept in memory", e);
+      }
+    }
+    this.persister = filePersister != null ? filePersister : new OSEOAuth2Persister(encrypter,
+            authority, globalRedirectUri, contextRoot, oauthConfig);
+  }
+
+  public IOAuth2Persister get() {
+    return persister;
+  }
+}
@@ -42,6 +42,8 @@ import org.apache.wink.json4j.JSONException;
 import org.opensocial.explorer.server.oauth.NoSuchStoreException;
 
 import java.io.UnsupportedEncodingException;
+import java.util.Map;
+import java.util.Map.Entry;
 
 /**
  * see {@link OAuth2Store}
@@ -172,6 +174,19 @@ public class OSEOAuth2Store extends BasicOAuth2Store {
     this.cache.deleteUserClient(userId, serviceName);
     this.persister.deleteUserClient(userId, serviceName);
   }
+
+  /**
+   * Adds the clients of all users in the persister to the cache. Called on startup, after
+   * {@link #init()}, so the clients users added before a restart are used again.
+   */
+  public void loadUserClients() {
+    for (Entry<String, Map<String, OAuth2Client>> user : this.persister.loadUserClients()
+            .entrySet()) {
+      for (Entry<String, OAuth2Client> client : user.getValue().entrySet()) {
+        this.cache.addUserClient(user.getKey(), client.getKey(), client.getValue());
+      }
+    }
+  }
    
   public OAuth2Accessor getOAuth2Accessor(final String gadgetUri, final String serviceName,
       final String user, final String scope) throws GadgetException {
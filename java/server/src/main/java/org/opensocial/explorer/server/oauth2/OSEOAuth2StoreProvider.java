@@ -80,6 +80,7 @@ public class OSEOAuth2StoreProvider implements Provider<OSEOAuth2Store> {
     } catch (final GadgetException e) {
       LOG.logp(Level.WARNING, CLAZZ, method, "Exception loading clients.", e);
     }
+    this.store.loadUserClients();
   }
 
   public OSEOAuth2Store get() {
@@ -0,0 +1,435 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.opensocial.explorer.server.persistence;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+
+/**
+ * A durable map from strings to bytes, kept in memory and in an append-only log file.
+ *
+ * Every change is appended to the log as a record holding its length and a CRC-32, and
+ * {@link #put(String, byte[])} and {@link #remove(String)} return once the record is on disk.
+ * Threads that change the map at the same time share one fsync: the first of them forces every
+ * record appended so far and the others find their records already synced. Reads never touch the
+ * file.
+ *
+ * The map is rebuilt from the log with one sequential read when the file is opened. A record that
+ * was only partly written when the server stopped ends the log and is truncated away. Once the log
+ * is larger than the compaction threshold and more than twice as large as the records still in
+ * use, the records in use are written to a new file which replaces the log atomically, so the log
+ * stays small and quick to read.
+ */
+public class JournalFile implements Closeable {
+  /**
+   * A compaction threshold for journals of a few thousand small records.
+   */
+  public static final long DEFAULT_COMPACT_BYTES = 1024 * 1024;
+  private static final String CLASS = JournalFile.class.getName();
+  private static final Logger LOG = Logger.getLogger(CLASS);
+  private static final int MAGIC = 0x4f534a4c; // "OSJL"
+  private static final int VERSION = 1;
+  private static final int HEADER_BYTES = 8;
+  // The length and CRC-32 around the payload of each record
+  private static final int FRAME_BYTES = 8;
+  private static final byte PUT = 1;
+  private static final byte REMOVE = 2;
+
+  private final File file;
+  private final long compactBytes;
+  private final ConcurrentMap<String, byte[]> records = new ConcurrentHashMap<String, byte[]>();
+  // Serializes syncing and replacing the channel, never held while waiting for the journal's lock
+  private final Object syncLock = new Object();
+  private volatile FileChannel channel;
+  private volatile long appendCount;
+  // Guarded by syncLock
+  private long syncCount;
+  // Guarded by this
+  private long fileBytes;
+  private long liveBytes;
+  private boolean closed;
+
+  /**
+   * Opens the journal in the given file, creating it if it does not exist, and reads its records.
+   *
+   * @param file
+   *          the log file
+   * @param compactBytes
+   *          the size in bytes below which the log is never compacted
+   * @throws IOException
+   *           if the file could not be created or read or is not a journal
+   */
+  public JournalFile(File file, long compactBytes) throws IOException {
+    File directory = file.getAbsoluteFile().getParentFile();
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create directory " + directory);
+    }
+    this.file = file;
+    this.compactBytes = compactBytes;
+    long validBytes = file.length() == 0 ? 0 : read();
+    this.channel = new RandomAccessFile(file, "rw").getChannel();
+    if (validBytes == 0) {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+      header.putInt(MAGIC).putInt(VERSION).flip();
+      channel.truncate(0);
+      write(channel, header, 0);
+      channel.force(true);
+      validBytes = HEADER_BYTES;
+    } else if (validBytes < channel.size()) {
+      LOG.logp(Level.WARNING, CLASS, "JournalFile", "Truncating the incomplete record at the end of "
+              + file + " from " + validBytes + " bytes on");
+      channel.truncate(validBytes);
+      channel.force(true);
+    }
+    synchronized (this) {
+      this.fileBytes = validBytes;
+      compactIfDue();
+    }
+  }
+
+  /**
+   * Builds a key from the given parts, so that different parts never give the same key. Each part
+   * is on its own line, null parts are empty lines, other parts start with '=' and have their
+   * backslashes and line breaks escaped.
+   *
+   * @param prefix
+   *          the first line of the key, which tells apart the kinds of records in one journal
+   * @param parts
+   *          the parts of the key, may be null
+   * @return the key
+   */
+  public static String getKey(String prefix, String... parts) {
+    StringBuilder key = new StringBuilder(prefix);
+    for (String part : parts) {
+      key.append('\n');
+      if (part != null) {
+        key.append('=').append(part.replace("\\", "\\\\").replace("\n", "\\n"));
+      }
+    }
+    return key.toString();
+  }
+
+  /**
+   * @return the value of the given key, or null if there is none
+   */
+  public byte[] get(String key) {
+    return key == null ? null : records.get(key);
+  }
+
+  /**
+   * @return all of the keys and their values
+   */
+  public Map<String, byte[]> getAll() {
+    return Collections.unmodifiableMap(records);
+  }
+
+  /**
+   * Sets the value of a key and returns once the change is on disk. A null value removes the key.
+   *
+   * @throws IOException
+   *           if the change could not be written to disk
+   */
+  public void put(String key, byte[] value) throws IOException {
+    if (value == null) {
+      remove(key);
+    } else {
+      sync(append(PUT, key, value));
+    }
+  }
+
+  /**
+   * Removes a key and returns once the change is on disk.
+   *
+   * @throws IOException
+   *           if the change could not be written to disk
+   */
+  public void remove(String key) throws IOException {
+    if (key != null && records.containsKey(key)) {
+      sync(append(REMOVE, key, null));
+    }
+  }
+
+  /**
+   * Applies several changes in order and returns once all of them are on disk, with one fsync for
+   * all of them. A null value removes its key.
+   *
+   * @throws IOException
+   *           if the changes could not be written to disk, some of them may have been applied
+   */
+  public void write(Map<String, byte[]> changes) throws IOException {
+    long count = 0;
+    synchronized (this) {
+      for (Map.Entry<String, byte[]> change : changes.entrySet()) {
+        if (change.getValue() != null) {
+          count = append(PUT, change.getKey(), change.getValue());
+        } else if (change.getKey() != null && records.containsKey(change.getKey())) {
+          count = append(REMOVE, change.getKey(), null);
+        }
+      }
+    }
+    if (count > 0) {
+      sync(count);
+    }
+  }
+
+  /**
+   * @return the size of the log in bytes
+   */
+  public synchronized long getFileBytes() {
+    return fileBytes;
+  }
+
+  public void close() throws IOException {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+    }
+    synchronized (syncLock) {
+      try {
+        channel.force(true);
+      } finally {
+        channel.close();
+      }
+    }
+  }
+
+  /**
+   * Appends a record to the log and applies it to the map.
+   *
+   * @return the number of records appended so far, which must be synced before the change is
+   *         durable
+   */
+  private synchronized long append(byte op, String key, byte[] value) throws IOException {
+    if (closed) {
+      throw new IOException("The journal " + file + " is closed");
+    }
+    ByteBuffer record = encode(op, key, value);
+    int length = record.remaining();
+    write(channel, record, fileBytes);
+    fileBytes += length;
+    byte[] previous = op == PUT ? records.put(key, value) : records.remove(key);
+    if (previous != null) {
+      liveBytes -= getRecordBytes(key, previous);
+    }
+    if (op == PUT) {
+      liveBytes += length;
+    }
+    long count = ++appendCount;
+    compactIfDue();
+    return count;
+  }
+
+  private void sync(long count) throws IOException {
+    synchronized (syncLock) {
+      if (syncCount >= count) {
+        return;
+      }
+      // Every record counted was written before the count was increased
+      long appended = appendCount;
+      channel.force(false);
+      syncCount = appended;
+    }
+  }
+
+  /**
+   * Compacts the log if it is due, keeping the current log if that fails.
+   */
+  private void compactIfDue() {
+    final String method = "compactIfDue";
+    if (fileBytes > compactBytes && fileBytes > 2 * (HEADER_BYTES + liveBytes)) {
+      try {
+        compact();
+      } catch (IOException e) {
+        LOG.logp(Level.WARNING, CLASS, method, "Unable to compact " + file, e);
+      }
+    }
+  }
+
+  /**
+   * Replaces the log with a new file holding only the records in use.
+   */
+  @VisibleForTesting
+  synchronized void compact() throws IOException {
+    File temp = File.createTempFile(file.getName() + '.', ".tmp",
+            file.getAbsoluteFile().getParentFile());
+    try {
+      long bytes = HEADER_BYTES;
+      RandomAccessFile out = new RandomAccessFile(temp, "rw");
+      try {
+        FileChannel outChannel = out.getChannel();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(MAGIC).putInt(VERSION).flip();
+        write(outChannel, header, 0);
+        for (Map.Entry<String, byte[]> entry : records.entrySet()) {
+          ByteBuffer record = encode(PUT, entry.getKey(), entry.getValue());
+          int length = record.remaining();
+          write(outChannel, record, bytes);
+          bytes += length;
+        }
+        outChannel.force(true);
+      } finally {
+        out.close();
+      }
+      synchronized (syncLock) {
+        // The channel is closed first, some platforms do not replace open files
+        channel.close();
+        try {
+          try {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+          } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+          }
+        } finally {
+          // Either the new log or, if it could not be moved, the old one
+          channel = new RandomAccessFile(file, "rw").getChannel();
+        }
+        fileBytes = channel.size();
+        // The new log was synced before it replaced the old one
+        syncCount = appendCount;
+      }
+      liveBytes = bytes - HEADER_BYTES;
+    } finally {
+      temp.delete();
+    }
+  }
+
+  /**
+   * Reads the records of the log into the map.
+   *
+   * @return the size of the complete records at the start of the log, including the header
+   */
+  private long read() throws IOException {
+    long length = file.length();
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file),
+            64 * 1024));
+    try {
+      if (length < HEADER_BYTES || in.readInt() != MAGIC) {
+        throw new IOException(file + " is not a journal");
+      }
+      int version = in.readInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported version " + version + " of journal " + file);
+      }
+      long offset = HEADER_BYTES;
+      CRC32 crc = new CRC32();
+      while (offset + FRAME_BYTES <= length) {
+        int payloadLength = in.readInt();
+        if (payloadLength < 5 || payloadLength > length - offset - FRAME_BYTES) {
+          break;
+        }
+        byte[] payload = new byte[payloadLength];
+        in.readFully(payload);
+        int checksum = in.readInt();
+        crc.reset();
+        crc.update(payload, 0, payloadLength);
+        if ((int) crc.getValue() != checksum || !apply(payload)) {
+          break;
+        }
+        offset += FRAME_BYTES + payloadLength;
+      }
+      return offset;
+    } catch (EOFException e) {
+      throw new IOException(file + " is not a journal", e);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Applies a record read from the log to the map.
+   *
+   * @return false if the record is not valid
+   */
+  private boolean apply(byte[] payload) {
+    ByteBuffer buffer = ByteBuffer.wrap(payload);
+    byte op = buffer.get();
+    int keyLength = buffer.getInt();
+    if (keyLength < 0 || keyLength > buffer.remaining()) {
+      return false;
+    }
+    String key = new String(payload, 5, keyLength, Charsets.UTF_8);
+    int valueOffset = 5 + keyLength;
+    if (op == PUT) {
+      byte[] value = new byte[payload.length - valueOffset];
+      System.arraycopy(payload, valueOffset, value, 0, value.length);
+      byte[] previous = records.put(key, value);
+      if (previous != null) {
+        liveBytes -= getRecordBytes(key, previous);
+      }
+      liveBytes += FRAME_BYTES + payload.length;
+      return true;
+    } else if (op == REMOVE && valueOffset == payload.length) {
+      byte[] previous = records.remove(key);
+      if (previous != null) {
+        liveBytes -= getRecordBytes(key, previous);
+      }
+      return true;
+    }
+    return false;
+  }
+
+  private static ByteBuffer encode(byte op, String key, byte[] value) {
+    byte[] keyBytes = key.getBytes(Charsets.UTF_8);
+    int payloadLength = 5 + keyBytes.length + (value == null ? 0 : value.length);
+    ByteBuffer record = ByteBuffer.allocate(FRAME_BYTES + payloadLength);
+    record.putInt(payloadLength).put(op).putInt(keyBytes.length).put(keyBytes);
+    if (value != null) {
+      record.put(value);
+    }
+    CRC32 crc = new CRC32();
+    crc.update(record.array(), 4, payloadLength);
+    record.putInt((int) crc.getValue());
+    record.flip();
+    return record;
+  }
+
+  private static long getRecordBytes(String key, byte[] value) {
+    return FRAME_BYTES + 5 + key.getBytes(Charsets.UTF_8).length + value.length;
+  }
+
+  private static void write(FileChannel channel, ByteBuffer buffer, long position)
+          throws IOException {
+    while (buffer.hasRemaining()) {
+      position += channel.write(buffer, position);
+    }
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.opensocial.explorer.server.persistence;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Reads and writes the fields of the values kept in a {@link JournalFile}. Each value starts with
+ * the version of its format as one byte, the strings and byte arrays in it may be null.
+ */
+public final class JournalRecords {
+
+  private JournalRecords() {
+  }
+
+  /**
+   * @param value
+   *          the value to read
+   * @param version
+   *          the version of the format the value must have
+   * @return a stream reading the fields of the value after its version
+   * @throws IOException
+   *           if the value has another version
+   */
+  public static DataInputStream openValue(byte[] value, int version) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(value));
+    int valueVersion = in.readByte();
+    if (valueVersion != version) {
+      throw new IOException("Unsupported version " + valueVersion);
+    }
+    return in;
+  }
+
+  public static void writeString(DataOutputStream out, String value) throws IOException {
+    out.writeBoolean(value != null);
+    if (value != null) {
+      out.writeUTF(value);
+    }
+  }
+
+  public static String readString(DataInputStream in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+
+  public static void writeBytes(DataOutputStream out, byte[] value) throws IOException {
+    out.writeInt(value == null ? -1 : value.length);
+    if (value != null) {
+      out.write(value);
+    }
+  }
+
+  public static byte[] readBytes(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] value = new byte[length];
+    in.readFully(value);
+    return value;
+  }
+}
@@ -0,0 +1,305 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.opensocial.explorer.server.render;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.opensocial.explorer.server.render.RenderedGadget.Header;
+
+import com.google.common.collect.Lists;
+
+/**
+ * A response that passes everything through to the wrapped response while keeping a copy of the
+ * body, status and headers, so the output can be cached once it is complete.
+ */
+class CapturingResponse extends HttpServletResponseWrapper {
+  private static final Pattern MAX_AGE = Pattern.compile("max-age\\s*=\\s*(\\d+)");
+
+  private final int maxBytes;
+  private final List<Header> headers = Lists.newArrayList();
+  private ByteArrayOutputStream body = new ByteArrayOutputStream();
+  private int status = SC_OK;
+  private boolean cookies;
+  private ServletOutputStream outputStream;
+  private PrintWriter writer;
+  // Set while the writer hands its buffered characters to a buffer that is about to be discarded
+  private boolean discarding;
+
+  /**
+   * @param resp
+   *          the response to pass everything through to
+   * @param maxBytes
+   *          the largest body to keep a copy of
+   */
+  CapturingResponse(HttpServletResponse resp, int maxBytes) {
+    super(resp);
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Flushes any characters still buffered by the writer and returns the captured output.
+   *
+   * @param now
+   *          the current time in milliseconds
+   * @param maxAgeMillis
+   *          the longest time the output may be kept for
+   * @return the captured output, or null if it must not be cached. Only complete 200 responses that
+   *         do not set cookies and whose Cache-Control header allows shared caching for a positive
+   *         max-age are cached, for no longer than that max-age.
+   */
+  RenderedGadget finish(long now, long maxAgeMillis) {
+    if (writer != null) {
+      writer.flush();
+    }
+    if (status != SC_OK || body == null || cookies) {
+      return null;
+    }
+    long maxAge = -1;
+    for (Header header : headers) {
+      if ("Set-Cookie".equalsIgnoreCase(header.getName())) {
+        return null;
+      }
+      if ("Cache-Control".equalsIgnoreCase(header.getName())) {
+        String cacheControl = String.valueOf(header.getValue()).toLowerCase(Locale.ENGLISH);
+        if (cacheControl.contains("no-store") || cacheControl.contains("no-cache")
+                || cacheControl.contains("private")) {
+          return null;
+        }
+        Matcher matcher = MAX_AGE.matcher(cacheControl);
+        if (matcher.find()) {
+          try {
+            maxAge = Long.parseLong(matcher.group(1));
+          } catch (NumberFormatException e) {
+            return null;
+          }
+        }
+      }
+    }
+    if (maxAge <= 0) {
+      return null;
+    }
+    return new RenderedGadget(body.toByteArray(), getContentType(), headers,
+            now + Math.min(maxAge * 1000, maxAgeMillis));
+  }
+
+  @Override
+  public ServletOutputStream getOutputStream() throws IOException {
+    if (outputStream == null) {
+      outputStream = new CapturingOutputStream(super.getOutputStream());
+    }
+    return outputStream;
+  }
+
+  @Override
+  public PrintWriter getWriter() throws IOException {
+    if (writer == null) {
+      String encoding = getCharacterEncoding();
+      writer = new PrintWriter(new OutputStreamWriter(getOutputStream(),
+              encoding != null ? encoding : "ISO-8859-1"));
+    }
+    return writer;
+  }
+
+  @Override
+  public void flushBuffer() throws IOException {
+    if (writer != null) {
+      writer.flush();
+    }
+    super.flushBuffer();
+  }
+
+  @Override
+  public void resetBuffer() {
+    discardWriterBuffer();
+    super.resetBuffer();
+    body = new ByteArrayOutputStream();
+  }
+
+  @Override
+  public void reset() {
+    discardWriterBuffer();
+    super.reset();
+    body = new ByteArrayOutputStream();
+    headers.clear();
+    status = SC_OK;
+    cookies = false;
+  }
+
+  /**
+   * Moves the characters buffered by the writer into the buffer of the wrapped response without
+   * committing it, so resetting the buffer discards them as well.
+   */
+  private void discardWriterBuffer() {
+    if (writer != null) {
+      discarding = true;
+      try {
+        writer.flush();
+      } finally {
+        discarding = false;
+      }
+    }
+  }
+
+  @Override
+  public void setStatus(int status) {
+    this.status = status;
+    super.setStatus(status);
+  }
+
+  @SuppressWarnings("deprecation")
+  @Override
+  public void setStatus(int status, String message) {
+    this.status = status;
+    super.setStatus(status, message);
+  }
+
+  @Override
+  public void sendError(int status) throws IOException {
+    this.status = status;
+    super.sendError(status);
+  }
+
+  @Override
+  public void sendError(int status, String message) throws IOException {
+    this.status = status;
+    super.sendError(status, message);
+  }
+
+  @Override
+  public void sendRedirect(String location) throws IOException {
+    this.status = SC_MOVED_TEMPORARILY;
+    super.sendRedirect(location);
+  }
+
+  @Override
+  public void addCookie(Cookie cookie) {
+    cookies = true;
+    super.addCookie(cookie);
+  }
+
+  @Override
+  public void setHeader(String name, String value) {
+    setCaptured(name, value);
+    super.setHeader(name, value);
+  }
+
+  @Override
+  public void addHeader(String name, String value) {
+    addCaptured(name, value);
+    super.addHeader(name, value);
+  }
+
+  @Override
+  public void setDateHeader(String name, long date) {
+    setCaptured(name, date);
+    super.setDateHeader(name, date);
+  }
+
+  @Override
+  public void addDateHeader(String name, long date) {
+    addCaptured(name, date);
+    super.addDateHeader(name, date);
+  }
+
+  @Override
+  public void setIntHeader(String name, int value) {
+    setCaptured(name, value);
+    super.setIntHeader(name, value);
+  }
+
+  @Override
+  public void addIntHeader(String name, int value) {
+    addCaptured(name, value);
+    super.addIntHeader(name, value);
+  }
+
+  private void setCaptured(String name, Object value) {
+    Iterator<Header> it = headers.iterator();
+    while (it.hasNext()) {
+      if (it.next().getName().equalsIgnoreCase(name)) {
+        it.remove();
+      }
+    }
+    addCaptured(name, value);
+  }
+
+  private void addCaptured(String name, Object value) {
+    // The length is set again from the captured body when the output is served from the cache
+    if (name != null && value != null && !"Content-Length".equalsIgnoreCase(name)) {
+      headers.add(new Header(name, value));
+    }
+  }
+
+  private void capture(byte[] bytes, int offset, int length) {
+    if (body == null) {
+      return;
+    }
+    if (body.size() + length > maxBytes) {
+      // Too large to cache, stop copying
+      body = null;
+      return;
+    }
+    body.write(bytes, offset, length);
+  }
+
+  private class CapturingOutputStream extends ServletOutputStream {
+    private final ServletOutputStream out;
+
+    private CapturingOutputStream(ServletOutputStream out) {
+      this.out = out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      capture(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+      out.write(bytes, offset, length);
+      capture(bytes, offset, length);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      if (!discarding) {
+        out.flush();
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,140 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.opensocial.explorer.server.render;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+/**
+ * A memory-bounded cache for the output Shindig rendered for gadgets, see
+ * {@link GadgetRenderCacheFilter}.
+ *
+ * Entries are weighed by their approximate size in bytes and the least recently used entries are
+ * evicted once the total exceeds the configured maximum. An entry is never served for longer than
+ * the configured maximum age, nor longer than the max-age Shindig set on the rendered response. The
+ * rendered output includes security tokens, so the maximum age should stay well below their time
+ * to live.
+ */
+@Singleton
+public class GadgetRenderCache {
+  private final Cache<String, RenderedGadget> cache;
+  private final long maxAgeMillis;
+  private final int maxEntryBytes;
+
+  /**
+   * @param maxBytes
+   *          the approximate maximum number of bytes held by the cache, 0 or less disables the
+   *          cache
+   * @param maxAgeSeconds
+   *          the longest time an entry is served for, 0 or less disables the cache
+   */
+  @Inject
+  public GadgetRenderCache(@Named("explorer.render.cacheBytes") long maxBytes,
+          @Named("explorer.render.cacheSeconds") long maxAgeSeconds) {
+    if (maxBytes <= 0 || maxAgeSeconds <= 0) {
+      this.cache = null;
+      this.maxAgeMillis = 0;
+      this.maxEntryBytes = 0;
+      return;
+    }
+    this.cache = CacheBuilder.newBuilder().recordStats().maximumWeight(maxBytes)
+            .weigher(new Weigher<String, RenderedGadget>() {
+              public int weigh(String key, RenderedGadget value) {
+                // Strings are UTF-16 internally
+                return key.length() * 2 + value.getWeight();
+              }
+            }).build();
+    this.maxAgeMillis = maxAgeSeconds * 1000;
+    // A single rendering may not push out most of the cache
+    this.maxEntryBytes = (int) Math.min(maxBytes / 16, Integer.MAX_VALUE);
+  }
+
+  /**
+   * @return false iff the cache was configured not to keep anything
+   */
+  public boolean isEnabled() {
+    return cache != null;
+  }
+
+  /**
+   * @param key
+   *          the key the rendering was cached under
+   * @param now
+   *          the current time in milliseconds
+   * @return the cached rendering, or null if it is not cached or has expired
+   */
+  public RenderedGadget get(String key, long now) {
+    if (cache == null) {
+      return null;
+    }
+    RenderedGadget rendered = cache.getIfPresent(key);
+    if (rendered != null && rendered.isExpired(now)) {
+      cache.invalidate(key);
+      return null;
+    }
+    return rendered;
+  }
+
+  /**
+   * Caches the given rendering.
+   *
+   * @param key
+   *          the key to cache the rendering under
+   * @param rendered
+   *          the rendering to cache
+   */
+  public void put(String key, RenderedGadget rendered) {
+    if (cache != null) {
+      cache.put(key, rendered);
+    }
+  }
+
+  /**
+   * @return the longest time in milliseconds a rendering may be cached for
+   */
+  public long getMaxAgeMillis() {
+    return maxAgeMillis;
+  }
+
+  /**
+   * @return the size in bytes of the largest rendering worth caching
+   */
+  public int getMaxEntryBytes() {
+    return maxEntryBytes;
+  }
+
+  /**
+   * @return the number of entries in the cache
+   */
+  public long size() {
+    return cache == null ? 0 : cache.size();
+  }
+
+  /**
+   * @return the hit, miss and eviction statistics of the cache
+   */
+  public CacheStats getStats() {
+    return cache == null ? new CacheStats(0, 0, 0, 0, 0, 0) : cache.stats();
+  }
+}
@@ -0,0 +1,181 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.opensocial.explorer.server.render;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLEncoder;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.shindig.common.servlet.InjectedFilter;
+import org.opensocial.explorer.specserver.api.GadgetRegistry;
+import org.opensocial.explorer.specserver.api.GadgetResource;
+import org.opensocial.explorer.specserver.api.GadgetSpec;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
+import com.google.inject.Inject;
+
+/**
+ * A filter in front of Shindig's gadget rendering servlet that serves gadgets from the
+ * {@link GadgetRegistry} out of a {@link GadgetRenderCache}, so rendering the same gadget again
+ * with the same parameters does not fetch, parse and rewrite its spec again.
+ *
+ * Only GET requests whose url parameter points at the gadget XML of a registry spec on this server
+ * are cached. Registry spec IDs are digests of the spec's content, so a changed spec has a new URL
+ * and never hits a rendering of its old content, and renderings of specs that are no longer in the
+ * registry are not served. The cache key is the spec ID, the host and all request parameters,
+ * including the security token, which Shindig embeds in the output, so renderings are never shared
+ * between users. Requests with the nocache or debug parameters, and gadgets with Preloads, whose
+ * data is fetched for every rendering, always go through to Shindig.
+ */
+public class GadgetRenderCacheFilter extends InjectedFilter {
+  private static final String CLASS = GadgetRenderCacheFilter.class.getName();
+  private static final Logger LOG = Logger.getLogger(CLASS);
+  private static final String SPEC_PATH = "/gadgetspec/";
+  private static final Splitter PATH_SPLITTER = Splitter.on('/');
+  private GadgetRegistry registry;
+  private GadgetRenderCache renderCache;
+
+  @Inject
+  public void setRegistry(GadgetRegistry registry) {
+    this.registry = registry;
+  }
+
+  @Inject
+  public void setRenderCache(GadgetRenderCache renderCache) {
+    this.renderCache = renderCache;
+  }
+
+  public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+          throws IOException, ServletException {
+    if (!(request instanceof HttpServletRequest) || !(response instanceof HttpServletResponse)) {
+      chain.doFilter(request, response);
+      return;
+    }
+    HttpServletRequest req = (HttpServletRequest) request;
+    HttpServletResponse resp = (HttpServletResponse) response;
+    GadgetSpec spec = isCacheable(req) ? getRegistrySpec(req) : null;
+    if (spec == null) {
+      chain.doFilter(req, resp);
+      return;
+    }
+
+    String key = getKey(spec, req);
+    RenderedGadget rendered = renderCache.get(key, System.currentTimeMillis());
+    if (rendered != null) {
+      rendered.writeTo(resp, System.currentTimeMillis());
+      return;
+    }
+    if (hasPreloads(spec)) {
+      chain.doFilter(req, resp);
+      return;
+    }
+    CapturingResponse capture = new CapturingResponse(resp, renderCache.getMaxEntryBytes());
+    chain.doFilter(req, capture);
+    rendered = capture.finish(System.currentTimeMillis(), renderCache.getMaxAgeMillis());
+    if (rendered != null) {
+      renderCache.put(key, rendered);
+    }
+  }
+
+  private boolean isCacheable(HttpServletRequest req) {
+    return renderCache != null && registry != null && renderCache.isEnabled()
+            && "GET".equals(req.getMethod()) && !isSet(req.getParameter("nocache"))
+            && !isSet(req.getParameter("debug"));
+  }
+
+  private static boolean isSet(String param) {
+    return param != null && !param.isEmpty() && !"0".equals(param) && !"false".equals(param);
+  }
+
+  /**
+   * @return the registry spec whose gadget XML the url parameter points at, or null if it points
+   *         anywhere else
+   */
+  private GadgetSpec getRegistrySpec(HttpServletRequest req) {
+    String url = req.getParameter("url");
+    if (url == null) {
+      return null;
+    }
+    URI uri;
+    try {
+      uri = new URI(url);
+    } catch (URISyntaxException e) {
+      return null;
+    }
+    String path = uri.getPath();
+    String specPath = req.getContextPath() + SPEC_PATH;
+    if (!req.getServerName().equalsIgnoreCase(uri.getHost()) || path == null
+            || !path.startsWith(specPath) || uri.getRawQuery() != null) {
+      return null;
+    }
+    List<String> segments = Lists.newArrayList(PATH_SPLITTER.split(
+            path.substring(specPath.length())));
+    if (segments.size() != 2) {
+      return null;
+    }
+    GadgetSpec spec = registry.getGadgetSpec(segments.get(0));
+    if (spec == null) {
+      return null;
+    }
+    GadgetResource gadget = spec.getGadgetResource();
+    return gadget != null && segments.get(1).equals(gadget.getName()) ? spec : null;
+  }
+
+  private boolean hasPreloads(GadgetSpec spec) {
+    final String method = "hasPreloads";
+    try {
+      String content = spec.getGadgetResource().getContent();
+      return content == null || content.contains("Preload");
+    } catch (RuntimeException e) {
+      LOG.logp(Level.WARNING, CLASS, method, "Unable to read the gadget XML of " + spec.getId(), e);
+      return true;
+    }
+  }
+
+  private static String getKey(GadgetSpec spec, HttpServletRequest req)
+          throws UnsupportedEncodingException {
+    StringBuilder key = new StringBuilder(spec.getId()).append(' ').append(req.getScheme())
+            .append("://").append(req.getServerName()).append(':').append(req.getServerPort())
+            .append('?');
+    @SuppressWarnings("unchecked")
+    Map<String, String[]> params = req.getParameterMap();
+    for (String name : Ordering.natural().sortedCopy(params.keySet())) {
+      for (String value : params.get(name)) {
+        key.append(URLEncoder.encode(name, "UTF-8")).append('=')
+                .append(URLEncoder.encode(value, "UTF-8")).append('&');
+      }
+    }
+    return key.toString();
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.opensocial.explorer.server.render;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+
+/**
+ * The output of one successful rendering of a gadget: its body, content type and the headers that
+ * were set on the response, kept until it expires.
+ */
+public final class RenderedGadget {
+  private static final Pattern MAX_AGE = Pattern.compile("max-age\\s*=\\s*\\d+");
+
+  private final byte[] body;
+  private final String contentType;
+  private final List<Header> headers;
+  private final long expires;
+
+  RenderedGadget(byte[] body, String contentType, List<Header> headers, long expires) {
+    this.body = body;
+    this.contentType = contentType;
+    this.headers = ImmutableList.copyOf(headers);
+    this.expires = expires;
+  }
+
+  /**
+   * @param now
+   *          the current time in milliseconds
+   * @return true iff the rendering may no longer be served
+   */
+  public boolean isExpired(long now) {
+    return now >= expires;
+  }
+
+  /**
+   * @return the approximate number of bytes held by this rendering
+   */
+  public int getWeight() {
+    int weight = body.length;
+    for (Header header : headers) {
+      weight += header.getWeight();
+    }
+    return weight;
+  }
+
+  /**
+   * Writes this rendering to the given response. The max-age in the Cache-Control header is reduced
+   * to the time left until this rendering expires, so clients do not keep it any longer than
+   * Shindig allowed.
+   *
+   * @param now
+   *          the current time in milliseconds
+   */
+  public void writeTo(HttpServletResponse resp, long now) throws IOException {
+    resp.setStatus(HttpServletResponse.SC_OK);
+    long maxAge = Math.max((expires - now) / 1000, 0);
+    Set<String> written = Sets.newHashSet();
+    for (Header header : headers) {
+      header.writeTo(resp, written.add(header.getName().toLowerCase()), maxAge);
+    }
+    if (contentType != null) {
+      resp.setContentType(contentType);
+    }
+    resp.setContentLength(body.length);
+    resp.getOutputStream().write(body);
+  }
+
+  /**
+   * A header set on the response while the gadget was rendered. The value is a String, a Long date
+   * or an Integer, depending on how it was set.
+   */
+  static final class Header {
+    private final String name;
+    private final Object value;
+
+    Header(String name, Object value) {
+      this.name = name;
+      this.value = value;
+    }
+
+    String getName() {
+      return name;
+    }
+
+    Object getValue() {
+      return value;
+    }
+
+    private int getWeight() {
+      // Strings are UTF-16 internally
+      return (name.length() + String.valueOf(value).length()) * 2;
+    }
+
+    private void writeTo(HttpServletResponse resp, boolean first, long maxAge) {
+      if (value instanceof Long) {
+        if (first) {
+          resp.setDateHeader(name, (Long) value);
+        } else {
+          resp.addDateHeader(name, (Long) value);
+        }
+      } else if (value instanceof Integer) {
+        if (first) {
+          resp.setIntHeader(name, (Integer) value);
+        } else {
+          resp.addIntHeader(name, (Integer) value);
+        }
+      } else {
+        String stringValue = (String) value;
+        if ("Cache-Control".equalsIgnoreCase(name)) {
+          stringValue = MAX_AGE.matcher(stringValue).replaceAll(
+                  Matcher.quoteReplacement("max-age=" + maxAge));
+        }
+        if (first) {
+          resp.setHeader(name, stringValue);
+        } else {
+          resp.addHeader(name, stringValue);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,288 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.opensocial.explorer.server.oauth;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.shindig.auth.SecurityToken;
+import org.apache.shindig.gadgets.oauth.BasicOAuthStoreConsumerKeyAndSecret;
+import org.apache.shindig.gadgets.oauth.BasicOAuthStoreConsumerKeyAndSecret.KeyType;
+import org.apache.shindig.gadgets.oauth.OAuthStore.TokenInfo;
+import org.apache.shindig.gadgets.oauth2.persistence.OAuth2Encrypter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensocial.explorer.server.oauth.OSEOAuthStore.TokenInfoIndex;
+import org.opensocial.explorer.server.persistence.JournalFile;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+public class OSEFileOAuthPersisterTest {
+
+  private File directory;
+  private File file;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = Files.createTempDir();
+    file = new File(directory, "oauth.journal");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    for (File child : directory.listFiles()) {
+      child.delete();
+    }
+    directory.delete();
+  }
+
+  @Test
+  public void testServicesAndTokensSurviveRestart() throws Exception {
+    OSEFileOAuthPersister persister = createPersister();
+    persister.storeUserService("user1", "service1", createService("key1", "secret1"));
+    persister.storeUserService("user1", "service2", createService("key2", "secret2"));
+    persister.storeUserService("user2", "service1", createService("key3", "secret3"));
+    persister.removeUserService("user1", "service2");
+    persister.storeToken(new TokenInfoIndex("service1", "token1", "user1"),
+            new TokenInfo("access1", "tokenSecret1", "session1", 1000L));
+    persister.storeToken(new TokenInfoIndex("service1", "token1", null),
+            new TokenInfo("access2", null, null, 0));
+    persister.storeToken(new TokenInfoIndex("service2", "token1", "user1"),
+            new TokenInfo("access3", "tokenSecret3", null, 0));
+    persister.removeToken(new TokenInfoIndex("service2", "token1", "user1"));
+    persister.close();
+
+    persister = createPersister();
+    Map<String, Map<String, BasicOAuthStoreConsumerKeyAndSecret>> services =
+            persister.loadUserServices();
+    assertEquals(2, services.size());
+    assertEquals(1, services.get("user1").size());
+    BasicOAuthStoreConsumerKeyAndSecret kas = services.get("user1").get("service1");
+    assertEquals("key1", kas.getConsumerKey());
+    assertEquals("secret1", kas.getConsumerSecret());
+    assertEquals(KeyType.HMAC_SYMMETRIC, kas.getKeyType());
+    assertEquals("service1", kas.getKeyName());
+    assertEquals("http://example.com/callback", kas.getCallbackUrl());
+    assertFalse(kas.isOauthBodyHash());
+    assertEquals("secret3", services.get("user2").get("service1").getConsumerSecret());
+
+    Map<TokenInfoIndex, TokenInfo> tokens = persister.loadTokens();
+    assertEquals(2, tokens.size());
+    TokenInfo info = tokens.get(new TokenInfoIndex("service1", "token1", "user1"));
+    assertEquals("access1", info.getAccessToken());
+    assertEquals("tokenSecret1", info.getTokenSecret());
+    assertEquals("session1", info.getSessionHandle());
+    assertEquals(1000L, info.getTokenExpireMillis());
+    info = tokens.get(new TokenInfoIndex("service1", "token1", null));
+    assertEquals("access2", info.getAccessToken());
+    assertNull(info.getTokenSecret());
+    persister.close();
+  }
+
+  @Test
+  public void testUnusualKeys() throws Exception {
+    OSEFileOAuthPersister persister = createPersister();
+    persister.storeUserService("user\n=1", "service1", createService("key1", "secret1"));
+    persister.storeUserService("user", "1\n=service1", createService("key2", "secret2"));
+    persister.storeToken(new TokenInfoIndex("service\n=token1", "user1", null),
+            new TokenInfo("access1", null, null, 0));
+    persister.storeToken(new TokenInfoIndex("service", "token1", "user1\n"),
+            new TokenInfo("access2", null, null, 0));
+    persister.close();
+
+    persister = createPersister();
+    Map<String, Map<String, BasicOAuthStoreConsumerKeyAndSecret>> services =
+            persister.loadUserServices();
+    assertEquals("key1", services.get("user\n=1").get("service1").getConsumerKey());
+    assertEquals("key2", services.get("user").get("1\n=service1").getConsumerKey());
+    Map<TokenInfoIndex, TokenInfo> tokens = persister.loadTokens();
+    assertEquals("access1",
+            tokens.get(new TokenInfoIndex("service\n=token1", "user1", null)).getAccessToken());
+    assertEquals("access2",
+            tokens.get(new TokenInfoIndex("service", "token1", "user1\n")).getAccessToken());
+    persister.close();
+  }
+
+  @Test
+  public void testSecretsAreEncrypted() throws Exception {
+    OSEFileOAuthPersister persister = createPersister();
+    persister.storeUserService("user1", "service1", createService("key1", "consumer-secret"));
+    persister.storeToken(new TokenInfoIndex("service1", "token1", "user1"),
+            new TokenInfo("access-token", "token-secret", null, 0));
+    persister.flush();
+    String content = Files.toString(file, Charsets.ISO_8859_1);
+    assertTrue(content.contains("service1"));
+    assertFalse(content.contains("consumer-secret"));
+    assertFalse(content.contains("access-token"));
+    assertFalse(content.contains("token-secret"));
+    persister.close();
+  }
+
+  @Test
+  public void testStoreSurvivesRestart() throws Exception {
+    OSEFileOAuthPersister persister = createPersister();
+    OSEOAuthStore store = new OSEOAuthStore(persister);
+    SecurityToken st = createSecurityTokenMock("user1");
+    store.addUserService("user1", "service1", createService("key1", "secret1"));
+    store.addUserService("user1", "service2", createService("key2", "secret2"));
+    store.deleteUserService("user1", "service2");
+    store.setTokenInfo(st, null, "service1", "token1", new TokenInfo("access1", "tokenSecret1",
+            null, 0));
+    store.setTokenInfo(st, null, "service1", "token2", new TokenInfo("access2", "tokenSecret2",
+            null, 0));
+    store.removeToken(st, null, "service1", "token2");
+    persister.close();
+
+    persister = createPersister();
+    store = new OSEOAuthStore(persister);
+    assertEquals(1, store.getUserServices("user1").length());
+    assertEquals("key1", store.getUserServices("user1").getJSONObject(0).getString("key"));
+    assertEquals("access1", store.getTokenInfo(st, null, "service1", "token1").getAccessToken());
+    assertNull(store.getTokenInfo(st, null, "service1", "token2"));
+    persister.close();
+  }
+
+  @Test
+  public void testConcurrentChangesOfOneToken() throws Exception {
+    final int threads = 8;
+    final int updates = 200;
+    OSEFileOAuthPersister persister = createPersister();
+    final OSEOAuthStore store = new OSEOAuthStore(persister);
+    final SecurityToken st = createSecurityTokenMock("user1");
+    final CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<Void>> results = Lists.newArrayList();
+      for (int t = 0; t < threads; t++) {
+        final int thread = t;
+        results.add(executor.submit(new Callable<Void>() {
+          public Void call() throws Exception {
+            start.await();
+            for (int i = 0; i < updates; i++) {
+              store.setTokenInfo(st, null, "service1", "token1", new TokenInfo(thread + "-" + i,
+                      null, null, 0));
+            }
+            return null;
+          }
+        }));
+      }
+      start.countDown();
+      for (Future<Void> result : results) {
+        result.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+    persister.close();
+
+    // The file holds the token the store ended up with, whichever thread set it last
+    persister = createPersister();
+    assertEquals(store.getTokenInfo(st, null, "service1", "token1").getAccessToken(),
+            new OSEOAuthStore(persister).getTokenInfo(st, null, "service1", "token1")
+                    .getAccessToken());
+    persister.close();
+  }
+
+  @Test
+  public void testFailedWriteIsRetried() throws Exception {
+    FailingJournalFile journal = new FailingJournalFile(file);
+    OSEFileOAuthPersister persister = new OSEFileOAuthPersister(new XorEncrypter(), journal);
+    TokenInfoIndex index = new TokenInfoIndex("service1", "token1", "user1");
+    persister.storeUserService("user1", "service1", createService("key1", "secret1"));
+    persister.storeToken(index, new TokenInfo("access1", null, null, 0));
+    journal.failing = true;
+    try {
+      persister.flush();
+      fail("The write should have failed");
+    } catch (IOException e) {
+      // expected
+    }
+    journal.failing = false;
+    persister.storeToken(index, new TokenInfo("access2", null, null, 0));
+    persister.close();
+
+    // The failed batch is written with the next one, which replaces its older token
+    persister = createPersister();
+    assertEquals("key1", persister.loadUserServices().get("user1").get("service1")
+            .getConsumerKey());
+    assertEquals("access2", persister.loadTokens().get(index).getAccessToken());
+    persister.close();
+  }
+
+  private OSEFileOAuthPersister createPersister() throws Exception {
+    return new OSEFileOAuthPersister(new XorEncrypter(), file);
+  }
+
+  private BasicOAuthStoreConsumerKeyAndSecret createService(String key, String secret) {
+    return new BasicOAuthStoreConsumerKeyAndSecret(key, secret, KeyType.HMAC_SYMMETRIC,
+            "service1", "http://example.com/callback", false);
+  }
+
+  private SecurityToken createSecurityTokenMock(String viewerId) {
+    SecurityToken st = createMock(SecurityToken.class);
+    expect(st.getViewerId()).andReturn(viewerId).anyTimes();
+    replay(st);
+    return st;
+  }
+
+  private static class FailingJournalFile extends JournalFile {
+    volatile boolean failing;
+
+    FailingJournalFile(File file) throws IOException {
+      super(file, JournalFile.DEFAULT_COMPACT_BYTES);
+    }
+
+    @Override
+    public void write(Map<String, byte[]> changes) throws IOException {
+      if (failing) {
+        throw new IOException("No space left on device");
+      }
+      super.write(changes);
+    }
+  }
+
+  private static class XorEncrypter implements OAuth2Encrypter {
+    public byte[] encrypt(byte[] plain) {
+      byte[] encrypted = new byte[plain.length];
+      for (int i = 0; i < plain.length; i++) {
+        encrypted[i] = (byte) (plain[i] ^ 0x5a);
+      }
+      return encrypted;
+    }
+
+    public byte[] decrypt(byte[] encrypted) {
+      return encrypt(encrypted);
+    }
+  }
+}
@@ -24,6 +24,14 @@ import static org.easymock.EasyMock.replay;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import net.oauth.OAuth;
 import net.oauth.OAuthServiceProvider;
 import net.oauth.signature.RSA_SHA1;
@@ -31,6 +39,8 @@ import net.oauth.signature.RSA_SHA1;
 import org.apache.shindig.auth.SecurityToken;
 import org.apache.shindig.common.servlet.Authority;
 import org.apache.shindig.gadgets.GadgetException;
+import org.apache.shindig.gadgets.oauth.BasicOAuthStoreConsumerKeyAndSecret;
+import org.apache.shindig.gadgets.oauth.BasicOAuthStoreConsumerKeyAndSecret.KeyType;
 import org.apache.shindig.gadgets.oauth.OAuthStore.ConsumerInfo;
 import org.apache.shindig.gadgets.oauth.OAuthStore.TokenInfo;
 import org.apache.wink.json4j.JSONException;
@@ -39,6 +49,8 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.google.common.collect.Lists;
+
 public class OSEOAuthStoreTest {
   
   private OSEOAuthStore store;
@@ -160,6 +172,81 @@ public class OSEOAuthStoreTest {
     assertNull(store.getTokenInfo(st, createMock(ConsumerInfo.class), "service1", "token1"));
   }
 
+  @Test
+  public void testAddAndDeleteUserServices() throws Exception {
+    store.addUserService("user1", "service1", new BasicOAuthStoreConsumerKeyAndSecret("key1",
+            "secret1", KeyType.HMAC_SYMMETRIC, "service1", null));
+    store.addUserService("user1", "service2", new BasicOAuthStoreConsumerKeyAndSecret("key2",
+            "secret2", KeyType.HMAC_SYMMETRIC, "service2", null));
+    assertEquals(2, store.getUserServices("user1").length());
+    assertEquals(0, store.getUserServices("user2").length());
+    store.deleteUserService("user1", "service1");
+    assertEquals(1, store.getUserServices("user1").length());
+    assertEquals("key2", store.getUserServices("user1").getJSONObject(0).getString("key"));
+    try {
+      store.deleteUserService("user2", "service1");
+      fail("Deleting a service of an unknown user should fail");
+    } catch (NoSuchStoreException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testConcurrentUpdates() throws Exception {
+    final int threads = 8;
+    final int services = 200;
+    final CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<Void>> results = Lists.newArrayList();
+      for (int t = 0; t < threads; t++) {
+        final int thread = t;
+        results.add(executor.submit(new Callable<Void>() {
+          public Void call() throws Exception {
+            // Two threads per user, every thread adds its own services and tokens
+            String userId = "user" + thread / 2;
+            SecurityToken st = createSecurityTokenMock(userId);
+            start.await();
+            for (int i = 0; i < services; i++) {
+              String serviceName = "service" + thread + "-" + i;
+              store.addUserService(userId, serviceName, new BasicOAuthStoreConsumerKeyAndSecret(
+                      "key", "secret", KeyType.HMAC_SYMMETRIC, serviceName, null));
+              store.setTokenInfo(st, null, serviceName, "token", new TokenInfo(serviceName,
+                      "secret", null, 0));
+              if (i % 2 == 1) {
+                store.deleteUserService(userId, serviceName);
+                store.removeToken(st, null, serviceName, "token");
+              }
+            }
+            return null;
+          }
+        }));
+      }
+      start.countDown();
+      for (Future<Void> result : results) {
+        result.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    for (int t = 0; t < threads; t++) {
+      SecurityToken st = createSecurityTokenMock("user" + t / 2);
+      for (int i = 0; i < services; i++) {
+        String serviceName = "service" + t + "-" + i;
+        TokenInfo info = store.getTokenInfo(st, null, serviceName, "token");
+        if (i % 2 == 1) {
+          assertNull(info);
+        } else {
+          assertEquals(serviceName, info.getAccessToken());
+        }
+      }
+    }
+    for (int u = 0; u < threads / 2; u++) {
+      assertEquals(services, store.getUserServices("user" + u).length());
+    }
+  }
+
   @Test
   public void testSetDefaultCallbackUrl() throws Exception {
     store.init(createConfig().toString());
@@ -0,0 +1,226 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.opensocial.explorer.server.oauth2;
+
+import static org.easymock.EasyMock.createMock;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.shindig.common.servlet.Authority;
+import org.apache.shindig.gadgets.oauth2.OAuth2Accessor;
+import org.apache.shindig.gadgets.oauth2.OAuth2Token;
+import org.apache.shindig.gadgets.oauth2.OAuth2Token.Type;
+import org.apache.shindig.gadgets.oauth2.persistence.OAuth2Client;
+import org.apache.shindig.gadgets.oauth2.persistence.OAuth2Encrypter;
+import org.apache.shindig.gadgets.oauth2.persistence.OAuth2TokenPersistence;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+
+public class OSEFileOAuth2PersisterTest {
+
+  private File directory;
+  private File file;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = Files.createTempDir();
+    file = new File(directory, "oauth2.journal");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    for (File child : directory.listFiles()) {
+      child.delete();
+    }
+    directory.delete();
+  }
+
+  @Test
+  public void testTokensSurviveRestart() throws Exception {
+    OSEFileOAuth2Persister persister = createPersister();
+    persister.insertToken(createToken("@me", "access-secret"));
+    persister.insertToken(createToken("@you", "other-secret"));
+    OAuth2Token updated = createToken("@you", "new-secret");
+    long expiresAt = System.currentTimeMillis() + 3600 * 1000;
+    updated.setExpiresAt(expiresAt);
+    persister.updateToken(updated);
+
+    persister = createPersister();
+    OAuth2Token token = persister.findToken("http://example.com/other.xml", "myservice", "@me",
+            "myscope", Type.ACCESS);
+    assertNotNull(token);
+    assertEquals("http://example.com/gadget.xml", token.getGadgetUri());
+    assertEquals("myservice", token.getServiceName());
+    assertEquals("@me", token.getUser());
+    assertEquals("myscope", token.getScope());
+    assertEquals(Type.ACCESS, token.getType());
+    assertEquals("Bearer", token.getTokenType());
+    assertEquals(1000, token.getIssuedAt());
+    assertEquals("access-secret", new String(token.getSecret(), "UTF-8"));
+    assertNull(token.getMacSecret());
+    assertEquals(ImmutableMap.of("name", "value"), token.getProperties());
+    assertNull(persister.findToken(null, "myservice", "@me", "myscope", Type.REFRESH));
+    assertEquals(expiresAt, persister.findToken(null, "myservice", "@you", "myscope", Type.ACCESS)
+            .getExpiresAt());
+
+    Set<OAuth2Token> tokens = persister.loadTokens();
+    assertEquals(2, tokens.size());
+    assertTrue(persister.removeToken(null, "myservice", "@me", "myscope", Type.ACCESS));
+    assertFalse(persister.removeToken(null, "myservice", "@me", "myscope", Type.ACCESS));
+    assertEquals(1, createPersister().loadTokens().size());
+  }
+
+  @Test
+  public void testSecretsAreEncrypted() throws Exception {
+    OSEFileOAuth2Persister persister = createPersister();
+    persister.insertToken(createToken("@me", "access-secret"));
+    persister.addUserClient("@me", "myservice", createClient("myservice", "client-secret"));
+    String content = Files.toString(file, Charsets.ISO_8859_1);
+    assertTrue(content.contains("myservice"));
+    assertFalse(content.contains("access-secret"));
+    assertFalse(content.contains("client-secret"));
+  }
+
+  @Test
+  public void testUserClientsSurviveRestart() throws Exception {
+    OSEFileOAuth2Persister persister = createPersister();
+    persister.addUserClient("@me", "service1", createClient("service1", "secret1"));
+    persister.addUserClient("@me", "service2", createClient("service2", "secret2"));
+    persister.addUserClient("@you", "service1", createClient("service1", "secret3"));
+    persister.deleteUserClient("@me", "service2");
+
+    persister = createPersister();
+    assertTrue(persister.isUserExisting("@me"));
+    OAuth2Client client = persister.getUserClient("@me", "service1");
+    assertEquals("service1", client.getServiceName());
+    assertEquals("clientId", client.getClientId());
+    assertEquals("secret1", new String(client.getClientSecret(), "UTF-8"));
+    assertEquals("http://example.com/auth", client.getAuthorizationUrl());
+    assertEquals(OAuth2Accessor.Type.CONFIDENTIAL, client.getType());
+    assertTrue(client.isAuthorizationHeader());
+    assertFalse(client.isUrlParameter());
+    assertArrayEquals(new String[] { "example.com" }, client.getAllowedDomains());
+    assertNull(persister.getUserClient("@me", "service2"));
+
+    Map<String, Map<String, OAuth2Client>> userClients = persister.loadUserClients();
+    assertEquals(2, userClients.size());
+    assertEquals(1, userClients.get("@me").size());
+    assertEquals("secret3",
+            new String(userClients.get("@you").get("service1").getClientSecret(), "UTF-8"));
+  }
+
+  @Test
+  public void testExpiredTokensAreRemoved() throws Exception {
+    OSEFileOAuth2Persister persister = createPersister();
+    OAuth2Token expired = createToken("@me", "expired-secret");
+    expired.setExpiresAt(System.currentTimeMillis() - 1000);
+    persister.insertToken(expired);
+    OAuth2Token valid = createToken("@you", "valid-secret");
+    valid.setExpiresAt(System.currentTimeMillis() + 3600 * 1000);
+    persister.insertToken(valid);
+
+    persister = createPersister();
+    Set<OAuth2Token> tokens = persister.loadTokens();
+    assertEquals(1, tokens.size());
+    assertEquals("@you", tokens.iterator().next().getUser());
+    assertNull(persister.findToken(null, "myservice", "@me", "myscope", Type.ACCESS));
+    assertFalse(createPersister().removeToken(null, "myservice", "@me", "myscope", Type.ACCESS));
+
+    persister.insertToken(expired);
+    assertNull(createPersister().findToken(null, "myservice", "@me", "myscope", Type.ACCESS));
+    assertFalse(createPersister().removeToken(null, "myservice", "@me", "myscope", Type.ACCESS));
+
+    persister.insertToken(expired);
+    persister.pruneExpiredTokens();
+    assertFalse(createPersister().removeToken(null, "myservice", "@me", "myscope", Type.ACCESS));
+    assertNotNull(createPersister().findToken(null, "myservice", "@you", "myscope",
+            Type.ACCESS));
+  }
+
+  @Test
+  public void testUnusualUserIds() throws Exception {
+    OSEFileOAuth2Persister persister = createPersister();
+    persister.addUserClient(null, "service1", createClient("service1", "secret1"));
+    persister.addUserClient("null", "service1", createClient("service1", "secret2"));
+    persister.addUserClient("line\nbreak", "service\n1", createClient("service1", "secret3"));
+
+    Map<String, Map<String, OAuth2Client>> userClients = createPersister().loadUserClients();
+    assertEquals(3, userClients.size());
+    assertEquals("secret1",
+            new String(userClients.get(null).get("service1").getClientSecret(), "UTF-8"));
+    assertEquals("secret2",
+            new String(userClients.get("null").get("service1").getClientSecret(), "UTF-8"));
+    assertEquals("secret3",
+            new String(userClients.get("line\nbreak").get("service\n1").getClientSecret(),
+                    "UTF-8"));
+  }
+
+  private OSEFileOAuth2Persister createPersister() throws Exception {
+    return new OSEFileOAuth2Persister(new XorEncrypter(), createMock(Authority.class),
+            "http://example.com/redirect", "ose", "config/oauth2.json", file);
+  }
+
+  private OAuth2Token createToken(String user, String secret) throws Exception {
+    OAuth2TokenPersistence token = new OAuth2TokenPersistence();
+    token.setGadgetUri("http://example.com/gadget.xml");
+    token.setServiceName("myservice");
+    token.setUser(user);
+    token.setScope("myscope");
+    token.setType(Type.ACCESS);
+    token.setTokenType("Bearer");
+    token.setIssuedAt(1000);
+    token.setSecret(secret.getBytes("UTF-8"));
+    token.setProperties(ImmutableMap.of("name", "value"));
+    return token;
+  }
+
+  private OAuth2Client createClient(String serviceName, String secret) throws Exception {
+    OAuth2Client client = new OAuth2Client();
+    client.setServiceName(serviceName);
+    client.setClientId("clientId");
+    client.setClientSecret(secret.getBytes("UTF-8"));
+    client.setAuthorizationUrl("http://example.com/auth");
+    client.setType(OAuth2Accessor.Type.CONFIDENTIAL);
+    client.setAuthorizationHeader(true);
+    client.setAllowedDomains(new String[] { "example.com" });
+    return client;
+  }
+
+  private static class XorEncrypter implements OAuth2Encrypter {
+    public byte[] encrypt(byte[] plain) {
+      byte[] encrypted = new byte[plain.length];
+      for (int i = 0; i < plain.length; i++) {
+        encrypted[i] = (byte) (plain[i] ^ 0x5a);
+      }
+      return encrypted;
+    }
+
+    public byte[] decrypt(byte[] encrypted) {
+      return encrypt(encrypted);
+    }
+  }
+}
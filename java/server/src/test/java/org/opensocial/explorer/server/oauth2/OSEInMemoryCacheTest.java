@@ -18,12 +18,29 @@
  */
 package org.opensocial.explorer.server.oauth2;
 
+import static org.easymock.EasyMock.*;
 import static org.junit.Assert.*;
 
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.shindig.gadgets.oauth2.OAuth2Accessor;
+import org.apache.shindig.gadgets.oauth2.OAuth2CallbackState;
+import org.apache.shindig.gadgets.oauth2.OAuth2Token;
 import org.apache.shindig.gadgets.oauth2.OAuth2Token.Type;
+import org.apache.shindig.gadgets.oauth2.persistence.OAuth2Client;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.opensocial.explorer.server.oauth.NoSuchStoreException;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
 
 public class OSEInMemoryCacheTest {
 
@@ -75,5 +92,167 @@ public class OSEInMemoryCacheTest {
     assertNull(key);
   }
 
-}
+  @Test
+  public void testTokens() throws Exception {
+    OAuth2Token token = createNiceMock(OAuth2Token.class);
+    expect(token.getGadgetUri()).andStubReturn("http://example.com/gadget.xml");
+    expect(token.getServiceName()).andStubReturn("myservice");
+    expect(token.getUser()).andStubReturn("@me");
+    expect(token.getType()).andStubReturn(Type.ACCESS);
+    replay(token);
+
+    cache.storeToken(token);
+    assertSame(token, cache.getToken(null, "myservice", "@me", null, Type.ACCESS));
+    assertNull(cache.getToken(null, "myservice", "@me", null, Type.REFRESH));
+    // Incomplete keys are not found rather than failing
+    assertNull(cache.getToken(null, "myservice", null, null, Type.ACCESS));
+    assertSame(token, cache.removeToken(token));
+    assertNull(cache.getToken(null, "myservice", "@me", null, Type.ACCESS));
+  }
+
+  @Test
+  public void testExpiredTokens() throws Exception {
+    OAuth2Token expired = createToken("@me", System.currentTimeMillis() - 1000);
+    OAuth2Token valid = createToken("@you", System.currentTimeMillis() + 60000);
+    OAuth2Token eternal = createToken("@them", 0);
+    cache.storeToken(expired);
+    cache.storeToken(valid);
+    cache.storeToken(eternal);
+    assertEquals(3, cache.getStats().getTokenCount());
+
+    assertNull(cache.getToken(null, "myservice", "@me", null, Type.ACCESS));
+    assertSame(valid, cache.getToken(null, "myservice", "@you", null, Type.ACCESS));
+    assertSame(eternal, cache.getToken(null, "myservice", "@them", null, Type.ACCESS));
+    assertEquals(2, cache.getStats().getTokenCount());
+    assertEquals(1, cache.getStats().getExpiredTokenCount());
+
+    cache.storeToken(createToken("@me", System.currentTimeMillis() - 1000));
+    cache.sweep();
+    assertEquals(2, cache.getStats().getTokenCount());
+    assertEquals(2, cache.getStats().getExpiredTokenCount());
+  }
+
+  @Test
+  public void testAccessorLimits() throws Exception {
+    FakeTicker ticker = new FakeTicker();
+    cache = new OSEInMemoryCache(2, 60, 0, ticker);
+    cache.storeOAuth2Accessor(createAccessor("user1"));
+    cache.storeOAuth2Accessor(createAccessor("user2"));
+    assertNotNull(cache.getOAuth2Accessor(createState("user1")));
+    cache.storeOAuth2Accessor(createAccessor("user3"));
+    // The least recently used accessor goes first
+    assertNull(cache.getOAuth2Accessor(createState("user2")));
+    assertNotNull(cache.getOAuth2Accessor(createState("user1")));
+    assertEquals(2, cache.getStats().getAccessorCount());
+    assertEquals(1, cache.getStats().getAccessorEvictionCount());
+
+    ticker.nanos += TimeUnit.SECONDS.toNanos(30);
+    assertNotNull(cache.getOAuth2Accessor(createState("user1")));
+    ticker.nanos += TimeUnit.SECONDS.toNanos(45);
+    cache.sweep();
+    assertEquals(1, cache.getStats().getAccessorCount());
+    assertNotNull(cache.getOAuth2Accessor(createState("user1")));
+    assertNull(cache.getOAuth2Accessor(createState("user3")));
+    assertEquals(2, cache.getStats().getAccessorEvictionCount());
+    // Incomplete keys are not found rather than failing
+    assertNull(cache.getOAuth2Accessor(createState(null)));
+  }
+
+  @Test
+  public void testUserClients() throws Exception {
+    assertFalse(cache.isUserExisting("user1"));
+    assertNull(cache.getUserClient("user1", "service1"));
+    cache.addUserClient("user1", "service1", createClient("service1"));
+    cache.addUserClient("user1", "service2", createClient("service2"));
+    assertTrue(cache.isUserExisting("user1"));
+    assertEquals("service1", cache.getUserClient("user1", "service1").getServiceName());
+    assertEquals(2, cache.getUserClients("user1").length());
+    cache.deleteUserClient("user1", "service1");
+    assertNull(cache.getUserClient("user1", "service1"));
+    assertEquals(1, cache.getUserClients("user1").length());
+    try {
+      cache.deleteUserClient("user2", "service1");
+      fail("Deleting a client of an unknown user should fail");
+    } catch (NoSuchStoreException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testConcurrentUserClients() throws Exception {
+    final int threads = 8;
+    final int clients = 200;
+    final CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<Void>> results = Lists.newArrayList();
+      for (int t = 0; t < threads; t++) {
+        final int thread = t;
+        results.add(executor.submit(new Callable<Void>() {
+          public Void call() throws Exception {
+            // Two threads per user, both creating the user's map on their first add
+            String userId = "user" + thread / 2;
+            start.await();
+            for (int i = 0; i < clients; i++) {
+              String serviceName = "service" + thread + "-" + i;
+              cache.addUserClient(userId, serviceName, createClient(serviceName));
+              assertEquals(serviceName, cache.getUserClient(userId, serviceName).getServiceName());
+            }
+            return null;
+          }
+        }));
+      }
+      start.countDown();
+      for (Future<Void> result : results) {
+        result.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+    for (int u = 0; u < threads / 2; u++) {
+      assertEquals(2 * clients, cache.getUserClients("user" + u).length());
+    }
+  }
+
+  private OAuth2Token createToken(String user, long expiresAt) {
+    OAuth2Token token = createNiceMock(OAuth2Token.class);
+    expect(token.getServiceName()).andStubReturn("myservice");
+    expect(token.getUser()).andStubReturn(user);
+    expect(token.getType()).andStubReturn(Type.ACCESS);
+    expect(token.getExpiresAt()).andStubReturn(expiresAt);
+    replay(token);
+    return token;
+  }
+
+  private OAuth2Accessor createAccessor(String user) {
+    OAuth2Accessor accessor = createNiceMock(OAuth2Accessor.class);
+    expect(accessor.getServiceName()).andStubReturn("myservice");
+    expect(accessor.getUser()).andStubReturn(user);
+    replay(accessor);
+    return accessor;
+  }
+
+  private OAuth2CallbackState createState(String user) {
+    OAuth2CallbackState state = new OAuth2CallbackState();
+    state.setServiceName("myservice");
+    state.setUser(user);
+    return state;
+  }
+
+  private OAuth2Client createClient(String serviceName) throws Exception {
+    OAuth2Client client = new OAuth2Client();
+    client.setServiceName(serviceName);
+    client.setClientSecret(new byte[0]);
+    client.setType(OAuth2Accessor.Type.CONFIDENTIAL);
+    return client;
+  }
+
+  private static class FakeTicker extends Ticker {
+    private long nanos;
 
+    @Override
+    public long read() {
+      return nanos;
+    }
+  }
+}
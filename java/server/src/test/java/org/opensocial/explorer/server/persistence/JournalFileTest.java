@@ -0,0 +1,214 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.opensocial.explorer.server.persistence;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+
+public class JournalFileTest {
+
+  private File directory;
+  private File file;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = Files.createTempDir();
+    file = new File(directory, "journal");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    for (File child : directory.listFiles()) {
+      child.delete();
+    }
+    directory.delete();
+  }
+
+  @Test
+  public void testPutAndRemove() throws Exception {
+    JournalFile journal = new JournalFile(file, 1024 * 1024);
+    journal.put("a", bytes("1"));
+    journal.put("b", bytes("2"));
+    journal.put("a", bytes("3"));
+    journal.remove("b");
+    journal.remove("c");
+    assertEquals("3", string(journal.get("a")));
+    assertNull(journal.get("b"));
+    assertNull(journal.get(null));
+    journal.close();
+
+    journal = new JournalFile(file, 1024 * 1024);
+    assertEquals(1, journal.getAll().size());
+    assertEquals("3", string(journal.get("a")));
+    journal.close();
+  }
+
+  @Test
+  public void testWrite() throws Exception {
+    JournalFile journal = new JournalFile(file, 1024 * 1024);
+    journal.put("a", bytes("1"));
+    Map<String, byte[]> changes = Maps.newLinkedHashMap();
+    changes.put("a", null);
+    changes.put("b", bytes("2"));
+    changes.put("c", null);
+    journal.write(changes);
+    journal.close();
+
+    journal = new JournalFile(file, 1024 * 1024);
+    assertEquals(1, journal.getAll().size());
+    assertEquals("2", string(journal.get("b")));
+    journal.close();
+  }
+
+  @Test
+  public void testIncompleteRecordIsTruncated() throws Exception {
+    JournalFile journal = new JournalFile(file, 1024 * 1024);
+    journal.put("a", bytes("1"));
+    journal.put("b", bytes("2"));
+    long complete = journal.getFileBytes();
+    journal.put("c", bytes("3"));
+    journal.close();
+
+    // The server stopped while the last record was being written
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.setLength(file.length() - 3);
+    raf.close();
+
+    journal = new JournalFile(file, 1024 * 1024);
+    assertEquals(complete, journal.getFileBytes());
+    assertEquals(complete, file.length());
+    assertEquals("2", string(journal.get("b")));
+    assertNull(journal.get("c"));
+    journal.put("c", bytes("4"));
+    journal.close();
+
+    journal = new JournalFile(file, 1024 * 1024);
+    assertEquals("4", string(journal.get("c")));
+    journal.close();
+  }
+
+  @Test
+  public void testCompaction() throws Exception {
+    JournalFile journal = new JournalFile(file, 0);
+    journal.put("b", bytes("b"));
+    for (int i = 0; i < 100; i++) {
+      journal.put("a", bytes("value " + i));
+    }
+    // Each record holds a header, the key and the value
+    assertTrue(journal.getFileBytes() < 100);
+    assertEquals(journal.getFileBytes(), file.length());
+    journal.put("c", bytes("c"));
+    journal.close();
+
+    journal = new JournalFile(file, 0);
+    assertEquals("value 99", string(journal.get("a")));
+    assertEquals("b", string(journal.get("b")));
+    assertEquals("c", string(journal.get("c")));
+    assertEquals(3, journal.getAll().size());
+    journal.close();
+    assertEquals(1, directory.listFiles().length);
+  }
+
+  @Test
+  public void testConcurrentPuts() throws Exception {
+    final int threads = 8;
+    final int puts = 100;
+    final JournalFile journal = new JournalFile(file, 4096);
+    final CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<Void>> results = Lists.newArrayList();
+      for (int t = 0; t < threads; t++) {
+        final int thread = t;
+        results.add(executor.submit(new Callable<Void>() {
+          public Void call() throws Exception {
+            start.await();
+            for (int i = 0; i < puts; i++) {
+              journal.put(thread + "-" + i, bytes("value " + i));
+              // Keeps one key per thread changing, so the journal is compacted while threads write
+              journal.put("last-" + thread, bytes("value " + i));
+            }
+            return null;
+          }
+        }));
+      }
+      start.countDown();
+      for (Future<Void> result : results) {
+        result.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+    journal.close();
+
+    JournalFile reopened = new JournalFile(file, 4096);
+    assertEquals(threads * (puts + 1), reopened.getAll().size());
+    for (int t = 0; t < threads; t++) {
+      assertEquals("value " + (puts - 1), string(reopened.get(t + "-" + (puts - 1))));
+      assertEquals("value " + (puts - 1), string(reopened.get("last-" + t)));
+    }
+    reopened.close();
+  }
+
+  @Test
+  public void testNotAJournal() throws Exception {
+    Files.write("not a journal", file, Charsets.UTF_8);
+    try {
+      new JournalFile(file, 0);
+      fail("Opening a file that is not a journal should fail");
+    } catch (IOException e) {
+      // Expected
+    }
+    assertEquals("not a journal", Files.toString(file, Charsets.UTF_8));
+  }
+
+  @Test(expected = IOException.class)
+  public void testClosed() throws Exception {
+    JournalFile journal = new JournalFile(file, 0);
+    journal.close();
+    journal.put("a", bytes("1"));
+  }
+
+  private static byte[] bytes(String value) {
+    return value.getBytes(Charsets.UTF_8);
+  }
+
+  private static String string(byte[] value) {
+    return value == null ? null : new String(value, Charsets.UTF_8);
+  }
+}
@@ -0,0 +1,218 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.opensocial.explorer.server.render;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.Map;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.easymock.IAnswer;
+import org.junit.Before;
+import org.junit.Test;
+import org.opensocial.explorer.server.render.RenderedGadget.Header;
+import org.opensocial.explorer.specserver.api.GadgetRegistry;
+import org.opensocial.explorer.specserver.api.GadgetResource;
+import org.opensocial.explorer.specserver.api.GadgetSpec;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+public class GadgetRenderCacheFilterTest {
+  private static final String SPEC_URL = "http://localhost:8080/ose/gadgetspec/0123/";
+
+  private GadgetRenderCacheFilter filter;
+  private GadgetRenderCache renderCache;
+  private RenderingChain chain;
+  private String gadgetContent = "<Module/>";
+
+  @Before
+  public void setUp() throws Exception {
+    GadgetRegistry registry = createNiceMock(GadgetRegistry.class);
+    GadgetSpec spec = createNiceMock(GadgetSpec.class);
+    GadgetResource gadget = createNiceMock(GadgetResource.class);
+    expect(registry.getGadgetSpec("0123")).andStubReturn(spec);
+    expect(spec.getId()).andStubReturn("0123");
+    expect(spec.getGadgetResource()).andStubReturn(gadget);
+    expect(gadget.getName()).andStubReturn("gadget.xml");
+    expect(gadget.getContent()).andStubAnswer(new IAnswer<String>() {
+      public String answer() {
+        return gadgetContent;
+      }
+    });
+    replay(registry, spec, gadget);
+
+    renderCache = new GadgetRenderCache(1024 * 1024, 60);
+    filter = new GadgetRenderCacheFilter();
+    filter.setRegistry(registry);
+    filter.setRenderCache(renderCache);
+    chain = new RenderingChain("public,max-age=300");
+  }
+
+  @Test
+  public void testRegistryGadgetIsRenderedOnce() throws Exception {
+    Map<String, String> params = ImmutableMap.of("url", SPEC_URL + "gadget.xml", "view", "home");
+    assertEquals("rendered 1", render(params));
+    assertEquals("rendered 1", render(params));
+    assertEquals(1, chain.count);
+    assertEquals(1, renderCache.size());
+    assertEquals(1, renderCache.getStats().hitCount());
+  }
+
+  @Test
+  public void testParametersAreKeyed() throws Exception {
+    render(ImmutableMap.of("url", SPEC_URL + "gadget.xml", "view", "home"));
+    render(ImmutableMap.of("url", SPEC_URL + "gadget.xml", "view", "canvas"));
+    render(ImmutableMap.of("url", SPEC_URL + "gadget.xml", "view", "home", "st", "token"));
+    assertEquals(3, chain.count);
+  }
+
+  @Test
+  public void testOnlyRegistryGadgetsAreCached() throws Exception {
+    for (int i = 0; i < 2; i++) {
+      render(ImmutableMap.of("url", "http://example.com/ose/gadgetspec/0123/gadget.xml"));
+      render(ImmutableMap.of("url", "http://localhost:8080/ose/gadgetspec/4567/gadget.xml"));
+      render(ImmutableMap.of("url", SPEC_URL + "a.js"));
+      render(ImmutableMap.of("url", SPEC_URL + "gadget.xml?v=1"));
+      render(ImmutableMap.of("url", SPEC_URL + "gadget.xml", "nocache", "1"));
+    }
+    assertEquals(10, chain.count);
+    assertEquals(0, renderCache.size());
+  }
+
+  @Test
+  public void testUncacheableRenderings() throws Exception {
+    Map<String, String> params = ImmutableMap.of("url", SPEC_URL + "gadget.xml");
+    chain.cacheControl = "private,max-age=300";
+    render(params);
+    render(params);
+    chain.cacheControl = "no-cache";
+    render(params);
+    chain.cacheControl = null;
+    render(params);
+    assertEquals(4, chain.count);
+
+    gadgetContent = "<Module><ModulePrefs><Preload href='http://a.com'/></ModulePrefs></Module>";
+    chain.cacheControl = "public,max-age=300";
+    render(params);
+    render(params);
+    assertEquals(6, chain.count);
+  }
+
+  @Test
+  public void testResetOutputIsNotCached() throws Exception {
+    Map<String, String> params = ImmutableMap.of("url", SPEC_URL + "gadget.xml");
+    chain.reset = true;
+    render(params);
+    assertEquals("rendered 1", render(params));
+    assertEquals(1, chain.count);
+  }
+
+  @Test
+  public void testDisabled() throws Exception {
+    filter.setRenderCache(new GadgetRenderCache(0, 60));
+    Map<String, String> params = ImmutableMap.of("url", SPEC_URL + "gadget.xml");
+    render(params);
+    render(params);
+    assertEquals(2, chain.count);
+  }
+
+  @Test
+  public void testExpiredRenderingsAreNotServed() throws Exception {
+    RenderedGadget rendered = new RenderedGadget(new byte[0], "text/html",
+            Collections.<Header> emptyList(), 1000);
+    renderCache.put("key", rendered);
+    assertSame(rendered, renderCache.get("key", 999));
+    assertNull(renderCache.get("key", 1000));
+    assertEquals(0, renderCache.size());
+  }
+
+  private String render(Map<String, String> params) throws Exception {
+    HttpServletRequest req = createNiceMock(HttpServletRequest.class);
+    expect(req.getMethod()).andStubReturn("GET");
+    expect(req.getScheme()).andStubReturn("http");
+    expect(req.getServerName()).andStubReturn("localhost");
+    expect(req.getServerPort()).andStubReturn(8080);
+    expect(req.getContextPath()).andStubReturn("/ose");
+    Map<String, String[]> parameterMap = Maps.newHashMap();
+    for (Map.Entry<String, String> param : params.entrySet()) {
+      expect(req.getParameter(param.getKey())).andStubReturn(param.getValue());
+      parameterMap.put(param.getKey(), new String[] { param.getValue() });
+    }
+    expect(req.getParameterMap()).andStubReturn(parameterMap);
+
+    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    PrintWriter writer = new PrintWriter(new OutputStreamWriter(body, "ISO-8859-1"));
+    HttpServletResponse resp = createNiceMock(HttpServletResponse.class);
+    expect(resp.getWriter()).andStubReturn(writer);
+    expect(resp.getOutputStream()).andStubReturn(new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        body.write(b);
+      }
+    });
+    replay(req, resp);
+
+    filter.doFilter(req, resp, chain);
+    writer.flush();
+    return body.toString("ISO-8859-1");
+  }
+
+  private static class RenderingChain implements FilterChain {
+    private String cacheControl;
+    private boolean reset;
+    private int count;
+
+    private RenderingChain(String cacheControl) {
+      this.cacheControl = cacheControl;
+    }
+
+    public void doFilter(ServletRequest request, ServletResponse response) throws IOException {
+      count++;
+      HttpServletResponse resp = (HttpServletResponse) response;
+      if (reset) {
+        // Like an error page replacing a failed rendering
+        resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        resp.addCookie(new Cookie("session", "1"));
+        resp.getWriter().write("failed");
+        resp.resetBuffer();
+        resp.getWriter().write("failed again");
+        resp.reset();
+      }
+      resp.setContentType("text/html");
+      if (cacheControl != null) {
+        resp.setHeader("Cache-Control", cacheControl);
+      }
+      resp.getWriter().write("rendered " + count);
+    }
+  }
+}
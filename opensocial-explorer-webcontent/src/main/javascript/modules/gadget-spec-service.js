@@ -50,6 +50,29 @@ define(['dojo/request/xhr', 'dojo/json', './url-util'], function(xhr, json, urlU
       return getGadgetSpecBase(id);
     },
     
+    /**
+     * Gets the data of several gadget specs in one request. Resources whose content hash is listed
+     * in contentHashes are returned without their content. The lists are posted, so they are not
+     * limited by the length of a URL.
+     *
+     * @memberof module:explorer/gadget-spec-service
+     * @param {String[]} ids - The IDs of the gadget specs, at most 50.
+     * @param {String[]} [contentHashes] - The content hashes of resources the caller already has,
+     * at most 2000.
+     * @returns {Deferred} The deferred object from the xhr call, resolving to an array with the
+     * data of each spec, or null for specs that were not found.
+     */
+    getGadgetSpecs : function(ids, contentHashes) {
+      return xhr(urlUtil.getContextRoot() + '/gadgetspec/batch', {
+        handleAs: "json",
+        method: "POST",
+        data: json.stringify({ids: ids, have: contentHashes || []}),
+        headers : {
+          "Content-Type": "application/json"
+        }
+      });
+    },
+    
     /**
      * Posts a new spec to the servlet.
      *
@@ -68,6 +91,28 @@ define(['dojo/request/xhr', 'dojo/json', './url-util'], function(xhr, json, urlU
       });
     },
     
+    /**
+     * Creates a new spec from an existing one by sending only what changed. Resources that are
+     * not mentioned keep their content, others can be replaced, edited or deleted, for example
+     * {jsResources: [{name: 'a.js', edits: [{start: 4, end: 5, text: 'x'}]}]}.
+     *
+     * @memberof module:explorer/gadget-spec-service
+     * @param {String} baseId - The id of the spec to start from.
+     * @param {Object} changes - The changes to apply to the spec.
+     * @returns {Deferred} The deferred object from the xhr call, resolving to an object with the id of
+     * the new spec. It is rejected with status 404 if the servlet no longer has the base spec.
+     */
+    updateGadgetSpec : function(baseId, changes) {
+      return xhr(urlUtil.getContextRoot() + '/gadgetspec/' + encodeURIComponent(baseId), {
+        handleAs: "json",
+        method: "PATCH",
+        data: json.stringify(changes),
+        headers : {
+          "Content-Type": "application/json"
+        }
+      });
+    },
+    
     /**
      * Gets the json representation of the spec tree.
      *
@@ -78,6 +123,47 @@ define(['dojo/request/xhr', 'dojo/json', './url-util'], function(xhr, json, urlU
       return xhr(urlUtil.getContextRoot() + '/gadgetspec/specTree', {
         handleAs: "json"
       });
+    },
+    
+    /**
+     * Gets one page of the children of a folder in the spec tree, so the tree can be expanded one
+     * folder at a time.
+     *
+     * @memberof module:explorer/gadget-spec-service
+     * @param {String} parentId - The ID of the folder, "root" for the top level of the tree.
+     * @param {Number} [offset] - The number of children to skip.
+     * @param {Number} [limit] - The maximum number of children to return.
+     * @returns {Deferred} The deferred object from the xhr call, resolving to an object with the
+     * total number of children and the nodes on the page, each with its own childCount.
+     */
+    getSpecTreeChildren : function(parentId, offset, limit) {
+      var query = {parent: parentId};
+      if (offset) {
+        query.offset = offset;
+      }
+      if (limit) {
+        query.limit = limit;
+      }
+      return xhr(urlUtil.getContextRoot() + '/gadgetspec/specTree', {
+        handleAs: "json",
+        query: query
+      });
+    },
+    
+    /**
+     * Gets the IDs of the folders leading to a node of the spec tree, so the tree can be opened at
+     * that node without loading the other folders.
+     *
+     * @memberof module:explorer/gadget-spec-service
+     * @param {String} id - The ID of a spec or folder, "default" for the default spec.
+     * @returns {Deferred} The deferred object from the xhr call, resolving to an object with the
+     * path, an array of IDs from "root" down to the node.
+     */
+    getSpecTreePath : function(id) {
+      return xhr(urlUtil.getContextRoot() + '/gadgetspec/specTree', {
+        handleAs: "json",
+        query: {path: id}
+      });
     }
   };
 });
\ No newline at end of file
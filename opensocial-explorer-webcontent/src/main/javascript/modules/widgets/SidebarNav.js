@@ -36,14 +36,20 @@ define(['dojo/_base/declare', 'dijit/_WidgetBase', 'dijit/_TemplatedMixin',
         'dijit/_WidgetsInTemplateMixin', 'dojo/text!./../templates/SidebarNav.html', 'dojo/on', 
         'dojo/dom-construct', 'dojo/Evented', 'explorer/widgets/creation/CreationSpecModal',
         'explorer/gadget-spec-service', 'dojo/store/Memory', 'dojo/store/Observable', 'dojo/topic',
-        'dijit/tree/ObjectStoreModel', 'dijit/Tree', 'dojo/dom', 'dojo/dom-class', 'dojo/query', 'dojo/domReady!'],
+        'dijit/tree/ObjectStoreModel', 'dijit/Tree', 'dojo/dom', 'dojo/dom-class', 'dojo/query', 'dojo/Deferred',
+        'dojo/_base/array', 'dojo/domReady!'],
         function(declare, WidgetBase, TemplatedMixin, WidgetsInTemplateMixin, template, on, domConstruct, Evented,
-            CreationSpecModal, gadgetSpecService, Memory, Observable, topic, ObjectStoreModel, Tree, dom, domClass, query) {
+            CreationSpecModal, gadgetSpecService, Memory, Observable, topic, ObjectStoreModel, Tree, dom, domClass, query,
+            Deferred, arrayUtil) {
+  // The most children the servlet returns at once
+  var PAGE_SIZE = 500;
+
   return declare('SidebarNavWidget', [ WidgetBase, TemplatedMixin, WidgetsInTemplateMixin, Evented ], {
     templateString : template,
     specStore : null,
     specModel : null,
     specTree: null,
+    loadedFolders : null,
     
     /**
      * Called right after widget is added to the dom. See link for more information.
@@ -53,19 +59,22 @@ define(['dojo/_base/declare', 'dijit/_WidgetBase', 'dijit/_TemplatedMixin',
      */
     startup : function() {
       var self = this;
-      gadgetSpecService.getSpecTree().then(
-        function(json) {
-          json.unshift({name: "Root", id: "root"});
-          
-          self.specStore = new Memory({
-            data: json,
-            getChildren: function(object){
-              return this.query({parent: object.id});
-            }
+      this.loadedFolders = {};
+      // Folders are loaded when they are first expanded
+      this.specStore = new Observable(new Memory({
+        data: [{name: "Root", id: "root", hasChildren: true}],
+        getChildren: function(object){
+          var store = this;
+          if (self.loadedFolders[object.id]) {
+            return this.query({parent: object.id});
+          }
+          return self.loadChildren(object.id).then(function() {
+            return store.query({parent: object.id});
           });
-          
-          self.specStore = new Observable(self.specStore);
-          
+        }
+      }));
+      this.loadChildren("root").then(
+        function() {
           self.specModel = new ObjectStoreModel({
             store: self.specStore,
             query: {id:"root"},
@@ -85,8 +94,10 @@ define(['dojo/_base/declare', 'dijit/_WidgetBase', 'dijit/_TemplatedMixin',
           });
           
           self.specTree.startup();
-          self.specTree.set("path", self.getPath([], self.getDefaultId()));
           self.specTree.placeAt(self.domNode);
+          gadgetSpecService.getSpecTreePath("default").then(function(data) {
+            self.specTree.set("path", data.path);
+          });
         },
         function(data) {
           console.error("There was an error");
@@ -102,6 +113,40 @@ define(['dojo/_base/declare', 'dijit/_WidgetBase', 'dijit/_TemplatedMixin',
       });
     },
     
+    /**
+     * Loads all children of a folder into the store, one page at a time.
+     *
+     * @memberof module:explorer/widgets/SidebarNav#
+     *
+     * @param {String} parentId - Id of the folder.
+     * @returns {Deferred} Resolved once all children of the folder are in the store.
+     */
+    loadChildren : function(parentId) {
+      var self = this;
+      var loaded = new Deferred();
+      var loadPage = function(offset) {
+        gadgetSpecService.getSpecTreeChildren(parentId, offset, PAGE_SIZE).then(
+          function(page) {
+            arrayUtil.forEach(page.children, function(node) {
+              self.specStore.put(node);
+            });
+            var next = page.offset + page.children.length;
+            if (page.children.length > 0 && next < page.total) {
+              loadPage(next);
+            } else {
+              self.loadedFolders[parentId] = true;
+              loaded.resolve();
+            }
+          },
+          function(e) {
+            loaded.reject(e);
+          }
+        );
+      };
+      loadPage(0);
+      return loaded;
+    },
+    
     /**
     * Adds a new spec to the Tree Control. If a user-created spec doesn't exist yet, a folder called "My Specs" is also added.
     *
@@ -112,6 +157,7 @@ define(['dojo/_base/declare', 'dijit/_WidgetBase', 'dijit/_TemplatedMixin',
     */
     addSpec : function(title, specId) {
       if(this.specStore.query({name: "My Specs"}).length === 0) {
+        this.loadedFolders.myspecs = true;
         this.specStore.put({id: "myspecs", isDefault: false, name:"My Specs", parent :"root", hasChildren: true});
       }
       this.specStore.put({id: specId, isDefault: false, name: title, parent: "myspecs", hasChildren: false});
@@ -152,11 +198,11 @@ define(['dojo/_base/declare', 'dijit/_WidgetBase', 'dijit/_TemplatedMixin',
      *
      * @memberof module:explorer/widgets/SidebarNav#
      *
-     * @returns {String} The default spec's ID.
+     * @returns {String} The default spec's ID, or null if its folder has not been loaded yet.
      */
     getDefaultId : function() {
       var object = this.specStore.query({isDefault: true})[0];
-      return object.id;
+      return object ? object.id : null;
     }, 
     
     /**
@@ -164,11 +210,11 @@ define(['dojo/_base/declare', 'dijit/_WidgetBase', 'dijit/_TemplatedMixin',
      *
      * @memberof module:explorer/widgets/SidebarNav#
      *
-     * @returns {String} The default spec's name.
+     * @returns {String} The default spec's name, or null if its folder has not been loaded yet.
      */
     getDefaultName : function() {
       var object = this.specStore.query({isDefault: true})[0];
-      return object.name;
+      return object ? object.name : null;
     },
     
     /**
@@ -43,12 +43,119 @@ define([ 'dojo/_base/declare', 'dijit/_WidgetBase', 'dijit/_TemplatedMixin', 'di
          'dojo/query', 'dojo/on', 'dojo/text!./../../templates/EditorArea.html', './EditorToolbar',
          './EditorTabs', './GadgetEditor', './HtmlEditor', 
          './CssEditor', './JSEditor', './JSONEditor', './EditorTab',
-         'dojo/dom-construct', 'dojo/dom-class', '../../gadget-spec-service', '../../url-util', 'dojo/NodeList-manipulate', 'dojo/NodeList-dom' ], 
+         'dojo/dom-construct', 'dojo/dom-class', 'dojo/_base/array', '../../gadget-spec-service', '../../url-util', 'dojo/NodeList-manipulate', 'dojo/NodeList-dom' ], 
          function(declare, WidgetBase, TemplatedMixin, WidgetsInTemplateMixin, Evented, topic, query, on, template, EditorToolbar, EditorTabs, GadgetEditor, 
-             HtmlEditor, CssEditor, JSEditor, JSONEditor, EditorTab, domConstruct, domClass,
+             HtmlEditor, CssEditor, JSEditor, JSONEditor, EditorTab, domConstruct, domClass, arrayUtil,
              gadgetSpecService, urlUtil) {
+  var RESOURCE_LISTS = ['htmlResources', 'cssResources', 'jsResources'];
+  // The most resource contents kept to avoid downloading them again
+  var MAX_CACHED_CONTENTS = 200;
+
+  /**
+   * Calls a function for every resource of a spec.
+   */
+  function forEachResource(spec, callback) {
+    if (spec.gadgetResource) {
+      callback(spec.gadgetResource);
+    }
+    if (spec.eeResource) {
+      callback(spec.eeResource);
+    }
+    for (var i = 0; i < RESOURCE_LISTS.length; i++) {
+      arrayUtil.forEach(spec[RESOURCE_LISTS[i]] || [], callback);
+    }
+  }
+
+  /**
+   * Describes how to get from the content of a resource to new content with a single edit that
+   * replaces everything between the common start and the common end of both.
+   */
+  function getEdit(content, newContent) {
+    var start = 0;
+    var maxStart = Math.min(content.length, newContent.length);
+    while (start < maxStart && content.charAt(start) === newContent.charAt(start)) {
+      start++;
+    }
+    var end = content.length;
+    var newEnd = newContent.length;
+    while (end > start && newEnd > start && content.charAt(end - 1) === newContent.charAt(newEnd - 1)) {
+      end--;
+      newEnd--;
+    }
+    return {start : start, end : end, text : newContent.substring(start, newEnd)};
+  }
+
+  /**
+   * Gets the change of one resource, or null if it did not change.
+   */
+  function getResourceChange(resource, newResource) {
+    if (!newResource) {
+      return {name : resource.name, deleted : true};
+    }
+    if (!resource) {
+      return {name : newResource.name, content : newResource.content};
+    }
+    if (resource.content === newResource.content) {
+      return null;
+    }
+    return {name : newResource.name, edits : [getEdit(resource.content, newResource.content)]};
+  }
+
+  /**
+   * Gets the changes from one spec to another in the form PATCH requests take.
+   */
+  function getSpecChanges(spec, newSpec) {
+    var changes = {};
+    if (newSpec.title !== spec.title) {
+      changes.title = newSpec.title;
+    }
+    var change = getResourceChange(spec.gadgetResource, newSpec.gadgetResource);
+    if (change) {
+      changes.gadgetResource = change;
+    }
+    if (spec.eeResource || newSpec.eeResource) {
+      change = getResourceChange(spec.eeResource, newSpec.eeResource);
+      if (change) {
+        changes.eeResource = change;
+      }
+    }
+    for (var i = 0; i < RESOURCE_LISTS.length; i++) {
+      var list = RESOURCE_LISTS[i];
+      var resources = {};
+      var newResources = {};
+      var name;
+      arrayUtil.forEach(spec[list] || [], function(resource) {
+        resources[resource.name] = resource;
+      });
+      arrayUtil.forEach(newSpec[list] || [], function(resource) {
+        newResources[resource.name] = resource;
+      });
+      var listChanges = [];
+      for (name in resources) {
+        if (resources.hasOwnProperty(name)) {
+          change = getResourceChange(resources[name], newResources[name]);
+          if (change) {
+            listChanges.push(change);
+          }
+        }
+      }
+      for (name in newResources) {
+        if (newResources.hasOwnProperty(name) && !resources.hasOwnProperty(name)) {
+          listChanges.push(getResourceChange(null, newResources[name]));
+        }
+      }
+      if (listChanges.length > 0) {
+        changes[list] = listChanges;
+      }
+    }
+    return changes;
+  }
+
   return declare('EditorAreaWidget', [ WidgetBase, TemplatedMixin, WidgetsInTemplateMixin, Evented ], {
     templateString : template,
+    contents : null,
+    contentHashes : null,
+    baseSpec : null,
 
     /**
      * Called right after widget is added to the dom. See link for more information.
@@ -86,7 +193,9 @@ define([ 'dojo/_base/declare', 'dijit/_WidgetBase', 'dijit/_TemplatedMixin', 'di
     },
 
     /**
-     * Posts a spec to the servlet. This method is used when rerendering a spec.
+     * Sends a spec to the servlet. This method is used when rerendering a spec. Only the changes
+     * since the spec that was last sent or displayed are sent, if the servlet no longer has that
+     * spec the whole spec is posted instead.
      *
      * @memberof module:explorer/widgets/editorarea/EditorArea#
      *
@@ -94,12 +203,31 @@ define([ 'dojo/_base/declare', 'dijit/_WidgetBase', 'dijit/_TemplatedMixin', 'di
      */
     postGadgetSpec : function(thenFunction) {
       var self = this;
-      gadgetSpecService.createNewGadgetSpec(this.getGadgetSpec()).then(
-        thenFunction,
-        function(data) {
-          console.error("There was an error");
+      var spec = this.getGadgetSpec();
+      var onSuccess = function(data) {
+        self.baseSpec = {id : data.id, spec : spec};
+        thenFunction(data);
+      };
+      var onError = function(data) {
+        console.error("There was an error");
+      };
+      var post = function() {
+        gadgetSpecService.createNewGadgetSpec(spec).then(onSuccess, onError);
+      };
+      var onUpdateError = function(err) {
+        // Only a spec the servlet no longer has is posted again
+        if (err && err.response && err.response.status === 404) {
+          post();
+        } else {
+          onError(err);
         }
-      );
+      };
+      if (this.baseSpec) {
+        gadgetSpecService.updateGadgetSpec(this.baseSpec.id, getSpecChanges(this.baseSpec.spec, spec))
+                .then(onSuccess, onUpdateError);
+      } else {
+        post();
+      }
     },
 
     /**
@@ -110,8 +238,14 @@ define([ 'dojo/_base/declare', 'dijit/_WidgetBase', 'dijit/_TemplatedMixin', 'di
      */
     displaySpec : function(id) {
       var self = this;
-      gadgetSpecService.getGadgetSpec(id).then(
-        function(data) {
+      gadgetSpecService.getGadgetSpecs([id], this.contentHashes).then(
+        function(specs) {
+          var data = specs[0];
+          if (!data) {
+            console.error("There was an error");
+            return;
+          }
+          self.cacheContents(data);
           self.editorTabs.removeAllTabs();
           self.addToUi(data);
         },
@@ -121,6 +255,37 @@ define([ 'dojo/_base/declare', 'dijit/_WidgetBase', 'dijit/_TemplatedMixin', 'di
       );
     },
 
+    /**
+     * Fills in the content of the resources of a spec that the servlet left out because it was sent
+     * before, and keeps the content of the others, so specs sharing resources are only downloaded
+     * once.
+     *
+     * @memberof module:explorer/widgets/editorarea/EditorArea#
+     * @param {Object} data - Data of the spec, whose resources carry their content hash.
+     */
+    cacheContents : function(data) {
+      var self = this;
+      if (!this.contents) {
+        this.contents = {};
+        this.contentHashes = [];
+      }
+      // Fill in all content before any is evicted
+      forEachResource(data, function(resource) {
+        if (resource.contentHash && resource.content === undefined) {
+          resource.content = self.contents[resource.contentHash];
+        }
+      });
+      forEachResource(data, function(resource) {
+        if (resource.contentHash && !self.contents.hasOwnProperty(resource.contentHash)) {
+          self.contents[resource.contentHash] = resource.content;
+          self.contentHashes.push(resource.contentHash);
+          if (self.contentHashes.length > MAX_CACHED_CONTENTS) {
+            delete self.contents[self.contentHashes.shift()];
+          }
+        }
+      });
+    },
+
     /**
      * Adds a spec's tabs to the Ui and adjusts the render button according to the type of spec.
      *
@@ -134,6 +299,8 @@ define([ 'dojo/_base/declare', 'dijit/_WidgetBase', 'dijit/_TemplatedMixin', 'di
       domConstruct.place(this.editorTabs.domNode, this.domNode);
       this.editorTabs.startup();
       this.createTabsAndEditors(data, this.editorTabs);
+      // The next render only sends what changed since, as edits of the content the server has
+      this.baseSpec = data.id ? {id : data.id, spec : data} : null;
       if (data.eeResource) {
         this.editorToolbar.showRenderEEButton();
         this.editorToolbar.hideRenderGadgetButton();
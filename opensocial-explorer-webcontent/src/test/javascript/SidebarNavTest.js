@@ -30,55 +30,57 @@ define(['explorer/widgets/SidebarNav', 'dojo/topic', 'dojo/Deferred', 'dojo/on',
     afterEach(function() {
       document.body.removeChild(document.getElementById('testDiv'));
     });
-  
-    it("can be started", function() {
-      var sidebar = new SidebarNav();
-      
-      spyOn(gadgetSpecService, 'getSpecTree').andCallFake(function() {
-        var dfd = new Deferred();
-        var data = [{"id":"109641752",
+
+    var spyOnSpecTree = function() {
+      var children = {
+          "root" : [{"id":"109641752",
                      "hasChildren":true,
                      "isDefault":false,
                      "name":"Specs",
-                     "parent":"root"},
-                    {"id":"-1583082176",
-                     "hasChildren":false,
-                     "isDefault":true,
-                     "name":"Welcome",
-                     "parent":"109641752"}];
-        dfd.resolve(data);
+                     "parent":"root",
+                     "childCount":1}],
+          "109641752" : [{"id":"-1583082176",
+                          "hasChildren":false,
+                          "isDefault":true,
+                          "name":"Welcome",
+                          "parent":"109641752",
+                          "childCount":0}]
+      };
+      spyOn(gadgetSpecService, 'getSpecTreeChildren').andCallFake(function(parentId, offset, limit) {
+        var dfd = new Deferred();
+        dfd.resolve({id : parentId, total : children[parentId].length, offset : 0, children : children[parentId]});
+        return dfd;
+      });
+      spyOn(gadgetSpecService, 'getSpecTreePath').andCallFake(function(id) {
+        var dfd = new Deferred();
+        dfd.resolve({id : "-1583082176", path : ["root", "109641752", "-1583082176"]});
         return dfd;
       });
+    };
+  
+    it("can be started", function() {
+      var sidebar = new SidebarNav();
+      
+      spyOnSpecTree();
       
       document.getElementById('testDiv').appendChild(sidebar.domNode);
       sidebar.startup();
       
       expect(sidebar.specTree).not.toBe(null);
+      expect(gadgetSpecService.getSpecTreeChildren).toHaveBeenCalledWith("root", 0, 500);
+      expect(gadgetSpecService.getSpecTreePath).toHaveBeenCalledWith("default");
       sidebar.destroy();
     }); 
 
     it("can add a new spec", function() {
       var sidebar = new SidebarNav();
       
-      spyOn(gadgetSpecService, 'getSpecTree').andCallFake(function() {
-        var dfd = new Deferred();
-        var data = [{"id":"109641752",
-                     "hasChildren":true,
-                     "isDefault":false,
-                     "name":"Specs",
-                     "parent":"root"},
-                    {"id":"-1583082176",
-                     "hasChildren":false,
-                     "isDefault":true,
-                     "name":"Welcome",
-                     "parent":"109641752"}];
-        dfd.resolve(data);
-        return dfd;
-      });
+      spyOnSpecTree();
       
       document.getElementById('testDiv').appendChild(sidebar.domNode);
       sidebar.startup();
-      expect(sidebar.specStore.data.length).toBe(3);
+      // The fake root page has one folder
+      expect(sidebar.specStore.query({parent: "root"}).length).toBe(1);
       
       var node;
       on(sidebar, 'show', function(newNode) {
@@ -95,7 +97,8 @@ define(['explorer/widgets/SidebarNav', 'dojo/topic', 'dojo/Deferred', 'dojo/on',
       }, "The node was not selected.", 750);        
       runs(function() {
         expect(node).toEqual({hasChildren : false, id : "123", isDefault : false, name : "Sample Gadget", parent : "myspecs"});
-        expect(sidebar.specStore.data.length).toBe(5);
+        expect(sidebar.specStore.query({parent: "root"}).length).toBe(2);
+        expect(sidebar.specStore.query({parent: "myspecs"}).length).toBe(1);
         expect(sidebar.specStore.query({name: "My Specs"}).length).toBe(1);
         expect(sidebar.specStore.query({name: "Sample Gadget"}).length).toBe(1);
         sidebar.destroy();
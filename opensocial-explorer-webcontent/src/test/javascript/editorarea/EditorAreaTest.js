@@ -86,16 +86,17 @@ define(['explorer/widgets/editorarea/EditorArea', 'explorer/gadget-spec-service'
         dfd.resolve(data);
         return dfd;
       });
-      spyOn(gadgetSpecService, 'getGadgetSpec').andCallFake(function(id) {
+      spyOn(gadgetSpecService, 'getGadgetSpecs').andCallFake(function(ids, contentHashes) {
         var dfd = new Deferred();
         var data = {
             gadgetResource : {
               name : "gadget.xml",
+              contentHash : "abcd",
               content : "some content"
             },
-            id: "1234"
+            id: ids[0]
         };
-        dfd.resolve(data);
+        dfd.resolve([data]);
         return dfd;
       });
       spyOn(editorArea, 'emit').andCallThrough();
@@ -103,6 +104,8 @@ define(['explorer/widgets/editorarea/EditorArea', 'explorer/gadget-spec-service'
       editorArea.startup();
       editorArea.displaySpec('1234');
       expect(editorArea.emit).toHaveBeenCalledWith("renderGadget", "1234");
+      editorArea.displaySpec('5678');
+      expect(gadgetSpecService.getGadgetSpecs).toHaveBeenCalledWith(['5678'], ["abcd"]);
       editorArea.destroy();
     });
 
@@ -120,7 +123,7 @@ define(['explorer/widgets/editorarea/EditorArea', 'explorer/gadget-spec-service'
         dfd.resolve(data);
         return dfd;
       });
-      spyOn(gadgetSpecService, 'getGadgetSpec').andCallFake(function(id) {
+      spyOn(gadgetSpecService, 'getGadgetSpecs').andCallFake(function(ids, contentHashes) {
         var dfd = new Deferred();
         dfd.reject();
         return dfd;
@@ -128,9 +131,79 @@ define(['explorer/widgets/editorarea/EditorArea', 'explorer/gadget-spec-service'
       spyOn(editorArea, 'emit').andCallThrough();
       document.getElementById('testDiv').appendChild(editorArea.domNode);
       editorArea.startup();
+      editorArea.displaySpec('1234');
       expect(editorArea.emit.calls.length).toEqual(1);
       expect(editorArea.getEditorTabs().tabs.length).toEqual(1);
       editorArea.destroy();
     });
+
+    it("sends only the changes of a spec and posts it only if the servlet no longer has the base", function() {
+      var editorArea = new EditorArea();
+      spyOn(gadgetSpecService, 'getDefaultGadgetSpec').andCallFake(function() {
+        var dfd = new Deferred();
+        var data = {
+            gadgetResource : {
+              name : "gadget.xml",
+              content : "some content"
+            },
+            id: "1234"
+        };
+        dfd.resolve(data);
+        return dfd;
+      });
+      spyOn(gadgetSpecService, 'updateGadgetSpec').andCallFake(function(baseId, changes) {
+        var dfd = new Deferred();
+        if (baseId === "1234") {
+          dfd.resolve({id : "5678"});
+        } else if (baseId === "5678") {
+          dfd.reject({response : {status : 404}});
+        } else {
+          dfd.reject({response : {status : 500}});
+        }
+        return dfd;
+      });
+      spyOn(gadgetSpecService, 'createNewGadgetSpec').andCallFake(function(spec) {
+        var dfd = new Deferred();
+        dfd.resolve({id : "9012"});
+        return dfd;
+      });
+      document.getElementById('testDiv').appendChild(editorArea.domNode);
+      editorArea.startup();
+      var spec = {
+          title : "title",
+          gadgetResource : {
+            name : "gadget.xml",
+            content : "some new content"
+          },
+          htmlResources : [],
+          cssResources : [],
+          jsResources : [{name : "a.js", content : "var a;"}]
+      };
+      spyOn(editorArea, 'getGadgetSpec').andReturn(spec);
+      var ids = [];
+      var addId = function(data) {
+        ids.push(data.id);
+      };
+      editorArea.postGadgetSpec(addId);
+      expect(gadgetSpecService.updateGadgetSpec).toHaveBeenCalledWith("1234", {
+        title : "title",
+        gadgetResource : {name : "gadget.xml", edits : [{start : 5, end : 5, text : "new "}]},
+        jsResources : [{name : "a.js", content : "var a;"}]
+      });
+      expect(gadgetSpecService.createNewGadgetSpec).not.toHaveBeenCalled();
+
+      editorArea.postGadgetSpec(addId);
+      expect(gadgetSpecService.updateGadgetSpec).toHaveBeenCalledWith("5678", {});
+      expect(gadgetSpecService.createNewGadgetSpec).toHaveBeenCalledWith(spec);
+      expect(ids).toEqual(["5678", "9012"]);
+
+      spyOn(console, 'error');
+      editorArea.postGadgetSpec(addId);
+      expect(gadgetSpecService.updateGadgetSpec).toHaveBeenCalledWith("9012", {});
+      expect(gadgetSpecService.createNewGadgetSpec.callCount).toBe(1);
+      expect(console.error).toHaveBeenCalled();
+      expect(ids).toEqual(["5678", "9012"]);
+      editorArea.destroy();
+    });
   });
 });
\ No newline at end of file